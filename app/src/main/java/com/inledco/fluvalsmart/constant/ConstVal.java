@@ -7,5 +7,6 @@ package com.inledco.fluvalsmart.constant;
 public class ConstVal
 {
     public static final String DEV_PREFER_FILENAME = "DEV_MAC_PREFER";
+    public static final String DEV_IDENTITY_FILENAME = "DEV_IDENTITY";
     public static final String KEY_PASSWORD = "PASSWORD";
 }
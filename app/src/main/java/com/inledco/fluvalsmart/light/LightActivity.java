@@ -45,21 +45,26 @@ import com.inledco.fluvalsmart.ota.BleOTAActivity;
 import com.inledco.fluvalsmart.prefer.Setting;
 import com.inledco.fluvalsmart.util.CommUtil;
 import com.inledco.fluvalsmart.util.DeviceUtil;
+import com.inledco.fluvalsmart.util.LightFrameDelimiter;
 import com.inledco.fluvalsmart.util.LightPrefUtil;
 import com.inledco.fluvalsmart.util.Md5Util;
 import com.inledco.fluvalsmart.util.PreferenceUtil;
 import com.inledco.fluvalsmart.view.CustomDialogBuilder;
 import com.inledco.fluvalsmart.view.CustomProgressDialog;
 import com.inledco.fluvalsmart.viewmodel.LightViewModel;
+import com.liruya.tuner168blemanager.BleConnection;
 import com.liruya.tuner168blemanager.BleListener;
 import com.liruya.tuner168blemanager.BleManager;
+import com.liruya.tuner168blemanager.BleRequest;
+import com.liruya.tuner168blemanager.BleRequestCallback;
+import com.liruya.tuner168blemanager.BleSession;
 import com.liruya.tuner168blemanager.BleSimpleListener;
 
 import java.text.DecimalFormat;
-import java.util.List;
 
 public class LightActivity extends BaseActivity implements DataInvalidFragment.OnRetryClickListener {
     private static final String OTA_UPGRADE_LINK = "http://47.88.12.183:8080/OTAInfoModels/GetOTAInfo?deviceid=";
+    private static final int DISCONNECT_TIMEOUT = 3000;
 
     private Toolbar light_toolbar;
     private ProgressDialog mProgressDialog;
@@ -88,6 +93,7 @@ public class LightActivity extends BaseActivity implements DataInvalidFragment.O
 
     private BleListener mBleListener;
     private final Handler mHandler = new Handler();
+    private BleRequest mSyncRequest;
 
     private LightViewModel mLightViewModel;
     private Light mLight;
@@ -116,23 +122,27 @@ public class LightActivity extends BaseActivity implements DataInvalidFragment.O
     @Override
     protected void onRestart() {
         super.onRestart();
-        if (BleManager.getInstance().isConnected(mAddress)) {
-            BleManager.getInstance().setAutoConnect(mAddress, mAutoConnect);
-        } else {
-            BleManager.getInstance().connectDevice(mAddress, mAutoConnect);
+        BleManager.getInstance().setAutoReconnect(mAddress, mAutoConnect);
+        if (!BleManager.getInstance().isConnected(mAddress)) {
+            BleManager.getInstance().connectDevice(mAddress);
         }
     }
 
     @Override
     protected void onStop() {
         super.onStop();
-        BleManager.getInstance().setAutoConnect(mAddress, false);
+        BleManager.getInstance().setAutoReconnect(mAddress, false);
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mSyncRequest != null) {
+            mSyncRequest.cancel();
+            mSyncRequest = null;
+        }
         BleManager.getInstance().removeBleListener(mBleListener);
+        BleManager.getInstance().removeFrameDelimiter(mAddress);
         BleManager.getInstance().disconnectDevice(mAddress);
         BleManager.getInstance().refresh(mAddress);
         if (mCountDownTimer != null) {
@@ -240,7 +250,7 @@ public class LightActivity extends BaseActivity implements DataInvalidFragment.O
             @Override
             public void onConnected() {
                 mAutoConnect = true;
-                BleManager.getInstance().setAutoConnect(mAddress, true);
+                BleManager.getInstance().setAutoReconnect(mAddress, true);
             }
 
             @Override
@@ -271,6 +281,11 @@ public class LightActivity extends BaseActivity implements DataInvalidFragment.O
             public void onDataValid() {
                 showConnectStatus();
                 mCountDownTimer.cancel();
+                BleSession session = BleManager.getInstance().getSession(mAddress);
+                if (mState < STATE_GET_INFO && session != null && session.isVerified()) {
+                    //logged in on a recent link, only sync time and read status
+                    mState = STATE_GET_INFO;
+                }
                 if (mState < STATE_LOGIN) {
                     readPassword();
                 } else if (mState < STATE_GET_INFO) {
@@ -287,6 +302,7 @@ public class LightActivity extends BaseActivity implements DataInvalidFragment.O
             @Override
             public void onReadMfr(String s) {
                 mState = STATE_GET_INFO;
+                //register read done, only now start the next gatt operation
                 syncDeviceDatetime();
                 //TODO
 //                byte[] mfr = DataUtil.hexToByteArray(s.replace(" ", ""));
@@ -324,11 +340,12 @@ public class LightActivity extends BaseActivity implements DataInvalidFragment.O
             }
 
             @Override
-            public void onDataReceived(List<Byte> bytes) {
-                decodeReceiveData(mAddress, bytes);
+            public void onFrameReceived(byte[] bytes, int offset, int length) {
+                decodeReceiveData(mAddress, bytes, offset, length);
             }
         };
         BleManager.getInstance().addBleListener(mBleListener);
+        BleManager.getInstance().setFrameDelimiter(mAddress, new LightFrameDelimiter(mPrefer.getDevId()));
         light_toolbar.setTitle(mPrefer.getDeviceName());
         light_mode_show.setVisibility(View.GONE);
         getDeviceData();
@@ -469,12 +486,33 @@ public class LightActivity extends BaseActivity implements DataInvalidFragment.O
 
     private void syncDeviceDatetime() {
         Log.e(TAG, "syncDeviceDatetime: " );
-        mHandler.postDelayed(new Runnable() {
+        if (mSyncRequest != null && !mSyncRequest.isDone()) {
+            return;
+        }
+        mSyncRequest = CommUtil.syncDeviceTime(mAddress, new BleRequestCallback() {
             @Override
-            public void run() {
-                CommUtil.syncDeviceTime(mAddress);
+            public void onResponse(String mac, byte[] response) {
+                //decoded by onFrameReceived
+            }
+
+            @Override
+            public void onFailure(String mac, int error) {
+                Log.e(TAG, "syncDeviceDatetime: failed " + error);
+                if (error == BleRequest.ERROR_CANCELED || error == BleRequest.ERROR_DISCONNECTED || mCountDownTimer == null) {
+                    return;
+                }
+                mCountDownTimer.cancel();
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mProgressDialog.isShowing()) {
+                            mProgressDialog.dismiss();
+                        }
+                        showDataInvalidFragment();
+                    }
+                });
             }
-        }, 100);
+        });
     }
 
     public void getDeviceData() {
@@ -490,16 +528,9 @@ public class LightActivity extends BaseActivity implements DataInvalidFragment.O
                 }
                 mCountDownTimer.start();
             } else {
-                BleManager.getInstance().disconnectDevice(mAddress);
+                BleManager.getInstance().reconnectDevice(mAddress);
                 showMessage(R.string.msg_connecting_device);
-                new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        while (BleManager.getInstance().isConnected(mAddress));
-                        BleManager.getInstance().connectDevice(mAddress);
-                        mCountDownTimer.start();
-                    }
-                }).start();
+                mCountDownTimer.start();
             }
         } else {
             BleManager.getInstance().connectDevice(mAddress);
@@ -594,8 +625,8 @@ public class LightActivity extends BaseActivity implements DataInvalidFragment.O
         });
     }
 
-    private void decodeReceiveData(final String mac, List<Byte> list) {
-        final Object object = CommUtil.decodeLight(list, mPrefer.getDevId());
+    private void decodeReceiveData(final String mac, byte[] bytes, int offset, int length) {
+        final Object object = CommUtil.decodeLight(bytes, offset, length, mPrefer.getDevId());
         if (object != null) {
             final FragmentTransaction ft = getSupportFragmentManager().beginTransaction();
             if (object instanceof LightAuto) {
@@ -910,7 +941,12 @@ public class LightActivity extends BaseActivity implements DataInvalidFragment.O
         new Thread(new Runnable() {
             @Override
             public void run() {
-                while (BleManager.getInstance().isConnected(mAddress));
+                try {
+                    BleManager.getInstance().awaitConnectionState(mAddress, BleConnection.STATE_DISCONNECTED, DISCONNECT_TIMEOUT);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
                 final Intent intent = new Intent(LightActivity.this, BleOTAActivity.class);
                 intent.putExtra("devid", mPrefer.getDevId());
                 intent.putExtra("name", mPrefer.getDeviceName());
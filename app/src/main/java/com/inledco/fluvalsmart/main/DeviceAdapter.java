@@ -12,6 +12,7 @@ import com.inledco.fluvalsmart.R;
 import com.inledco.fluvalsmart.bean.BaseDevice;
 import com.inledco.fluvalsmart.impl.SwipeItemActionClickListener;
 import com.inledco.fluvalsmart.util.DeviceUtil;
+import com.inledco.fluvalsmart.util.PresenceTracker;
 import com.inledco.itemtouchhelperextension.SwipeItemViewHolder;
 
 import java.util.List;
@@ -25,11 +26,13 @@ public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.DeviceView
     private Context mContext;
     private List< BaseDevice > mDevices;
     private SwipeItemActionClickListener mSwipeItemActionClickListener;
+    private PresenceTracker mPresence;
 
-    public DeviceAdapter ( Context context, List< BaseDevice > devices )
+    public DeviceAdapter ( Context context, List< BaseDevice > devices, PresenceTracker presence )
     {
         mContext = context;
         mDevices = devices;
+        mPresence = presence;
     }
 
     public void setSwipeItemActionClickListener( SwipeItemActionClickListener listener )
@@ -54,6 +57,9 @@ public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.DeviceView
         holder.tv_name.setText( device.getDevicePrefer()
                                    .getDeviceName() );
         holder.tv_tank.setText( DeviceUtil.getDeviceType( device.getDevicePrefer().getDevId() ) );
+        // 不在范围内的设备图标变暗
+        boolean present = mPresence == null || !mPresence.isTracking() || mPresence.isPresent( device.getDevicePrefer().getDeviceMac() );
+        holder.iv_icon.setAlpha( present ? 1.0f : 0.4f );
         holder.item_content.setOnClickListener( new View.OnClickListener() {
             @Override
             public void onClick ( View v )
@@ -30,6 +30,7 @@ import com.inledco.fluvalsmart.prefer.Setting;
 import com.inledco.fluvalsmart.scan.ScanActivity;
 import com.inledco.fluvalsmart.util.LightPrefUtil;
 import com.inledco.fluvalsmart.util.PreferenceUtil;
+import com.inledco.fluvalsmart.util.PresenceTracker;
 import com.inledco.fluvalsmart.view.CustomDialogBuilder;
 import com.inledco.itemtouchhelperextension.ItemTouchHelperCallback;
 import com.inledco.itemtouchhelperextension.ItemTouchHelperExtension;
@@ -56,6 +57,20 @@ public class DeviceFragment extends BaseFragment
     private DeviceAdapter mDeviceAdapter;
 
     private BleHelper mBleHelper;
+    private final PresenceTracker mPresence = PresenceTracker.getInstance();
+
+    private final PresenceTracker.Listener mPresenceListener = new PresenceTracker.Listener()
+    {
+        @Override
+        public void onPresenceChanged ()
+        {
+            if ( mDeviceAdapter != null )
+            {
+                mPresence.sort( mDevices );
+                mDeviceAdapter.notifyItemRangeChanged( 0, mDeviceAdapter.getItemCount() );
+            }
+        }
+    };
 
     @Override
     public View onCreateView ( LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState )
@@ -72,6 +87,14 @@ public class DeviceFragment extends BaseFragment
         super.onResume();
         initData();
         BleManager.getInstance().disConnectAll();
+        startPresence();
+    }
+
+    @Override
+    public void onPause ()
+    {
+        super.onPause();
+        mPresence.stop();
     }
 
     @Override
@@ -101,6 +124,8 @@ public class DeviceFragment extends BaseFragment
             DevicePrefer prefer = (DevicePrefer) PreferenceUtil.getObjectFromPrefer( getContext(), ConstVal.DEV_PREFER_FILENAME, key );
             mDevices.add( new BaseDevice( prefer ) );
         }
+        // 在范围内且信号强的设备排在前面
+        mPresence.sort( mDevices );
         if ( Setting.hasScanTip( getContext() ) || mDevices.size() > 0 )
         {
             device_iv_add.setVisibility( View.GONE );
@@ -113,7 +138,7 @@ public class DeviceFragment extends BaseFragment
             device_tv_add.setVisibility( View.VISIBLE );
             device_rv_show.setVisibility( View.GONE );
         }
-        mDeviceAdapter = new DeviceAdapter( getContext(), mDevices );
+        mDeviceAdapter = new DeviceAdapter( getContext(), mDevices, mPresence );
         device_rv_show.setAdapter( mDeviceAdapter );
         ItemTouchHelperCallback callback = new ItemTouchHelperCallback();
         ItemTouchHelperExtension mItemTouchHelperExtension = new ItemTouchHelperExtension( callback );
@@ -212,6 +237,31 @@ public class DeviceFragment extends BaseFragment
         } );
     }
 
+    /**
+     * 后台低功耗扫描已添加的设备, 列表显示是否在范围内
+     */
+    private void startPresence ()
+    {
+        if ( mDevices == null || mDevices.isEmpty() )
+        {
+            return;
+        }
+        if ( mBleHelper == null )
+        {
+            mBleHelper = new BleHelper( (AppCompatActivity) getActivity() );
+        }
+        if ( !mBleHelper.isBluetoothEnabled() || !mBleHelper.checkLocationPermission() )
+        {
+            return;
+        }
+        List< String > macs = new ArrayList<>();
+        for ( BaseDevice device : mDevices )
+        {
+            macs.add( device.getDevicePrefer().getDeviceMac() );
+        }
+        mPresence.start( macs, mPresenceListener );
+    }
+
     private void startScanActivity()
     {
         Intent intent = new Intent( getContext(), ScanActivity.class );
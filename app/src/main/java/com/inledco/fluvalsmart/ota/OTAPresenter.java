@@ -1,6 +1,6 @@
 package com.inledco.fluvalsmart.ota;
 
-import android.os.CountDownTimer;
+import android.bluetooth.BluetoothGatt;
 import android.os.Environment;
 import android.os.Handler;
 import android.support.annotation.NonNull;
@@ -8,11 +8,16 @@ import android.util.Log;
 
 import com.ble.api.DataUtil;
 import com.inledco.fluvalsmart.R;
+import com.inledco.fluvalsmart.util.DeviceIdentityCache;
 import com.liruya.okhttpmanager.DownloadCallback;
 import com.liruya.okhttpmanager.HttpCallback;
 import com.liruya.okhttpmanager.OKHttpManager;
+import com.liruya.tuner168blemanager.BleConnection;
 import com.liruya.tuner168blemanager.BleListener;
 import com.liruya.tuner168blemanager.BleManager;
+import com.liruya.tuner168blemanager.BleRequest;
+import com.liruya.tuner168blemanager.BleRequestCallback;
+import com.liruya.tuner168blemanager.BleResponseMatcher;
 import com.liruya.tuner168blemanager.BleSimpleListener;
 
 import java.io.BufferedReader;
@@ -22,7 +27,8 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import okhttp3.Call;
 
@@ -36,10 +42,18 @@ public class OTAPresenter extends BaseActivityPresenter<BleOTAActivity> {
     private static final int OTA_SUPPORT_LOWEST_VERSION = 0x0102;
     private static final String OTA_UPGRADE_LINK = "http://47.88.12.183:8080/OTAInfoModels/GetOTAInfo?deviceid=";
     private static final String OTA_FIRMWARE_LINK = "http://47.88.12.183:8080";
+    private static final int OTA_RESPONSE_TIMEOUT = 1000;
+    private static final int DISCONNECT_TIMEOUT = 3000;
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int REMOTE_VERSION_TIMEOUT = 15000;
 
-    private boolean mReadRemoteVersion;
     private boolean mProcessing;
 
+    /**
+     * link held at high priority while flash is written
+     */
+    private boolean mFlashing;
+
     private IOTAView mView;
     private String mAddress;
     private short mDevid;
@@ -67,8 +81,8 @@ public class OTAPresenter extends BaseActivityPresenter<BleOTAActivity> {
     private int mTotal;
     private boolean mTestMode = false;
 
-    private byte mCurrentCommand;
-    private CountDownTimer mCountDownTimer;
+    private BleRequest mRequest;
+    private final BleRequestCallback mRequestCallback;
 
     private BleListener mBleListener;
 
@@ -80,22 +94,18 @@ public class OTAPresenter extends BaseActivityPresenter<BleOTAActivity> {
         mRemoteVersionUrl = remoteVersionUrl;
         mTestMode = mode;
         mHandler = new Handler();
-        mCountDownTimer = new CountDownTimer(1000, 500) {
+        mRequestCallback = new BleRequestCallback() {
             @Override
-            public void onTick(long millisUntilFinished) {
-
+            public void onResponse(String mac, byte[] response) {
+                decodeReceiveData(response);
             }
 
             @Override
-            public void onFinish() {
-                mProcessing = false;
-                mView.showMessage(getString(R.string.ota_response_timeout));
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        mView.showErrorDialog();
-                    }
-                });
+            public void onFailure(String mac, int error) {
+                if (error == BleRequest.ERROR_CANCELED) {
+                    return;
+                }
+                fail(R.string.ota_response_timeout);
             }
         };
     }
@@ -134,13 +144,6 @@ public class OTAPresenter extends BaseActivityPresenter<BleOTAActivity> {
                 mView.showMessage(getString(R.string.ota_connect_success));
             }
 
-            @Override
-            public void onDataReceived(List<Byte> bytes) {
-                if (bytes.get(0) == mCurrentCommand) {
-                    decodeReceiveData(bytes);
-                }
-            }
-
             @Override
             public void onReadMfr(String s) {
                 decodeMfrData(s);
@@ -151,7 +154,8 @@ public class OTAPresenter extends BaseActivityPresenter<BleOTAActivity> {
     }
 
     public void stop() {
-        mCountDownTimer.cancel();
+        cancelRequest();
+        endFlashing();
         BleManager.getInstance()
                   .removeBleListener(mBleListener);
         BleManager.getInstance()
@@ -160,6 +164,7 @@ public class OTAPresenter extends BaseActivityPresenter<BleOTAActivity> {
 
     public void stopProcess() {
         mProcessing = false;
+        endFlashing();
     }
 
     /**
@@ -172,41 +177,47 @@ public class OTAPresenter extends BaseActivityPresenter<BleOTAActivity> {
             @Override
             public void run() {
                 mProcessing = true;
-                while (BleManager.getInstance().isConnected(mAddress));
-                long st = System.currentTimeMillis();
-                while (System.currentTimeMillis() - st < 480);
-                st = System.currentTimeMillis();
-                mView.showMessage(getString(R.string.ota_connecting));
-                BleManager.getInstance()
-                          .refresh(mAddress);
-                BleManager.getInstance()
-                          .connectDevice(mAddress);
-                while (BleManager.getInstance()
-                                 .isDataValid(mAddress) == false) {
-                    if (System.currentTimeMillis() - st > 5000) {
+                mDeviceMajorVersion = 0;
+                mDeviceMinorVersion = 0;
+                mRemoteFirmware = null;
+                final CountDownLatch remoteVersionLatch = new CountDownLatch(1);
+                final DecimalFormat df = new DecimalFormat("00");
+                try {
+                    if (!BleManager.getInstance()
+                                   .awaitConnectionState(mAddress, BleConnection.STATE_DISCONNECTED, DISCONNECT_TIMEOUT)) {
+                        // old link still up, reconnecting now would race with it
+                        mView.showMessage(getString(R.string.ota_response_timeout));
+                        mProcessing = false;
+                        return;
+                    }
+                    Thread.sleep(480);
+                    mView.showMessage(getString(R.string.ota_connecting));
+                    BleManager.getInstance()
+                              .refresh(mAddress);
+                    BleManager.getInstance()
+                              .connectDevice(mAddress);
+                    if (!BleManager.getInstance()
+                                   .awaitConnectionState(mAddress, BleConnection.STATE_READY, CONNECT_TIMEOUT)) {
                         mView.showMessage(getString(R.string.ota_disconnect));
                         mProcessing = false;
                         return;
                     }
+                    Thread.sleep(160);
                 }
-                mDeviceMajorVersion = 0;
-                mDeviceMinorVersion = 0;
-                mRemoteFirmware = null;
-                mReadRemoteVersion = false;
-                final DecimalFormat df = new DecimalFormat("00");
-
-                st = System.currentTimeMillis();
-                while (System.currentTimeMillis() - st < 160) {
+                catch (InterruptedException e) {
+                    mProcessing = false;
+                    return;
                 }
                 BleManager.getInstance()
                           .readMfr(mAddress);
+                long ct = System.currentTimeMillis();
                 OKHttpManager.getInstance()
                              .get(OTA_UPGRADE_LINK + mDevid, null, new HttpCallback<RemoteFirmware>() {
                                  @Override
                                  public void onFailure(Call call, IOException e) {
                                      Log.e(TAG, "onFailure: " + e.getMessage());
                                      mView.showRemoteVersion(getString(R.string.failed));
-                                     mReadRemoteVersion = true;
+                                     remoteVersionLatch.countDown();
                                  }
 
                                  @Override
@@ -218,19 +229,30 @@ public class OTAPresenter extends BaseActivityPresenter<BleOTAActivity> {
                                          mView.showMessage(msg);
                                      }
                                      mView.showRemoteVersion(getString(R.string.failed));
-                                     mReadRemoteVersion = true;
+                                     remoteVersionLatch.countDown();
                                  }
 
                                  @Override
                                  public void onSuccess(final RemoteFirmware result) {
                                      mRemoteFirmware = result;
                                      mView.showRemoteVersion("" + result.getMajor_version() + "." + df.format(result.getMinor_version()));
-                                     mReadRemoteVersion = true;
+                                     remoteVersionLatch.countDown();
                                  }
                              });
-                long ct = System.currentTimeMillis();
-                while (System.currentTimeMillis() - ct < 1000 || mReadRemoteVersion == false) {
-
+                try {
+                    // device version is reported by readMfr within 1 second
+                    if (!remoteVersionLatch.await(REMOTE_VERSION_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                        // no reply from server, reported as failed below
+                        Log.e(TAG, "checkUpdate: remote version timeout");
+                    }
+                    long remain = 1000 - (System.currentTimeMillis() - ct);
+                    if (remain > 0) {
+                        Thread.sleep(remain);
+                    }
+                }
+                catch (InterruptedException e) {
+                    mProcessing = false;
+                    return;
                 }
                 final int device_version = (mDeviceMajorVersion << 8) | mDeviceMinorVersion;
                 if (device_version == 0) {
@@ -383,19 +405,13 @@ public class OTAPresenter extends BaseActivityPresenter<BleOTAActivity> {
     }
 
     public void enterBootloader() {
-        mCurrentCommand = OTAConstants.OTA_CMD_GET_STATUS;
         byte[] bytes = new byte[]{OTAConstants.OTA_CMD_GET_STATUS, 0x00, 0x00, 0x00, OTAConstants.OTA_CMD_GET_STATUS};
-        BleManager.getInstance()
-                  .sendBytes(mAddress, bytes);
-        mCountDownTimer.start();
+        sendCommand(bytes);
     }
 
     public void getBootloaderInfo() {
-        mCurrentCommand = OTAConstants.OTA_CMD_GET_VERSION;
         byte[] bytes = new byte[]{OTAConstants.OTA_CMD_GET_VERSION, 0x00, 0x00, 0x00};
-        BleManager.getInstance()
-                  .sendBytes(mAddress, bytes);
-        mCountDownTimer.start();
+        sendCommand(bytes);
     }
 
     public void eraseFirmware() {
@@ -403,11 +419,8 @@ public class OTAPresenter extends BaseActivityPresenter<BleOTAActivity> {
         for (int i = mAppStartAddress; i < mAppEndAddress; i += mEraseBlockSize) {
             length++;
         }
-        mCurrentCommand = OTAConstants.OTA_CMD_ERASE_FLASH;
         byte[] bytes = new byte[]{OTAConstants.OTA_CMD_ERASE_FLASH, (byte) length, (byte) (mAppStartAddress & 0xFF), (byte) ((mAppStartAddress >> 8) & 0xFF)};
-        BleManager.getInstance()
-                  .sendBytes(mAddress, bytes);
-        mCountDownTimer.start();
+        sendCommand(bytes);
     }
 
     public void upgradeFirmware() {
@@ -428,10 +441,7 @@ public class OTAPresenter extends BaseActivityPresenter<BleOTAActivity> {
                         bytes[4 + i] = frame.getData_list()
                                             .get(i);
                     }
-                    mCurrentCommand = OTAConstants.OTA_CMD_WRITE_FLASH;
-                    BleManager.getInstance()
-                              .sendBytes(mAddress, bytes);
-                    mCountDownTimer.start();
+                    sendCommand(bytes);
                 }
             }
         }
@@ -439,10 +449,44 @@ public class OTAPresenter extends BaseActivityPresenter<BleOTAActivity> {
 
     public void resetDevice() {
         byte[] bytes = new byte[]{OTAConstants.OTA_CMD_RESET_DEVICE, 0x00, 0x00, 0x00};
-        mCurrentCommand = OTAConstants.OTA_CMD_RESET_DEVICE;
-        BleManager.getInstance()
-                  .sendBytes(mAddress, bytes);
-        mCountDownTimer.start();
+        sendCommand(bytes);
+    }
+
+    /**
+     * send a bootloader command, reply or timeout comes to mRequestCallback
+     */
+    private void sendCommand(byte[] bytes) {
+        cancelRequest();
+        mRequest = BleManager.getInstance()
+                             .request(mAddress, bytes, new OTAResponseMatcher(bytes), OTA_RESPONSE_TIMEOUT, mRequestCallback);
+    }
+
+    /**
+     * write blocks back to back on a short connection interval
+     */
+    private void beginFlashing() {
+        if (!mFlashing) {
+            mFlashing = true;
+            BleManager.getInstance()
+                      .beginBulkTransfer(mAddress);
+        }
+    }
+
+    private void endFlashing() {
+        if (mFlashing) {
+            mFlashing = false;
+            BleManager.getInstance()
+                      .endBulkTransfer(mAddress);
+            Log.e(TAG, "endFlashing: throughput " + BleManager.getInstance()
+                                                              .getThroughput(mAddress, BluetoothGatt.CONNECTION_PRIORITY_HIGH) + " B/s");
+        }
+    }
+
+    private void cancelRequest() {
+        if (mRequest != null) {
+            mRequest.cancel();
+            mRequest = null;
+        }
     }
 
     private void decodeMfrData(String s) {
@@ -456,28 +500,58 @@ public class OTAPresenter extends BaseActivityPresenter<BleOTAActivity> {
             mDevid = devid;
             mDeviceMajorVersion = mfr[2] & 0xFF;
             mDeviceMinorVersion = mfr[3] & 0xFF;
+            if (getContext() != null) {
+                DeviceIdentityCache.getInstance(getContext())
+                                   .putMfr(mAddress, mfr, System.currentTimeMillis());
+            }
             DecimalFormat df = new DecimalFormat("00");
             mView.showDeviceVersion("" + mDeviceMajorVersion + "." + df.format(mDeviceMinorVersion));
         }
     }
 
-    private void decodeReceiveData(List<Byte> list) {
-        if (list == null || list.size() < 5) {
+    /**
+     * stop the upgrade, the reply of the current command failed or never came
+     */
+    private void fail(int msgId) {
+        mProcessing = false;
+        endFlashing();
+        mView.showMessage(getString(msgId));
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mView.showErrorDialog();
+            }
+        });
+    }
+
+    /**
+     * @param outOfRangeId message of OTA_REPONSE_OUTOF_RANGE for the command
+     * @return message of a result code other than OTA_RESPONSE_SUCCESS
+     */
+    private static int getFailureMessage(byte result, int outOfRangeId) {
+        return result == OTAConstants.OTA_REPONSE_OUTOF_RANGE ? outOfRangeId : R.string.ota_invalid_command;
+    }
+
+    /**
+     * the reply completed the request of the current command, so every reply not leading to the next step fails the upgrade
+     */
+    private void decodeReceiveData(byte[] bytes) {
+        if (bytes == null || bytes.length < 5) {
+            fail(R.string.ota_response_timeout);
             return;
         }
-        int command = list.get(0);
-        int length = list.get(1);
+        int command = bytes[0];
+        int length = bytes[1];
         byte result;
         switch (command) {
             case OTAConstants.OTA_CMD_GET_VERSION:
-                if (length == 8 && list.size() == 12) {
-                    mCountDownTimer.cancel();
-                    mBootloaderMinorVersion = list.get(4) & 0xFF;
-                    mBootloaderMajorVersion = list.get(5) & 0xFF;
-                    mAppStartAddress = (((list.get(7) & 0xFF) << 8) | (list.get(6) & 0xFF));
-                    mAppEndAddress = (((list.get(9) & 0xFF) << 8) | (list.get(8) & 0xFF));
-                    mEraseBlockSize = list.get(10) & 0xFF;
-                    mWriteBlockSize = list.get(11) & 0xFF;
+                if (length == 8 && bytes.length == 12) {
+                    mBootloaderMinorVersion = bytes[4] & 0xFF;
+                    mBootloaderMajorVersion = bytes[5] & 0xFF;
+                    mAppStartAddress = (((bytes[7] & 0xFF) << 8) | (bytes[6] & 0xFF));
+                    mAppEndAddress = (((bytes[9] & 0xFF) << 8) | (bytes[8] & 0xFF));
+                    mEraseBlockSize = bytes[10] & 0xFF;
+                    mWriteBlockSize = bytes[11] & 0xFF;
                     DecimalFormat df = new DecimalFormat("00");
                     mView.showMessage(getString(R.string.ota_bootloader_version) + mBootloaderMajorVersion + "." + df.format(mBootloaderMinorVersion));
                     mHandler.postDelayed(new Runnable() {
@@ -487,6 +561,9 @@ public class OTAPresenter extends BaseActivityPresenter<BleOTAActivity> {
                         }
                     }, 96);
                 }
+                else {
+                    fail(length == 1 ? getFailureMessage(bytes[4], R.string.ota_outof_range) : R.string.ota_response_timeout);
+                }
                 break;
 
             case OTAConstants.OTA_CMD_READ_FLASH:
@@ -495,14 +572,13 @@ public class OTAPresenter extends BaseActivityPresenter<BleOTAActivity> {
 
             case OTAConstants.OTA_CMD_WRITE_FLASH:
                 if (length == 1) {
-                    result = list.get(4);
+                    result = bytes[4];
                     if (result == OTAConstants.OTA_RESPONSE_SUCCESS) {
-                        int adrl = list.get(2) & 0xFF;
-                        int adrh = list.get(3) & 0xFF;
+                        int adrl = bytes[2] & 0xFF;
+                        int adrh = bytes[3] & 0xFF;
                         if (mFrames.get(0)
                                    .getAddress() == ((adrh << 8) | adrl))
                         {
-                            mCountDownTimer.cancel();
                             DecimalFormat df = new DecimalFormat("0.0");
                             mView.showUpgradeProgress(df.format((float) (mCurrent + 1) * 100 / mTotal) + "%");
                             mFrames.remove(0);
@@ -514,82 +590,63 @@ public class OTAPresenter extends BaseActivityPresenter<BleOTAActivity> {
                                 }
                             }, 48);
                         }
+                        else {
+                            fail(R.string.ota_outof_range);
+                        }
                     }
                     else {
-                        if (result == OTAConstants.OTA_REPONSE_OUTOF_RANGE) {
-                            mCountDownTimer.cancel();
-                            mProcessing = false;
-                            mView.showMessage(getString(R.string.ota_outof_range));
-                            runOnUiThread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    mView.showErrorDialog();
-                                }
-                            });
-                        }
+                        fail(getFailureMessage(result, R.string.ota_outof_range));
                     }
                 }
+                else {
+                    fail(R.string.ota_response_timeout);
+                }
                 break;
 
             case OTAConstants.OTA_CMD_ERASE_FLASH:
                 if (length == 1) {
-                    result = list.get(4);
+                    result = bytes[4];
                     if (result == OTAConstants.OTA_RESPONSE_SUCCESS) {
-                        mCountDownTimer.cancel();
                         mHandler.postDelayed(new Runnable() {
                             @Override
                             public void run() {
                                 mCurrent = 0;
+                                beginFlashing();
                                 upgradeFirmware();
                             }
                         }, 256);
                         mView.showMessage(getString(R.string.ota_erasefirmware));
                     }
                     else {
-                        if (result == OTAConstants.OTA_REPONSE_OUTOF_RANGE) {
-                            mCountDownTimer.cancel();
-                            mProcessing = false;
-                            mView.showMessage(getString(R.string.ota_erase_failed));
-                            runOnUiThread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    mView.showErrorDialog();
-                                }
-                            });
-                        }
+                        fail(getFailureMessage(result, R.string.ota_erase_failed));
                     }
                 }
+                else {
+                    fail(R.string.ota_response_timeout);
+                }
                 break;
 
             case OTAConstants.OTA_CMD_CALC_CHECKSUM:
-                if (length == 1 && list.get(4) == OTAConstants.OTA_REPONSE_OUTOF_RANGE) {
-                    mCountDownTimer.cancel();
-                    mProcessing = false;
-                    mView.showMessage(getString(R.string.ota_check_failed));
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            mView.showErrorDialog();
-                        }
-                    });
+                if (length == 1) {
+                    fail(getFailureMessage(bytes[4], R.string.ota_check_failed));
+                }
+                else if (length == 4) {
+                    int start_addr = ((bytes[3] & 0xFF) << 8) | (bytes[2] & 0xFF);
+                    int end_addr = ((bytes[5] & 0xFF) << 8) | (bytes[4] & 0xFF);
+                    int checksum = ((bytes[7] & 0xFF) << 8) | (bytes[6] & 0xFF);
+                    mView.showMessage(getString(R.string.ota_check_success));
                 }
                 else {
-                    if (length == 4) {
-                        mCountDownTimer.cancel();
-                        int start_addr = ((list.get(3) & 0xFF) << 8) | (list.get(2) & 0xFF);
-                        int end_addr = ((list.get(5) & 0xFF) << 8) | (list.get(4) & 0xFF);
-                        int checksum = ((list.get(7) & 0xFF) << 8) | (list.get(6) & 0xFF);
-                        mView.showMessage(getString(R.string.ota_check_success));
-                    }
+                    fail(R.string.ota_response_timeout);
                 }
                 break;
 
             case OTAConstants.OTA_CMD_RESET_DEVICE:
                 if (length == 1) {
-                    result = list.get(4);
+                    result = bytes[4];
                     if (result == OTAConstants.OTA_RESPONSE_SUCCESS) {
-                        mCountDownTimer.cancel();
                         mProcessing = false;
+                        endFlashing();
                         mView.showMessage(getString(R.string.ota_upgrade_success));
                         BleManager.getInstance()
                                   .disconnectDevice(mAddress);
@@ -602,12 +659,17 @@ public class OTAPresenter extends BaseActivityPresenter<BleOTAActivity> {
                             }
                         });
                     }
+                    else {
+                        fail(getFailureMessage(result, R.string.ota_outof_range));
+                    }
+                }
+                else {
+                    fail(R.string.ota_response_timeout);
                 }
                 break;
 
             case OTAConstants.OTA_CMD_GET_STATUS:
-                if (length == 1 && list.get(4) == OTAConstants.OTA_RESPONSE_SUCCESS) {
-                    mCountDownTimer.cancel();
+                if (length == 1 && bytes[4] == OTAConstants.OTA_RESPONSE_SUCCESS) {
                     mHandler.postDelayed(new Runnable() {
                         @Override
                         public void run() {
@@ -617,8 +679,7 @@ public class OTAPresenter extends BaseActivityPresenter<BleOTAActivity> {
                     mView.showMessage(getString(R.string.ota_enter_bootloader));
                 }
                 else {
-                    if (length == 0 && list.get(4) == (OTAConstants.OTA_CMD_GET_STATUS ^ list.get(2) ^ list.get(3))) {
-                        mCountDownTimer.cancel();
+                    if (length == 0 && bytes[4] == (OTAConstants.OTA_CMD_GET_STATUS ^ bytes[2] ^ bytes[3])) {
                         BleManager.getInstance()
                                   .disconnectDevice(mAddress);
                         mView.showMessage(getString(R.string.ota_reset_tobootloader));
@@ -638,25 +699,44 @@ public class OTAPresenter extends BaseActivityPresenter<BleOTAActivity> {
                             }
                         });
                     }
+                    else if (length == 1) {
+                        fail(getFailureMessage(bytes[4], R.string.ota_outof_range));
+                    }
+                    else {
+                        fail(R.string.ota_response_timeout);
+                    }
                 }
                 break;
 
             default:
-                if (length == 1) {
-                    result = list.get(4);
-                    if (result == OTAConstants.OTA_REPSONSE_INVALID_COMMAND) {
-                        mCountDownTimer.cancel();
-                        mProcessing = false;
-                        mView.showMessage(getString(R.string.ota_invalid_command));
-                        runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                mView.showErrorDialog();
-                            }
-                        });
-                    }
-                }
+                fail(R.string.ota_invalid_command);
                 break;
         }
     }
+
+    /**
+     * bootloader reply: cmd len adrl adrh [data] ..., write flash reply also carries the address written
+     */
+    private static class OTAResponseMatcher implements BleResponseMatcher {
+        private final byte mCommand;
+        private final byte mAdrl;
+        private final byte mAdrh;
+
+        private OTAResponseMatcher(byte[] command) {
+            mCommand = command[0];
+            mAdrl = command[2];
+            mAdrh = command[3];
+        }
+
+        @Override
+        public boolean matches(byte[] bytes, int offset, int length) {
+            if (length < 5 || bytes[offset] != mCommand || length < 4 + bytes[offset + 1]) {
+                return false;
+            }
+            if (mCommand == OTAConstants.OTA_CMD_WRITE_FLASH) {
+                return bytes[offset + 2] == mAdrl && bytes[offset + 3] == mAdrh;
+            }
+            return true;
+        }
+    }
 }
@@ -0,0 +1,383 @@
+package com.inledco.fluvalsmart.scan;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 扫描时识别未知设备的队列: 同时连接读取mfr的设备数有上限, 信号最强的先连接,
+ * 每次连接超时后断开, 等到断开事件(最多再等一个超时)后才重试, 以免旧连接的断开事件结束新的尝试,
+ * 超过重试次数放弃. 识别结果由ScanActivity的BleListener报告.
+ * Prober在调用线程或超时线程中调用, 不持有锁
+ */
+public class IdentifyScheduler {
+    private static final String TAG = "IdentifyScheduler";
+
+    public static final int DEFAULT_CONCURRENCY = 2;
+    public static final long DEFAULT_TIMEOUT = 8000;
+    public static final int DEFAULT_RETRIES = 1;
+
+    public interface Prober {
+        /**
+         * connect device and read mfr, report by {@link #onIdentified(String)} or {@link #onLinkLost(String)}
+         *
+         * @return false:connect not started, counts as a failed attempt
+         */
+        boolean probe(String mac);
+
+        /**
+         * give up a probe timed out or cleared
+         */
+        void cancel(String mac);
+
+        /**
+         * every attempt of device failed
+         */
+        void onFailed(String mac);
+    }
+
+    private static class Probe {
+        private final String mMac;
+        private final long mEnqueueTime;
+        private int mRssi;
+        private int mAttempts;
+        private ScheduledFuture<?> mTimeout;
+
+        /**
+         * attempt timed out, waiting for its link to go down
+         */
+        private boolean mCancelling;
+
+        private Probe(String mac, int rssi, long time) {
+            mMac = mac;
+            mRssi = rssi;
+            mEnqueueTime = time;
+        }
+    }
+
+    private final Prober mProber;
+    private final int mConcurrency;
+    private final long mTimeout;
+    private final int mRetries;
+    private final List<Probe> mPending;
+    private final Map<String, Probe> mActive;
+
+    /**
+     * identified or failed, not queued again until cleared
+     */
+    private final Set<String> mDone;
+    private final ScheduledExecutorService mScheduler;
+
+    private int mIdentified;
+    private int mFailed;
+    private int mAttempts;
+    private int mTimeouts;
+    private long mLatencySum;
+    private long mStartTime;
+    private long mLastTime;
+
+    public IdentifyScheduler(@NonNull Prober prober) {
+        this(prober, DEFAULT_CONCURRENCY, DEFAULT_TIMEOUT, DEFAULT_RETRIES);
+    }
+
+    /**
+     * @param concurrency max devices connected at once
+     * @param timeout milliseconds an attempt may take from connect to mfr read
+     * @param retries attempts after the first one
+     */
+    public IdentifyScheduler(@NonNull Prober prober, int concurrency, long timeout, int retries) {
+        mProber = prober;
+        mConcurrency = Math.max(1, concurrency);
+        mTimeout = timeout;
+        mRetries = Math.max(0, retries);
+        mPending = new ArrayList<>();
+        mActive = new HashMap<>();
+        mDone = new HashSet<>();
+        mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return false if device is queued, being probed or done
+     */
+    public boolean enqueue(@NonNull String mac, int rssi) {
+        synchronized (this) {
+            if (mDone.contains(mac) || mActive.containsKey(mac) || findPending(mac) != null) {
+                return false;
+            }
+            mPending.add(new Probe(mac, rssi, System.currentTimeMillis()));
+        }
+        dispatch();
+        return true;
+    }
+
+    /**
+     * latest rssi of a queued device, decides which device is probed next
+     */
+    public synchronized void updateRssi(@NonNull String mac, int rssi) {
+        Probe probe = findPending(mac);
+        if (probe != null) {
+            probe.mRssi = rssi;
+        }
+    }
+
+    /**
+     * mfr of device read, frees its slot
+     */
+    public void onIdentified(@NonNull String mac) {
+        synchronized (this) {
+            Probe probe = mActive.remove(mac);
+            if (probe == null) {
+                probe = findPending(mac);
+                mPending.remove(probe);
+            }
+            if (probe == null || !mDone.add(mac)) {
+                return;
+            }
+            if (probe.mTimeout != null) {
+                probe.mTimeout.cancel(false);
+            }
+            long now = System.currentTimeMillis();
+            mIdentified++;
+            mLatencySum += now - probe.mEnqueueTime;
+            mLastTime = now;
+        }
+        dispatch();
+    }
+
+    /**
+     * link of device went down before mfr was read, or after its attempt timed out.
+     * device is tried again within its retries, call once per link
+     */
+    public void onLinkLost(@NonNull String mac) {
+        Probe probe;
+        synchronized (this) {
+            probe = mActive.remove(mac);
+            if (probe == null) {
+                return;
+            }
+            probe.mTimeout.cancel(false);
+            probe.mCancelling = false;
+        }
+        retry(probe);
+    }
+
+    /**
+     * drop every queued device, cancel probes and reset stats
+     */
+    public void clear() {
+        List<Probe> active;
+        synchronized (this) {
+            active = new ArrayList<>(mActive.values());
+            for (Probe probe : active) {
+                probe.mTimeout.cancel(false);
+            }
+            mActive.clear();
+            mPending.clear();
+            mDone.clear();
+            mIdentified = 0;
+            mFailed = 0;
+            mAttempts = 0;
+            mTimeouts = 0;
+            mLatencySum = 0;
+            mStartTime = 0;
+            mLastTime = 0;
+        }
+        for (Probe probe : active) {
+            mProber.cancel(probe.mMac);
+        }
+    }
+
+    public void shutdown() {
+        clear();
+        mScheduler.shutdownNow();
+    }
+
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    public synchronized int getActiveCount() {
+        return mActive.size();
+    }
+
+    public synchronized int getIdentifiedCount() {
+        return mIdentified;
+    }
+
+    public synchronized int getFailedCount() {
+        return mFailed;
+    }
+
+    /**
+     * @return count of connects started
+     */
+    public synchronized int getAttempts() {
+        return mAttempts;
+    }
+
+    public synchronized int getTimeouts() {
+        return mTimeouts;
+    }
+
+    /**
+     * @return average milliseconds from enqueue to identified, -1 if none
+     */
+    public synchronized long getAverageLatency() {
+        return mIdentified == 0 ? -1 : mLatencySum / mIdentified;
+    }
+
+    /**
+     * @return devices identified per second from first probe to last identified
+     */
+    public synchronized float getThroughput() {
+        long elapsed = mLastTime - mStartTime;
+        if (mIdentified == 0 || elapsed <= 0) {
+            return 0;
+        }
+        return mIdentified * 1000f / elapsed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "identified %d failed %d pending %d active %d attempts %d timeouts %d latency avg %d ms %.2f/s",
+                             mIdentified, mFailed, mPending.size(), mActive.size(), mAttempts, mTimeouts, getAverageLatency(), getThroughput());
+    }
+
+    private Probe findPending(String mac) {
+        for (Probe probe : mPending) {
+            if (probe.mMac.equals(mac)) {
+                return probe;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * start probes of strongest queued devices while slots are free
+     */
+    private void dispatch() {
+        List<Probe> probes = new ArrayList<>();
+        List<Integer> attempts = new ArrayList<>();
+        synchronized (this) {
+            while (mActive.size() < mConcurrency && !mPending.isEmpty()) {
+                Probe best = mPending.get(0);
+                for (Probe probe : mPending) {
+                    if (probe.mRssi > best.mRssi) {
+                        best = probe;
+                    }
+                }
+                mPending.remove(best);
+                start(best);
+                probes.add(best);
+                attempts.add(best.mAttempts);
+            }
+        }
+        for (int i = 0; i < probes.size(); i++) {
+            if (!mProber.probe(probes.get(i).mMac)) {
+                onRefused(probes.get(i), attempts.get(i));
+            }
+        }
+    }
+
+    private void start(final Probe probe) {
+        final int attempt = ++probe.mAttempts;
+        mAttempts++;
+        if (mStartTime == 0) {
+            mStartTime = System.currentTimeMillis();
+        }
+        mActive.put(probe.mMac, probe);
+        probe.mTimeout = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onTimeout(probe, attempt);
+            }
+        }, mTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean isAttempt(Probe probe, int attempt) {
+        return mActive.get(probe.mMac) == probe && probe.mAttempts == attempt;
+    }
+
+    /**
+     * connect of attempt was not started, no link will go down
+     */
+    private void onRefused(Probe probe, int attempt) {
+        synchronized (this) {
+            if (!isAttempt(probe, attempt) || probe.mCancelling) {
+                return;
+            }
+            mActive.remove(probe.mMac);
+            probe.mTimeout.cancel(false);
+        }
+        retry(probe);
+    }
+
+    /**
+     * keep the slot until the link is down, see {@link #onLinkLost(String)}
+     */
+    private void onTimeout(final Probe probe, final int attempt) {
+        synchronized (this) {
+            if (!isAttempt(probe, attempt) || probe.mCancelling) {
+                return;
+            }
+            mTimeouts++;
+            probe.mCancelling = true;
+            probe.mTimeout = mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    onCancelTimeout(probe, attempt);
+                }
+            }, mTimeout, TimeUnit.MILLISECONDS);
+        }
+        mProber.cancel(probe.mMac);
+    }
+
+    /**
+     * link was never up or its loss was not reported, retry anyway
+     */
+    private void onCancelTimeout(Probe probe, int attempt) {
+        synchronized (this) {
+            if (!isAttempt(probe, attempt) || !probe.mCancelling) {
+                return;
+            }
+            mActive.remove(probe.mMac);
+            probe.mCancelling = false;
+        }
+        retry(probe);
+    }
+
+    private void retry(Probe probe) {
+        boolean failed;
+        synchronized (this) {
+            failed = probe.mAttempts > mRetries;
+            if (failed) {
+                mDone.add(probe.mMac);
+                mFailed++;
+            } else {
+                mPending.add(probe);
+            }
+        }
+        if (failed) {
+            mProber.onFailed(probe.mMac);
+        }
+        dispatch();
+    }
+}
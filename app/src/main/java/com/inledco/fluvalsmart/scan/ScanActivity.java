@@ -37,24 +37,30 @@ import com.inledco.fluvalsmart.bean.DevicePrefer;
 import com.inledco.fluvalsmart.bean.SelectDevice;
 import com.inledco.fluvalsmart.constant.ConstVal;
 import com.inledco.fluvalsmart.prefer.Setting;
+import com.inledco.fluvalsmart.util.DeviceIdentityCache;
 import com.inledco.fluvalsmart.util.DeviceUtil;
 import com.inledco.fluvalsmart.util.PreferenceUtil;
+import com.liruya.tuner168blemanager.BleAdvertisement;
+import com.liruya.tuner168blemanager.BleConnection;
 import com.liruya.tuner168blemanager.BleHelper;
 import com.liruya.tuner168blemanager.BleListener;
 import com.liruya.tuner168blemanager.BleManager;
 import com.liruya.tuner168blemanager.BleScanListener;
+import com.liruya.tuner168blemanager.BleScanResult;
 import com.liruya.tuner168blemanager.BleScanner;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 public class ScanActivity extends BaseActivity {
     private final int BLUETOOTH_REQUEST_ENABLE_CODE = 1;
     private final int SCAN_CODE = 3;
+    /**
+     * 扫描结果批量上报间隔 ms, 设备多时避免每个广播包都刷新列表
+     */
+    private final int SCAN_REPORT_DELAY = 500;
     private Toolbar scan_toolbar;
     private ToggleButton scan_tb_scan;
     private ProgressBar scan_pb_scanning;
@@ -64,7 +70,9 @@ public class ScanActivity extends BaseActivity {
 
     private Map<String, DevicePrefer> storedAddress;
 
-    private final Set<String> mDeviceMacs = new HashSet<>();
+    private final ScanStore mStore = new ScanStore();
+    private DeviceIdentityCache mIdentityCache;
+    private IdentifyScheduler mIdentifier;
     private final ArrayList<SelectDevice> mDevices = new ArrayList<>();
     private Comparator<SelectDevice> mComparator;
     private ScanAdapter mScanAdapter;
@@ -113,10 +121,29 @@ public class ScanActivity extends BaseActivity {
         @Override
         public void onDeviceScanned(String mac, String name, int rssi, byte[] bytes) {
             decodeScanData(mac, name, rssi, bytes);
+            refreshDevices();
+        }
+
+        @Override
+        public void onDevicesScanned(List<BleScanResult> results) {
+            for (BleScanResult result : results) {
+                decodeScanData(result.getMac(), result.getName(), result.getRssi(), result.getBytes());
+            }
+            refreshDevices();
         }
     };
 
     private final BleListener mBleListener = new BleListener() {
+        /**
+         * 连接超时/错误/断开都会转为DISCONNECTED, 每个连接只报告一次
+         */
+        @Override
+        protected void onConnectionStateChanged(String mac, int state) {
+            if (state == BleConnection.STATE_DISCONNECTED) {
+                mIdentifier.onLinkLost(mac);
+            }
+        }
+
         @Override
         protected void onDataValid(String mac) {
             BleManager.getInstance().readMfr(mac);
@@ -124,11 +151,34 @@ public class ScanActivity extends BaseActivity {
 
         @Override
         protected void onReadMfr(String mac, String s) {
+            mIdentifier.onIdentified(mac);
             BleManager.getInstance().disconnectDevice(mac);
             decodeMfrData(mac, s);
         }
     };
 
+    /**
+     * 未知设备由队列按信号强度依次连接读取mfr, 限制同时连接数
+     */
+    private final IdentifyScheduler.Prober mProber = new IdentifyScheduler.Prober() {
+        @Override
+        public boolean probe(String mac) {
+            return BleManager.getInstance()
+                             .connectDevice(mac);
+        }
+
+        @Override
+        public void cancel(String mac) {
+            BleManager.getInstance()
+                      .disconnectDevice(mac);
+        }
+
+        @Override
+        public void onFailed(String mac) {
+            Log.e(TAG, "identify failed: " + mac);
+        }
+    };
+
     static {
         AppCompatDelegate.setCompatVectorFromResourcesEnabled(true);
     }
@@ -148,6 +198,14 @@ public class ScanActivity extends BaseActivity {
         initData();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mIdentifier != null) {
+            mIdentifier.shutdown();
+        }
+    }
+
     @Override
     protected void onPause() {
         super.onPause();
@@ -252,8 +310,13 @@ public class ScanActivity extends BaseActivity {
                 }
             }
         };
+        mIdentityCache = DeviceIdentityCache.getInstance(this);
+        if (mIdentifier == null) {
+            mIdentifier = new IdentifyScheduler(mProber);
+        }
         BleScanner.getInstance().setBleScanListener(mScanListener);
-        BleManager.getInstance().addBleListener(mBleListener);
+        BleScanner.getInstance().setReportDelay(SCAN_REPORT_DELAY);
+        BleManager.getInstance().addBleListener(mBleListener, true);
 
         mComparator = new Comparator<SelectDevice>() {
             @Override
@@ -308,121 +371,87 @@ public class ScanActivity extends BaseActivity {
     @SuppressLint ("RestrictedApi")
     private void startScan() {
         storedAddress = PreferenceUtil.getAllObjectMapFromPrefer(ScanActivity.this, ConstVal.DEV_PREFER_FILENAME);
-        mDeviceMacs.clear();
+        mStore.clear();
+        mIdentifier.clear();
         mDevices.clear();
-        mScanAdapter.notifyDataSetChanged();
+        mScanAdapter.update();
         scan_fab_confirm.setVisibility(View.GONE);
         scan_tv_msg.setVisibility(View.GONE);
         BleScanner.getInstance().startScan();
     }
 
     private void stopScan() {
+        if (mIdentifier != null) {
+            Log.e(TAG, "stopScan: " + mIdentifier);
+            // 先清空队列, 断开连接时不再重试
+            mIdentifier.clear();
+        }
         BleScanner.getInstance().stopScan();
         BleManager.getInstance()
                   .disConnectAll();
+        if (mIdentityCache != null) {
+            mIdentityCache.flush();
+        }
     }
 
     private void decodeScanData(final String mac, String name, int rssi, byte[] bytes) {
-        if (mDeviceMacs.contains(mac)) {
-            for (int i = 0; i < mDevices.size(); i++) {
-                if (mDevices.get(i)
-                            .getPrefer()
-                            .getDeviceMac()
-                            .equals(mac))
-                {
-                    mDevices.get(i)
-                            .setRssi(rssi);
-                    break;
-                }
-            }
+        long time = System.currentTimeMillis();
+        if (mStore.updateRssi(mac, rssi, time) != null) {
+            mIdentifier.updateRssi(mac, rssi);
+            return;
+        }
+        if (storedAddress != null && storedAddress.containsKey(mac)) {
+            mStore.add(new SelectDevice(false, true, rssi, storedAddress.get(mac)), true, time);
         }
         else {
-            boolean flag = false;
-            if (storedAddress != null && storedAddress.containsKey(mac)) {
-                mDeviceMacs.add(mac);
-                SelectDevice device = new SelectDevice(false, true, rssi, storedAddress.get(mac));
-                mDevices.add(device);
-                flag = true;
-            }
-            else {
-                if (bytes == null || bytes.length == 0) {
-                    mDeviceMacs.add(mac);
-                    SelectDevice device = new SelectDevice(false, false, rssi, new DevicePrefer((short) 0, mac, name));
-                    mDevices.add(device);
-                    flag = true;
-                    BleManager.getInstance()
-                              .connectDevice(mac);
-                }
-                else {
-                    short devid = 0;
-                    for (int i = 0; i < 4 && i < bytes.length; i++) {
-                        if (bytes[i] >= 0x30 && bytes[i] <= 0x39) {
-                            devid = (short) ((devid << 4) | (bytes[i] - 0x30));
-                        }
-                        else {
-                            break;
-                        }
+            if (bytes == null || bytes.length == 0) {
+                DeviceIdentityCache.Identity identity = mIdentityCache.get(mac);
+                if (identity != null) {
+                    // 已识别过的设备不再连接读取mfr, 记录过旧时后台刷新
+                    mIdentityCache.onSeen(mac, time);
+                    short devid = identity.getDevid();
+                    SelectDevice device = new SelectDevice(DeviceUtil.isCorrectDevType(devid), false, rssi, new DevicePrefer(devid, mac, name));
+                    if (mStore.add(device, true, time) != null && identity.isStale(time)) {
+                        mIdentifier.enqueue(mac, rssi);
                     }
-                    boolean selectable = DeviceUtil.isCorrectDevType(devid);
-                    mDeviceMacs.add(mac);
-                    SelectDevice device = new SelectDevice(selectable, false, rssi, new DevicePrefer(devid, mac, name));
-                    mDevices.add(device);
-                    flag = true;
+                }
+                else if (mStore.add(new SelectDevice(false, false, rssi, new DevicePrefer((short) 0, mac, name)), false, time) != null) {
+                    mIdentifier.enqueue(mac, rssi);
                 }
             }
-            if (flag && mScanAdapter.isShowRssi() == false) {
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        mScanAdapter.notifyDataSetChanged();
-                    }
-                });
+            else {
+                short devid = BleAdvertisement.parseDevid(bytes, 0, bytes.length);
+                boolean selectable = DeviceUtil.isCorrectDevType(devid);
+                mStore.add(new SelectDevice(selectable, false, rssi, new DevicePrefer(devid, mac, name)), true, time);
             }
         }
-        if (mScanAdapter.isShowRssi()) {
-            Collections.sort(mDevices, mComparator);
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mScanAdapter.notifyDataSetChanged();
+    }
+
+    /**
+     * 扫描结果有变化时生成列表快照, 按信号强度排序后只刷新变化的行
+     */
+    private void refreshDevices() {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mStore.isChanged()) {
+                    mStore.snapshot(mDevices, mScanAdapter.isShowRssi() ? mComparator : null);
+                    mScanAdapter.update();
                 }
-            });
-        }
+            }
+        });
     }
 
     private void decodeMfrData(String mac, String s) {
         byte[] mfr = DataUtil.hexToByteArray(s.replace(" ", ""));
         //        LogUtil.d( TAG, "onReadMfr: " + mac + "\t" + s );
-        short devid;
-        if (mfr == null || mfr.length < 2) {
-            devid = 0;
-        }
-        else {
-            devid = (short) (((mfr[0] & 0xFF) << 8) | (mfr[1] & 0xFF));
-        }
+        DeviceIdentityCache.Identity identity = mIdentityCache.putMfr(mac, mfr, System.currentTimeMillis());
+        short devid = identity == null ? 0 : identity.getDevid();
         if (!DeviceUtil.isCorrectDevType(devid)) {
             return;
         }
-        for (int i = 0; i < mDevices.size(); i++) {
-            if (mDevices.get(i)
-                        .getPrefer()
-                        .getDeviceMac()
-                        .equals(mac))
-            {
-                mDevices.get(i)
-                        .getPrefer()
-                        .setDevId(devid);
-                mDevices.get(i)
-                        .setSelectable(true);
-                final int position = i;
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        mScanAdapter.notifyItemChanged(position);
-                    }
-                });
-                break;
-            }
+        if (mStore.setIdentified(mac, devid, true) != null) {
+            mScanAdapter.update();
         }
     }
 }
@@ -3,7 +3,9 @@ package com.inledco.fluvalsmart.scan;
 import android.content.Context;
 import android.os.Handler;
 import android.support.annotation.NonNull;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -19,6 +21,7 @@ import com.inledco.fluvalsmart.util.DeviceUtil;
 import com.liruya.tuner168blemanager.BleManager;
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by Administrator on 2016/10/20.
@@ -31,11 +34,18 @@ public class ScanAdapter extends RecyclerView.Adapter<ScanAdapter.ScanViewHolder
     private ArrayList<SelectDevice> mSelectDevices;
     private boolean mShowRssi;
 
+    /**
+     * rows as shown after last update, compared with devices to rebind only rows changed or moved
+     */
+    private final List<Row> mRows;
+
     public ScanAdapter(Context context, @NonNull Handler handler, ArrayList<SelectDevice> selectDevices) {
         mContext = context;
         mHandler = handler;
         mSelectDevices = selectDevices;
         mShowRssi = false;
+        mRows = new ArrayList<>();
+        update();
     }
 
     public boolean isShowRssi() {
@@ -92,11 +102,81 @@ public class ScanAdapter extends RecyclerView.Adapter<ScanAdapter.ScanViewHolder
         });
     }
 
+    /**
+     * dispatch rows inserted, removed, moved or changed since last update instead of rebinding every row.
+     * call on main thread after devices list is modified
+     */
+    public void update() {
+        final List<Row> rows = new ArrayList<>();
+        if (mSelectDevices != null) {
+            for (SelectDevice device : mSelectDevices) {
+                rows.add(new Row(device));
+            }
+        }
+        final List<Row> old = new ArrayList<>(mRows);
+        DiffUtil.DiffResult result = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return old.size();
+            }
+
+            @Override
+            public int getNewListSize() {
+                return rows.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                return old.get(oldItemPosition).mMac.equals(rows.get(newItemPosition).mMac);
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                return old.get(oldItemPosition).isSame(rows.get(newItemPosition), mShowRssi);
+            }
+        });
+        mRows.clear();
+        mRows.addAll(rows);
+        result.dispatchUpdatesTo(this);
+    }
+
     @Override
     public int getItemCount() {
         return mSelectDevices == null ? 0 : mSelectDevices.size();
     }
 
+    /**
+     * 已显示的行内容
+     */
+    private static class Row {
+        private final String mMac;
+        private final String mName;
+        private final short mDevid;
+        private final boolean mSelectable;
+        private final boolean mSelected;
+        private final int mRssi;
+
+        private Row(SelectDevice device) {
+            mMac = device.getPrefer()
+                         .getDeviceMac();
+            mName = device.getPrefer()
+                          .getDeviceName();
+            mDevid = device.getPrefer()
+                           .getDevId();
+            mSelectable = device.isSelectable();
+            mSelected = device.isSelected();
+            mRssi = device.getRssi();
+        }
+
+        private boolean isSame(Row row, boolean showRssi) {
+            return TextUtils.equals(mName, row.mName)
+                   && mDevid == row.mDevid
+                   && mSelectable == row.mSelectable
+                   && mSelected == row.mSelected
+                   && (!showRssi || mRssi == row.mRssi);
+        }
+    }
+
     /**
      * ViewHolder类
      */
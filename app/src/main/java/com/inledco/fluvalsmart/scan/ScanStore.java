@@ -0,0 +1,285 @@
+package com.inledco.fluvalsmart.scan;
+
+import android.support.annotation.NonNull;
+
+import com.inledco.fluvalsmart.bean.SelectDevice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 扫描结果表, 以48位mac打包成long为键, 每个广播包O(1)查找更新.
+ * 记录每个设备最近的rssi和识别出的devid, 按发现顺序生成列表快照给ScanAdapter.
+ * 只在主线程访问
+ */
+public class ScanStore {
+    /**
+     * 每个设备保存的rssi个数
+     */
+    private static final int RSSI_HISTORY = 8;
+
+    private static final long EMPTY = -1;
+
+    private long[] mKeys;
+    private int[] mIndexes;
+    private final List<Entry> mEntries;
+    private boolean mChanged;
+
+    public static class Entry {
+        private final long mKey;
+        private final SelectDevice mDevice;
+        private final int[] mRssis = new int[RSSI_HISTORY];
+        private int mRssiCount;
+        private int mRssiIndex;
+        private long mLastSeen;
+        private boolean mIdentified;
+
+        private Entry(long key, SelectDevice device) {
+            mKey = key;
+            mDevice = device;
+        }
+
+        public long getKey() {
+            return mKey;
+        }
+
+        public SelectDevice getDevice() {
+            return mDevice;
+        }
+
+        /**
+         * @return devid read from advertisement, mfr or saved prefer
+         */
+        public boolean isIdentified() {
+            return mIdentified;
+        }
+
+        public long getLastSeen() {
+            return mLastSeen;
+        }
+
+        /**
+         * @return recent rssi readings, oldest first
+         */
+        public int[] getRssiHistory() {
+            int[] rssis = new int[mRssiCount];
+            int start = (mRssiIndex - mRssiCount + RSSI_HISTORY) % RSSI_HISTORY;
+            for (int i = 0; i < mRssiCount; i++) {
+                rssis[i] = mRssis[(start + i) % RSSI_HISTORY];
+            }
+            return rssis;
+        }
+
+        /**
+         * @return average of recent rssi readings, 0 if none
+         */
+        public int getAverageRssi() {
+            if (mRssiCount == 0) {
+                return 0;
+            }
+            int sum = 0;
+            for (int i = 0; i < mRssiCount; i++) {
+                sum += mRssis[i];
+            }
+            return sum / mRssiCount;
+        }
+
+        private void addRssi(int rssi, long time) {
+            mRssis[mRssiIndex] = rssi;
+            mRssiIndex = (mRssiIndex + 1) % RSSI_HISTORY;
+            if (mRssiCount < RSSI_HISTORY) {
+                mRssiCount++;
+            }
+            mLastSeen = time;
+            mDevice.setRssi(rssi);
+        }
+    }
+
+    public ScanStore() {
+        mEntries = new ArrayList<>();
+        allocate(16);
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public void clear() {
+        mEntries.clear();
+        allocate(16);
+        mChanged = true;
+    }
+
+    /**
+     * @return entry of device, null if not scanned
+     */
+    public Entry get(@NonNull String mac) {
+        long key = packMac(mac);
+        return key == EMPTY ? null : get(key);
+    }
+
+    public Entry get(long key) {
+        int slot = find(key);
+        return mKeys[slot] == EMPTY ? null : mEntries.get(mIndexes[slot]);
+    }
+
+    /**
+     * add a device scanned for the first time
+     *
+     * @param identified devid of device is known
+     * @return entry added, null if mac is invalid or already added
+     */
+    public Entry add(@NonNull SelectDevice device, boolean identified, long time) {
+        long key = packMac(device.getPrefer()
+                                 .getDeviceMac());
+        if (key == EMPTY) {
+            return null;
+        }
+        int slot = find(key);
+        if (mKeys[slot] != EMPTY) {
+            return null;
+        }
+        Entry entry = new Entry(key, device);
+        entry.mIdentified = identified;
+        entry.addRssi(device.getRssi(), time);
+        mKeys[slot] = key;
+        mIndexes[slot] = mEntries.size();
+        mEntries.add(entry);
+        mChanged = true;
+        // 负载超过一半时扩容
+        if (mEntries.size() * 2 > mKeys.length) {
+            rehash(mKeys.length * 2);
+        }
+        return entry;
+    }
+
+    /**
+     * @return entry updated, null if device not scanned yet
+     */
+    public Entry updateRssi(@NonNull String mac, int rssi, long time) {
+        Entry entry = get(mac);
+        if (entry != null) {
+            entry.addRssi(rssi, time);
+            mChanged = true;
+        }
+        return entry;
+    }
+
+    /**
+     * @return entry updated, null if device not scanned yet
+     */
+    public Entry setIdentified(@NonNull String mac, short devid, boolean selectable) {
+        Entry entry = get(mac);
+        if (entry != null) {
+            entry.mIdentified = true;
+            entry.mDevice.getPrefer()
+                         .setDevId(devid);
+            entry.mDevice.setSelectable(selectable);
+            mChanged = true;
+        }
+        return entry;
+    }
+
+    /**
+     * @return devices added, updated or cleared since last snapshot
+     */
+    public boolean isChanged() {
+        return mChanged;
+    }
+
+    /**
+     * fill list with devices in scanned order, or sorted by comparator
+     *
+     * @param comparator null to keep scanned order
+     */
+    public void snapshot(@NonNull List<SelectDevice> devices, Comparator<SelectDevice> comparator) {
+        devices.clear();
+        for (Entry entry : mEntries) {
+            devices.add(entry.mDevice);
+        }
+        if (comparator != null) {
+            Collections.sort(devices, comparator);
+        }
+        mChanged = false;
+    }
+
+    /**
+     * @param mac "AA:BB:CC:DD:EE:FF" or without separators, case insensitive
+     * @return 48 bit address, -1 if invalid
+     */
+    public static long packMac(String mac) {
+        if (mac == null) {
+            return EMPTY;
+        }
+        long key = 0;
+        int digits = 0;
+        for (int i = 0; i < mac.length(); i++) {
+            char c = mac.charAt(i);
+            int value;
+            if (c >= '0' && c <= '9') {
+                value = c - '0';
+            } else if (c >= 'A' && c <= 'F') {
+                value = c - 'A' + 10;
+            } else if (c >= 'a' && c <= 'f') {
+                value = c - 'a' + 10;
+            } else if (c == ':' && (digits & 1) == 0 && digits > 0) {
+                continue;
+            } else {
+                return EMPTY;
+            }
+            key = (key << 4) | value;
+            digits++;
+        }
+        return digits == 12 ? key : EMPTY;
+    }
+
+    /**
+     * @return "AA:BB:CC:DD:EE:FF"
+     */
+    public static String unpackMac(long key) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int b = (int) (key >>> (40 - i * 8)) & 0xFF;
+            chars[i * 3] = Character.toUpperCase(Character.forDigit(b >> 4, 16));
+            chars[i * 3 + 1] = Character.toUpperCase(Character.forDigit(b & 0x0F, 16));
+            if (i < 5) {
+                chars[i * 3 + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mIndexes = new int[capacity];
+        Arrays.fill(mKeys, EMPTY);
+    }
+
+    private void rehash(int capacity) {
+        allocate(capacity);
+        for (int i = 0; i < mEntries.size(); i++) {
+            int slot = find(mEntries.get(i).mKey);
+            mKeys[slot] = mEntries.get(i).mKey;
+            mIndexes[slot] = i;
+        }
+    }
+
+    /**
+     * linear probing, capacity is a power of 2 and never more than half full
+     *
+     * @return slot holding key, or empty slot to put it
+     */
+    private int find(long key) {
+        int mask = mKeys.length - 1;
+        // 混合高位, 同一厂商的mac前缀相同
+        long h = key * 0x9E3779B97F4A7C15L;
+        int slot = (int) (h >>> 32) & mask;
+        while (mKeys[slot] != EMPTY && mKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+}
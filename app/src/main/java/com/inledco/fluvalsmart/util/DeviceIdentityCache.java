@@ -0,0 +1,268 @@
+package com.inledco.fluvalsmart.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+
+import com.inledco.fluvalsmart.constant.ConstVal;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 设备身份缓存: mac -> devid, 固件版本, 最后一次读取及扫描到的时间, 保存在SharedPreferences
+ * 扫描时广播中无devid的设备先查缓存, 命中则不用连接读取mfr, 只有新设备或记录过旧时才连接
+ */
+public class DeviceIdentityCache
+{
+    /**
+     * 超过此时间未重新读取mfr的记录, 扫描到时在后台连接刷新
+     */
+    public static final long REFRESH_AGE = 7 * 24 * 3600 * 1000L;
+
+    /**
+     * 超过此时间未扫描到的记录加载时丢弃
+     */
+    public static final long EXPIRE_AGE = 180 * 24 * 3600 * 1000L;
+
+    private static DeviceIdentityCache sInstance;
+
+    /**
+     * null: 只保存在内存
+     */
+    private final SharedPreferences mPrefs;
+    private final Map<String, Identity> mIdentities;
+
+    /**
+     * 只更新了扫描时间, 未写入的记录
+     */
+    private final Set<String> mDirty;
+
+    public static class Identity
+    {
+        private final short mDevid;
+        private final int mMajorVersion;
+        private final int mMinorVersion;
+        private final long mReadTime;
+        private long mLastSeen;
+
+        Identity ( short devid, int majorVersion, int minorVersion, long readTime, long lastSeen )
+        {
+            mDevid = devid;
+            mMajorVersion = majorVersion;
+            mMinorVersion = minorVersion;
+            mReadTime = readTime;
+            mLastSeen = lastSeen;
+        }
+
+        public short getDevid ()
+        {
+            return mDevid;
+        }
+
+        /**
+         * @return 固件主版本, 0: 未知
+         */
+        public int getMajorVersion ()
+        {
+            return mMajorVersion;
+        }
+
+        public int getMinorVersion ()
+        {
+            return mMinorVersion;
+        }
+
+        /**
+         * @return 最后一次读取mfr的时间
+         */
+        public long getReadTime ()
+        {
+            return mReadTime;
+        }
+
+        public long getLastSeen ()
+        {
+            return mLastSeen;
+        }
+
+        public boolean isStale ( long time )
+        {
+            return time - mReadTime > REFRESH_AGE;
+        }
+
+        /**
+         * @return "devid,major,minor,readTime,lastSeen"
+         */
+        String encode ()
+        {
+            return mDevid + "," + mMajorVersion + "," + mMinorVersion + "," + mReadTime + "," + mLastSeen;
+        }
+
+        /**
+         * @return null: 格式错误
+         */
+        static Identity decode ( String s )
+        {
+            if ( s == null || s.isEmpty() )
+            {
+                return null;
+            }
+            String[] fields = s.split( "," );
+            if ( fields.length != 5 )
+            {
+                return null;
+            }
+            try
+            {
+                return new Identity( Short.parseShort( fields[0] ),
+                                     Integer.parseInt( fields[1] ),
+                                     Integer.parseInt( fields[2] ),
+                                     Long.parseLong( fields[3] ),
+                                     Long.parseLong( fields[4] ) );
+            }
+            catch ( NumberFormatException e )
+            {
+                return null;
+            }
+        }
+    }
+
+    public static synchronized DeviceIdentityCache getInstance ( @NonNull Context context )
+    {
+        if ( sInstance == null )
+        {
+            SharedPreferences prefs = context.getApplicationContext()
+                                             .getSharedPreferences( ConstVal.DEV_IDENTITY_FILENAME, Context.MODE_PRIVATE );
+            sInstance = new DeviceIdentityCache( prefs, System.currentTimeMillis() );
+        }
+        return sInstance;
+    }
+
+    DeviceIdentityCache ( SharedPreferences prefs, long time )
+    {
+        mPrefs = prefs;
+        mIdentities = new HashMap<>();
+        mDirty = new HashSet<>();
+        if ( mPrefs == null )
+        {
+            return;
+        }
+        SharedPreferences.Editor editor = null;
+        for ( Map.Entry<String, ?> entry : mPrefs.getAll().entrySet() )
+        {
+            Identity identity = entry.getValue() instanceof String ? Identity.decode( (String) entry.getValue() ) : null;
+            if ( identity == null || time - identity.mLastSeen > EXPIRE_AGE )
+            {
+                if ( editor == null )
+                {
+                    editor = mPrefs.edit();
+                }
+                editor.remove( entry.getKey() );
+                continue;
+            }
+            mIdentities.put( entry.getKey(), identity );
+        }
+        if ( editor != null )
+        {
+            editor.apply();
+        }
+    }
+
+    /**
+     * @return null: 未缓存
+     */
+    public synchronized Identity get ( @NonNull String mac )
+    {
+        return mIdentities.get( mac );
+    }
+
+    public synchronized int size ()
+    {
+        return mIdentities.size();
+    }
+
+    /**
+     * 保存读取到的设备身份, 立即写入
+     */
+    public synchronized Identity put ( @NonNull String mac, short devid, int majorVersion, int minorVersion, long time )
+    {
+        Identity identity = new Identity( devid, majorVersion, minorVersion, time, time );
+        mIdentities.put( mac, identity );
+        mDirty.remove( mac );
+        if ( mPrefs != null )
+        {
+            mPrefs.edit()
+                  .putString( mac, identity.encode() )
+                  .apply();
+        }
+        return identity;
+    }
+
+    /**
+     * 由mfr数据保存设备身份: devid高字节, devid低字节, 主版本, 次版本
+     *
+     * @return null: 数据不足
+     */
+    public Identity putMfr ( @NonNull String mac, byte[] mfr, long time )
+    {
+        if ( mfr == null || mfr.length < 2 )
+        {
+            return null;
+        }
+        short devid = (short) ( ( ( mfr[0] & 0xFF ) << 8 ) | ( mfr[1] & 0xFF ) );
+        if ( mfr.length < 4 )
+        {
+            return put( mac, devid, 0, 0, time );
+        }
+        return put( mac, devid, mfr[2] & 0xFF, mfr[3] & 0xFF, time );
+    }
+
+    /**
+     * 更新扫描到的时间, 调用flush时写入
+     */
+    public synchronized void onSeen ( @NonNull String mac, long time )
+    {
+        Identity identity = mIdentities.get( mac );
+        if ( identity != null && time > identity.mLastSeen )
+        {
+            identity.mLastSeen = time;
+            mDirty.add( mac );
+        }
+    }
+
+    public synchronized void remove ( @NonNull String mac )
+    {
+        mIdentities.remove( mac );
+        mDirty.remove( mac );
+        if ( mPrefs != null )
+        {
+            mPrefs.edit()
+                  .remove( mac )
+                  .apply();
+        }
+    }
+
+    /**
+     * 写入扫描时间有更新的记录, 扫描结束时调用
+     */
+    public synchronized void flush ()
+    {
+        if ( mDirty.isEmpty() )
+        {
+            return;
+        }
+        if ( mPrefs != null )
+        {
+            SharedPreferences.Editor editor = mPrefs.edit();
+            for ( String mac : mDirty )
+            {
+                editor.putString( mac, mIdentities.get( mac ).encode() );
+            }
+            editor.apply();
+        }
+        mDirty.clear();
+    }
+}
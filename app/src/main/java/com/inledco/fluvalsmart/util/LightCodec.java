@@ -0,0 +1,362 @@
+package com.inledco.fluvalsmart.util;
+
+import com.inledco.fluvalsmart.bean.LightAuto;
+import com.inledco.fluvalsmart.bean.LightManual;
+import com.inledco.fluvalsmart.bean.LightPro;
+import com.inledco.fluvalsmart.bean.PointComparator;
+import com.inledco.fluvalsmart.bean.RampTime;
+import com.inledco.fluvalsmart.bean.TimerBrightPoint;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 灯具协议编解码, 直接读写byte[], 不经过List<Byte>装箱
+ * 帧结构及字段偏移见{@link LightFrames}
+ * 解码: 从数组指定位置和长度解析CMD_READ应答
+ * 编码: 写入调用者提供的数组, 返回写入长度
+ */
+public class LightCodec
+{
+    private static final PointComparator POINT_COMPARATOR = new PointComparator();
+
+    /**
+     * 计算异或校验值
+     * @param array     数组
+     * @param offset    起始位置
+     * @param len       长度
+     * @return          返回校验值
+     */
+    public static byte getCRC( byte[] array, int offset, int len )
+    {
+        byte crc = 0x00;
+        for ( int i = offset; i < offset + len; i++ )
+        {
+            crc ^= array[i];
+        }
+        return crc;
+    }
+
+    /**
+     * 解析设备运行状态
+     * @param bytes     数据
+     * @param offset    帧起始位置
+     * @param len       帧长度
+     * @param chns      通道数
+     * @return          LightAuto/LightPro/LightManual, 无效帧返回null
+     */
+    public static Object decode( byte[] bytes, int offset, int len, int chns )
+    {
+        if ( bytes == null || len < 4 || offset < 0 || offset + len > bytes.length )
+        {
+            return null;
+        }
+        if ( bytes[offset] != CommUtil.FRM_HDR || bytes[offset+1] != CommUtil.CMD_READ || getCRC( bytes, offset, len ) != 0x00 )
+        {
+            return null;
+        }
+        byte mode = bytes[offset+2];
+        LightFrameSchema schema = LightFrames.getRead( mode );
+        LightFrameSchema.Layout layout = ( schema == null ? null : schema.match( bytes, offset, len, chns ) );
+        if ( layout == null )
+        {
+            return null;
+        }
+        if ( mode == CommUtil.MODE_AUTO )
+        {
+            return decodeAuto( bytes, offset, layout );
+        }
+        else if ( mode == CommUtil.MODE_PRO )
+        {
+            return decodePro( bytes, offset, layout );
+        }
+        return decodeManual( bytes, offset, layout );
+    }
+
+    /**
+     * 解析ByteBuffer中position到limit之间的帧, 不改变position
+     * @param buffer    数据
+     * @param chns      通道数
+     * @return          LightAuto/LightPro/LightManual, 无效帧返回null
+     */
+    public static Object decode( ByteBuffer buffer, int chns )
+    {
+        if ( buffer == null )
+        {
+            return null;
+        }
+        if ( buffer.hasArray() )
+        {
+            return decode( buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), chns );
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get( bytes );
+        return decode( bytes, 0, bytes.length, chns );
+    }
+
+    private static LightAuto decodeAuto( byte[] bytes, int offset, LightFrameSchema.Layout layout )
+    {
+        RampTime sunrise = readRampTime( bytes, offset + layout.getOffset( LightFrames.AUTO_SUNRISE ) );
+        RampTime sunset = readRampTime( bytes, offset + layout.getOffset( LightFrames.AUTO_SUNSET ) );
+        byte[] dbrt = copyField( bytes, offset, layout, LightFrames.AUTO_DAY );
+        byte[] nbrt = copyField( bytes, offset, layout, LightFrames.AUTO_NIGHT );
+        boolean hasTurnoff = layout.has( LightFrames.AUTO_TURNOFF );
+        boolean turnoffEnable = false;
+        byte hour = 0;
+        byte minute = 0;
+        if ( hasTurnoff )
+        {
+            int p = offset + layout.getOffset( LightFrames.AUTO_TURNOFF );
+            turnoffEnable = ( bytes[p] != 0 );
+            hour = bytes[p+1];
+            minute = bytes[p+2];
+        }
+        if ( !layout.has( LightFrames.AUTO_DYNAMIC ) )
+        {
+            if ( hasTurnoff )
+            {
+                return new LightAuto( sunrise, dbrt, sunset, nbrt, turnoffEnable, hour, minute );
+            }
+            return new LightAuto( sunrise, dbrt, sunset, nbrt );
+        }
+        int p = offset + layout.getOffset( LightFrames.AUTO_DYNAMIC );
+        byte week = bytes[p];
+        RampTime dynamicPeriod = readRampTime( bytes, p+1 );
+        byte md = bytes[p+5];
+        if ( hasTurnoff )
+        {
+            return new LightAuto( sunrise, dbrt, sunset, nbrt, turnoffEnable, hour, minute, week, dynamicPeriod, md );
+        }
+        return new LightAuto( sunrise, dbrt, sunset, nbrt, week, dynamicPeriod, md );
+    }
+
+    private static LightPro decodePro( byte[] bytes, int offset, LightFrameSchema.Layout layout )
+    {
+        //count [hour minute [chns]]*count {dynamic}
+        int start = offset + layout.getOffset( LightFrames.PRO_COUNT );
+        LightPro lightPro = new LightPro.Builder().creatFromArray( Arrays.copyOfRange( bytes, start, offset+layout.getLength()-1 ),
+                                                                   layout.getChannelCount() );
+        if ( lightPro != null )
+        {
+            Arrays.sort( lightPro.getPoints(), 0, lightPro.getPointCount(), POINT_COMPARATOR );
+        }
+        return lightPro;
+    }
+
+    private static LightManual decodeManual( byte[] bytes, int offset, LightFrameSchema.Layout layout )
+    {
+        int chns = layout.getChannelCount();
+        boolean on = ( (bytes[offset+layout.getOffset( LightFrames.MANUAL_ON )] & 0x01) != 0x00 );
+        byte dyn = bytes[offset+layout.getOffset( LightFrames.MANUAL_DYN )];
+        int p = offset + layout.getOffset( LightFrames.MANUAL_VALUES );
+        short[] chnValues = new short[chns];
+        for ( int i = 0; i < chns; i++ )
+        {
+            chnValues[i] = (short) ( ( (bytes[p+1+2*i] & 0xFF) << 8 ) | ( bytes[p+2*i] & 0xFF ) );
+        }
+        byte[] p1Values = copyField( bytes, offset, layout, LightFrames.MANUAL_P1 );
+        byte[] p2Values = copyField( bytes, offset, layout, LightFrames.MANUAL_P2 );
+        byte[] p3Values = copyField( bytes, offset, layout, LightFrames.MANUAL_P3 );
+        byte[] p4Values = copyField( bytes, offset, layout, LightFrames.MANUAL_P4 );
+        return new LightManual( on, dyn, chnValues, p1Values, p2Values, p3Values, p4Values );
+    }
+
+    /**
+     * @param values    通道值
+     * @return          通道值帧长度
+     */
+    public static int getChannelsLength( short[] values )
+    {
+        return LightFrames.getCommand( CommUtil.CMD_CTRL ).layout( values.length, 0, 0 ).getLength();
+    }
+
+    /**
+     * 编码通道值帧(CMD_CTRL/CMD_PREVIEW)
+     * FRM_HDR cmd [value_h value_l]*chns xor
+     * @param cmd       命令
+     * @param values    通道值
+     * @param dst       目标数组
+     * @param offset    写入位置
+     * @return          写入长度
+     */
+    public static int encodeChannels( byte cmd, short[] values, byte[] dst, int offset )
+    {
+        LightFrameSchema.Layout layout = LightFrames.getCommand( cmd ).layout( values.length, 0, 0 );
+        layout.writeHeader( dst, offset );
+        int p = offset + layout.getOffset( LightFrames.CHANNELS_VALUES );
+        for ( int i = 0; i < values.length; i++ )
+        {
+            dst[p+2*i] = (byte) ( values[i] >> 8 );
+            dst[p+1+2*i] = (byte) ( values[i] & 0xFF );
+        }
+        layout.writeCrc( dst, offset );
+        return layout.getLength();
+    }
+
+    /**
+     * @param lightAuto 自动模式参数
+     * @return          自动模式帧长度
+     */
+    public static int getAutoLength( LightAuto lightAuto )
+    {
+        return getAutoLayout( lightAuto ).getLength();
+    }
+
+    /**
+     * 编码自动模式帧(CMD_CYCLE)
+     * @param lightAuto 自动模式参数
+     * @param dst       目标数组
+     * @param offset    写入位置
+     * @return          写入长度
+     */
+    public static int encodeAuto( LightAuto lightAuto, byte[] dst, int offset )
+    {
+        LightFrameSchema.Layout layout = getAutoLayout( lightAuto );
+        byte[] dayBright = lightAuto.getDayBright();
+        byte[] nightBright = lightAuto.getNightBright();
+        layout.writeHeader( dst, offset );
+        writeRampTime( lightAuto.getSunrise(), dst, offset + layout.getOffset( LightFrames.AUTO_SUNRISE ) );
+        System.arraycopy( dayBright, 0, dst, offset + layout.getOffset( LightFrames.AUTO_DAY ), dayBright.length );
+        writeRampTime( lightAuto.getSunset(), dst, offset + layout.getOffset( LightFrames.AUTO_SUNSET ) );
+        System.arraycopy( nightBright, 0, dst, offset + layout.getOffset( LightFrames.AUTO_NIGHT ), nightBright.length );
+        if ( layout.has( LightFrames.AUTO_TURNOFF ) )
+        {
+            int p = offset + layout.getOffset( LightFrames.AUTO_TURNOFF );
+            dst[p] = (byte) ( lightAuto.isTurnoffEnable() ? 0x01 : 0x00 );
+            dst[p+1] = lightAuto.getTurnoffHour();
+            dst[p+2] = lightAuto.getTurnoffMinute();
+        }
+        if ( layout.has( LightFrames.AUTO_DYNAMIC ) )
+        {
+            writeDynamicPeriod( lightAuto.getWeek(), lightAuto.getDynamicPeriod(), lightAuto.getDynamicMode(),
+                                dst, offset + layout.getOffset( LightFrames.AUTO_DYNAMIC ) );
+        }
+        layout.writeCrc( dst, offset );
+        return layout.getLength();
+    }
+
+    /**
+     * @param lightPro  专业模式参数
+     * @return          专业模式帧长度, 不含动态时段
+     */
+    public static int getProLength( LightPro lightPro )
+    {
+        return getProLength( lightPro.getPointCount(), lightPro.getPoints()[0].getBrights().length );
+    }
+
+    /**
+     * @param count     时间点数量
+     * @param chns      通道数
+     * @return          专业模式帧长度, 不含动态时段
+     */
+    public static int getProLength( int count, int chns )
+    {
+        return LightFrames.getCommand( CommUtil.CMD_PRO ).layout( chns, count, 0 ).getLength();
+    }
+
+    /**
+     * 编码专业模式帧(CMD_PRO), 动态时段通过CMD_DYNAMIC_PERIOD单独设置
+     * FRM_HDR CMD_PRO count [hour minute [chns]]*count xor
+     * @param lightPro  专业模式参数, 时间点会按时间排序
+     * @param dst       目标数组
+     * @param offset    写入位置
+     * @return          写入长度
+     */
+    public static int encodePro( LightPro lightPro, byte[] dst, int offset )
+    {
+        int count = lightPro.getPointCount();
+        TimerBrightPoint[] points = lightPro.getPoints();
+        Arrays.sort( points, 0, count, POINT_COMPARATOR );
+        return encodePro( points, count, dst, offset );
+    }
+
+    /**
+     * 按给定顺序编码专业模式帧(CMD_PRO)
+     * @param points    时间点, 通道数须一致
+     * @param count     时间点数量
+     * @param dst       目标数组
+     * @param offset    写入位置
+     * @return          写入长度
+     */
+    public static int encodePro( TimerBrightPoint[] points, int count, byte[] dst, int offset )
+    {
+        int chns = points[0].getBrights().length;
+        LightFrameSchema.Layout layout = LightFrames.getCommand( CommUtil.CMD_PRO ).layout( chns, count, 0 );
+        layout.writeHeader( dst, offset );
+        dst[offset+layout.getOffset( LightFrames.PRO_COUNT )] = (byte) count;
+        int p = offset + layout.getOffset( LightFrames.PRO_POINTS );
+        int size = layout.getItemSize( LightFrames.PRO_POINTS );
+        for ( int i = 0; i < count; i++ )
+        {
+            dst[p] = (byte) points[i].getHour();
+            dst[p+1] = (byte) points[i].getMinute();
+            System.arraycopy( points[i].getBrights(), 0, dst, p+2, chns );
+            p += size;
+        }
+        layout.writeCrc( dst, offset );
+        return layout.getLength();
+    }
+
+    /**
+     * @return  动态时段帧长度
+     */
+    public static int getDynamicPeriodLength()
+    {
+        return LightFrames.getCommand( CommUtil.CMD_DYNAMIC_PERIOD ).layout( 0, 0, 0 ).getLength();
+    }
+
+    /**
+     * 编码动态时段帧(CMD_DYNAMIC_PERIOD)
+     * FRM_HDR CMD_DYNAMIC_PERIOD week sh sm eh em mode xor
+     * @return          写入长度
+     */
+    public static int encodeDynamicPeriod( byte week, RampTime period, byte mode, byte[] dst, int offset )
+    {
+        LightFrameSchema.Layout layout = LightFrames.getCommand( CommUtil.CMD_DYNAMIC_PERIOD ).layout( 0, 0, 0 );
+        layout.writeHeader( dst, offset );
+        writeDynamicPeriod( week, period, mode, dst, offset + layout.getOffset( LightFrames.DYNAMIC_PERIOD ) );
+        layout.writeCrc( dst, offset );
+        return layout.getLength();
+    }
+
+    private static LightFrameSchema.Layout getAutoLayout( LightAuto lightAuto )
+    {
+        //固件同时支持关灯和动态时段时, 自动模式帧只带关灯参数
+        int blocks = 0;
+        if ( lightAuto.isHasTurnoff() )
+        {
+            blocks = LightFrames.BLOCK_TURNOFF;
+        }
+        else if ( lightAuto.isHasDynamic() )
+        {
+            blocks = LightFrames.BLOCK_DYNAMIC;
+        }
+        return LightFrames.getCommand( CommUtil.CMD_CYCLE ).layout( lightAuto.getDayBright().length, 0, blocks );
+    }
+
+    private static byte[] copyField( byte[] bytes, int offset, LightFrameSchema.Layout layout, int field )
+    {
+        int start = offset + layout.getOffset( field );
+        return Arrays.copyOfRange( bytes, start, start + layout.getItemSize( field ) );
+    }
+
+    private static RampTime readRampTime( byte[] bytes, int p )
+    {
+        return new RampTime( bytes[p], bytes[p+1], bytes[p+2], bytes[p+3] );
+    }
+
+    private static void writeRampTime( RampTime rampTime, byte[] dst, int p )
+    {
+        dst[p] = rampTime.getStartHour();
+        dst[p+1] = rampTime.getStartMinute();
+        dst[p+2] = rampTime.getEndHour();
+        dst[p+3] = rampTime.getEndMinute();
+    }
+
+    private static void writeDynamicPeriod( byte week, RampTime period, byte mode, byte[] dst, int p )
+    {
+        dst[p] = week;
+        writeRampTime( period, dst, p+1 );
+        dst[p+5] = mode;
+    }
+}
@@ -0,0 +1,109 @@
+package com.inledco.fluvalsmart.util;
+
+import android.support.annotation.NonNull;
+
+import com.liruya.tuner168blemanager.BleFrameDelimiter;
+import com.liruya.tuner168blemanager.BleReceiveBuffer;
+
+/**
+ * 按帧头/命令/长度/异或校验切分灯具上报的数据帧
+ * frame: FRM_HDR CMD_READ mode ... xor, 候选长度由{@link LightFrames}的帧结构计算
+ */
+public class LightFrameDelimiter implements BleFrameDelimiter
+{
+    private final int mChannelCount;
+
+    public LightFrameDelimiter( short devid )
+    {
+        this( DeviceUtil.getChannelCount( devid ) );
+    }
+
+    LightFrameDelimiter( int chns )
+    {
+        mChannelCount = chns;
+    }
+
+    @Override
+    public int match( @NonNull BleReceiveBuffer buffer )
+    {
+        int size = buffer.size();
+        if ( buffer.get( 0 ) != CommUtil.FRM_HDR )
+        {
+            return INVALID;
+        }
+        if ( size < 3 )
+        {
+            return NEED_MORE;
+        }
+        if ( buffer.get( 1 ) != CommUtil.CMD_READ )
+        {
+            return INVALID;
+        }
+        LightFrameSchema schema = LightFrames.getRead( buffer.get( 2 ) );
+        if ( schema == null )
+        {
+            return INVALID;
+        }
+        int count = 0;
+        int countOffset = schema.getCountOffset();
+        if ( countOffset >= 0 )
+        {
+            if ( size <= countOffset )
+            {
+                return NEED_MORE;
+            }
+            count = buffer.get( countOffset ) & 0xFF;
+        }
+        //数量异常时按长度等待的数据可能超过接收缓存, 丢弃帧头重新同步
+        if ( !schema.isCountValid( count ) )
+        {
+            return INVALID;
+        }
+        return matchLength( buffer, schema.getLengths( mChannelCount, count ) );
+    }
+
+    /**
+     * 按从短到长的顺序检查候选长度, 异或校验为0且其后是帧头的长度才是帧边界
+     * 较长帧的前缀校验也可能为0, 其后紧跟的是时间字段, 不会是帧头
+     * 较短的候选长度正好在数据末尾时无法区分(如4通道的20字节正好是一个通知包), 等待后续数据, 空闲后仍无数据才按此长度切分
+     * @param buffer    接收缓存
+     * @param lengths   候选长度, 从短到长
+     * @return          帧长度, 数据不足返回NEED_MORE, 全部不符返回INVALID
+     */
+    private int matchLength( BleReceiveBuffer buffer, int[] lengths )
+    {
+        int size = buffer.size();
+        byte crc = 0x00;
+        int idx = 0;
+        for ( int i = 0; i < lengths.length; i++ )
+        {
+            int len = lengths[i];
+            if ( size < len )
+            {
+                return NEED_MORE;
+            }
+            while ( idx < len )
+            {
+                crc ^= buffer.get( idx );
+                idx++;
+            }
+            if ( crc != 0x00 )
+            {
+                continue;
+            }
+            if ( size > len )
+            {
+                if ( buffer.get( len ) == CommUtil.FRM_HDR )
+                {
+                    return len;
+                }
+            }
+            else
+            {
+                //最长的候选不会被更长的帧延续
+                return ( i == lengths.length-1 || buffer.isIdle() ) ? len : NEED_MORE;
+            }
+        }
+        return INVALID;
+    }
+}
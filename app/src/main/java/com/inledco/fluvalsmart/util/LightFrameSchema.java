@@ -0,0 +1,432 @@
+package com.inledco.fluvalsmart.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 0x68协议帧结构描述: 固定帧头 [字段]* 异或校验
+ * 字段长度 = 固定长度 + 每通道长度*通道数, 重复字段再乘以数量字段的值
+ * 字段可属于可选块, 同一通道数/数量下各可选块组合的偏移只计算一次并缓存
+ * 编解码按Layout中的偏移直接读写byte[], 支持新固件时只需增加字段或可选块
+ */
+class LightFrameSchema
+{
+    /**
+     * 缓存的通道数/数量组合上限, 超过后不再缓存
+     */
+    private static final int CACHE_SIZE_MAX = 32;
+
+    private static final Comparator<Layout> LENGTH_COMPARATOR = new Comparator<Layout>()
+    {
+        @Override
+        public int compare( Layout o1, Layout o2 )
+        {
+            return o1.mLength - o2.mLength;
+        }
+    };
+
+    private final byte[] mHeader;
+    private final int[] mSizes;
+    private final int[] mChnSizes;
+    private final int[] mBlocks;
+    private final boolean[] mRepeated;
+    private final int[] mVariants;
+    private final int mCountOffset;
+    private final int mCountMin;
+    private final int mCountMax;
+
+    private volatile Variants[] mCache = new Variants[0];
+
+    /**
+     * 同一通道数/数量下的所有可选块组合, 按帧长度从短到长
+     */
+    private static class Variants
+    {
+        private final int mChns;
+        private final int mCount;
+        private final Layout[] mLayouts;
+        private final int[] mLengths;
+
+        private Variants( int chns, int count, Layout[] layouts )
+        {
+            mChns = chns;
+            mCount = count;
+            mLayouts = layouts;
+            mLengths = new int[layouts.length];
+            for ( int i = 0; i < layouts.length; i++ )
+            {
+                mLengths[i] = layouts[i].mLength;
+            }
+        }
+    }
+
+    /**
+     * 指定通道数/数量/可选块时的帧布局, 偏移均相对帧起始位置
+     */
+    static class Layout
+    {
+        private final LightFrameSchema mSchema;
+        private final int mChns;
+        private final int mBlocks;
+        private final int mLength;
+        private final int[] mOffsets;
+
+        private Layout( LightFrameSchema schema, int chns, int count, int blocks )
+        {
+            mSchema = schema;
+            mChns = chns;
+            mBlocks = blocks;
+            mOffsets = new int[schema.mSizes.length];
+            int p = schema.mHeader.length;
+            for ( int i = 0; i < mOffsets.length; i++ )
+            {
+                if ( ( schema.mBlocks[i] & blocks ) != schema.mBlocks[i] )
+                {
+                    mOffsets[i] = -1;
+                    continue;
+                }
+                mOffsets[i] = p;
+                p += schema.mRepeated[i] ? count*schema.getItemSize( i, chns ) : schema.getItemSize( i, chns );
+            }
+            mLength = p + 1;
+        }
+
+        int getChannelCount()
+        {
+            return mChns;
+        }
+
+        int getBlocks()
+        {
+            return mBlocks;
+        }
+
+        /**
+         * @return  帧长度, 含帧头及校验
+         */
+        int getLength()
+        {
+            return mLength;
+        }
+
+        boolean has( int field )
+        {
+            return mOffsets[field] >= 0;
+        }
+
+        /**
+         * @return  字段偏移, 所属可选块不存在时返回-1
+         */
+        int getOffset( int field )
+        {
+            return mOffsets[field];
+        }
+
+        /**
+         * @return  字段长度, 重复字段为单项长度
+         */
+        int getItemSize( int field )
+        {
+            return mSchema.getItemSize( field, mChns );
+        }
+
+        /**
+         * 写入帧头
+         */
+        void writeHeader( byte[] dst, int offset )
+        {
+            System.arraycopy( mSchema.mHeader, 0, dst, offset, mSchema.mHeader.length );
+        }
+
+        /**
+         * 字段写完后写入异或校验
+         */
+        void writeCrc( byte[] dst, int offset )
+        {
+            dst[offset+mLength-1] = LightCodec.getCRC( dst, offset, mLength-1 );
+        }
+    }
+
+    static class Builder
+    {
+        private final byte[] mHeader;
+        private final List<int[]> mFields = new ArrayList<>();
+        private int mBlock;
+        private int mCountField = -1;
+        private int mCountMin;
+        private int mCountMax;
+        private int[] mVariants;
+
+        /**
+         * @param header    帧头, 如FRM_HDR cmd
+         */
+        Builder( byte... header )
+        {
+            mHeader = header;
+        }
+
+        /**
+         * 之后添加的字段属于可选块, 0: 必选
+         */
+        Builder block( int block )
+        {
+            mBlock = block;
+            return this;
+        }
+
+        /**
+         * @param id        字段索引, 按添加顺序从0开始
+         * @param size      固定长度
+         * @param chnSize   每通道长度
+         */
+        Builder field( int id, int size, int chnSize )
+        {
+            return add( id, size, chnSize, false );
+        }
+
+        /**
+         * 单字节数量字段, 之前只能是必选的固定长度字段
+         * @param min   最小数量
+         * @param max   最大数量, 超出范围的帧视为无效
+         */
+        Builder count( int id, int min, int max )
+        {
+            for ( int[] field : mFields )
+            {
+                if ( field[1] != 0 || field[2] != 0 || field[3] != 0 )
+                {
+                    throw new IllegalArgumentException( "count field must have a fixed offset" );
+                }
+            }
+            mCountField = id;
+            mCountMin = min;
+            mCountMax = max;
+            return add( id, 1, 0, false );
+        }
+
+        /**
+         * 按数量字段的值重复的字段
+         */
+        Builder repeated( int id, int size, int chnSize )
+        {
+            if ( mCountField < 0 )
+            {
+                throw new IllegalStateException( "repeated field without count field" );
+            }
+            return add( id, size, chnSize, true );
+        }
+
+        /**
+         * 固件支持的可选块组合, 默认为所有组合
+         */
+        Builder variants( int... blocks )
+        {
+            mVariants = blocks;
+            return this;
+        }
+
+        LightFrameSchema build()
+        {
+            return new LightFrameSchema( this );
+        }
+
+        private Builder add( int id, int size, int chnSize, boolean repeated )
+        {
+            if ( id != mFields.size() )
+            {
+                throw new IllegalArgumentException( "field " + id + " out of order" );
+            }
+            mFields.add( new int[]{ size, chnSize, repeated ? 1 : 0, mBlock } );
+            return this;
+        }
+    }
+
+    private LightFrameSchema( Builder builder )
+    {
+        int n = builder.mFields.size();
+        mHeader = builder.mHeader;
+        mSizes = new int[n];
+        mChnSizes = new int[n];
+        mRepeated = new boolean[n];
+        mBlocks = new int[n];
+        int mask = 0;
+        for ( int i = 0; i < n; i++ )
+        {
+            int[] field = builder.mFields.get( i );
+            mSizes[i] = field[0];
+            mChnSizes[i] = field[1];
+            mRepeated[i] = ( field[2] != 0 );
+            mBlocks[i] = field[3];
+            mask |= field[3];
+        }
+        int countOffset = -1;
+        if ( builder.mCountField >= 0 )
+        {
+            countOffset = mHeader.length;
+            for ( int i = 0; i < builder.mCountField; i++ )
+            {
+                countOffset += mSizes[i];
+            }
+        }
+        mCountOffset = countOffset;
+        mCountMin = builder.mCountMin;
+        mCountMax = builder.mCountMax;
+        if ( builder.mVariants != null )
+        {
+            mVariants = builder.mVariants;
+        }
+        else
+        {
+            //mask的所有子集
+            List<Integer> variants = new ArrayList<>();
+            for ( int blocks = 0; blocks <= mask; blocks++ )
+            {
+                if ( ( blocks & ~mask ) == 0 )
+                {
+                    variants.add( blocks );
+                }
+            }
+            mVariants = new int[variants.size()];
+            for ( int i = 0; i < mVariants.length; i++ )
+            {
+                mVariants[i] = variants.get( i );
+            }
+        }
+    }
+
+    int getHeaderLength()
+    {
+        return mHeader.length;
+    }
+
+    /**
+     * @return  数量字段偏移, 没有数量字段返回-1
+     */
+    int getCountOffset()
+    {
+        return mCountOffset;
+    }
+
+    /**
+     * 数量来自设备数据, 超出范围时按帧长度等待会使接收停滞
+     * @return  数量是否有效, 没有数量字段时只有0有效
+     */
+    boolean isCountValid( int count )
+    {
+        if ( mCountOffset < 0 )
+        {
+            return count == 0;
+        }
+        return count >= mCountMin && count <= mCountMax;
+    }
+
+    /**
+     * @param chns      通道数
+     * @param count     数量字段的值, 没有数量字段时为0
+     * @param blocks    可选块组合, 须为固件支持的组合
+     * @return          帧布局
+     */
+    Layout layout( int chns, int count, int blocks )
+    {
+        for ( Layout layout : getVariants( chns, count ).mLayouts )
+        {
+            if ( layout.mBlocks == blocks )
+            {
+                return layout;
+            }
+        }
+        throw new IllegalArgumentException( "unsupported blocks " + blocks );
+    }
+
+    /**
+     * @return  所有可选块组合的帧长度, 从短到长, 不可修改
+     */
+    int[] getLengths( int chns, int count )
+    {
+        return getVariants( chns, count ).mLengths;
+    }
+
+    /**
+     * 根据帧长度确定可选块组合
+     * @param bytes     数据
+     * @param offset    帧起始位置
+     * @param len       帧长度
+     * @param chns      通道数
+     * @return          帧布局, 长度不匹配返回null
+     */
+    Layout match( byte[] bytes, int offset, int len, int chns )
+    {
+        int count = 0;
+        if ( mCountOffset >= 0 )
+        {
+            if ( len <= mCountOffset )
+            {
+                return null;
+            }
+            count = bytes[offset+mCountOffset] & 0xFF;
+        }
+        if ( !isCountValid( count ) )
+        {
+            return null;
+        }
+        for ( Layout layout : getVariants( chns, count ).mLayouts )
+        {
+            if ( layout.mLength == len )
+            {
+                return layout;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return  帧头是否一致
+     */
+    boolean matchHeader( byte[] bytes, int offset )
+    {
+        for ( int i = 0; i < mHeader.length; i++ )
+        {
+            if ( bytes[offset+i] != mHeader[i] )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int getItemSize( int field, int chns )
+    {
+        return mSizes[field] + mChnSizes[field]*chns;
+    }
+
+    private Variants getVariants( int chns, int count )
+    {
+        Variants[] cache = mCache;
+        for ( Variants variants : cache )
+        {
+            if ( variants.mChns == chns && variants.mCount == count )
+            {
+                return variants;
+            }
+        }
+        Layout[] layouts = new Layout[mVariants.length];
+        for ( int i = 0; i < layouts.length; i++ )
+        {
+            layouts[i] = new Layout( this, chns, count, mVariants[i] );
+        }
+        Arrays.sort( layouts, LENGTH_COMPARATOR );
+        Variants variants = new Variants( chns, count, layouts );
+        synchronized ( this )
+        {
+            if ( mCache.length < CACHE_SIZE_MAX )
+            {
+                Variants[] grown = Arrays.copyOf( mCache, mCache.length + 1 );
+                grown[mCache.length] = variants;
+                mCache = grown;
+            }
+        }
+        return variants;
+    }
+}
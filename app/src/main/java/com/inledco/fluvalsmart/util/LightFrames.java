@@ -0,0 +1,159 @@
+package com.inledco.fluvalsmart.util;
+
+import com.inledco.fluvalsmart.bean.LightPro;
+
+/**
+ * 0x68命令集帧结构表
+ * 设置命令: FRM_HDR cmd [字段] xor
+ * 读应答: FRM_HDR CMD_READ mode [字段] xor
+ * 字段索引为各帧结构内的顺序, 同名结构的设置帧与读应答帧共用
+ */
+class LightFrames
+{
+    /**
+     * 可选块
+     */
+    static final int BLOCK_TURNOFF = 0x01;
+    static final int BLOCK_DYNAMIC = 0x02;
+
+    /**
+     * 单字节或多字节参数命令的参数
+     */
+    static final int ARGS = 0;
+
+    /**
+     * 通道值 [value_h value_l]*chns
+     */
+    static final int CHANNELS_VALUES = 0;
+
+    /**
+     * 动态时段 week sh sm eh em mode
+     */
+    static final int DYNAMIC_PERIOD = 0;
+    static final int DYNAMIC_PERIOD_SIZE = 6;
+
+    /**
+     * 自动模式 [sh sm eh em] [day chns] [sh sm eh em] [night chns] {enable hour minute} {dynamic period}
+     */
+    static final int AUTO_SUNRISE = 0;
+    static final int AUTO_DAY = 1;
+    static final int AUTO_SUNSET = 2;
+    static final int AUTO_NIGHT = 3;
+    static final int AUTO_TURNOFF = 4;
+    static final int AUTO_DYNAMIC = 5;
+
+    /**
+     * 专业模式 count [hour minute [chns]]*count {dynamic period}
+     */
+    static final int PRO_COUNT = 0;
+    static final int PRO_POINTS = 1;
+    static final int PRO_DYNAMIC = 2;
+
+    /**
+     * 手动模式 on dyn [value_l value_h]*chns [p1 chns] [p2 chns] [p3 chns] [p4 chns]
+     */
+    static final int MANUAL_ON = 0;
+    static final int MANUAL_DYN = 1;
+    static final int MANUAL_VALUES = 2;
+    static final int MANUAL_P1 = 3;
+    static final int MANUAL_P2 = 4;
+    static final int MANUAL_P3 = 5;
+    static final int MANUAL_P4 = 6;
+
+    private static final LightFrameSchema[] COMMANDS = new LightFrameSchema[CommUtil.CMD_DYNAMIC_PERIOD+1];
+    private static final LightFrameSchema[] READS = new LightFrameSchema[CommUtil.MODE_PRO+1];
+
+    static
+    {
+        command( CommUtil.CMD_READ, 0 );
+        command( CommUtil.CMD_STOP_PREVIEW, 0 );
+        command( CommUtil.CMD_READTIME, 0 );
+        command( CommUtil.CMD_FIND, 0 );
+        command( CommUtil.CMD_MODE, 1 );
+        command( CommUtil.CMD_SWITCH, 1 );
+        command( CommUtil.CMD_CUSTOM, 1 );
+        command( CommUtil.CMD_DYN, 1 );
+        //chn delta
+        command( CommUtil.CMD_CHN_INC, 2 );
+        command( CommUtil.CMD_CHN_DEC, 2 );
+        //year month day week hour minute second
+        command( CommUtil.CMD_SYNCTIME, 7 );
+        command( CommUtil.CMD_DYNAMIC_PERIOD, DYNAMIC_PERIOD_SIZE );
+        channels( CommUtil.CMD_CTRL );
+        channels( CommUtil.CMD_PREVIEW );
+        //固件同时支持关灯和动态时段时, 自动模式设置帧只带关灯参数, 动态时段通过CMD_DYNAMIC_PERIOD设置
+        COMMANDS[CommUtil.CMD_CYCLE] = auto( new LightFrameSchema.Builder( CommUtil.FRM_HDR, CommUtil.CMD_CYCLE ) )
+            .variants( 0, BLOCK_TURNOFF, BLOCK_DYNAMIC )
+            .build();
+        COMMANDS[CommUtil.CMD_PRO] = pro( new LightFrameSchema.Builder( CommUtil.FRM_HDR, CommUtil.CMD_PRO ) )
+            .variants( 0 )
+            .build();
+
+        READS[CommUtil.MODE_AUTO] = auto( new LightFrameSchema.Builder( CommUtil.FRM_HDR, CommUtil.CMD_READ, CommUtil.MODE_AUTO ) ).build();
+        READS[CommUtil.MODE_PRO] = pro( new LightFrameSchema.Builder( CommUtil.FRM_HDR, CommUtil.CMD_READ, CommUtil.MODE_PRO ) ).build();
+        READS[CommUtil.MODE_MANUAL] = new LightFrameSchema.Builder( CommUtil.FRM_HDR, CommUtil.CMD_READ, CommUtil.MODE_MANUAL )
+            .field( MANUAL_ON, 1, 0 )
+            .field( MANUAL_DYN, 1, 0 )
+            .field( MANUAL_VALUES, 0, 2 )
+            .field( MANUAL_P1, 0, 1 )
+            .field( MANUAL_P2, 0, 1 )
+            .field( MANUAL_P3, 0, 1 )
+            .field( MANUAL_P4, 0, 1 )
+            .build();
+    }
+
+    /**
+     * @param cmd   设置命令
+     * @return      设置帧结构, 未知命令返回null
+     */
+    static LightFrameSchema getCommand( byte cmd )
+    {
+        return ( cmd >= 0 && cmd < COMMANDS.length ) ? COMMANDS[cmd] : null;
+    }
+
+    /**
+     * @param mode  运行模式
+     * @return      CMD_READ应答帧结构, 未知模式返回null
+     */
+    static LightFrameSchema getRead( byte mode )
+    {
+        return ( mode >= 0 && mode < READS.length ) ? READS[mode] : null;
+    }
+
+    private static void command( byte cmd, int size )
+    {
+        LightFrameSchema.Builder builder = new LightFrameSchema.Builder( CommUtil.FRM_HDR, cmd );
+        if ( size > 0 )
+        {
+            builder.field( ARGS, size, 0 );
+        }
+        COMMANDS[cmd] = builder.build();
+    }
+
+    private static void channels( byte cmd )
+    {
+        COMMANDS[cmd] = new LightFrameSchema.Builder( CommUtil.FRM_HDR, cmd )
+            .field( CHANNELS_VALUES, 0, 2 )
+            .build();
+    }
+
+    private static LightFrameSchema.Builder auto( LightFrameSchema.Builder builder )
+    {
+        return builder.field( AUTO_SUNRISE, 4, 0 )
+                      .field( AUTO_DAY, 0, 1 )
+                      .field( AUTO_SUNSET, 4, 0 )
+                      .field( AUTO_NIGHT, 0, 1 )
+                      .block( BLOCK_TURNOFF )
+                      .field( AUTO_TURNOFF, 3, 0 )
+                      .block( BLOCK_DYNAMIC )
+                      .field( AUTO_DYNAMIC, DYNAMIC_PERIOD_SIZE, 0 );
+    }
+
+    private static LightFrameSchema.Builder pro( LightFrameSchema.Builder builder )
+    {
+        return builder.count( PRO_COUNT, LightPro.POINT_COUNT_MIN, LightPro.POINT_COUNT_MAX )
+                      .repeated( PRO_POINTS, 2, 1 )
+                      .block( BLOCK_DYNAMIC )
+                      .field( PRO_DYNAMIC, DYNAMIC_PERIOD_SIZE, 0 );
+    }
+}
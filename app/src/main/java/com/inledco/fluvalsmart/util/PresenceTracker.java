@@ -0,0 +1,330 @@
+package com.inledco.fluvalsmart.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import com.inledco.fluvalsmart.bean.BaseDevice;
+import com.liruya.tuner168blemanager.BleScanListener;
+import com.liruya.tuner168blemanager.BleScanPolicy;
+import com.liruya.tuner168blemanager.BleScanResult;
+import com.liruya.tuner168blemanager.BleScanner;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 已添加设备的在线状态: 只扫描已保存的mac, 记录最后扫描到的时间及平滑后的rssi
+ * 设备列表据此显示是否在范围内, 并按连接成功的可能性排序
+ * 扫描结果在API 18-20上来自LeScanCallback的binder线程, 记录时加锁; 检查及状态变化通知均在主线程
+ */
+public class PresenceTracker
+{
+    /**
+     * 超过此时间未扫描到视为不在范围内
+     */
+    public static final long ABSENT_TIMEOUT = 30000;
+
+    /**
+     * rssi指数平滑系数
+     */
+    private static final float RSSI_ALPHA = 0.25f;
+    private static final int REPORT_DELAY = 1000;
+    private static final long CHECK_INTERVAL = 5000;
+
+    private static PresenceTracker sInstance;
+
+    private final Map<String, Presence> mPresences;
+    private Handler mHandler;
+    private Runnable mCheckRunnable;
+    private Runnable mNotifyRunnable;
+    private Listener mListener;
+    private boolean mTracking;
+
+    /**
+     * 开始跟踪前BleScanner的设置, 停止时恢复
+     */
+    private int mScanPeriod;
+    private int mReportDelay;
+    private BleScanPolicy mScanPolicy;
+
+    /**
+     * 跟踪时使用的扫描策略, 设备离开范围后重新出现时再次提高扫描频率. 包内可见以便测试替换
+     */
+    BleScanPolicy mPolicy;
+
+    public interface Listener
+    {
+        /**
+         * 有设备进入或离开范围, 在主线程调用
+         */
+        void onPresenceChanged ();
+    }
+
+    public static class Presence
+    {
+        private long mLastSeen;
+        private float mRssi;
+        private boolean mPresent;
+
+        public long getLastSeen ()
+        {
+            return mLastSeen;
+        }
+
+        /**
+         * @return 平滑后的rssi
+         */
+        public float getRssi ()
+        {
+            return mRssi;
+        }
+
+        public boolean isPresent ()
+        {
+            return mPresent;
+        }
+    }
+
+    private final BleScanListener mScanListener = new BleScanListener()
+    {
+        @Override
+        public void onScanTimeout ()
+        {
+
+        }
+
+        @Override
+        public void onDeviceScanned ( String mac, String name, int rssi, byte[] bytes )
+        {
+            if ( onScanned( mac, rssi, System.currentTimeMillis() ) )
+            {
+                notifyChanged();
+            }
+        }
+
+        @Override
+        public void onDevicesScanned ( List<BleScanResult> results )
+        {
+            long now = System.currentTimeMillis();
+            boolean changed = false;
+            for ( BleScanResult result : results )
+            {
+                changed |= onScanned( result.getMac(), result.getRssi(), now );
+            }
+            if ( changed )
+            {
+                notifyChanged();
+            }
+        }
+    };
+
+    public static synchronized PresenceTracker getInstance ()
+    {
+        if ( sInstance == null )
+        {
+            sInstance = new PresenceTracker();
+        }
+        return sInstance;
+    }
+
+    PresenceTracker ()
+    {
+        mPresences = new HashMap<>();
+    }
+
+    /**
+     * 低功耗持续扫描已保存的设备, 新设备出现或离开后重新出现时短暂提高扫描频率. 在主线程调用
+     * 不使用被动/机会扫描: compileSdk 28没有公开的被动扫描类型, SCAN_MODE_OPPORTUNISTIC只在其他应用扫描时才有结果,
+     * 已保存的设备会被误判为离开范围. SCAN_MODE_LOW_POWER是能自行发现设备的最低占空比
+     *
+     * @param macs 已保存设备的mac
+     */
+    public void start ( @NonNull Collection<String> macs, Listener listener )
+    {
+        if ( mTracking )
+        {
+            stop();
+        }
+        if ( macs.isEmpty() )
+        {
+            return;
+        }
+        if ( mHandler == null )
+        {
+            mHandler = new Handler( Looper.getMainLooper() );
+            mCheckRunnable = new Runnable()
+            {
+                @Override
+                public void run ()
+                {
+                    if ( update( System.currentTimeMillis() ) )
+                    {
+                        notifyChanged();
+                    }
+                    mHandler.postDelayed( this, CHECK_INTERVAL );
+                }
+            };
+            mNotifyRunnable = new Runnable()
+            {
+                @Override
+                public void run ()
+                {
+                    if ( mListener != null )
+                    {
+                        mListener.onPresenceChanged();
+                    }
+                }
+            };
+        }
+        mTracking = true;
+        mListener = listener;
+        // 上次跟踪后已离开的设备
+        update( System.currentTimeMillis() );
+        BleScanner scanner = BleScanner.getInstance();
+        mScanPeriod = scanner.getScanPeriod();
+        mReportDelay = scanner.getReportDelay();
+        mScanPolicy = scanner.getScanPolicy();
+        scanner.setScanPeriod( 0 );
+        scanner.setReportDelay( REPORT_DELAY );
+        mPolicy = new BleScanPolicy();
+        scanner.setScanPolicy( mPolicy );
+        scanner.setDeviceFilter( macs );
+        scanner.setBleScanListener( mScanListener );
+        scanner.startScan();
+        mHandler.postDelayed( mCheckRunnable, CHECK_INTERVAL );
+    }
+
+    public void stop ()
+    {
+        if ( !mTracking )
+        {
+            return;
+        }
+        mTracking = false;
+        mListener = null;
+        mHandler.removeCallbacks( mCheckRunnable );
+        mHandler.removeCallbacks( mNotifyRunnable );
+        BleScanner scanner = BleScanner.getInstance();
+        scanner.stopScan();
+        scanner.setBleScanListener( null );
+        scanner.setDeviceFilter( null );
+        scanner.setScanPolicy( mScanPolicy );
+        mPolicy = null;
+        scanner.setReportDelay( mReportDelay );
+        scanner.setScanPeriod( mScanPeriod );
+    }
+
+    public boolean isTracking ()
+    {
+        return mTracking;
+    }
+
+    /**
+     * @return null: 未扫描到过
+     */
+    public synchronized Presence get ( @NonNull String mac )
+    {
+        return mPresences.get( mac );
+    }
+
+    public synchronized boolean isPresent ( @NonNull String mac )
+    {
+        Presence presence = mPresences.get( mac );
+        return presence != null && presence.mPresent;
+    }
+
+    /**
+     * 按连接成功的可能性排序: 在范围内的按rssi从强到弱, 其余按最后扫描到的时间从近到远, 未扫描到过的最后
+     */
+    public synchronized void sort ( @NonNull List<BaseDevice> devices )
+    {
+        Collections.sort( devices, new Comparator<BaseDevice>()
+        {
+            @Override
+            public int compare ( BaseDevice o1, BaseDevice o2 )
+            {
+                Presence p1 = mPresences.get( o1.getDevicePrefer().getDeviceMac() );
+                Presence p2 = mPresences.get( o2.getDevicePrefer().getDeviceMac() );
+                if ( p1 == null || p2 == null )
+                {
+                    return p1 == p2 ? 0 : p1 == null ? 1 : -1;
+                }
+                if ( p1.mPresent != p2.mPresent )
+                {
+                    return p1.mPresent ? -1 : 1;
+                }
+                if ( p1.mPresent )
+                {
+                    return Float.compare( p2.mRssi, p1.mRssi );
+                }
+                return p1.mLastSeen == p2.mLastSeen ? 0 : p1.mLastSeen > p2.mLastSeen ? -1 : 1;
+            }
+        } );
+    }
+
+    /**
+     * @return true: 设备进入范围
+     */
+    synchronized boolean onScanned ( @NonNull String mac, int rssi, long now )
+    {
+        Presence presence = mPresences.get( mac );
+        if ( presence == null )
+        {
+            presence = new Presence();
+            presence.mRssi = rssi;
+            mPresences.put( mac, presence );
+        }
+        else if ( presence.mPresent )
+        {
+            presence.mRssi += RSSI_ALPHA * ( rssi - presence.mRssi );
+        }
+        else
+        {
+            // 离开后重新出现, 不沿用旧的rssi
+            presence.mRssi = rssi;
+        }
+        presence.mLastSeen = now;
+        boolean changed = !presence.mPresent;
+        presence.mPresent = true;
+        return changed;
+    }
+
+    /**
+     * @return true: 有设备离开范围
+     */
+    synchronized boolean update ( long now )
+    {
+        boolean changed = false;
+        for ( Map.Entry<String, Presence> entry : mPresences.entrySet() )
+        {
+            Presence presence = entry.getValue();
+            if ( presence.mPresent && now - presence.mLastSeen > ABSENT_TIMEOUT )
+            {
+                presence.mPresent = false;
+                changed = true;
+                if ( mPolicy != null )
+                {
+                    mPolicy.forget( entry.getKey() );
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * 扫描结果可能不在主线程, 通知总是转到主线程, 未处理的通知合并为一次
+     */
+    private void notifyChanged ()
+    {
+        if ( mHandler != null )
+        {
+            mHandler.removeCallbacks( mNotifyRunnable );
+            mHandler.post( mNotifyRunnable );
+        }
+    }
+}
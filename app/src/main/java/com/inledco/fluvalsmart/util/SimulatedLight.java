@@ -0,0 +1,457 @@
+package com.inledco.fluvalsmart.util;
+
+import android.support.annotation.NonNull;
+
+import com.inledco.fluvalsmart.ota.OTAConstants;
+import com.liruya.tuner168blemanager.BleSimulatedDevice;
+
+import java.util.Arrays;
+
+/**
+ * 模拟灯具, 配合BleSimulatedTransport在JVM上运行
+ * 应用模式: 响应0x68命令集, 设置类命令后上报CMD_READ格式运行状态
+ * Bootloader模式: 响应OTA命令, 写入内存中的flash
+ */
+public class SimulatedLight extends BleSimulatedDevice
+{
+    private static final int APP_START_ADDRESS = 0x1000;
+    private static final int APP_END_ADDRESS = 0x8000;
+    private static final int ERASE_BLOCK_SIZE = 0x80;
+    private static final int WRITE_BLOCK_SIZE = 0x10;
+    private static final byte BOOTLOADER_MAJOR_VERSION = 1;
+    private static final byte BOOTLOADER_MINOR_VERSION = 0;
+    private static final int CHANNEL_VALUE_MAX = 1000;
+
+    /**
+     * 超过该时间未收齐的半帧丢弃
+     */
+    private static final int RECEIVE_TIMEOUT = 200;
+
+    private final int mChannelCount;
+    private final byte[] mRcvBuffer = new byte[512];
+    private int mRcvSize;
+    private long mLastReceiveTime;
+
+    private boolean mBootloader;
+    private final byte[] mFlash = new byte[APP_END_ADDRESS - APP_START_ADDRESS];
+
+    private byte mMode = CommUtil.MODE_MANUAL;
+    private boolean mOn = true;
+    private byte mDynamic;
+    private final short[] mChannelValues;
+    private final byte[][] mCustomValues;
+    private byte[] mAutoPayload;
+    private byte[] mProPayload;
+    private byte[] mDynamicPeriod;
+    private final byte[] mDatetime = new byte[7];
+
+    private volatile int mFrameCount;
+    private volatile int mErrorCount;
+
+    /**
+     * @param devid     设备id
+     * @param version   固件版本 major<<8|minor
+     */
+    public SimulatedLight( short devid, int version )
+    {
+        mChannelCount = DeviceUtil.getChannelCount( devid );
+        setMfr( new byte[]{ (byte) ( devid >> 8 ), (byte) devid, (byte) ( version >> 8 ), (byte) version } );
+        mChannelValues = new short[mChannelCount];
+        Arrays.fill( mChannelValues, (short) CHANNEL_VALUE_MAX );
+        mCustomValues = new byte[4][mChannelCount];
+        //默认自动模式: 07:00-08:00日出, 18:00-19:00日落, 白天100%, 夜晚0%
+        mAutoPayload = new byte[2*mChannelCount+8];
+        mAutoPayload[0] = 7;
+        mAutoPayload[2] = 8;
+        Arrays.fill( mAutoPayload, 4, 4+mChannelCount, (byte) 100 );
+        mAutoPayload[4+mChannelCount] = 18;
+        mAutoPayload[6+mChannelCount] = 19;
+        //默认专业模式: 00:00全部0%, 12:00全部100%
+        mProPayload = new byte[1+2*(2+mChannelCount)];
+        mProPayload[0] = 2;
+        mProPayload[3+mChannelCount] = 12;
+        Arrays.fill( mProPayload, 5+mChannelCount, mProPayload.length, (byte) 100 );
+    }
+
+    public int getChannelCount()
+    {
+        return mChannelCount;
+    }
+
+    public boolean isBootloader()
+    {
+        return mBootloader;
+    }
+
+    public byte getMode()
+    {
+        return mMode;
+    }
+
+    /**
+     * @return 收到的完整帧数
+     */
+    public int getFrameCount()
+    {
+        return mFrameCount;
+    }
+
+    /**
+     * @return 校验错误或无法识别而丢弃的字节数
+     */
+    public int getErrorCount()
+    {
+        return mErrorCount;
+    }
+
+    /**
+     * @return 应用区flash副本, 起始地址APP_START_ADDRESS
+     */
+    public byte[] getFlash()
+    {
+        return mFlash;
+    }
+
+    @Override
+    protected void onConnected()
+    {
+        mRcvSize = 0;
+    }
+
+    @Override
+    protected void onWrite( @NonNull byte[] bytes )
+    {
+        long t = System.currentTimeMillis();
+        if ( t - mLastReceiveTime > RECEIVE_TIMEOUT )
+        {
+            mRcvSize = 0;
+        }
+        mLastReceiveTime = t;
+        if ( mRcvSize + bytes.length > mRcvBuffer.length )
+        {
+            mErrorCount += mRcvSize;
+            mRcvSize = 0;
+        }
+        System.arraycopy( bytes, 0, mRcvBuffer, mRcvSize, bytes.length );
+        mRcvSize += bytes.length;
+        while ( mRcvSize > 0 )
+        {
+            boolean ota = mBootloader || isStatusCommand();
+            int len = ota ? getOtaFrameLength() : getLightFrameLength();
+            if ( len == 0 )
+            {
+                break;
+            }
+            if ( len < 0 )
+            {
+                mErrorCount++;
+                discard( 1 );
+                continue;
+            }
+            byte[] frame = Arrays.copyOf( mRcvBuffer, len );
+            discard( len );
+            mFrameCount++;
+            if ( ota )
+            {
+                processOtaFrame( frame );
+            }
+            else
+            {
+                processLightFrame( frame );
+            }
+        }
+    }
+
+    private void discard( int count )
+    {
+        System.arraycopy( mRcvBuffer, count, mRcvBuffer, 0, mRcvSize - count );
+        mRcvSize -= count;
+    }
+
+    /**
+     * OTA_CMD_GET_STATUS与FRM_HDR相同, 第二字节为0时按OTA命令处理
+     */
+    private boolean isStatusCommand()
+    {
+        return mRcvSize >= 2 && mRcvBuffer[0] == OTAConstants.OTA_CMD_GET_STATUS && mRcvBuffer[1] == 0x00;
+    }
+
+    /**
+     * @return 帧长度, 数据不足返回0, 无效返回-1
+     */
+    private int getLightFrameLength()
+    {
+        if ( mRcvBuffer[0] != CommUtil.FRM_HDR )
+        {
+            return -1;
+        }
+        if ( mRcvSize < 3 )
+        {
+            return 0;
+        }
+        LightFrameSchema schema = LightFrames.getCommand( mRcvBuffer[1] );
+        if ( schema == null )
+        {
+            return -1;
+        }
+        int count = 0;
+        int countOffset = schema.getCountOffset();
+        if ( countOffset >= 0 )
+        {
+            if ( mRcvSize <= countOffset )
+            {
+                return 0;
+            }
+            count = mRcvBuffer[countOffset] & 0xFF;
+        }
+        if ( !schema.isCountValid( count ) )
+        {
+            return -1;
+        }
+        return matchLength( schema.getLengths( mChannelCount, count ) );
+    }
+
+    private int matchLength( int[] lengths )
+    {
+        for ( int len : lengths )
+        {
+            if ( mRcvSize < len )
+            {
+                return 0;
+            }
+            //与LightFrameDelimiter相同, 较长帧的前缀校验也可能为0
+            if ( LightCodec.getCRC( mRcvBuffer, 0, len ) == 0x00 && ( mRcvSize == len || mRcvBuffer[len] == CommUtil.FRM_HDR ) )
+            {
+                return len;
+            }
+        }
+        return -1;
+    }
+
+    //cmd len adrl adrh [data]
+    private int getOtaFrameLength()
+    {
+        if ( mRcvSize < 2 )
+        {
+            return 0;
+        }
+        int len;
+        switch ( mRcvBuffer[0] )
+        {
+            case OTAConstants.OTA_CMD_GET_STATUS:
+                len = 5;
+                break;
+            case OTAConstants.OTA_CMD_WRITE_FLASH:
+            case OTAConstants.OTA_CMD_CALC_CHECKSUM:
+                len = 4 + ( mRcvBuffer[1] & 0xFF );
+                break;
+            default:
+                len = 4;
+                break;
+        }
+        return mRcvSize < len ? 0 : len;
+    }
+
+    private void processLightFrame( byte[] frame )
+    {
+        switch ( frame[1] )
+        {
+            case CommUtil.CMD_READ:
+                break;
+            case CommUtil.CMD_SYNCTIME:
+                System.arraycopy( frame, 2, mDatetime, 0, mDatetime.length );
+                break;
+            case CommUtil.CMD_READTIME:
+                sendNotification( buildFrame( CommUtil.CMD_READTIME, mDatetime ) );
+                return;
+            case CommUtil.CMD_MODE:
+                mMode = frame[2];
+                break;
+            case CommUtil.CMD_SWITCH:
+                mOn = ( frame[2] != 0 );
+                break;
+            case CommUtil.CMD_CTRL:
+                for ( int i = 0; i < mChannelCount; i++ )
+                {
+                    mChannelValues[i] = (short) ( ( ( frame[2+2*i] & 0xFF ) << 8 ) | ( frame[3+2*i] & 0xFF ) );
+                }
+                mOn = true;
+                break;
+            case CommUtil.CMD_CUSTOM:
+                int idx = frame[2];
+                if ( idx >= 0 && idx < mCustomValues.length )
+                {
+                    for ( int i = 0; i < mChannelCount; i++ )
+                    {
+                        mChannelValues[i] = (short) ( ( mCustomValues[idx][i] & 0xFF )*10 );
+                    }
+                }
+                break;
+            case CommUtil.CMD_CHN_INC:
+            case CommUtil.CMD_CHN_DEC:
+                int delta = ( frame[1] == CommUtil.CMD_CHN_INC ? 10 : -10 )*( frame[3] & 0xFF );
+                for ( int i = 0; i < mChannelCount; i++ )
+                {
+                    if ( ( frame[2] & ( 1 << i ) ) != 0 )
+                    {
+                        mChannelValues[i] = (short) Math.max( 0, Math.min( CHANNEL_VALUE_MAX, mChannelValues[i] + delta ) );
+                    }
+                }
+                break;
+            case CommUtil.CMD_DYN:
+                mDynamic = frame[2];
+                break;
+            case CommUtil.CMD_CYCLE:
+                mAutoPayload = Arrays.copyOfRange( frame, 2, frame.length-1 );
+                break;
+            case CommUtil.CMD_PRO:
+                mProPayload = Arrays.copyOfRange( frame, 2, frame.length-1 );
+                break;
+            case CommUtil.CMD_DYNAMIC_PERIOD:
+                mDynamicPeriod = Arrays.copyOfRange( frame, 2, frame.length-1 );
+                break;
+            default:
+                //CMD_PREVIEW CMD_STOP_PREVIEW CMD_FIND 不上报
+                return;
+        }
+        sendNotification( getStatusFrame() );
+    }
+
+    /**
+     * @return CMD_READ格式运行状态
+     */
+    private byte[] getStatusFrame()
+    {
+        byte[] payload;
+        if ( mMode == CommUtil.MODE_AUTO )
+        {
+            payload = mAutoPayload;
+        }
+        else if ( mMode == CommUtil.MODE_PRO )
+        {
+            payload = mProPayload;
+            if ( mDynamicPeriod != null )
+            {
+                payload = Arrays.copyOf( mProPayload, mProPayload.length + mDynamicPeriod.length );
+                System.arraycopy( mDynamicPeriod, 0, payload, mProPayload.length, mDynamicPeriod.length );
+            }
+        }
+        else
+        {
+            //on dyn [chns*2] [p1 chns] [p2 chns] [p3 chns] [p4 chns]
+            payload = new byte[6*mChannelCount+2];
+            payload[0] = (byte) ( mOn ? 0x01 : 0x00 );
+            payload[1] = mDynamic;
+            for ( int i = 0; i < mChannelCount; i++ )
+            {
+                payload[2+2*i] = (byte) ( mChannelValues[i] & 0xFF );
+                payload[3+2*i] = (byte) ( mChannelValues[i] >> 8 );
+            }
+            for ( int i = 0; i < mCustomValues.length; i++ )
+            {
+                System.arraycopy( mCustomValues[i], 0, payload, 2+( 2+i )*mChannelCount, mChannelCount );
+            }
+        }
+        byte[] data = new byte[payload.length+1];
+        data[0] = mMode;
+        System.arraycopy( payload, 0, data, 1, payload.length );
+        return buildFrame( CommUtil.CMD_READ, data );
+    }
+
+    private static byte[] buildFrame( byte cmd, byte[] data )
+    {
+        byte[] frame = new byte[data.length+3];
+        frame[0] = CommUtil.FRM_HDR;
+        frame[1] = cmd;
+        System.arraycopy( data, 0, frame, 2, data.length );
+        frame[frame.length-1] = LightCodec.getCRC( frame, 0, frame.length-1 );
+        return frame;
+    }
+
+    private void processOtaFrame( byte[] frame )
+    {
+        byte cmd = frame[0];
+        int len = frame[1] & 0xFF;
+        int address = ( ( frame[3] & 0xFF ) << 8 ) | ( frame[2] & 0xFF );
+        switch ( cmd )
+        {
+            case OTAConstants.OTA_CMD_GET_STATUS:
+                if ( mBootloader )
+                {
+                    sendOtaResponse( cmd, frame, OTAConstants.OTA_RESPONSE_SUCCESS );
+                }
+                else
+                {
+                    //应用模式收到后复位进入bootloader, 断开连接
+                    sendNotification( new byte[]{ cmd, 0x00, frame[2], frame[3], (byte) ( cmd ^ frame[2] ^ frame[3] ) } );
+                    mBootloader = true;
+                    disconnect();
+                }
+                break;
+            case OTAConstants.OTA_CMD_GET_VERSION:
+                sendNotification( new byte[]{ cmd,
+                                              0x08,
+                                              0x00,
+                                              0x00,
+                                              BOOTLOADER_MINOR_VERSION,
+                                              BOOTLOADER_MAJOR_VERSION,
+                                              (byte) APP_START_ADDRESS,
+                                              (byte) ( APP_START_ADDRESS >> 8 ),
+                                              (byte) APP_END_ADDRESS,
+                                              (byte) ( APP_END_ADDRESS >> 8 ),
+                                              (byte) ERASE_BLOCK_SIZE,
+                                              (byte) WRITE_BLOCK_SIZE } );
+                break;
+            case OTAConstants.OTA_CMD_ERASE_FLASH:
+                int end = address + len*ERASE_BLOCK_SIZE;
+                if ( address < APP_START_ADDRESS || end > APP_END_ADDRESS )
+                {
+                    sendOtaResponse( cmd, frame, OTAConstants.OTA_REPONSE_OUTOF_RANGE );
+                    break;
+                }
+                Arrays.fill( mFlash, address - APP_START_ADDRESS, end - APP_START_ADDRESS, (byte) 0xFF );
+                sendOtaResponse( cmd, frame, OTAConstants.OTA_RESPONSE_SUCCESS );
+                break;
+            case OTAConstants.OTA_CMD_WRITE_FLASH:
+                if ( address < APP_START_ADDRESS || address + len > APP_END_ADDRESS )
+                {
+                    sendOtaResponse( cmd, frame, OTAConstants.OTA_REPONSE_OUTOF_RANGE );
+                    break;
+                }
+                System.arraycopy( frame, 4, mFlash, address - APP_START_ADDRESS, len );
+                sendOtaResponse( cmd, frame, OTAConstants.OTA_RESPONSE_SUCCESS );
+                break;
+            case OTAConstants.OTA_CMD_CALC_CHECKSUM:
+                //cmd 4 start_l start_h end_l end_h
+                int start = address;
+                int stop = len >= 2 ? ( ( frame[5] & 0xFF ) << 8 ) | ( frame[4] & 0xFF ) : APP_END_ADDRESS;
+                if ( start < APP_START_ADDRESS || stop > APP_END_ADDRESS || start > stop )
+                {
+                    sendOtaResponse( cmd, frame, OTAConstants.OTA_REPONSE_OUTOF_RANGE );
+                    break;
+                }
+                int checksum = 0;
+                for ( int i = start; i < stop; i++ )
+                {
+                    checksum += mFlash[i - APP_START_ADDRESS] & 0xFF;
+                }
+                //cmd 4 start_l start_h end_l end_h sum_l sum_h
+                sendNotification( new byte[]{ cmd, 0x04, frame[2], frame[3], (byte) stop, (byte) ( stop >> 8 ), (byte) checksum, (byte) ( checksum >> 8 ) } );
+                break;
+            case OTAConstants.OTA_CMD_RESET_DEVICE:
+                sendOtaResponse( cmd, frame, OTAConstants.OTA_RESPONSE_SUCCESS );
+                mBootloader = false;
+                disconnect();
+                break;
+            default:
+                sendOtaResponse( cmd, frame, OTAConstants.OTA_REPSONSE_INVALID_COMMAND );
+                break;
+        }
+    }
+
+    //cmd 1 adrl adrh result
+    private void sendOtaResponse( byte cmd, byte[] frame, byte result )
+    {
+        sendNotification( new byte[]{ cmd, 0x01, frame[2], frame[3], result } );
+    }
+}
@@ -0,0 +1,158 @@
+package com.inledco.fluvalsmart.scan;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * 识别队列: 并发上限, 信号强度优先, 超时重试, 过期的断开事件
+ */
+public class IdentifySchedulerTest
+{
+    private static final int TIMEOUT = 100;
+
+    private final BlockingQueue<String> mProbed = new LinkedBlockingQueue<>();
+    private final BlockingQueue<String> mCanceled = new LinkedBlockingQueue<>();
+    private final BlockingQueue<String> mFailed = new LinkedBlockingQueue<>();
+    private IdentifyScheduler mScheduler;
+    private volatile boolean mRefuse;
+
+    private final IdentifyScheduler.Prober mProber = new IdentifyScheduler.Prober()
+    {
+        @Override
+        public boolean probe( String mac )
+        {
+            mProbed.add( mac );
+            return !mRefuse;
+        }
+
+        @Override
+        public void cancel( String mac )
+        {
+            mCanceled.add( mac );
+        }
+
+        @Override
+        public void onFailed( String mac )
+        {
+            mFailed.add( mac );
+        }
+    };
+
+    @After
+    public void tearDown()
+    {
+        if ( mScheduler != null )
+        {
+            mScheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void enqueue_probesStrongestWithinCap()
+    {
+        mScheduler = new IdentifyScheduler( mProber, 2, 10000, 0 );
+        mScheduler.enqueue( "A", -90 );
+        mScheduler.enqueue( "B", -80 );
+        assertFalse( mScheduler.enqueue( "A", -50 ) );
+        mScheduler.enqueue( "C", -70 );
+        mScheduler.enqueue( "D", -85 );
+        mScheduler.updateRssi( "D", -40 );
+        assertEquals( 2, mScheduler.getActiveCount() );
+        assertEquals( 2, mScheduler.getPendingCount() );
+        assertEquals( "A", mProbed.poll() );
+        assertEquals( "B", mProbed.poll() );
+        assertNull( mProbed.poll() );
+
+        mScheduler.onIdentified( "B" );
+        assertEquals( "D", mProbed.poll() );
+        mScheduler.onIdentified( "A" );
+        assertEquals( "C", mProbed.poll() );
+        mScheduler.onIdentified( "D" );
+        mScheduler.onIdentified( "C" );
+        assertEquals( 4, mScheduler.getIdentifiedCount() );
+        assertEquals( 0, mScheduler.getActiveCount() );
+        assertFalse( mScheduler.enqueue( "C", -70 ) );
+        assertTrue( mScheduler.getAverageLatency() >= 0 );
+
+        mScheduler.clear();
+        assertEquals( 0, mScheduler.getIdentifiedCount() );
+        assertTrue( mScheduler.enqueue( "C", -70 ) );
+    }
+
+    @Test
+    public void timeout_retriesThenFails() throws InterruptedException
+    {
+        mScheduler = new IdentifyScheduler( mProber, 1, TIMEOUT, 1 );
+        mScheduler.enqueue( "A", -60 );
+        mScheduler.enqueue( "B", -90 );
+
+        // 首次超时后A重新排队, 仍比B信号强
+        assertEquals( "A", mProbed.poll() );
+        assertEquals( "A", mCanceled.poll( TIMEOUT * 5, TimeUnit.MILLISECONDS ) );
+        assertEquals( "A", mProbed.poll( TIMEOUT * 5, TimeUnit.MILLISECONDS ) );
+        assertEquals( "A", mCanceled.poll( TIMEOUT * 5, TimeUnit.MILLISECONDS ) );
+        assertEquals( "A", mFailed.poll( TIMEOUT * 5, TimeUnit.MILLISECONDS ) );
+        assertEquals( "B", mProbed.poll( TIMEOUT * 5, TimeUnit.MILLISECONDS ) );
+
+        // 连接断开算一次失败
+        mScheduler.onLinkLost( "B" );
+        assertEquals( "B", mProbed.poll() );
+        mScheduler.onIdentified( "B" );
+        assertEquals( 1, mScheduler.getIdentifiedCount() );
+        assertEquals( 1, mScheduler.getFailedCount() );
+        assertEquals( 4, mScheduler.getAttempts() );
+        assertEquals( 2, mScheduler.getTimeouts() );
+        assertNull( mCanceled.poll( TIMEOUT * 2, TimeUnit.MILLISECONDS ) );
+    }
+
+    /**
+     * 超时取消的连接随后报告断开, 不能结束已开始的重试
+     */
+    @Test
+    public void staleLinkLost_doesNotEndRetry() throws InterruptedException
+    {
+        mScheduler = new IdentifyScheduler( mProber, 1, TIMEOUT, 1 );
+        mScheduler.enqueue( "A", -60 );
+        assertEquals( "A", mProbed.poll() );
+        assertEquals( "A", mCanceled.poll( TIMEOUT * 5, TimeUnit.MILLISECONDS ) );
+        //旧连接断开前不重试, 仍占用连接数
+        assertNull( mProbed.poll() );
+        assertEquals( 1, mScheduler.getActiveCount() );
+
+        //旧连接的断开事件开始重试
+        mScheduler.onLinkLost( "A" );
+        assertEquals( "A", mProbed.poll() );
+        assertEquals( 1, mScheduler.getActiveCount() );
+        mScheduler.onIdentified( "A" );
+        assertEquals( 1, mScheduler.getIdentifiedCount() );
+        assertEquals( 0, mScheduler.getFailedCount() );
+        assertEquals( 2, mScheduler.getAttempts() );
+        assertNull( mFailed.poll( TIMEOUT * 3, TimeUnit.MILLISECONDS ) );
+    }
+
+    @Test
+    public void probeRefused_failsAtOnce()
+    {
+        mScheduler = new IdentifyScheduler( mProber, 1, 10000, 1 );
+        mRefuse = true;
+        mScheduler.enqueue( "A", -60 );
+        assertEquals( "A", mProbed.poll() );
+        assertEquals( "A", mProbed.poll() );
+        assertEquals( "A", mFailed.poll() );
+        assertEquals( 0, mScheduler.getActiveCount() );
+        assertEquals( 2, mScheduler.getAttempts() );
+        assertNull( mCanceled.poll() );
+
+        //失败后下一个设备立即开始
+        mRefuse = false;
+        mScheduler.enqueue( "B", -70 );
+        assertEquals( "B", mProbed.poll() );
+        assertEquals( 1, mScheduler.getActiveCount() );
+    }
+}
@@ -0,0 +1,136 @@
+package com.inledco.fluvalsmart.scan;
+
+import com.inledco.fluvalsmart.bean.DevicePrefer;
+import com.inledco.fluvalsmart.bean.SelectDevice;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * ScanStore按mac查找/更新/清空及快照测试
+ */
+public class ScanStoreTest
+{
+    private static final int DEVICES = 2000;
+
+    private static String mac( int i )
+    {
+        return String.format( Locale.US, "C4:BE:84:%02X:%02X:%02X", ( i >> 16 ) & 0xFF, ( i >> 8 ) & 0xFF, i & 0xFF );
+    }
+
+    private static SelectDevice device( String mac, int rssi )
+    {
+        return new SelectDevice( false, false, rssi, new DevicePrefer( (short) 0, mac, "light" ) );
+    }
+
+    @Test
+    public void packMac_roundTrip()
+    {
+        long key = ScanStore.packMac( "c4:be:84:0a:1b:ff" );
+        assertEquals( 0xC4BE840A1BFFL, key );
+        assertEquals( "C4:BE:84:0A:1B:FF", ScanStore.unpackMac( key ) );
+        assertEquals( key, ScanStore.packMac( "C4BE840A1BFF" ) );
+        assertEquals( -1, ScanStore.packMac( "C4:BE:84:0A:1B" ) );
+        assertEquals( -1, ScanStore.packMac( "C4:BE:84:0A:1B:FF:00" ) );
+        assertEquals( -1, ScanStore.packMac( "G4:BE:84:0A:1B:FF" ) );
+    }
+
+    @Test
+    public void update_keepsOrderAndHistory()
+    {
+        ScanStore store = new ScanStore();
+        for ( int i = 0; i < DEVICES; i++ )
+        {
+            assertNotNull( store.add( device( mac( i ), -90 ), false, i ) );
+        }
+        assertNull( store.add( device( mac( 5 ), -40 ), false, 0 ) );
+        assertEquals( DEVICES, store.size() );
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            store.updateRssi( mac( 7 ), -60 - i, 1000 + i );
+        }
+        ScanStore.Entry entry = store.get( mac( 7 ) );
+        assertEquals( -69, entry.getDevice().getRssi() );
+        assertEquals( 1009, entry.getLastSeen() );
+        int[] history = entry.getRssiHistory();
+        assertEquals( -62, history[0] );
+        assertEquals( -69, history[history.length-1] );
+        assertNull( store.updateRssi( mac( DEVICES ), -50, 0 ) );
+
+        store.setIdentified( mac( 9 ), (short) 0x0111, true );
+        assertTrue( store.get( mac( 9 ) ).isIdentified() );
+        assertEquals( 0x0111, store.get( mac( 9 ) ).getDevice().getPrefer().getDevId() );
+
+        List<SelectDevice> devices = new ArrayList<>();
+        store.snapshot( devices, null );
+        assertFalse( store.isChanged() );
+        for ( int i = 0; i < DEVICES; i++ )
+        {
+            assertEquals( mac( i ), devices.get( i ).getPrefer().getDeviceMac() );
+        }
+        store.snapshot( devices, new Comparator<SelectDevice>()
+        {
+            @Override
+            public int compare( SelectDevice o1, SelectDevice o2 )
+            {
+                return o2.getRssi() - o1.getRssi();
+            }
+        } );
+        assertEquals( mac( 7 ), devices.get( 0 ).getPrefer().getDeviceMac() );
+    }
+
+    /**
+     * 同一厂商前缀的mac集中在相邻槽位, 多次扩容及清空后每个mac仍查到自己的条目
+     */
+    @Test
+    public void lookup_afterGrowthAndClear()
+    {
+        ScanStore store = new ScanStore();
+        for ( int i = 0; i < DEVICES; i++ )
+        {
+            store.add( device( mac( i ), -90 ), false, 0 );
+            //每次添加后, 已添加的设备仍可查到
+            if ( ( i & ( i+1 ) ) == 0 )
+            {
+                for ( int j = 0; j <= i; j++ )
+                {
+                    assertEquals( ScanStore.packMac( mac( j ) ), store.get( mac( j ) ).getKey() );
+                }
+            }
+        }
+        for ( int i = DEVICES-1; i >= 0; i-- )
+        {
+            assertNotNull( store.updateRssi( mac( i ), -( i % 100 ), i ) );
+        }
+        for ( int i = 0; i < DEVICES; i++ )
+        {
+            ScanStore.Entry entry = store.get( mac( i ) );
+            assertSame( entry, store.get( mac( i ).toLowerCase( Locale.US ).replace( ":", "" ) ) );
+            assertEquals( mac( i ), entry.getDevice().getPrefer().getDeviceMac() );
+            assertEquals( -( i % 100 ), entry.getDevice().getRssi() );
+            assertEquals( i, entry.getLastSeen() );
+        }
+        assertNull( store.get( mac( DEVICES ) ) );
+        assertNull( store.get( "C4:BE:84" ) );
+
+        store.clear();
+        assertEquals( 0, store.size() );
+        assertTrue( store.isChanged() );
+        for ( int i = 0; i < DEVICES; i++ )
+        {
+            assertNull( store.get( mac( i ) ) );
+            assertNull( store.updateRssi( mac( i ), -50, 0 ) );
+        }
+        //清空后重新添加, 历史不保留
+        assertNotNull( store.add( device( mac( 3 ), -70 ), false, 5 ) );
+        assertEquals( 1, store.get( mac( 3 ) ).getRssiHistory().length );
+        assertNull( store.get( mac( 4 ) ) );
+    }
+}
@@ -0,0 +1,57 @@
+package com.inledco.fluvalsmart.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 设备身份缓存测试, 不使用SharedPreferences
+ */
+public class DeviceIdentityCacheTest
+{
+    private static final String MAC = "C4:BE:84:00:11:22";
+
+    @Test
+    public void identity_encodeDecode()
+    {
+        DeviceIdentityCache.Identity identity = new DeviceIdentityCache.Identity( DeviceUtil.LIGHT_ID_RGBW, 1, 5, 1000L, 2000L );
+        DeviceIdentityCache.Identity decoded = DeviceIdentityCache.Identity.decode( identity.encode() );
+        assertNotNull( decoded );
+        assertEquals( DeviceUtil.LIGHT_ID_RGBW, decoded.getDevid() );
+        assertEquals( 1, decoded.getMajorVersion() );
+        assertEquals( 5, decoded.getMinorVersion() );
+        assertEquals( 1000L, decoded.getReadTime() );
+        assertEquals( 2000L, decoded.getLastSeen() );
+
+        assertNull( DeviceIdentityCache.Identity.decode( null ) );
+        assertNull( DeviceIdentityCache.Identity.decode( "1,2,3" ) );
+        assertNull( DeviceIdentityCache.Identity.decode( "a,2,3,4,5" ) );
+    }
+
+    @Test
+    public void putMfr_identifiesAndAges()
+    {
+        DeviceIdentityCache cache = new DeviceIdentityCache( null, 0 );
+        assertNull( cache.get( MAC ) );
+        assertNull( cache.putMfr( MAC, new byte[]{ 0x01 }, 0 ) );
+
+        byte[] mfr = new byte[]{ (byte) ( DeviceUtil.LIGHT_ID_RGBW >> 8 ), (byte) DeviceUtil.LIGHT_ID_RGBW, 2, 7 };
+        DeviceIdentityCache.Identity identity = cache.putMfr( MAC, mfr, 1000 );
+        assertSame( identity, cache.get( MAC ) );
+        assertEquals( DeviceUtil.LIGHT_ID_RGBW, identity.getDevid() );
+        assertEquals( 2, identity.getMajorVersion() );
+        assertEquals( 7, identity.getMinorVersion() );
+        assertFalse( identity.isStale( 1000 + DeviceIdentityCache.REFRESH_AGE ) );
+        assertTrue( identity.isStale( 1001 + DeviceIdentityCache.REFRESH_AGE ) );
+
+        cache.onSeen( MAC, 5000 );
+        assertEquals( 5000, cache.get( MAC ).getLastSeen() );
+        assertEquals( 1000, cache.get( MAC ).getReadTime() );
+        cache.onSeen( MAC, 3000 );
+        assertEquals( 5000, cache.get( MAC ).getLastSeen() );
+        cache.flush();
+
+        cache.remove( MAC );
+        assertEquals( 0, cache.size() );
+    }
+}
@@ -0,0 +1,193 @@
+package com.inledco.fluvalsmart.util;
+
+import com.inledco.fluvalsmart.bean.LightAuto;
+import com.inledco.fluvalsmart.bean.LightManual;
+import com.inledco.fluvalsmart.bean.LightPro;
+import com.inledco.fluvalsmart.bean.RampTime;
+import com.inledco.fluvalsmart.bean.TimerBrightPoint;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * LightCodec编解码测试
+ */
+public class LightCodecTest
+{
+    private static final short DEVID = DeviceUtil.LIGHT_ID_RGBW;
+    private static final int CHNS = 4;
+
+    private static LightAuto createAuto( boolean turnoff, boolean dynamic )
+    {
+        RampTime sunrise = new RampTime( (byte) 7, (byte) 0, (byte) 8, (byte) 30 );
+        RampTime sunset = new RampTime( (byte) 18, (byte) 0, (byte) 19, (byte) 30 );
+        byte[] day = new byte[]{ 100, 80, 60, 40 };
+        byte[] night = new byte[]{ 0, 0, 5, 1 };
+        RampTime period = new RampTime( (byte) 12, (byte) 0, (byte) 13, (byte) 0 );
+        if ( turnoff && dynamic )
+        {
+            return new LightAuto( sunrise, day, sunset, night, true, (byte) 23, (byte) 10, (byte) 0x85, period, (byte) 2 );
+        }
+        if ( turnoff )
+        {
+            return new LightAuto( sunrise, day, sunset, night, true, (byte) 23, (byte) 10 );
+        }
+        if ( dynamic )
+        {
+            return new LightAuto( sunrise, day, sunset, night, (byte) 0x85, period, (byte) 2 );
+        }
+        return new LightAuto( sunrise, day, sunset, night );
+    }
+
+    /**
+     * 由设置帧构造读应答帧: FRM_HDR CMD_READ mode [payload] xor
+     */
+    private static byte[] toReadFrame( byte mode, byte[] payload, int offset, int len )
+    {
+        byte[] frame = new byte[len+4];
+        frame[0] = CommUtil.FRM_HDR;
+        frame[1] = CommUtil.CMD_READ;
+        frame[2] = mode;
+        System.arraycopy( payload, offset, frame, 3, len );
+        frame[frame.length-1] = LightCodec.getCRC( frame, 0, frame.length-1 );
+        return frame;
+    }
+
+    private static byte[] autoReadFrame( LightAuto lightAuto )
+    {
+        byte[] cycle = new byte[LightCodec.getAutoLength( lightAuto )];
+        LightCodec.encodeAuto( lightAuto, cycle, 0 );
+        if ( !lightAuto.isHasTurnoff() || !lightAuto.isHasDynamic() )
+        {
+            return toReadFrame( CommUtil.MODE_AUTO, cycle, 2, cycle.length-3 );
+        }
+        //设置帧只带关灯参数, 读应答在关灯参数后再带动态时段
+        int p = cycle.length-3;
+        byte[] payload = Arrays.copyOfRange( cycle, 2, 2+p+6 );
+        RampTime period = lightAuto.getDynamicPeriod();
+        payload[p] = lightAuto.getWeek();
+        payload[p+1] = period.getStartHour();
+        payload[p+2] = period.getStartMinute();
+        payload[p+3] = period.getEndHour();
+        payload[p+4] = period.getEndMinute();
+        payload[p+5] = lightAuto.getDynamicMode();
+        return toReadFrame( CommUtil.MODE_AUTO, payload, 0, payload.length );
+    }
+
+    private static byte[] manualReadFrame()
+    {
+        byte[] payload = new byte[6*CHNS+2];
+        payload[0] = 0x01;
+        payload[1] = 0x03;
+        for ( int i = 2; i < payload.length; i++ )
+        {
+            payload[i] = (byte) ( i*11 );
+        }
+        return toReadFrame( CommUtil.MODE_MANUAL, payload, 0, payload.length );
+    }
+
+    private static List<Byte> toList( byte[] frame )
+    {
+        List<Byte> list = new ArrayList<>();
+        for ( byte b : frame )
+        {
+            list.add( b );
+        }
+        return list;
+    }
+
+    @Test
+    public void decodeAuto_allLengthVariants()
+    {
+        boolean[][] variants = new boolean[][]{ { false, false }, { true, false }, { false, true }, { true, true } };
+        int[] lengths = new int[]{ 2*CHNS+12, 2*CHNS+15, 2*CHNS+18, 2*CHNS+21 };
+        for ( int i = 0; i < variants.length; i++ )
+        {
+            LightAuto src = createAuto( variants[i][0], variants[i][1] );
+            byte[] frame = autoReadFrame( src );
+            assertEquals( lengths[i], frame.length );
+            Object object = LightCodec.decode( frame, 0, frame.length, CHNS );
+            assertTrue( object instanceof LightAuto );
+            LightAuto dst = (LightAuto) object;
+            assertTrue( src.getSunrise().equal( dst.getSunrise() ) );
+            assertTrue( src.getSunset().equal( dst.getSunset() ) );
+            assertArrayEquals( src.getDayBright(), dst.getDayBright() );
+            assertArrayEquals( src.getNightBright(), dst.getNightBright() );
+            assertEquals( src.isHasTurnoff(), dst.isHasTurnoff() );
+            assertEquals( src.isHasDynamic(), dst.isHasDynamic() );
+            if ( src.isHasTurnoff() )
+            {
+                assertEquals( src.getTurnoffHour(), dst.getTurnoffHour() );
+                assertEquals( src.getTurnoffMinute(), dst.getTurnoffMinute() );
+            }
+            if ( src.isHasDynamic() )
+            {
+                assertEquals( src.getWeek(), dst.getWeek() );
+                assertTrue( src.getDynamicPeriod().equal( dst.getDynamicPeriod() ) );
+                assertEquals( src.getDynamicMode(), dst.getDynamicMode() );
+            }
+        }
+    }
+
+    @Test
+    public void decodeAuto_dynamicWithoutTurnoffAtOffset()
+    {
+        byte[] frame = autoReadFrame( createAuto( false, true ) );
+        byte[] padded = new byte[frame.length+5];
+        System.arraycopy( frame, 0, padded, 3, frame.length );
+        LightAuto dst = (LightAuto) LightCodec.decode( padded, 3, frame.length, CHNS );
+        assertNotNull( dst );
+        assertTrue( dst.isHasDynamic() );
+        assertEquals( (byte) 0x85, dst.getWeek() );
+        assertEquals( 2, dst.getDynamicMode() );
+    }
+
+    @Test
+    public void decodePro_roundTrip()
+    {
+        //count [hour minute [chns]]*count, points in reverse order
+        byte[] array = new byte[1+4*(2+CHNS)];
+        array[0] = 4;
+        for ( int i = 0; i < 4; i++ )
+        {
+            byte[] point = new TimerBrightPoint( 18-6*i, 15, new byte[]{ (byte) i, 20, 30, 40 } ).toArray();
+            System.arraycopy( point, 0, array, 1+i*(2+CHNS), point.length );
+        }
+        LightPro src = new LightPro.Builder().creatFromArray( array, CHNS );
+        byte[] pro = new byte[LightCodec.getProLength( src )];
+        LightCodec.encodePro( src, pro, 0 );
+        assertEquals( 0x00, LightCodec.getCRC( pro, 0, pro.length ) );
+        byte[] frame = toReadFrame( CommUtil.MODE_PRO, pro, 2, pro.length-3 );
+        LightPro dst = (LightPro) LightCodec.decode( frame, 0, frame.length, CHNS );
+        assertNotNull( dst );
+        assertEquals( 4, dst.getPointCount() );
+        assertEquals( 0, dst.getPoints()[0].getHour() );
+        assertEquals( 18, dst.getPoints()[3].getHour() );
+    }
+
+    @Test
+    public void decodeManual_matchesListDecoder()
+    {
+        byte[] frame = manualReadFrame();
+        LightManual a = (LightManual) LightCodec.decode( frame, 0, frame.length, CHNS );
+        LightManual b = (LightManual) CommUtil.decodeLight( toList( frame ), DEVID );
+        assertNotNull( a );
+        assertNotNull( b );
+        assertTrue( a.isOn() );
+        assertArrayEquals( a.getChnValues(), b.getChnValues() );
+        assertArrayEquals( a.getCustomP4Values(), b.getCustomP4Values() );
+    }
+
+    @Test
+    public void decode_rejectsBadCrc()
+    {
+        byte[] frame = manualReadFrame();
+        frame[5] ^= 0x01;
+        assertNull( LightCodec.decode( frame, 0, frame.length, CHNS ) );
+    }
+}
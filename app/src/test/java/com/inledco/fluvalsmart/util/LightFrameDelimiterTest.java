@@ -0,0 +1,168 @@
+package com.inledco.fluvalsmart.util;
+
+import com.inledco.fluvalsmart.bean.LightAuto;
+import com.inledco.fluvalsmart.bean.RampTime;
+import com.liruya.tuner168blemanager.BleFrameDelimiter;
+import com.liruya.tuner168blemanager.BleReceiveBuffer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 帧切分: 较长帧的前缀校验为0时不能切成短帧, 异常的时间点数量重新同步
+ */
+public class LightFrameDelimiterTest
+{
+    private static final int CHNS = 4;
+    private static final int NOTIFY_SIZE = 20;
+
+    private final LightFrameDelimiter mDelimiter = new LightFrameDelimiter( CHNS );
+
+    /**
+     * @param turnoff   是否带关灯参数
+     * @return          CMD_READ自动模式应答
+     */
+    private static byte[] autoFrame( boolean turnoff )
+    {
+        RampTime sunrise = new RampTime( (byte) 7, (byte) 0, (byte) 8, (byte) 30 );
+        RampTime sunset = new RampTime( (byte) 18, (byte) 0, (byte) 19, (byte) 30 );
+        byte[] day = new byte[]{ 100, 80, 60, 40 };
+        byte[] night = new byte[]{ 0, 0, 5, 1 };
+        LightAuto lightAuto = turnoff ? new LightAuto( sunrise, day, sunset, night, true, (byte) 23, (byte) 10 )
+                                      : new LightAuto( sunrise, day, sunset, night );
+        byte[] cycle = new byte[LightCodec.getAutoLength( lightAuto )];
+        LightCodec.encodeAuto( lightAuto, cycle, 0 );
+        //FRM_HDR CMD_CYCLE [payload] xor -> FRM_HDR CMD_READ MODE_AUTO [payload] xor
+        byte[] frame = new byte[cycle.length+1];
+        frame[0] = CommUtil.FRM_HDR;
+        frame[1] = CommUtil.CMD_READ;
+        frame[2] = CommUtil.MODE_AUTO;
+        System.arraycopy( cycle, 2, frame, 3, cycle.length-3 );
+        frame[frame.length-1] = LightCodec.getCRC( frame, 0, frame.length-1 );
+        return frame;
+    }
+
+    /**
+     * 调整日间亮度使带关灯参数的帧前2*chns+12字节异或为0, 即hour^minute^xor == 0
+     */
+    private static byte[] ambiguousFrame()
+    {
+        byte[] frame = autoFrame( true );
+        int shortLength = 2*CHNS+12;
+        frame[7] ^= LightCodec.getCRC( frame, 0, shortLength );
+        frame[frame.length-1] = LightCodec.getCRC( frame, 0, frame.length-1 );
+        assertEquals( 0, LightCodec.getCRC( frame, 0, shortLength ) );
+        assertEquals( 0, LightCodec.getCRC( frame, 0, frame.length ) );
+        return frame;
+    }
+
+    private static BleReceiveBuffer buffer( byte[]... frames )
+    {
+        BleReceiveBuffer buffer = new BleReceiveBuffer();
+        for ( byte[] frame : frames )
+        {
+            buffer.append( frame );
+        }
+        return buffer;
+    }
+
+    private static BleReceiveBuffer idle( BleReceiveBuffer buffer )
+    {
+        buffer.setIdle( true );
+        return buffer;
+    }
+
+    @Test
+    public void match_longFrameWithZeroXorPrefix()
+    {
+        byte[] frame = ambiguousFrame();
+        assertEquals( 2*CHNS+15, frame.length );
+        assertEquals( frame.length, mDelimiter.match( idle( buffer( frame ) ) ) );
+        assertEquals( frame.length, mDelimiter.match( buffer( frame, autoFrame( false ) ) ) );
+
+        LightAuto lightAuto = (LightAuto) LightCodec.decode( frame, 0, frame.length, CHNS );
+        assertNotNull( lightAuto );
+        assertTrue( lightAuto.isHasTurnoff() );
+        assertEquals( 23, lightAuto.getTurnoffHour() );
+
+        //真正的短帧后紧跟下一帧
+        byte[] shortFrame = autoFrame( false );
+        assertEquals( shortFrame.length, mDelimiter.match( idle( buffer( shortFrame ) ) ) );
+        assertEquals( shortFrame.length, mDelimiter.match( buffer( shortFrame, frame ) ) );
+    }
+
+    /**
+     * 按20字节的通知包依次接收, 每包后切分
+     * @param idle  最后是否等到空闲
+     * @return      切出的帧长度
+     */
+    private List<Integer> feed( boolean idle, byte[]... frames )
+    {
+        BleReceiveBuffer stream = buffer( frames );
+        byte[] bytes = stream.toByteArray();
+        BleReceiveBuffer buffer = new BleReceiveBuffer();
+        List<Integer> lengths = new ArrayList<>();
+        for ( int i = 0; i < bytes.length; i += NOTIFY_SIZE )
+        {
+            buffer.append( bytes, i, Math.min( NOTIFY_SIZE, bytes.length-i ) );
+            split( buffer, lengths );
+        }
+        if ( idle )
+        {
+            buffer.setIdle( true );
+            split( buffer, lengths );
+        }
+        return lengths;
+    }
+
+    private void split( BleReceiveBuffer buffer, List<Integer> lengths )
+    {
+        while ( buffer.size() > 0 )
+        {
+            int result = mDelimiter.match( buffer );
+            assertNotEquals( BleFrameDelimiter.INVALID, result );
+            if ( result == BleFrameDelimiter.NEED_MORE )
+            {
+                return;
+            }
+            lengths.add( result );
+            buffer.discard( result );
+        }
+    }
+
+    @Test
+    public void match_notifyEndingAtShortLengthWaits()
+    {
+        //首个通知包正好是最短候选长度且前缀校验为0, 不能切成短帧
+        byte[] frame = ambiguousFrame();
+        assertEquals( 2*CHNS+12, NOTIFY_SIZE );
+        assertEquals( "[]", feed( false, frame ).toString() );
+        assertEquals( "[" + frame.length + "]", feed( true, frame ).toString() );
+        assertEquals( "[" + frame.length + ", " + frame.length + "]", feed( true, frame, frame ).toString() );
+
+        //真正的短帧在空闲后切分
+        byte[] shortFrame = autoFrame( false );
+        assertEquals( "[]", feed( false, shortFrame ).toString() );
+        assertEquals( "[" + shortFrame.length + "]", feed( true, shortFrame ).toString() );
+        assertEquals( "[" + shortFrame.length + ", " + frame.length + "]", feed( true, shortFrame, frame ).toString() );
+    }
+
+    @Test
+    public void match_proCountOutOfRangeResyncs()
+    {
+        byte[] head = new byte[]{ CommUtil.FRM_HDR, CommUtil.CMD_READ, CommUtil.MODE_PRO, 0 };
+        assertEquals( BleFrameDelimiter.NEED_MORE, mDelimiter.match( buffer( new byte[]{ head[0], head[1], head[2] } ) ) );
+        for ( int count : new int[]{ 0, 3, 11, 255 } )
+        {
+            head[3] = (byte) count;
+            assertEquals( BleFrameDelimiter.INVALID, mDelimiter.match( buffer( head ) ) );
+            assertNull( LightFrames.getRead( CommUtil.MODE_PRO ).match( head, 0, head.length, CHNS ) );
+        }
+        head[3] = 4;
+        assertEquals( BleFrameDelimiter.NEED_MORE, mDelimiter.match( buffer( head ) ) );
+    }
+}
@@ -0,0 +1,91 @@
+package com.inledco.fluvalsmart.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 帧结构表: 字段偏移/可选块组合/长度匹配与原手写长度一致
+ */
+public class LightFrameSchemaTest
+{
+    @Test
+    public void readLengths_matchProtocol()
+    {
+        for ( int chns = 1; chns <= 6; chns++ )
+        {
+            assertArrayEquals( new int[]{ 2*chns+12, 2*chns+15, 2*chns+18, 2*chns+21 },
+                               LightFrames.getRead( CommUtil.MODE_AUTO ).getLengths( chns, 0 ) );
+            assertArrayEquals( new int[]{ 6*chns+6 }, LightFrames.getRead( CommUtil.MODE_MANUAL ).getLengths( chns, 0 ) );
+            assertArrayEquals( new int[]{ 5*(2+chns)+5, 5*(2+chns)+11 }, LightFrames.getRead( CommUtil.MODE_PRO ).getLengths( chns, 5 ) );
+            //设置帧不含同时带关灯和动态时段的组合
+            assertArrayEquals( new int[]{ 2*chns+11, 2*chns+14, 2*chns+17 },
+                               LightFrames.getCommand( CommUtil.CMD_CYCLE ).getLengths( chns, 0 ) );
+            assertArrayEquals( new int[]{ 2*chns+3 }, LightFrames.getCommand( CommUtil.CMD_CTRL ).getLengths( chns, 0 ) );
+        }
+        assertArrayEquals( new int[]{ 3 }, LightFrames.getCommand( CommUtil.CMD_FIND ).getLengths( 4, 0 ) );
+        assertArrayEquals( new int[]{ 9 }, LightFrames.getCommand( CommUtil.CMD_DYNAMIC_PERIOD ).getLengths( 4, 0 ) );
+        assertArrayEquals( new int[]{ 10 }, LightFrames.getCommand( CommUtil.CMD_SYNCTIME ).getLengths( 4, 0 ) );
+        assertNull( LightFrames.getCommand( (byte) 0x7F ) );
+        assertNull( LightFrames.getRead( (byte) 0x03 ) );
+    }
+
+    @Test
+    public void match_selectsLayoutByLength()
+    {
+        LightFrameSchema schema = LightFrames.getRead( CommUtil.MODE_AUTO );
+        byte[] bytes = new byte[64];
+        LightFrameSchema.Layout layout = schema.match( bytes, 0, 2*4+18, 4 );
+        assertNotNull( layout );
+        assertEquals( LightFrames.BLOCK_DYNAMIC, layout.getBlocks() );
+        assertFalse( layout.has( LightFrames.AUTO_TURNOFF ) );
+        assertEquals( -1, layout.getOffset( LightFrames.AUTO_TURNOFF ) );
+        assertEquals( 3, layout.getOffset( LightFrames.AUTO_SUNRISE ) );
+        assertEquals( 7, layout.getOffset( LightFrames.AUTO_DAY ) );
+        assertEquals( 11, layout.getOffset( LightFrames.AUTO_SUNSET ) );
+        assertEquals( 15, layout.getOffset( LightFrames.AUTO_NIGHT ) );
+        assertEquals( 19, layout.getOffset( LightFrames.AUTO_DYNAMIC ) );
+        //布局按通道数缓存
+        assertSame( layout, schema.layout( 4, 0, LightFrames.BLOCK_DYNAMIC ) );
+        assertNull( schema.match( bytes, 0, 2*4+13, 4 ) );
+
+        //专业模式按数量字段的值计算
+        LightFrameSchema pro = LightFrames.getRead( CommUtil.MODE_PRO );
+        assertEquals( 3, pro.getCountOffset() );
+        bytes[3] = 6;
+        layout = pro.match( bytes, 0, 6*(2+4)+11, 4 );
+        assertNotNull( layout );
+        assertEquals( 4, layout.getOffset( LightFrames.PRO_POINTS ) );
+        assertEquals( 6, layout.getItemSize( LightFrames.PRO_POINTS ) );
+        assertEquals( 4+6*6, layout.getOffset( LightFrames.PRO_DYNAMIC ) );
+        assertNull( pro.match( bytes, 0, 5*(2+4)+5, 4 ) );
+    }
+
+    @Test
+    public void builder_newBlockAddsVariants()
+    {
+        //假设新固件在自动模式后增加月光块
+        LightFrameSchema schema = new LightFrameSchema.Builder( CommUtil.FRM_HDR, CommUtil.CMD_READ, CommUtil.MODE_AUTO )
+            .field( 0, 4, 0 )
+            .field( 1, 0, 1 )
+            .block( LightFrames.BLOCK_TURNOFF )
+            .field( 2, 3, 0 )
+            .block( 0x04 )
+            .field( 3, 2, 1 )
+            .build();
+        assertArrayEquals( new int[]{ 10, 13, 14, 17 }, schema.getLengths( 2, 0 ) );
+        LightFrameSchema.Layout layout = schema.layout( 2, 0, LightFrames.BLOCK_TURNOFF | 0x04 );
+        assertEquals( 9, layout.getOffset( 2 ) );
+        assertEquals( 12, layout.getOffset( 3 ) );
+
+        try
+        {
+            new LightFrameSchema.Builder( CommUtil.FRM_HDR ).field( 1, 1, 0 );
+            fail( "field out of order" );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            //字段索引须按顺序
+        }
+    }
+}
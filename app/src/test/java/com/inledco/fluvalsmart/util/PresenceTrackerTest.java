@@ -0,0 +1,91 @@
+package com.inledco.fluvalsmart.util;
+
+import com.inledco.fluvalsmart.bean.BaseDevice;
+import com.inledco.fluvalsmart.bean.DevicePrefer;
+import com.liruya.tuner168blemanager.BleScanPolicy;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 在线状态: 进入/离开范围, rssi平滑, 按连接可能性排序
+ */
+public class PresenceTrackerTest
+{
+    private static BaseDevice device( String mac )
+    {
+        return new BaseDevice( new DevicePrefer( DeviceUtil.LIGHT_ID_RGBW, mac, mac ) );
+    }
+
+    @Test
+    public void onScanned_tracksPresence()
+    {
+        PresenceTracker tracker = new PresenceTracker();
+        assertFalse( tracker.isPresent( "A" ) );
+        assertTrue( tracker.onScanned( "A", -60, 0 ) );
+        assertFalse( tracker.onScanned( "A", -80, 1000 ) );
+        assertTrue( tracker.isPresent( "A" ) );
+        // 单次弱信号只拉低一部分
+        assertEquals( -65, tracker.get( "A" ).getRssi(), 0.01f );
+        assertEquals( 1000, tracker.get( "A" ).getLastSeen() );
+
+        assertFalse( tracker.update( 1000 + PresenceTracker.ABSENT_TIMEOUT ) );
+        assertTrue( tracker.update( 1001 + PresenceTracker.ABSENT_TIMEOUT ) );
+        assertFalse( tracker.isPresent( "A" ) );
+        assertFalse( tracker.update( 2000 + PresenceTracker.ABSENT_TIMEOUT ) );
+
+        // 重新出现时使用新的rssi
+        assertTrue( tracker.onScanned( "A", -90, 50000 ) );
+        assertEquals( -90, tracker.get( "A" ).getRssi(), 0.01f );
+    }
+
+    @Test
+    public void sort_presentByRssiThenRecent()
+    {
+        PresenceTracker tracker = new PresenceTracker();
+        tracker.onScanned( "old", -40, 0 );
+        tracker.onScanned( "recent", -40, 10000 );
+        tracker.update( 10000 + PresenceTracker.ABSENT_TIMEOUT + 1 );
+        tracker.onScanned( "weak", -85, 50000 );
+        tracker.onScanned( "strong", -55, 50000 );
+
+        List<BaseDevice> devices = new ArrayList<>();
+        for ( String mac : new String[]{ "never", "old", "weak", "recent", "strong" } )
+        {
+            devices.add( device( mac ) );
+        }
+        tracker.sort( devices );
+        StringBuilder sb = new StringBuilder();
+        for ( BaseDevice device : devices )
+        {
+            sb.append( device.getDevicePrefer().getDeviceMac() ).append( ' ' );
+        }
+        assertEquals( "strong weak recent old never ", sb.toString() );
+    }
+
+    @Test
+    public void update_forgetsAbsentDeviceInScanPolicy()
+    {
+        final List<String> forgotten = new ArrayList<>();
+        PresenceTracker tracker = new PresenceTracker();
+        tracker.mPolicy = new BleScanPolicy()
+        {
+            @Override
+            public synchronized void forget( String mac )
+            {
+                forgotten.add( mac );
+            }
+        };
+        tracker.onScanned( "A", -60, 0 );
+        tracker.onScanned( "B", -60, 20000 );
+        assertTrue( tracker.update( 1 + PresenceTracker.ABSENT_TIMEOUT ) );
+        // 离开范围的设备重新出现时策略再次提高扫描频率
+        assertEquals( "[A]", forgotten.toString() );
+        assertFalse( tracker.update( 2 + PresenceTracker.ABSENT_TIMEOUT ) );
+        assertEquals( 1, forgotten.size() );
+    }
+}
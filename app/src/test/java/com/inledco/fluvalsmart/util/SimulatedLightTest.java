@@ -0,0 +1,274 @@
+package com.inledco.fluvalsmart.util;
+
+import com.ble.ble.BleCallBack;
+import com.inledco.fluvalsmart.bean.LightAuto;
+import com.inledco.fluvalsmart.bean.LightManual;
+import com.inledco.fluvalsmart.bean.RampTime;
+import com.inledco.fluvalsmart.ota.OTAConstants;
+import com.liruya.tuner168blemanager.BleFrameDelimiter;
+import com.liruya.tuner168blemanager.BleReceiveBuffer;
+import com.liruya.tuner168blemanager.BleSimulatedTransport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * 通过BleSimulatedTransport与模拟灯具通信, 验证协议
+ */
+public class SimulatedLightTest
+{
+    private static final String MAC = "00:11:22:33:44:55";
+    private static final short DEVID = DeviceUtil.LIGHT_ID_RGBW;
+    private static final int CHUNK_LENGTH = 17;
+    private static final int TIMEOUT = 1000;
+    /**
+     * 同BleManager的空闲间隔, 之后切分末尾被保留的帧
+     */
+    private static final int IDLE_GAP = 64;
+
+    private BleSimulatedTransport mTransport;
+    private SimulatedLight mLight;
+    private Link mLink;
+
+    /**
+     * 手机侧: 按LightFrameDelimiter切分灯具上报帧, OTA应答按包记录
+     */
+    private static class Link extends BleCallBack
+    {
+        private final BleFrameDelimiter mDelimiter = new LightFrameDelimiter( DEVID );
+        private final BleReceiveBuffer mBuffer = new BleReceiveBuffer();
+        private final BlockingQueue<byte[]> mFrames = new LinkedBlockingQueue<>();
+        private final BlockingQueue<byte[]> mPackets = new LinkedBlockingQueue<>();
+        private volatile CountDownLatch mConnected = new CountDownLatch( 1 );
+        private volatile CountDownLatch mDisconnected = new CountDownLatch( 1 );
+        private final BlockingQueue<Integer> mMtus = new LinkedBlockingQueue<>();
+        private volatile int mMtuStatus;
+
+        @Override
+        public void onServicesDiscovered( String mac )
+        {
+            mConnected.countDown();
+        }
+
+        @Override
+        public void onDisconnected( String mac )
+        {
+            mDisconnected.countDown();
+        }
+
+        @Override
+        public void onMtuChanged( String mac, int mtu, int status )
+        {
+            mMtuStatus = status;
+            mMtus.offer( mtu );
+        }
+
+        @Override
+        public synchronized void onCharacteristicChanged( String mac, byte[] bytes )
+        {
+            mPackets.offer( bytes );
+            mBuffer.append( bytes );
+            split();
+        }
+
+        /**
+         * 空闲间隔内没有新数据
+         */
+        private synchronized void flush()
+        {
+            mBuffer.setIdle( true );
+            split();
+            mBuffer.setIdle( false );
+        }
+
+        private void split()
+        {
+            while ( mBuffer.size() > 0 )
+            {
+                int len = mDelimiter.match( mBuffer );
+                if ( len == BleFrameDelimiter.NEED_MORE )
+                {
+                    break;
+                }
+                if ( len == BleFrameDelimiter.INVALID )
+                {
+                    mBuffer.discard( 1 );
+                    continue;
+                }
+                byte[] frame = new byte[len];
+                mBuffer.copyTo( frame, 0, len );
+                mBuffer.discard( len );
+                mFrames.offer( frame );
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws InterruptedException
+    {
+        mTransport = new BleSimulatedTransport( 1 );
+        mLight = new SimulatedLight( DEVID, 0x0103 );
+        mTransport.addDevice( MAC, mLight );
+        mLink = new Link();
+        mTransport.setCallback( mLink );
+        connect();
+    }
+
+    @After
+    public void tearDown()
+    {
+        mTransport.shutdown();
+    }
+
+    private void connect() throws InterruptedException
+    {
+        mLink.mConnected = new CountDownLatch( 1 );
+        mLink.mDisconnected = new CountDownLatch( 1 );
+        assertTrue( mTransport.connect( MAC, false ) );
+        assertTrue( mLink.mConnected.await( TIMEOUT, TimeUnit.MILLISECONDS ) );
+    }
+
+    private void write( byte[] frame )
+    {
+        for ( int idx = 0; idx < frame.length; idx += CHUNK_LENGTH )
+        {
+            byte[] chunk = new byte[Math.min( CHUNK_LENGTH, frame.length - idx )];
+            System.arraycopy( frame, idx, chunk, 0, chunk.length );
+            assertTrue( mTransport.write( MAC, chunk ) );
+        }
+    }
+
+    private static byte[] readFrame()
+    {
+        return new byte[]{ CommUtil.FRM_HDR, CommUtil.CMD_READ, CommUtil.FRM_HDR ^ CommUtil.CMD_READ };
+    }
+
+    private byte[] pollFrame( long timeout ) throws InterruptedException
+    {
+        byte[] frame = mLink.mFrames.poll( IDLE_GAP, TimeUnit.MILLISECONDS );
+        if ( frame == null )
+        {
+            mLink.flush();
+            frame = mLink.mFrames.poll( timeout, TimeUnit.MILLISECONDS );
+        }
+        return frame;
+    }
+
+    private byte[] pollPacket() throws InterruptedException
+    {
+        return mLink.mPackets.poll( TIMEOUT, TimeUnit.MILLISECONDS );
+    }
+
+    @Test
+    public void read_reportsManualStatus() throws InterruptedException
+    {
+        write( readFrame() );
+        byte[] frame = pollFrame( TIMEOUT );
+        assertNotNull( frame );
+        LightManual manual = (LightManual) LightCodec.decode( frame, 0, frame.length, mLight.getChannelCount() );
+        assertNotNull( manual );
+        assertTrue( manual.isOn() );
+        assertEquals( 1000, manual.getChnValues()[0] );
+    }
+
+    @Test
+    public void cycle_reportsAutoStatus() throws InterruptedException
+    {
+        byte[] day = new byte[]{ 90, 80, 70, 60 };
+        byte[] night = new byte[]{ 1, 2, 3, 4 };
+        LightAuto src = new LightAuto( new RampTime( (byte) 6, (byte) 30, (byte) 7, (byte) 30 ), day,
+                                       new RampTime( (byte) 20, (byte) 0, (byte) 21, (byte) 0 ), night,
+                                       true, (byte) 23, (byte) 0 );
+        byte[] mode = new byte[]{ CommUtil.FRM_HDR, CommUtil.CMD_MODE, CommUtil.MODE_AUTO, CommUtil.FRM_HDR ^ CommUtil.CMD_MODE ^ CommUtil.MODE_AUTO };
+        byte[] cycle = new byte[LightCodec.getAutoLength( src )];
+        LightCodec.encodeAuto( src, cycle, 0 );
+        write( mode );
+        write( cycle );
+        assertNotNull( pollFrame( TIMEOUT ) );
+        byte[] frame = pollFrame( TIMEOUT );
+        assertNotNull( frame );
+        LightAuto dst = (LightAuto) LightCodec.decode( frame, 0, frame.length, mLight.getChannelCount() );
+        assertNotNull( dst );
+        assertArrayEquals( day, dst.getDayBright() );
+        assertArrayEquals( night, dst.getNightBright() );
+        assertTrue( dst.isHasTurnoff() );
+        assertEquals( 0, mLight.getErrorCount() );
+    }
+
+    @Test
+    public void ota_enterBootloaderAndWriteFlash() throws InterruptedException
+    {
+        byte status = OTAConstants.OTA_CMD_GET_STATUS;
+        write( new byte[]{ status, 0x00, 0x00, 0x00, status } );
+        byte[] reply = pollPacket();
+        assertNotNull( reply );
+        assertEquals( 0, reply[1] );
+        assertTrue( mLink.mDisconnected.await( TIMEOUT, TimeUnit.MILLISECONDS ) );
+        assertTrue( mLight.isBootloader() );
+
+        connect();
+        write( new byte[]{ status, 0x00, 0x00, 0x00, status } );
+        reply = pollPacket();
+        assertArrayEquals( new byte[]{ status, 1, 0, 0, OTAConstants.OTA_RESPONSE_SUCCESS }, reply );
+
+        write( new byte[]{ OTAConstants.OTA_CMD_GET_VERSION, 0x00, 0x00, 0x00 } );
+        reply = pollPacket();
+        assertNotNull( reply );
+        assertEquals( 12, reply.length );
+        int start = ( ( reply[7] & 0xFF ) << 8 ) | ( reply[6] & 0xFF );
+
+        byte[] data = new byte[]{ 0x12, 0x34, 0x56, 0x78 };
+        byte[] writeFlash = new byte[4+data.length];
+        writeFlash[0] = OTAConstants.OTA_CMD_WRITE_FLASH;
+        writeFlash[1] = (byte) data.length;
+        writeFlash[2] = (byte) start;
+        writeFlash[3] = (byte) ( start >> 8 );
+        System.arraycopy( data, 0, writeFlash, 4, data.length );
+        write( writeFlash );
+        reply = pollPacket();
+        assertArrayEquals( new byte[]{ OTAConstants.OTA_CMD_WRITE_FLASH, 1, writeFlash[2], writeFlash[3], OTAConstants.OTA_RESPONSE_SUCCESS }, reply );
+        assertEquals( 0x12, mLight.getFlash()[0] );
+
+        write( new byte[]{ OTAConstants.OTA_CMD_RESET_DEVICE, 0x00, 0x00, 0x00 } );
+        assertNotNull( pollPacket() );
+        assertFalse( mLight.isBootloader() );
+    }
+
+    @Test
+    public void loss_dropsPackets() throws InterruptedException
+    {
+        mTransport.setLossRate( 1.0f );
+        write( readFrame() );
+        assertNull( pollFrame( 200 ) );
+        assertTrue( mTransport.getLostPackets() > 0 );
+    }
+
+    @Test
+    public void mtu_limitsPacketLength() throws InterruptedException
+    {
+        assertFalse( mTransport.write( MAC, new byte[BleSimulatedTransport.DEFAULT_MTU] ) );
+        mTransport.setMtu( 247 );
+        assertFalse( mTransport.write( MAC, new byte[BleSimulatedTransport.DEFAULT_MTU] ) );
+        assertTrue( mTransport.requestMtu( MAC, 512 ) );
+        assertEquals( 247, mLink.mMtus.poll( TIMEOUT, TimeUnit.MILLISECONDS ).intValue() );
+        assertTrue( mTransport.write( MAC, new byte[244] ) );
+        assertFalse( mTransport.write( MAC, new byte[245] ) );
+    }
+
+    @Test
+    public void mtu_refusedKeepsDefault() throws InterruptedException
+    {
+        assertTrue( mTransport.requestMtu( MAC, 247 ) );
+        assertEquals( BleSimulatedTransport.DEFAULT_MTU, mLink.mMtus.poll( TIMEOUT, TimeUnit.MILLISECONDS ).intValue() );
+        assertNotEquals( 0, mLink.mMtuStatus );
+        assertEquals( BleSimulatedTransport.DEFAULT_MTU, mTransport.getLinkMtu( MAC ) );
+    }
+}
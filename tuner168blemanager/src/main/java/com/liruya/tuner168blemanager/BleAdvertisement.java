@@ -0,0 +1,118 @@
+package com.liruya.tuner168blemanager;
+
+/**
+ * Reads AD structures straight from a raw scan record, without parsing the whole record into objects.
+ * An AD structure is a length byte, a type byte and length - 1 data bytes, a length of 0 ends the record.
+ */
+public class BleAdvertisement {
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_COMPLETE_LOCAL_NAME = 0x09;
+    public static final int TYPE_MANUFACTURER_DATA = 0xFF;
+
+    /**
+     * count of leading ascii digits in manufacturer data holding the devid
+     */
+    private static final int DEVID_DIGITS = 4;
+
+    private BleAdvertisement() {
+
+    }
+
+    /**
+     * @param record raw scan record
+     * @param type AD type, TYPE_XXX
+     * @return offset of data of the first AD structure of type, -1 if not found or record is malformed before it
+     */
+    public static int find(byte[] record, int type) {
+        if (record == null) {
+            return -1;
+        }
+        int i = 0;
+        while (i < record.length) {
+            int length = record[i] & 0xFF;
+            if (length == 0 || i + 1 + length > record.length) {
+                return -1;
+            }
+            if ((record[i + 1] & 0xFF) == type) {
+                return i + 2;
+            }
+            i += length + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @param record raw scan record
+     * @return false if record is null or an AD structure runs past its end
+     */
+    public static boolean isValid(byte[] record) {
+        if (record == null) {
+            return false;
+        }
+        int i = 0;
+        while (i < record.length) {
+            int length = record[i] & 0xFF;
+            if (length == 0) {
+                return true;
+            }
+            if (i + 1 + length > record.length) {
+                return false;
+            }
+            i += length + 1;
+        }
+        return true;
+    }
+
+    /**
+     * @param offset offset returned by {@link #find(byte[], int)}
+     * @return count of data bytes of the AD structure
+     */
+    public static int getLength(byte[] record, int offset) {
+        return (record[offset - 2] & 0xFF) - 1;
+    }
+
+    /**
+     * @return manufacturer id in little endian followed by manufacturer data, as advertised, null if not advertised
+     */
+    public static byte[] getManufacturerData(byte[] record) {
+        int offset = find(record, TYPE_MANUFACTURER_DATA);
+        if (offset < 0) {
+            return null;
+        }
+        int length = getLength(record, offset);
+        // manufacturer id takes 2 bytes
+        if (length < 2) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        System.arraycopy(record, offset, data, 0, length);
+        return data;
+    }
+
+    /**
+     * devid advertised by the light as up to 4 ascii digits in place of manufacturer id, one digit per nibble
+     *
+     * @param bytes manufacturer data as returned by {@link #getManufacturerData(byte[])}
+     * @return devid, 0 if no digit
+     */
+    public static short parseDevid(byte[] bytes, int offset, int length) {
+        short devid = 0;
+        for (int i = offset; i < offset + DEVID_DIGITS && i < offset + length; i++) {
+            if (bytes[i] >= '0' && bytes[i] <= '9') {
+                devid = (short) ((devid << 4) | (bytes[i] - '0'));
+            } else {
+                break;
+            }
+        }
+        return devid;
+    }
+
+    /**
+     * @param record raw scan record
+     * @return devid advertised in manufacturer data, 0 if none
+     */
+    public static short getDevid(byte[] record) {
+        int offset = find(record, TYPE_MANUFACTURER_DATA);
+        return offset < 0 ? 0 : parseDevid(record, offset, getLength(record, offset));
+    }
+}
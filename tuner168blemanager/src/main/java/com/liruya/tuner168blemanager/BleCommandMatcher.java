@@ -0,0 +1,26 @@
+package com.liruya.tuner168blemanager;
+
+/**
+ * Matches replies by the command byte at a fixed position and a minimum length.
+ */
+public class BleCommandMatcher implements BleResponseMatcher {
+    private final int mIndex;
+    private final byte mCommand;
+    private final int mMinLength;
+
+    /**
+     * @param index position of command byte in reply
+     * @param command command byte
+     * @param minLength min length of a complete reply
+     */
+    public BleCommandMatcher(int index, byte command, int minLength) {
+        mIndex = index;
+        mCommand = command;
+        mMinLength = Math.max(minLength, index + 1);
+    }
+
+    @Override
+    public boolean matches(byte[] bytes, int offset, int length) {
+        return length >= mMinLength && bytes[offset + mIndex] == mCommand;
+    }
+}
@@ -0,0 +1,155 @@
+package com.liruya.tuner168blemanager;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Connection state of one device, driven by link events in {@link BleManager}.
+ * disconnected → connecting → connected → services discovered → notification enabled → ready,
+ * any state goes back to disconnected when the link is lost.
+ * Threads may block in {@link #awaitState(int, long)} instead of polling.
+ */
+public class BleConnection {
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+    public static final int STATE_SERVICES_DISCOVERED = 3;
+    public static final int STATE_NOTIFICATION_ENABLED = 4;
+    public static final int STATE_READY = 5;
+    public static final int STATE_DISCONNECTING = 6;
+
+    private final String mMac;
+    private int mState;
+
+    /**
+     * notification descriptor write requested on current link
+     */
+    private boolean mNotificationRequested;
+
+    /**
+     * increased on every services discovered, tells timers of an old link apart
+     */
+    private int mLinkId;
+    private long mConnectTime;
+    private long mTimeToReady = -1;
+
+    BleConnection(@NonNull String mac) {
+        mMac = mac;
+        mState = STATE_DISCONNECTED;
+    }
+
+    public String getMac() {
+        return mMac;
+    }
+
+    public synchronized int getState() {
+        return mState;
+    }
+
+    public synchronized boolean isReady() {
+        return mState == STATE_READY;
+    }
+
+    /**
+     * @return milliseconds from connect request (or link up if connected automatically) to ready
+     * of the last connection, -1 if not ready yet
+     */
+    public synchronized long getTimeToReady() {
+        return mTimeToReady;
+    }
+
+    /**
+     * block until the connection reaches the state, do not call on main thread
+     *
+     * @param state one of STATE_XXX
+     * @param timeout max time to wait in milliseconds
+     * @return true:state reached false:timeout
+     */
+    public synchronized boolean awaitState(int state, long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        while (mState != state) {
+            long remain = end - System.currentTimeMillis();
+            if (remain <= 0) {
+                return false;
+            }
+            wait(remain);
+        }
+        return true;
+    }
+
+    /**
+     * @return true:state changed
+     */
+    synchronized boolean setState(int state) {
+        if (mState == state) {
+            return false;
+        }
+        if (state == STATE_CONNECTING || (state == STATE_CONNECTED && mState != STATE_CONNECTING)) {
+            mConnectTime = System.currentTimeMillis();
+            mTimeToReady = -1;
+        } else if (state == STATE_SERVICES_DISCOVERED) {
+            mNotificationRequested = false;
+            mLinkId++;
+        } else if (state == STATE_READY) {
+            mTimeToReady = System.currentTimeMillis() - mConnectTime;
+        }
+        mState = state;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * change state only if current state is expected, events of an old link are ignored this way
+     *
+     * @return true:state changed
+     */
+    synchronized boolean compareAndSetState(int expect, int state) {
+        if (mState != expect) {
+            return false;
+        }
+        return setState(state);
+    }
+
+    /**
+     * @return true:caller should request notification, false:already requested on this link
+     */
+    synchronized boolean takeNotificationRequest() {
+        if (mNotificationRequested) {
+            return false;
+        }
+        mNotificationRequested = true;
+        return true;
+    }
+
+    synchronized int getLinkId() {
+        return mLinkId;
+    }
+
+    synchronized void clearNotificationRequest() {
+        mNotificationRequested = false;
+    }
+
+    synchronized boolean isNotificationRequested() {
+        return mNotificationRequested;
+    }
+
+    public static String getStateName(int state) {
+        switch (state) {
+            case STATE_DISCONNECTED:
+                return "disconnected";
+            case STATE_CONNECTING:
+                return "connecting";
+            case STATE_CONNECTED:
+                return "connected";
+            case STATE_SERVICES_DISCOVERED:
+                return "services discovered";
+            case STATE_NOTIFICATION_ENABLED:
+                return "notification enabled";
+            case STATE_READY:
+                return "ready";
+            case STATE_DISCONNECTING:
+                return "disconnecting";
+            default:
+                return "unknown";
+        }
+    }
+}
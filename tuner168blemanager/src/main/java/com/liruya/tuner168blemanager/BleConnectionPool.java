@@ -0,0 +1,400 @@
+package com.liruya.tuner168blemanager;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps at most max links alive on top of {@link BleManager} for sessions with many devices.
+ * Connect requests wait in a queue ordered by priority then arrival,
+ * when all links are taken the least recently used idle device is disconnected to make room.
+ * Devices acquired by {@link #acquire(String)} are never evicted until released.
+ * Connection progress is reported by {@link BleManager} as usual, e.g. wait for {@link BleConnection#STATE_READY}.
+ * A connect that can not be started is queued again after RETRY_DELAY * 2^n, given up after MAX_RETRIES.
+ */
+public class BleConnectionPool {
+    private static final String TAG = "BleConnectionPool";
+
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+
+    /**
+     * android allows about 7 gatt links, keep some for other apps
+     */
+    public static final int DEFAULT_MAX_LINKS = 4;
+
+    private static final int RETRY_DELAY = 100;
+    private static final int MAX_RETRIES = 3;
+
+    private final BleManager mManager;
+    private int mMaxLinks;
+
+    /**
+     * live links in use order, eldest first. moved to the tail by {@link #use(String)} only,
+     * late state changes must not make a link look recently used
+     */
+    private final LinkedHashMap<String, Entry> mLinks;
+    private final Map<String, Entry> mQueued;
+    private final PriorityQueue<Entry> mQueue;
+    private long mSequence;
+    private int mEvictedCount;
+    private int mFailedCount;
+    private final ScheduledExecutorService mScheduler;
+
+    private final BleListener mListener = new BleListener() {
+        @Override
+        protected void onConnectionStateChanged(String mac, int state) {
+            BleConnectionPool.this.onConnectionStateChanged(mac, state);
+        }
+    };
+
+    private static class Entry {
+        private final String mMac;
+        private int mPriority;
+        private long mSequence;
+        private int mRefs;
+        private int mRetries;
+
+        /**
+         * connect of this link was started, earlier state changes belong to the last link of the device
+         */
+        private boolean mStarted;
+
+        /**
+         * chosen for eviction, makes room before its state turns disconnecting
+         */
+        private boolean mEvicting;
+
+        /**
+         * in mQueued but not in mQueue, waiting for a retry
+         */
+        private boolean mDelayed;
+
+        private Entry(String mac) {
+            mMac = mac;
+        }
+    }
+
+    public BleConnectionPool(@NonNull BleManager manager) {
+        this(manager, DEFAULT_MAX_LINKS);
+    }
+
+    public BleConnectionPool(@NonNull BleManager manager, int maxLinks) {
+        mManager = manager;
+        mMaxLinks = Math.max(1, maxLinks);
+        mLinks = new LinkedHashMap<>();
+        mQueued = new HashMap<>();
+        mQueue = new PriorityQueue<>(16, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                if (o1.mPriority != o2.mPriority) {
+                    return o2.mPriority - o1.mPriority;
+                }
+                return o1.mSequence < o2.mSequence ? -1 : (o1.mSequence == o2.mSequence ? 0 : 1);
+            }
+        });
+        mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mManager.addBleListener(mListener);
+    }
+
+    /**
+     * stop tracking links, connected devices stay connected
+     */
+    public void release() {
+        mManager.removeBleListener(mListener);
+        synchronized (this) {
+            mQueue.clear();
+            mQueued.clear();
+            mLinks.clear();
+            mScheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * @param maxLinks max count of links alive at the same time, idle links are evicted when lowered
+     */
+    public void setMaxLinks(int maxLinks) {
+        synchronized (this) {
+            mMaxLinks = Math.max(1, maxLinks);
+        }
+        dispatch();
+    }
+
+    public synchronized int getMaxLinks() {
+        return mMaxLinks;
+    }
+
+    public void connect(@NonNull String mac) {
+        connect(mac, PRIORITY_NORMAL);
+    }
+
+    /**
+     * connect device as soon as a link is free, a queued device is moved up if priority is higher
+     *
+     * @param mac device mac address
+     * @param priority PRIORITY_XXX
+     */
+    public void connect(@NonNull String mac, int priority) {
+        synchronized (this) {
+            if (use(mac) != null) {
+                // counts as a use for eviction order
+                return;
+            }
+            Entry entry = mQueued.get(mac);
+            if (entry != null) {
+                if (priority <= entry.mPriority) {
+                    return;
+                }
+                // a higher priority does not wait for the retry
+                entry.mDelayed = false;
+                mQueue.remove(entry);
+            } else {
+                entry = new Entry(mac);
+                entry.mSequence = mSequence++;
+                mQueued.put(mac, entry);
+            }
+            entry.mPriority = priority;
+            mQueue.offer(entry);
+        }
+        dispatch();
+    }
+
+    /**
+     * remove device from pool and disconnect it
+     *
+     * @param mac device mac address
+     */
+    public void disconnect(@NonNull String mac) {
+        synchronized (this) {
+            Entry entry = mQueued.remove(mac);
+            if (entry != null) {
+                mQueue.remove(entry);
+            }
+        }
+        mManager.disconnectDevice(mac);
+    }
+
+    /**
+     * mark device in use, it is not evicted until {@link #release(String)}.
+     * connects the device with high priority if it is not alive
+     *
+     * @param mac device mac address
+     */
+    public void acquire(@NonNull String mac) {
+        connect(mac, PRIORITY_HIGH);
+        synchronized (this) {
+            Entry entry = use(mac);
+            if (entry == null) {
+                entry = mQueued.get(mac);
+            }
+            if (entry != null) {
+                entry.mRefs++;
+            }
+        }
+    }
+
+    /**
+     * device is idle again and may be evicted, least recently released goes first
+     *
+     * @param mac device mac address
+     */
+    public void release(@NonNull String mac) {
+        synchronized (this) {
+            Entry entry = use(mac);
+            if (entry == null) {
+                entry = mQueued.get(mac);
+            }
+            if (entry != null && entry.mRefs > 0) {
+                entry.mRefs--;
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * @return count of links alive, including links connecting or disconnecting
+     */
+    public synchronized int getLiveCount() {
+        return mLinks.size();
+    }
+
+    public synchronized int getQueuedCount() {
+        return mQueue.size();
+    }
+
+    public synchronized boolean isQueued(@NonNull String mac) {
+        return mQueued.containsKey(mac);
+    }
+
+    public synchronized boolean isLive(@NonNull String mac) {
+        return mLinks.containsKey(mac);
+    }
+
+    /**
+     * @return count of idle links disconnected to make room
+     */
+    public synchronized int getEvictedCount() {
+        return mEvictedCount;
+    }
+
+    /**
+     * @return count of devices dropped because connect could not be started after MAX_RETRIES
+     */
+    public synchronized int getFailedCount() {
+        return mFailedCount;
+    }
+
+    /**
+     * a link going down frees room, a link getting ready becomes idle and may be evicted.
+     * state changes are delivered late, a disconnect of the last link must not free the new one
+     */
+    private void onConnectionStateChanged(String mac, int state) {
+        synchronized (this) {
+            Entry entry = mLinks.get(mac);
+            if (entry == null) {
+                return;
+            }
+            if (state == BleConnection.STATE_DISCONNECTED
+                && (!entry.mStarted || mManager.getConnection(mac).getState() != BleConnection.STATE_DISCONNECTED)) {
+                return;
+            }
+            if (state == BleConnection.STATE_READY) {
+                entry.mRetries = 0;
+            }
+            if (state == BleConnection.STATE_DISCONNECTED) {
+                mLinks.remove(mac);
+            } else if (state != BleConnection.STATE_READY || mQueue.isEmpty()) {
+                return;
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * connect queued devices while links are free, evict idle links for the rest
+     */
+    private void dispatch() {
+        List<String> connects = new ArrayList<>();
+        List<String> evicts = new ArrayList<>();
+        synchronized (this) {
+            int free = mMaxLinks - mLinks.size();
+            while (free > 0 && !mQueue.isEmpty()) {
+                Entry entry = mQueue.poll();
+                entry.mStarted = false;
+                entry.mEvicting = false;
+                mQueued.remove(entry.mMac);
+                mLinks.put(entry.mMac, entry);
+                connects.add(entry.mMac);
+                free--;
+            }
+            // free < 0 after max links lowered, links already disconnecting make room soon
+            int need = mQueue.size() - free;
+            List<Entry> idles = new ArrayList<>();
+            for (Entry entry : mLinks.values()) {
+                int state = mManager.getConnection(entry.mMac).getState();
+                if (entry.mEvicting || state == BleConnection.STATE_DISCONNECTING) {
+                    need--;
+                } else if (entry.mRefs == 0 && (state == BleConnection.STATE_READY || state == BleConnection.STATE_CONNECTED)) {
+                    idles.add(entry);
+                }
+            }
+            Iterator<Entry> it = idles.iterator();
+            while (need > 0 && it.hasNext()) {
+                Entry entry = it.next();
+                entry.mEvicting = true;
+                evicts.add(entry.mMac);
+                mEvictedCount++;
+                need--;
+            }
+        }
+        for (String mac : evicts) {
+            Log.e(TAG, "evict: " + mac);
+            mManager.disconnectDevice(mac);
+        }
+        boolean failed = false;
+        for (String mac : connects) {
+            if (mManager.connectDevice(mac)) {
+                onConnectStarted(mac);
+            } else {
+                onConnectFailed(mac);
+                failed = true;
+            }
+        }
+        if (failed) {
+            // failed devices are delayed or dropped, their links are free for the rest of the queue
+            dispatch();
+        }
+    }
+
+    /**
+     * @return live link of device moved to the tail of eviction order, null if not alive
+     */
+    private Entry use(String mac) {
+        Entry entry = mLinks.remove(mac);
+        if (entry != null) {
+            mLinks.put(mac, entry);
+        }
+        return entry;
+    }
+
+    private synchronized void onConnectStarted(String mac) {
+        Entry entry = mLinks.get(mac);
+        if (entry != null) {
+            entry.mStarted = true;
+        }
+    }
+
+    /**
+     * connect was not started, queue the device again after a backoff
+     */
+    private synchronized void onConnectFailed(String mac) {
+        final Entry entry = mLinks.remove(mac);
+        if (entry == null || mScheduler.isShutdown()) {
+            return;
+        }
+        if (entry.mRetries >= MAX_RETRIES) {
+            Log.e(TAG, "connect: failed " + mac);
+            mFailedCount++;
+            return;
+        }
+        long delay = (long) RETRY_DELAY << entry.mRetries;
+        entry.mRetries++;
+        entry.mDelayed = true;
+        mQueued.put(mac, entry);
+        Log.e(TAG, "connect: failed " + mac + " retry " + entry.mRetries + " in " + delay + "ms");
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BleConnectionPool.this) {
+                    // removed or moved up meanwhile
+                    if (!entry.mDelayed || mQueued.get(entry.mMac) != entry) {
+                        return;
+                    }
+                    entry.mDelayed = false;
+                    mQueue.offer(entry);
+                }
+                dispatch();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+}
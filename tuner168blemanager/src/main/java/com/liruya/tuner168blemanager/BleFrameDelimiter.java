@@ -0,0 +1,27 @@
+package com.liruya.tuner168blemanager;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Finds the boundary of the frame at the head of a receive buffer.
+ * Implemented by the protocol layer which knows headers, commands and lengths.
+ */
+public interface BleFrameDelimiter {
+    /**
+     * head of buffer may be the start of a frame, wait for more data.
+     * also returned for a frame ending at the tail that a longer frame could continue,
+     * it is matched again with {@link BleReceiveBuffer#isIdle()} true if nothing more arrives
+     */
+    int NEED_MORE = 0;
+
+    /**
+     * head of buffer is not the start of a valid frame, first byte will be dropped
+     */
+    int INVALID = -1;
+
+    /**
+     * @param buffer received bytes, not consumed yet
+     * @return length of the complete frame at head, {@link #NEED_MORE} or {@link #INVALID}
+     */
+    int match(@NonNull BleReceiveBuffer buffer);
+}
@@ -0,0 +1,82 @@
+package com.liruya.tuner168blemanager;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Streaming frame parser of one device.
+ * Complete frames are emitted as soon as their last byte arrives,
+ * bytes that can not start a valid frame are skipped one by one until the stream resyncs.
+ * A frame the delimiter holds back at the tail is emitted by {@link #flush(OnFrameListener)} after the idle gap.
+ */
+class BleFrameParser {
+    interface OnFrameListener {
+        /**
+         * @param frame array holding the frame, reused for the next frame
+         * @param offset start position of frame
+         * @param length length of frame
+         */
+        void onFrame(byte[] frame, int offset, int length);
+    }
+
+    private final BleFrameDelimiter mDelimiter;
+    private final BleReceiveBuffer mBuffer;
+    private final byte[] mFrame;
+
+    BleFrameParser(@NonNull BleFrameDelimiter delimiter) {
+        mDelimiter = delimiter;
+        mBuffer = new BleReceiveBuffer();
+        mFrame = new byte[mBuffer.capacity()];
+    }
+
+    /**
+     * append received bytes and emit every complete frame
+     *
+     * @param bytes received data
+     * @param listener receives complete frames
+     */
+    void feed(@NonNull byte[] bytes, @NonNull OnFrameListener listener) {
+        mBuffer.append(bytes);
+        parse(listener);
+    }
+
+    /**
+     * nothing more arrived within the idle gap, emit frames held back because a longer frame could continue them
+     *
+     * @param listener receives complete frames
+     */
+    void flush(@NonNull OnFrameListener listener) {
+        mBuffer.setIdle(true);
+        try {
+            parse(listener);
+        } finally {
+            mBuffer.setIdle(false);
+        }
+    }
+
+    /**
+     * @return true if bytes are waiting for the rest of a frame
+     */
+    boolean hasPending() {
+        return mBuffer.size() > 0;
+    }
+
+    private void parse(@NonNull OnFrameListener listener) {
+        while (mBuffer.size() > 0) {
+            int result = mDelimiter.match(mBuffer);
+            if (result == BleFrameDelimiter.NEED_MORE) {
+                break;
+            }
+            if (result < 0 || result > mBuffer.size()) {
+                mBuffer.discard(1);
+                continue;
+            }
+            mBuffer.copyTo(mFrame, 0, result);
+            mBuffer.discard(result);
+            listener.onFrame(mFrame, 0, result);
+        }
+    }
+
+    void clear() {
+        mBuffer.clear();
+    }
+}
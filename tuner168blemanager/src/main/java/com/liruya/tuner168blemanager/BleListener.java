@@ -19,6 +19,14 @@ public abstract class BleListener {
 
     }
 
+    /**
+     * @param mac device mac address
+     * @param state BleConnection.STATE_XXX
+     */
+    protected void onConnectionStateChanged(String mac, int state) {
+
+    }
+
     protected void onDataValid(String mac) {
 
     }
@@ -31,6 +39,29 @@ public abstract class BleListener {
 
     }
 
+    /**
+     * primitive receive path, same data as {@link #onDataReceived(String, List)} without boxing
+     *
+     * @param mac device mac address
+     * @param bytes copy of the data shared by all listeners, may be kept but must not be modified
+     * @param offset start position of data
+     * @param length length of data
+     */
+    protected void onFrameReceived(String mac, byte[] bytes, int offset, int length) {
+
+    }
+
+    /**
+     * ble stack rejected or failed a chunk of frame, rest of the frame was not sent.
+     * requests sending the frame are retried or failed with {@link BleRequest#ERROR_SEND_FAILED}
+     *
+     * @param mac device mac address
+     * @param frame the frame given to send
+     */
+    protected void onSendFailed(String mac, byte[] frame) {
+
+    }
+
     protected void onReadMfr(String mac, String s) {
 
     }
@@ -0,0 +1,176 @@
+package com.liruya.tuner168blemanager;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Listeners of {@link BleManager}, safe to add and remove from any thread while events are dispatched.
+ * Events never run on the ble callback thread: every listener has its own serial queue,
+ * so a slow listener delays only itself and still sees its events in order.
+ * A listener falling more than {@link #QUEUE_CAPACITY} events behind loses its oldest events.
+ * Listeners added for main thread delivery get their events posted to the main looper.
+ */
+class BleListenerRegistry {
+    private static final String TAG = "BleListenerRegistry";
+
+    /**
+     * max events waiting for one listener
+     */
+    static final int QUEUE_CAPACITY = 256;
+
+    interface Event {
+        void deliver(BleListener listener);
+    }
+
+    private final CopyOnWriteArrayList<Entry> mEntries;
+    private final ExecutorService mExecutor;
+    private Handler mMainHandler;
+
+    BleListenerRegistry() {
+        mEntries = new CopyOnWriteArrayList<>();
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r, TAG + "-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param listener listener to add, ignored if already added
+     * @param mainThread true:deliver on main thread false:deliver on a background thread
+     */
+    synchronized void add(@NonNull BleListener listener, boolean mainThread) {
+        if (contains(listener)) {
+            return;
+        }
+        Executor executor;
+        if (mainThread) {
+            if (mMainHandler == null) {
+                mMainHandler = new Handler(Looper.getMainLooper());
+            }
+            final Handler handler = mMainHandler;
+            executor = new Executor() {
+                @Override
+                public void execute(@NonNull Runnable command) {
+                    handler.post(command);
+                }
+            };
+        } else {
+            executor = mExecutor;
+        }
+        mEntries.add(new Entry(listener, executor));
+    }
+
+    synchronized void remove(BleListener listener) {
+        for (Entry entry : mEntries) {
+            if (entry.mListener == listener) {
+                entry.mRemoved = true;
+                mEntries.remove(entry);
+                return;
+            }
+        }
+    }
+
+    synchronized void clear() {
+        for (Entry entry : mEntries) {
+            entry.mRemoved = true;
+        }
+        mEntries.clear();
+    }
+
+    boolean contains(BleListener listener) {
+        for (Entry entry : mEntries) {
+            if (entry.mListener == listener) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    /**
+     * queue event to every listener, returns without waiting for any of them.
+     * the same event object is queued to all listeners
+     */
+    void dispatch(@NonNull Event event) {
+        for (Entry entry : mEntries) {
+            entry.offer(event);
+        }
+    }
+
+    /**
+     * listener with its serial queue, runs one event at a time on its executor
+     */
+    private static class Entry implements Runnable {
+        private final BleListener mListener;
+        private final Executor mExecutor;
+        private final ArrayDeque<Event> mEvents;
+        private boolean mScheduled;
+        private volatile boolean mRemoved;
+
+        private Entry(BleListener listener, Executor executor) {
+            mListener = listener;
+            mExecutor = executor;
+            mEvents = new ArrayDeque<>();
+        }
+
+        private void offer(Event event) {
+            synchronized (this) {
+                if (mEvents.size() >= QUEUE_CAPACITY) {
+                    mEvents.poll();
+                    Log.e(TAG, "dispatch: listener too slow, oldest event dropped");
+                }
+                mEvents.offer(event);
+                if (mScheduled) {
+                    return;
+                }
+                mScheduled = true;
+            }
+            mExecutor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            Event event;
+            synchronized (this) {
+                event = mEvents.poll();
+            }
+            if (event != null && !mRemoved) {
+                try {
+                    event.deliver(mListener);
+                }
+                catch (RuntimeException e) {
+                    Log.e(TAG, "dispatch: listener failed", e);
+                }
+            }
+            synchronized (this) {
+                if (mRemoved) {
+                    mEvents.clear();
+                }
+                if (mEvents.isEmpty()) {
+                    mScheduled = false;
+                    return;
+                }
+            }
+            mExecutor.execute(this);
+        }
+    }
+}
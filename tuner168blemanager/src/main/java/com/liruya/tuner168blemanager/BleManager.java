@@ -2,6 +2,7 @@ package com.liruya.tuner168blemanager;
 
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothProfile;
 import android.content.ComponentName;
 import android.content.Context;
@@ -9,6 +10,7 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
@@ -16,168 +18,363 @@ import com.ble.api.DataUtil;
 import com.ble.ble.BleCallBack;
 import com.ble.ble.BleService;
 import com.ble.ble.constants.BleRegConstants;
-import com.ble.ble.constants.BleUUIDS;
-import com.ble.ble.util.GattUtil;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class BleManager implements ServiceConnection {
     private final String TAG = "BleManager";
 
     /**
-     * max lenght of data the bluetooth transfer
+     * max lenght of data the bluetooth transfer, used until mtu is exchanged or when module refuses
      */
     private final int DATA_MAX_LENGTH = 17;
 
+    /**
+     * att mtu requested after services discovered
+     */
+    private final int MTU_REQUEST = 247;
+
+    /**
+     * default mtu 23 carries DATA_MAX_LENGTH bytes, keep the same margin for negotiated mtu
+     */
+    private final int MTU_OVERHEAD = 6;
+
     /**
      * min interval between two receive data frames
      */
     private final int DATA_FRAME_INTERVAL = 64;
 
+    /**
+     * max time from services discovered to ready when the stack does not report notification enabled
+     */
+    private final int READY_TIMEOUT = 1000;
+
     /**
      * min interval between two send data frames
      */
     private final int DATA_SEND_INTERVAL = 32;
 
-    private BleService mBleService;
+    /**
+     * gap after a frame written in several chunks before the next frame, the module needs it to reassemble the frame
+     */
+    private final int DATA_FRAME_GAP = 100;
+
+    /**
+     * transport in use, the service backed one unless replaced by {@link #setTransport(BleTransport)}
+     */
+    private volatile BleTransport mTransport;
+    private BleServiceTransport mServiceTransport;
+
+    /**
+     * connection state of every device
+     */
+    private final Map<String, BleConnection> mConnections;
 
-    private final Set<String> mValidDevices;
+    /**
+     * devices to connect again once disconnected, see {@link #reconnectDevice(String)}
+     */
+    private final Set<String> mPendingReconnects;
+
+    /**
+     * receive reassembly buffers of every device
+     */
+    private final Map<String, BleReceiveBuffer> mRcvBuffers;
 
     /**
-     * receive data list
+     * frame parsers of devices whose protocol has known frame boundaries
      */
-    private final ArrayList<Byte> mRcvBytes;
+    private final Map<String, BleFrameParser> mFrameParsers;
     private final Handler mHandler;
-    private long msc;
-    private final List<BleListener> mBleListeners;
+    private final BleListenerRegistry mListeners;
+    private final BleSendQueue mSendQueue;
+    private final BleRequestTracker mRequestTracker;
+    private final BleReconnector mReconnector;
+    private final BlePriorityPolicy mPriorityPolicy;
+    private final BleMetricsRecorder mMetrics;
+    private volatile BleTraceRecorder mTraceRecorder;
+
+    /**
+     * login data of every device, see {@link #getSession(String)}
+     */
+    private final Map<String, BleSession> mSessions;
 
     private final BleCallBack mBleCallBack = new BleCallBack() {
         @Override
-        public void onConnected(String s) {
+        public void onConnected(final String s) {
             Log.e(TAG, "onConnected: " + s);
-            mValidDevices.remove(s);
-            for (BleListener listener : mBleListeners) {
-                listener.onConnected(s);
-            }
+            setConnectionState(s, BleConnection.STATE_CONNECTED);
+            mListeners.dispatch(new BleListenerRegistry.Event() {
+                @Override
+                public void deliver(BleListener listener) {
+                    listener.onConnected(s);
+                }
+            });
         }
 
         @Override
-        public void onConnectTimeout(String s) {
+        public void onConnectTimeout(final String s) {
             Log.e(TAG, "onConnectTimeout: " + s);
-            mValidDevices.remove(s);
-            if (mBleService != null) {
-                mBleService.refresh(s);
-            }
-            for (BleListener listener : mBleListeners) {
-                listener.onConnectTimeout(s);
+            mMetrics.onConnectFailed(s);
+            setConnectionState(s, BleConnection.STATE_DISCONNECTED);
+            mReconnector.onLinkLost(s);
+            mPriorityPolicy.onLinkLost(s);
+            mSendQueue.clear(s);
+            mRequestTracker.failAll(s, BleRequest.ERROR_DISCONNECTED);
+            BleTransport transport = mTransport;
+            if (transport != null) {
+                transport.refresh(s);
             }
+            mListeners.dispatch(new BleListenerRegistry.Event() {
+                @Override
+                public void deliver(BleListener listener) {
+                    listener.onConnectTimeout(s);
+                }
+            });
         }
 
         @Override
-        public void onConnectionError(String s, int i, int i1) {
+        public void onConnectionError(final String s, final int i, final int i1) {
             Log.e(TAG, "onConnectionError: " + s + " " + i + " " + i1);
-            mValidDevices.remove(s);
-            for (BleListener listener : mBleListeners) {
-                listener.onConnectionError(s, i, i1);
-            }
+            mMetrics.onConnectFailed(s);
+            setConnectionState(s, BleConnection.STATE_DISCONNECTED);
+            mReconnector.onLinkLost(s);
+            mPriorityPolicy.onLinkLost(s);
+            mSendQueue.clear(s);
+            mRequestTracker.failAll(s, BleRequest.ERROR_DISCONNECTED);
+            mListeners.dispatch(new BleListenerRegistry.Event() {
+                @Override
+                public void deliver(BleListener listener) {
+                    listener.onConnectionError(s, i, i1);
+                }
+            });
         }
 
         @Override
-        public void onDisconnected(String s) {
+        public void onDisconnected(final String s) {
             Log.e(TAG, "onDisconnected: " + s);
-            mValidDevices.remove(s);
-            for (BleListener listener : mBleListeners) {
-                listener.onDisconnected(s);
+            if (getConnection(s).getState() != BleConnection.STATE_DISCONNECTING) {
+                mMetrics.onLinkDropped(s);
             }
+            setConnectionState(s, BleConnection.STATE_DISCONNECTED);
+            traceEvent(BleTrace.TYPE_DISCONNECTED, s);
+            mReconnector.onLinkLost(s);
+            mPriorityPolicy.onLinkLost(s);
+            mSendQueue.clear(s);
+            mRequestTracker.failAll(s, BleRequest.ERROR_DISCONNECTED);
+            clearReceiveBuffer(s);
+            mListeners.dispatch(new BleListenerRegistry.Event() {
+                @Override
+                public void deliver(BleListener listener) {
+                    listener.onDisconnected(s);
+                }
+            });
         }
 
         @Override
         public void onServicesDiscovered(final String s) {
             Log.e(TAG, "onServicesDiscovered: " + s);
-            if (mBleService != null) {
-                mHandler.postDelayed(new Runnable() {
-                    @Override
-                    public void run() {
-                        BluetoothGatt gatt = mBleService.getBluetoothGatt(s);
-                        BluetoothGattCharacteristic characteristic = GattUtil.getGattCharacteristic(gatt, BleUUIDS.PRIMARY_SERVICE, BleUUIDS.CHARACTERS[1]);
-                        boolean result = mBleService.setCharacteristicNotification(gatt, characteristic, true);
-                        if (result) {
-                            mValidDevices.add(s);
-                        }
-                        Log.e(TAG, "Enable Notification: " + result);
-                    }
-                }, 300);
-                mHandler.postDelayed(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (mValidDevices.contains(s)) {
-                            for (BleListener listener : mBleListeners) {
-                                listener.onDataValid(s);
-                            }
-                        }
-                    }
-                }, 400);
+            setConnectionState(s, BleConnection.STATE_SERVICES_DISCOVERED);
+            BleTransport transport = mTransport;
+            if (transport == null) {
+                return;
             }
+            // one gatt operation at a time, notification is enabled after mtu exchange completes
+            boolean mtu = transport.requestMtu(s, MTU_REQUEST);
+            Log.e(TAG, "requestMtu: " + mtu);
+            if (!mtu) {
+                requestNotification(s);
+            }
+            final int linkId = getConnection(s).getLinkId();
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    onReadyTimeout(s, linkId);
+                }
+            }, READY_TIMEOUT);
+        }
+
+        @Override
+        public void onMtuChanged(String s, int i, int i1) {
+            Log.e(TAG, "onMtuChanged: " + s + " " + i + " " + i1);
+            if (i1 == BluetoothGatt.GATT_SUCCESS && i - MTU_OVERHEAD > DATA_MAX_LENGTH) {
+                mSendQueue.setChunkLength(s, i - MTU_OVERHEAD);
+            } else {
+                mSendQueue.setChunkLength(s, DATA_MAX_LENGTH);
+            }
+            requestNotification(s);
+        }
+
+        @Override
+        public void onDescriptorWrite(String s, BluetoothGattDescriptor descriptor, int i) {
+            Log.e(TAG, "onDescriptorWrite: " + s + " " + i);
+            if (i == BluetoothGatt.GATT_SUCCESS) {
+                onNotificationEnabled(s);
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(String s, BluetoothGattCharacteristic characteristic, int i) {
+            mSendQueue.onChunkWritten(s, i);
         }
 
         @Override
         public void onServicesUndiscovered(String s, int i) {
             Log.e(TAG, "onServicesUndiscovered: " + s + "  " + i);
-            mValidDevices.remove(s);
+            compareAndSetConnectionState(s, BleConnection.STATE_SERVICES_DISCOVERED, BleConnection.STATE_CONNECTED);
         }
 
         @Override
-        public void onRegRead(String s, String s1, int i, int i1) {
+        public void onRegRead(final String s, final String s1, int i, int i1) {
             if (i == BleRegConstants.REG_ADV_MFR_SPC) {
                 Log.e(TAG, "ReadMfr: " + s);
-                for (BleListener listener : mBleListeners) {
-                    listener.onReadMfr(s, s1);
-                }
+                getOrCreateSession(s).setMfr(s1);
+                mListeners.dispatch(new BleListenerRegistry.Event() {
+                    @Override
+                    public void deliver(BleListener listener) {
+                        listener.onReadMfr(s, s1);
+                    }
+                });
             } else if (i == BleRegConstants.REG_PASSWORD) {
                 Log.e(TAG, "onReadPassword: " + s);
                 byte[] bytes = DataUtil.hexToByteArray(s1);
                 if (bytes != null && bytes.length == 4) {
-                    int psw = ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
-                    for (BleListener listener : mBleListeners) {
-                        listener.onReadPassword(s, psw);
-                    }
+                    final int psw = ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+                    getOrCreateSession(s).setPassword(psw);
+                    mListeners.dispatch(new BleListenerRegistry.Event() {
+                        @Override
+                        public void deliver(BleListener listener) {
+                            listener.onReadPassword(s, psw);
+                        }
+                    });
                 }
             }
         }
 
         @Override
-        public void onCharacteristicChanged(String s, byte[] bytes) {
+        public void onCharacteristicChanged(final String s, byte[] bytes) {
             Log.e(TAG, "onCharacteristicChanged: " + s);
-            long t = System.currentTimeMillis();
-            if (t - msc > DATA_FRAME_INTERVAL) {
-                mRcvBytes.clear();
+            mMetrics.onReceived(s, bytes.length);
+            BleTraceRecorder recorder = mTraceRecorder;
+            if (recorder != null) {
+                recorder.record(BleTrace.TYPE_NOTIFY, s, bytes, 0, bytes.length);
             }
-            for (byte b : bytes) {
-                mRcvBytes.add(b);
+            final BleFrameParser parser;
+            synchronized (mFrameParsers) {
+                parser = mFrameParsers.get(s);
             }
-            msc = t;
-            for (BleListener listener : mBleListeners) {
-                listener.onDataReceived(s, mRcvBytes);
+            if (parser != null) {
+                synchronized (parser) {
+                    parser.feed(bytes, newFrameListener(s));
+                    // a frame held back at the tail is released if nothing more arrives
+                    mHandler.removeCallbacksAndMessages(parser);
+                    if (parser.hasPending()) {
+                        mHandler.postAtTime(new Runnable() {
+                            @Override
+                            public void run() {
+                                synchronized (parser) {
+                                    parser.flush(newFrameListener(s));
+                                }
+                            }
+                        }, parser, SystemClock.uptimeMillis() + DATA_FRAME_INTERVAL);
+                    }
+                }
+                return;
+            }
+            BleReceiveBuffer buffer = getReceiveBuffer(s);
+            synchronized (buffer) {
+                long t = System.currentTimeMillis();
+                if (t - buffer.getLastReceiveTime() > DATA_FRAME_INTERVAL) {
+                    buffer.clear();
+                }
+                buffer.append(bytes);
+                buffer.setLastReceiveTime(t);
+                buffer.compact();
+                boolean replied = mRequestTracker.onReceived(s, buffer.array(), 0, buffer.size());
+                dispatchReceived(s, buffer.array(), 0, buffer.size());
+                if (replied) {
+                    buffer.clear();
+                }
             }
         }
 
         @Override
-        public void onReadRemoteRssi(String s, int i, int i1) {
-            for (BleListener listener : mBleListeners) {
-                listener.onReadRssi(s, i);
+        public void onReadRemoteRssi(final String s, final int i, int i1) {
+            if (i1 == BluetoothGatt.GATT_SUCCESS) {
+                mMetrics.onRssi(s, i);
             }
+            mListeners.dispatch(new BleListenerRegistry.Event() {
+                @Override
+                public void deliver(BleListener listener) {
+                    listener.onReadRssi(s, i);
+                }
+            });
         }
     };
 
     private BleManager() {
-        mValidDevices = new HashSet<>();
-        mRcvBytes = new ArrayList<>();
+        mConnections = new HashMap<>();
+        mPendingReconnects = new HashSet<>();
+        mRcvBuffers = new HashMap<>();
+        mFrameParsers = new HashMap<>();
         mHandler = new Handler();
-        mBleListeners = new ArrayList<>();
-        msc = System.currentTimeMillis();
+        mListeners = new BleListenerRegistry();
+        mMetrics = new BleMetricsRecorder();
+        mSendQueue = new BleSendQueue(new BleSendQueue.ChunkWriter() {
+            @Override
+            public boolean writeChunk(String mac, byte[] chunk) {
+                BleTransport transport = mTransport;
+                if (transport != null && transport.write(mac, chunk)) {
+                    mPriorityPolicy.onChunkWritten(mac, chunk.length);
+                    mMetrics.onChunkWritten(mac, chunk.length);
+                    BleTraceRecorder recorder = mTraceRecorder;
+                    if (recorder != null) {
+                        recorder.record(BleTrace.TYPE_WRITE, mac, chunk, 0, chunk.length);
+                    }
+                    return true;
+                }
+                mMetrics.onChunkRejected(mac);
+                return false;
+            }
+
+            @Override
+            public void onFrameFailed(final String mac, final byte[] frame) {
+                mMetrics.onFrameDropped(mac);
+                mRequestTracker.onSendFailed(mac, frame);
+                mListeners.dispatch(new BleListenerRegistry.Event() {
+                    @Override
+                    public void deliver(BleListener listener) {
+                        listener.onSendFailed(mac, frame);
+                    }
+                });
+            }
+        }, DATA_MAX_LENGTH, DATA_FRAME_GAP);
+        mRequestTracker = new BleRequestTracker(new BleRequestTracker.FrameSender() {
+            @Override
+            public boolean send(String mac, byte[] frame) {
+                return sendBytes(mac, frame);
+            }
+        }, mMetrics);
+        mReconnector = new BleReconnector(new BleReconnector.Connector() {
+            @Override
+            public boolean connect(String mac) {
+                return connectDevice(mac);
+            }
+        });
+        mPriorityPolicy = new BlePriorityPolicy(new BlePriorityPolicy.Requester() {
+            @Override
+            public boolean requestPriority(String mac, int priority) {
+                BleTransport transport = mTransport;
+                return transport != null && transport.requestConnectionPriority(mac, priority);
+            }
+        });
+        mSessions = new HashMap<>();
     }
 
     public static BleManager getInstance() {
@@ -203,69 +400,165 @@ public class BleManager implements ServiceConnection {
         context.unbindService(this);
     }
 
+    /**
+     * replace the link layer, e.g. with {@link BleSimulatedTransport} for load tests.
+     * call it while no device is connected
+     *
+     * @param transport new transport, null to restore the service backed one
+     */
+    public synchronized void setTransport(BleTransport transport) {
+        BleTransport current = mTransport;
+        BleTransport target = transport != null ? transport : mServiceTransport;
+        if (current == target) {
+            return;
+        }
+        if (current != null) {
+            current.setCallback(null);
+        }
+        if (target != null) {
+            target.setCallback(mBleCallBack);
+        }
+        mTransport = target;
+    }
+
+    public BleTransport getTransport() {
+        return mTransport;
+    }
+
     public void refresh(String mac) {
-        if (mBleService != null) {
-            mBleService.refresh(mac);
+        BleTransport transport = mTransport;
+        if (transport != null) {
+            transport.refresh(mac);
         }
     }
 
     public void startReadRssi(@NonNull String mac) {
-        if (mBleService == null) {
+        BleTransport transport = mTransport;
+        if (transport == null) {
             return;
         }
-        mBleService.startReadRssi(mac, 1000);
+        transport.startReadRssi(mac, 1000);
     }
 
     public void startReadRssi(@NonNull String mac, int interval) {
-        if (mBleService == null) {
+        BleTransport transport = mTransport;
+        if (transport == null) {
             return;
         }
-        mBleService.startReadRssi(mac, interval);
+        transport.startReadRssi(mac, interval);
     }
 
     public void stopReadRssi(@NonNull String mac) {
-        if (mBleService == null) {
+        BleTransport transport = mTransport;
+        if (transport == null) {
             return;
         }
-        mBleService.stopReadRssi(mac);
-    }
-
-//    public void requestHightPriority(@NonNull String mac) {
-//        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-//            if (mBleService != null) {
-//                BluetoothGatt gatt = mBleService.getBluetoothGatt(mac);
-//                if (gatt != null) {
-//                    gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
-//                }
-//            }
-//        }
-//    }
-//
-//    public void requestBalancePriority(@NonNull String mac) {
-//        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-//            if (mBleService != null) {
-//                BluetoothGatt gatt = mBleService.getBluetoothGatt(mac);
-//                if (gatt != null) {
-//                    gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
-//                }
-//            }
-//        }
-//    }
+        transport.stopReadRssi(mac);
+    }
+
+    /**
+     * keep link at high priority for a bulk transfer such as firmware upgrade, streaming frames
+     * sent by {@link #sendLatestBytes(String, int, byte[])} raise it automatically.
+     * link drops to balanced and later low power once idle, must be paired with {@link #endBulkTransfer(String)}
+     *
+     * @param mac device mac address
+     */
+    public void beginBulkTransfer(@NonNull String mac) {
+        mPriorityPolicy.beginTransfer(mac);
+    }
+
+    public void endBulkTransfer(@NonNull String mac) {
+        mPriorityPolicy.endTransfer(mac);
+    }
+
+    /**
+     * @param mac device mac address
+     * @return BluetoothGatt.CONNECTION_PRIORITY_XXX requested for the link, -1 if not ready
+     */
+    public int getConnectionPriority(@NonNull String mac) {
+        return mPriorityPolicy.getPriority(mac);
+    }
+
+    /**
+     * @param mac device mac address
+     * @param priority BluetoothGatt.CONNECTION_PRIORITY_XXX
+     * @return bytes per second written in bursts at this priority, -1 if nothing measured
+     */
+    public long getThroughput(@NonNull String mac, int priority) {
+        return mPriorityPolicy.getThroughput(mac, priority);
+    }
+
+    /**
+     * @param mac device mac address
+     * @return link quality counters of device since first connect or {@link #resetMetrics(String)}
+     */
+    public BleMetrics getMetrics(@NonNull String mac) {
+        return mMetrics.snapshot(mac);
+    }
+
+    /**
+     * @return link quality counters of every device seen
+     */
+    public List<BleMetrics> getAllMetrics() {
+        List<BleMetrics> list = new ArrayList<>();
+        for (String mac : mMetrics.getMacs()) {
+            list.add(mMetrics.snapshot(mac));
+        }
+        return list;
+    }
+
+    public void resetMetrics(@NonNull String mac) {
+        mMetrics.reset(mac);
+    }
+
+    /**
+     * record chunks written and notifications received of every device to a {@link BleTrace},
+     * a trace already running is stopped first
+     *
+     * @param out trace stream, closed by {@link #stopTrace()}
+     * @throws IOException header could not be written
+     */
+    public void startTrace(@NonNull OutputStream out) throws IOException {
+        BleTraceRecorder recorder = new BleTraceRecorder(out);
+        BleTraceRecorder old;
+        synchronized (this) {
+            old = mTraceRecorder;
+            mTraceRecorder = recorder;
+        }
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    public void stopTrace() {
+        BleTraceRecorder recorder;
+        synchronized (this) {
+            recorder = mTraceRecorder;
+            mTraceRecorder = null;
+        }
+        if (recorder != null) {
+            recorder.close();
+        }
+    }
+
+    public boolean isTracing() {
+        return mTraceRecorder != null;
+    }
 
     public void enableNotification(@NonNull String mac) {
-        if (mBleService != null) {
-            BluetoothGatt gatt = mBleService.getBluetoothGatt(mac);
-            BluetoothGattCharacteristic characteristic = GattUtil.getGattCharacteristic(gatt, BleUUIDS.PRIMARY_SERVICE, BleUUIDS.CHARACTERS[1]);
-            boolean result = mBleService.setCharacteristicNotification(gatt, characteristic, true);
+        BleTransport transport = mTransport;
+        if (transport != null) {
+            boolean result = transport.enableNotification(mac);
             Log.e(TAG, "enableNotification: " + result);
         }
     }
 
     public void setAutoConnect(@NonNull String mac, boolean b) {
-        if (mBleService == null) {
+        BleTransport transport = mTransport;
+        if (transport == null) {
             return;
         }
-        mBleService.setAutoConnect(mac, b);
+        transport.setAutoConnect(mac, b);
     }
 
     /**
@@ -275,10 +568,15 @@ public class BleManager implements ServiceConnection {
      * @return true:success false:failure
      */
     public boolean connectDevice(@NonNull final String mac, boolean autoConnect) {
-        if (mBleService == null) {
+        BleTransport transport = mTransport;
+        if (transport == null) {
             return false;
         }
-        return mBleService.connect(mac, autoConnect);
+        boolean result = transport.connect(mac, autoConnect);
+        if (result) {
+            compareAndSetConnectionState(mac, BleConnection.STATE_DISCONNECTED, BleConnection.STATE_CONNECTING);
+        }
+        return result;
     }
 
     /**
@@ -288,10 +586,7 @@ public class BleManager implements ServiceConnection {
      * @return true:success false:failure
      */
     public boolean connectDevice(@NonNull final String mac) {
-        if (mBleService == null) {
-            return false;
-        }
-        return mBleService.connect(mac, false);
+        return connectDevice(mac, false);
     }
 
     /**
@@ -300,18 +595,103 @@ public class BleManager implements ServiceConnection {
      * @param mac device mac address
      */
     public void disconnectDevice(@NonNull String mac) {
-        if (mBleService != null) {
-            mBleService.setAutoConnect(mac, false);
-            mBleService.disconnect(mac);
+        mReconnector.setEnabled(mac, false);
+        mPriorityPolicy.reset(mac);
+        BleTransport transport = mTransport;
+        if (transport != null) {
+            transport.setAutoConnect(mac, false);
+            if (transport.getConnectionState(mac) == BluetoothProfile.STATE_DISCONNECTED) {
+                // no link, no disconnect event will come
+                setConnectionState(mac, BleConnection.STATE_DISCONNECTED);
+            } else {
+                setConnectionState(mac, BleConnection.STATE_DISCONNECTING);
+            }
+            transport.disconnect(mac);
+        }
+    }
+
+    /**
+     * connect device again when the link is lost, with jittered exponential backoff.
+     * unlike {@link #setAutoConnect(String, boolean)} this also retries failed connects.
+     * disabled by {@link #disconnectDevice(String)}
+     *
+     * @param mac device mac address
+     * @param enable true:reconnect false:stop reconnecting
+     */
+    public void setAutoReconnect(@NonNull String mac, boolean enable) {
+        mReconnector.setEnabled(mac, enable);
+    }
+
+    /**
+     * @param mac device mac address
+     * @return count of reconnect attempts since device was last ready, -1 if auto reconnect is off
+     */
+    public int getReconnectAttempts(@NonNull String mac) {
+        return mReconnector.getAttempts(mac);
+    }
+
+    /**
+     * @param mac device mac address
+     * @return login data of a recent link, null if none or expired
+     */
+    public BleSession getSession(@NonNull String mac) {
+        synchronized (mSessions) {
+            BleSession session = mSessions.get(mac);
+            if (session != null && session.isExpired()) {
+                mSessions.remove(mac);
+                return null;
+            }
+            return session;
+        }
+    }
+
+    /**
+     * forget login data of device, e.g. after the device was reset
+     *
+     * @param mac device mac address
+     */
+    public void invalidateSession(@NonNull String mac) {
+        synchronized (mSessions) {
+            mSessions.remove(mac);
+        }
+    }
+
+    private BleSession getOrCreateSession(String mac) {
+        synchronized (mSessions) {
+            BleSession session = getSession(mac);
+            if (session == null) {
+                // login data is read over a live link
+                session = new BleSession(mac);
+                session.setLinked(true, System.currentTimeMillis());
+                mSessions.put(mac, session);
+            }
+            return session;
+        }
+    }
+
+    /**
+     * disconnect device and connect it again once the old link is down, without blocking the caller
+     *
+     * @param mac device mac address
+     */
+    public void reconnectDevice(@NonNull final String mac) {
+        if (getConnection(mac).getState() == BleConnection.STATE_DISCONNECTED) {
+            connectDevice(mac);
+            return;
+        }
+        synchronized (mPendingReconnects) {
+            mPendingReconnects.add(mac);
         }
+        disconnectDevice(mac);
     }
 
     /**
      * disconnect all device
      */
     public void disConnectAll() {
-        if (mBleService != null) {
-            mBleService.disconnectAll();
+        BleTransport transport = mTransport;
+        if (transport != null) {
+            transport.disconnectAll();
         }
     }
 
@@ -321,20 +701,27 @@ public class BleManager implements ServiceConnection {
      * @param mac device mac address
      */
     public void readMfr(@NonNull String mac) {
-        if (mBleService != null) {
-            mBleService.readReg(mac, BleRegConstants.REG_ADV_MFR_SPC);
+        BleTransport transport = mTransport;
+        if (transport != null) {
+            transport.readReg(mac, BleRegConstants.REG_ADV_MFR_SPC);
         }
     }
 
     public void readPassword(@NonNull String mac) {
-        if (mBleService != null) {
-            mBleService.readReg(mac, BleRegConstants.REG_PASSWORD);
+        BleTransport transport = mTransport;
+        if (transport != null) {
+            transport.readReg(mac, BleRegConstants.REG_PASSWORD);
         }
     }
 
     public void setPassword(@NonNull String mac, int psw) {
-        if (mBleService != null) {
-            mBleService.setReg(mac, BleRegConstants.REG_PASSWORD, psw);
+        BleTransport transport = mTransport;
+        if (transport != null) {
+            transport.setReg(mac, BleRegConstants.REG_PASSWORD, psw);
+        }
+        BleSession session = getSession(mac);
+        if (session != null) {
+            session.setPassword(psw);
         }
     }
 
@@ -345,84 +732,200 @@ public class BleManager implements ServiceConnection {
      * @param name device name
      */
     public void setSlaverName(@NonNull String mac, @NonNull String name) {
-        if (mBleService != null) {
-            mBleService.setSlaverName(mac, name);
+        BleTransport transport = mTransport;
+        if (transport != null) {
+            transport.setSlaverName(mac, name);
         }
     }
 
     /**
      * send data to device
+     * frames are queued per device and written in order by a single writer
      *
      * @param mac device mac address
      * @param bytes data
+     * @return true:queued false:service not ready or send queue of device is full
      */
-    public void sendBytes(@NonNull final String mac, @NonNull final byte[] bytes) {
-        if (mac == null || bytes == null || mBleService == null) {
-            return;
+    public boolean sendBytes(@NonNull final String mac, @NonNull final byte[] bytes) {
+        if (mac == null || bytes == null || mTransport == null) {
+            return false;
         }
-        if (bytes.length <= DATA_MAX_LENGTH) {
-            mBleService.send(mac, bytes, true);
-            return;
+        if (!mSendQueue.offer(mac, bytes)) {
+            return false;
         }
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                int idx = 0;
-                while (idx < bytes.length) {
-                    int size = Math.min(bytes.length - idx, DATA_MAX_LENGTH);
-                    byte[] bts = new byte[size];
-                    for (int i = 0; i < size; i++) {
-                        bts[i] = bytes[idx];
-                        idx++;
-                    }
-                    int count = 0;
-                    while (!mBleService.send(mac, bts, true)) {
-                        count++;
-                        if (count > 8) {
-                            return;
-                        }
-                        try {
-                            Thread.sleep(1);
-                        }
-                        catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                    try {
-                        Thread.sleep(8);
-                    }
-                    catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-                try {
-                    Thread.sleep(100);
-                }
-                catch (InterruptedException e) {
-                    e.printStackTrace();
+        mPriorityPolicy.onTraffic(mac);
+        return true;
+    }
+
+    /**
+     * send a streaming frame where only the newest value matters, e.g. slider or preview values.
+     * a frame of same key still waiting in the queue is dropped, the new one goes to the tail
+     *
+     * @param mac device mac address
+     * @param key coalesce key, frames of different keys never replace each other
+     * @param bytes data
+     * @return true:queued false:service not ready or send queue of device is full
+     */
+    public boolean sendLatestBytes(@NonNull final String mac, int key, @NonNull final byte[] bytes) {
+        if (mac == null || bytes == null || mTransport == null) {
+            return false;
+        }
+        if (!mSendQueue.offerLatest(mac, bytes, key)) {
+            return false;
+        }
+        mPriorityPolicy.onStreaming(mac);
+        return true;
+    }
+
+    /**
+     * @param mac device mac address
+     * @return count of frames dropped in favour of a newer frame of same key
+     */
+    public int getCoalescedCount(@NonNull String mac) {
+        return mSendQueue.getCoalescedCount(mac);
+    }
+
+    /**
+     * @param mac device mac address
+     * @return max length of one write, derived from the negotiated mtu
+     */
+    public int getChunkLength(@NonNull String mac) {
+        return mSendQueue.getChunkLength(mac);
+    }
+
+    /**
+     * @param mac device mac address
+     * @return count of frames not sent completely, see {@link BleListener#onSendFailed(String, byte[])}
+     */
+    public int getSendFailedCount(@NonNull String mac) {
+        return mSendQueue.getFailedCount(mac);
+    }
+
+    /**
+     * @param mac device mac address
+     * @return count of frames waiting to be sent
+     */
+    public int getPendingSendCount(@NonNull String mac) {
+        return mSendQueue.getPendingCount(mac);
+    }
+
+    /**
+     * check if send queue of device is full, new frames will be rejected until it drains
+     *
+     * @param mac device mac address
+     * @return
+     */
+    public boolean isSendQueueFull(@NonNull String mac) {
+        return mSendQueue.isFull(mac);
+    }
+
+    /**
+     * send a frame and wait for its reply asynchronously
+     *
+     * @param mac device mac address
+     * @param frame data
+     * @param matcher recognizes the reply
+     * @param timeout time to wait for reply in milliseconds
+     * @param retries times to resend the frame after a timeout
+     * @param callback receives reply or failure, may be null when caller uses {@link BleRequest#await(long)}
+     * @return request handle
+     */
+    public BleRequest request(@NonNull String mac, @NonNull byte[] frame, @NonNull BleResponseMatcher matcher, int timeout, int retries, BleRequestCallback callback) {
+        return mRequestTracker.submit(mac, frame, matcher, timeout, retries, callback);
+    }
+
+    public BleRequest request(@NonNull String mac, @NonNull byte[] frame, @NonNull BleResponseMatcher matcher, int timeout, BleRequestCallback callback) {
+        return mRequestTracker.submit(mac, frame, matcher, timeout, 0, callback);
+    }
+
+    /**
+     * @param mac device mac address
+     * @return count of requests waiting for reply
+     */
+    public int getPendingRequestCount(@NonNull String mac) {
+        return mRequestTracker.getPendingCount(mac);
+    }
+
+    public void clearReceiveBuffer() {
+        synchronized (mRcvBuffers) {
+            for (BleReceiveBuffer buffer : mRcvBuffers.values()) {
+                synchronized (buffer) {
+                    buffer.clear();
                 }
             }
-        }).start();
+        }
     }
 
-    public void clearReceiveBuffer() {
-        if (mRcvBytes != null) {
-            mRcvBytes.clear();
+    public void clearReceiveBuffer(@NonNull String mac) {
+        BleReceiveBuffer buffer;
+        synchronized (mRcvBuffers) {
+            buffer = mRcvBuffers.get(mac);
+        }
+        if (buffer != null) {
+            synchronized (buffer) {
+                buffer.clear();
+            }
+        }
+        BleFrameParser parser;
+        synchronized (mFrameParsers) {
+            parser = mFrameParsers.get(mac);
+        }
+        if (parser != null) {
+            synchronized (parser) {
+                parser.clear();
+            }
+        }
+    }
+
+    /**
+     * split received data of device into frames by header and length instead of idle gap,
+     * listeners get every frame as soon as its last byte arrives
+     *
+     * @param mac device mac address
+     * @param delimiter frame delimiter of device protocol
+     */
+    public void setFrameDelimiter(@NonNull String mac, @NonNull BleFrameDelimiter delimiter) {
+        synchronized (mFrameParsers) {
+            mFrameParsers.put(mac, new BleFrameParser(delimiter));
+        }
+    }
+
+    /**
+     * fall back to idle gap framing
+     *
+     * @param mac device mac address
+     */
+    public void removeFrameDelimiter(@NonNull String mac) {
+        synchronized (mFrameParsers) {
+            mFrameParsers.remove(mac);
+        }
+    }
+
+    private BleReceiveBuffer getReceiveBuffer(@NonNull String mac) {
+        synchronized (mRcvBuffers) {
+            BleReceiveBuffer buffer = mRcvBuffers.get(mac);
+            if (buffer == null) {
+                buffer = new BleReceiveBuffer();
+                mRcvBuffers.put(mac, buffer);
+            }
+            return buffer;
         }
     }
 
     public int getConnectState(@NonNull String mac) {
-        if (mBleService == null) {
+        BleTransport transport = mTransport;
+        if (transport == null) {
             return -1;
         }
-        return mBleService.getConnectionState(mac);
+        return transport.getConnectionState(mac);
     }
 
     public boolean isConnecting(@NonNull String mac) {
-        if (mBleService == null) {
+        BleTransport transport = mTransport;
+        if (transport == null) {
             return false;
         }
-        return mBleService.getConnectionState(mac) == BluetoothProfile.STATE_CONNECTING;
+        return transport.getConnectionState(mac) == BluetoothProfile.STATE_CONNECTING;
     }
 
     /**
@@ -432,10 +935,11 @@ public class BleManager implements ServiceConnection {
      * @return
      */
     public boolean isConnected(@NonNull String mac) {
-        if (mBleService == null) {
+        BleTransport transport = mTransport;
+        if (transport == null) {
             return false;
         }
-        return mBleService.getConnectionState(mac) == BluetoothProfile.STATE_CONNECTED;
+        return transport.getConnectionState(mac) == BluetoothProfile.STATE_CONNECTED;
     }
 
     /**
@@ -445,36 +949,223 @@ public class BleManager implements ServiceConnection {
      * @return
      */
     public boolean isDataValid(@NonNull String mac) {
-        return mValidDevices.contains(mac);
+        return getConnection(mac).isReady();
+    }
+
+    /**
+     * @param mac device mac address
+     * @return connection state holder of device, never null
+     */
+    public BleConnection getConnection(@NonNull String mac) {
+        synchronized (mConnections) {
+            BleConnection connection = mConnections.get(mac);
+            if (connection == null) {
+                connection = new BleConnection(mac);
+                mConnections.put(mac, connection);
+            }
+            return connection;
+        }
+    }
+
+    /**
+     * block until device reaches the state, do not call on main thread
+     *
+     * @param mac device mac address
+     * @param state BleConnection.STATE_XXX
+     * @param timeout max time to wait in milliseconds
+     * @return true:state reached false:timeout
+     */
+    public boolean awaitConnectionState(@NonNull String mac, int state, long timeout) throws InterruptedException {
+        return getConnection(mac).awaitState(state, timeout);
+    }
+
+    /**
+     * write notification descriptor once per link
+     */
+    private void requestNotification(String mac) {
+        BleConnection connection = getConnection(mac);
+        if (connection.getState() != BleConnection.STATE_SERVICES_DISCOVERED || !connection.takeNotificationRequest()) {
+            return;
+        }
+        BleTransport transport = mTransport;
+        boolean result = transport != null && transport.enableNotification(mac);
+        Log.e(TAG, "Enable Notification: " + result);
+        if (!result) {
+            connection.clearNotificationRequest();
+        }
+    }
+
+    private void onNotificationEnabled(final String mac) {
+        if (!compareAndSetConnectionState(mac, BleConnection.STATE_SERVICES_DISCOVERED, BleConnection.STATE_NOTIFICATION_ENABLED)) {
+            return;
+        }
+        mReconnector.onReady(mac);
+        mPriorityPolicy.onReady(mac);
+        mMetrics.onReady(mac);
+        traceEvent(BleTrace.TYPE_READY, mac);
+        BleSession session = getSession(mac);
+        if (session != null) {
+            session.setLinked(true, System.currentTimeMillis());
+        }
+        if (compareAndSetConnectionState(mac, BleConnection.STATE_NOTIFICATION_ENABLED, BleConnection.STATE_READY)) {
+            Log.e(TAG, "onDataValid: " + mac + " " + getConnection(mac).getTimeToReady() + "ms");
+            mListeners.dispatch(new BleListenerRegistry.Event() {
+                @Override
+                public void deliver(BleListener listener) {
+                    listener.onDataValid(mac);
+                }
+            });
+        }
+    }
+
+    /**
+     * stack did not report mtu or descriptor write in time, enable notification now
+     * and treat the link as ready if the request is accepted
+     */
+    private void onReadyTimeout(String mac, int linkId) {
+        BleConnection connection = getConnection(mac);
+        if (connection.getState() != BleConnection.STATE_SERVICES_DISCOVERED || connection.getLinkId() != linkId) {
+            return;
+        }
+        Log.e(TAG, "onReadyTimeout: " + mac);
+        boolean result = connection.isNotificationRequested();
+        if (!result) {
+            BleTransport transport = mTransport;
+            result = transport != null && transport.enableNotification(mac);
+        }
+        if (result) {
+            onNotificationEnabled(mac);
+        }
     }
 
+    private void traceEvent(int type, String mac) {
+        BleTraceRecorder recorder = mTraceRecorder;
+        if (recorder != null) {
+            recorder.record(type, mac);
+        }
+    }
+
+    private void setConnectionState(String mac, int state) {
+        if (getConnection(mac).setState(state)) {
+            onConnectionStateChanged(mac, state);
+        }
+    }
+
+    private boolean compareAndSetConnectionState(String mac, int expect, int state) {
+        if (getConnection(mac).compareAndSetState(expect, state)) {
+            onConnectionStateChanged(mac, state);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * frames of device complete a request, then go to listeners
+     */
+    private BleFrameParser.OnFrameListener newFrameListener(final String mac) {
+        return new BleFrameParser.OnFrameListener() {
+            @Override
+            public void onFrame(byte[] frame, int offset, int length) {
+                mRequestTracker.onReceived(mac, frame, offset, length);
+                dispatchReceived(mac, frame, offset, length);
+            }
+        };
+    }
+
+    /**
+     * listeners run later on their own threads, give them a copy of data that is reused after this call.
+     * the copy, its list view and the event are made once per frame and shared by all listeners
+     */
+    private void dispatchReceived(final String mac, byte[] bytes, int offset, int length) {
+        if (mListeners.isEmpty()) {
+            return;
+        }
+        final byte[] frame = new byte[length];
+        System.arraycopy(bytes, offset, frame, 0, length);
+        final List<Byte> list = new ByteArrayView().reset(frame, 0, length);
+        mListeners.dispatch(new BleListenerRegistry.Event() {
+            @Override
+            public void deliver(BleListener listener) {
+                listener.onFrameReceived(mac, frame, 0, frame.length);
+                listener.onDataReceived(mac, list);
+            }
+        });
+    }
+
+    private void onConnectionStateChanged(final String mac, final int state) {
+        Log.e(TAG, "onConnectionStateChanged: " + mac + " " + BleConnection.getStateName(state));
+        mListeners.dispatch(new BleListenerRegistry.Event() {
+            @Override
+            public void deliver(BleListener listener) {
+                listener.onConnectionStateChanged(mac, state);
+            }
+        });
+        if (state == BleConnection.STATE_DISCONNECTED) {
+            BleSession session;
+            synchronized (mSessions) {
+                session = mSessions.get(mac);
+            }
+            if (session != null) {
+                // timeout counts from the end of the link, not from the handshake
+                session.setLinked(false, System.currentTimeMillis());
+            }
+            boolean reconnect;
+            synchronized (mPendingReconnects) {
+                reconnect = mPendingReconnects.remove(mac);
+            }
+            if (reconnect) {
+                connectDevice(mac);
+            }
+        }
+    }
+
+    /**
+     * add listener, events are delivered in order on a background thread of its own
+     *
+     * @param listener listener to add, ignored if already added
+     */
     public void addBleListener(BleListener listener) {
-        if (!mBleListeners.contains(listener)) {
-            mBleListeners.add(listener);
+        addBleListener(listener, false);
+    }
+
+    /**
+     * @param listener listener to add, ignored if already added
+     * @param mainThread true:deliver events on main thread
+     */
+    public void addBleListener(BleListener listener, boolean mainThread) {
+        if (listener != null) {
+            mListeners.add(listener, mainThread);
         }
     }
 
+    /**
+     * remove listener, events not delivered yet are dropped
+     */
     public void removeBleListener(BleListener listener) {
-        mBleListeners.remove(listener);
+        mListeners.remove(listener);
     }
 
     public void removeAllBleListeners() {
-        mBleListeners.clear();
+        mListeners.clear();
     }
 
     @Override
     public void onServiceConnected(ComponentName name, IBinder service) {
-        mBleService = ((BleService.LocalBinder) service).getService(mBleCallBack);
-        mBleService.setDecode(true);
-        mBleService.setConnectTimeout(4000);
-        //必须调用初始化方法
-        mBleService.initialize();
+        mServiceTransport = new BleServiceTransport((BleService.LocalBinder) service, mBleCallBack);
+        if (mTransport == null) {
+            mTransport = mServiceTransport;
+        } else {
+            mServiceTransport.setCallback(null);
+        }
         Log.e(TAG, "onServiceConnected: ");
     }
 
     @Override
     public void onServiceDisconnected(ComponentName name) {
-        mBleService = null;
+        if (mTransport == mServiceTransport) {
+            mTransport = null;
+        }
+        mServiceTransport = null;
         Log.e(TAG, "onServiceDisconnected: ");
     }
 
@@ -0,0 +1,232 @@
+package com.liruya.tuner168blemanager;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Snapshot of the link quality of one device, taken by {@link BleManager#getMetrics(String)}.
+ * Counters run from the first connect or last {@link BleManager#resetMetrics(String)},
+ * compare snapshots of several devices or of one device over time to find degrading links.
+ */
+public class BleMetrics {
+    /**
+     * upper bounds of request latency buckets in milliseconds, the last bucket holds everything above
+     */
+    public static final int[] LATENCY_BOUNDS = {25, 50, 100, 200, 400, 800, 1600};
+
+    private final String mMac;
+    private final long mTime;
+    private final long mBytesSent;
+    private final long mBytesReceived;
+    private final long mChunksWritten;
+    private final long mChunksRetried;
+    private final long mFramesDropped;
+    private final long mRequests;
+    private final long mRequestRetries;
+    private final long mRequestTimeouts;
+    private final long[] mLatencyCounts;
+    private final long mLatencySum;
+    private final int mConnects;
+    private final int mConnectFailures;
+    private final int mLinkDrops;
+    private final int mReconnects;
+    private final int[] mRssiSamples;
+    private final float mRssiSlope;
+
+    BleMetrics(String mac, long time, long bytesSent, long bytesReceived, long chunksWritten, long chunksRetried, long framesDropped,
+               long requests, long requestRetries, long requestTimeouts, long[] latencyCounts, long latencySum,
+               int connects, int connectFailures, int linkDrops, int reconnects, int[] rssiSamples, float rssiSlope) {
+        mMac = mac;
+        mTime = time;
+        mBytesSent = bytesSent;
+        mBytesReceived = bytesReceived;
+        mChunksWritten = chunksWritten;
+        mChunksRetried = chunksRetried;
+        mFramesDropped = framesDropped;
+        mRequests = requests;
+        mRequestRetries = requestRetries;
+        mRequestTimeouts = requestTimeouts;
+        mLatencyCounts = latencyCounts;
+        mLatencySum = latencySum;
+        mConnects = connects;
+        mConnectFailures = connectFailures;
+        mLinkDrops = linkDrops;
+        mReconnects = reconnects;
+        mRssiSamples = rssiSamples;
+        mRssiSlope = rssiSlope;
+    }
+
+    public String getMac() {
+        return mMac;
+    }
+
+    /**
+     * @return time the snapshot was taken
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    /**
+     * @return count of chunks accepted by the ble stack
+     */
+    public long getChunksWritten() {
+        return mChunksWritten;
+    }
+
+    /**
+     * @return count of chunk writes rejected by the ble stack, a rejected chunk is tried again within its write budget
+     */
+    public long getChunksRetried() {
+        return mChunksRetried;
+    }
+
+    /**
+     * @return count of frames given up, see {@link BleListener#onSendFailed(String, byte[])}
+     */
+    public long getFramesDropped() {
+        return mFramesDropped;
+    }
+
+    /**
+     * @return rejected writes per written chunk
+     */
+    public float getRetryRate() {
+        return mChunksWritten == 0 ? 0 : (float) mChunksRetried / mChunksWritten;
+    }
+
+    /**
+     * @return count of requests answered
+     */
+    public long getRequests() {
+        return mRequests;
+    }
+
+    /**
+     * @return count of requests sent again after a timeout or send failure
+     */
+    public long getRequestRetries() {
+        return mRequestRetries;
+    }
+
+    /**
+     * @return count of requests failed after all retries timed out
+     */
+    public long getRequestTimeouts() {
+        return mRequestTimeouts;
+    }
+
+    /**
+     * @return count of answered requests in every bucket of {@link #LATENCY_BOUNDS}, one more bucket than bounds
+     */
+    public long[] getLatencyCounts() {
+        return mLatencyCounts.clone();
+    }
+
+    /**
+     * @return average round trip of answered requests in milliseconds, -1 if none
+     */
+    public long getLatencyAverage() {
+        return mRequests == 0 ? -1 : mLatencySum / mRequests;
+    }
+
+    /**
+     * @param percent 0 - 100
+     * @return upper bound of the bucket holding the percentile, Integer.MAX_VALUE for the last bucket, -1 if none
+     */
+    public int getLatencyPercentile(int percent) {
+        if (mRequests == 0) {
+            return -1;
+        }
+        long rank = (mRequests * percent + 99) / 100;
+        long count = 0;
+        for (int i = 0; i < LATENCY_BOUNDS.length; i++) {
+            count += mLatencyCounts[i];
+            if (count >= rank) {
+                return LATENCY_BOUNDS[i];
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return count of links made ready
+     */
+    public int getConnects() {
+        return mConnects;
+    }
+
+    /**
+     * @return count of connect attempts timed out or failed
+     */
+    public int getConnectFailures() {
+        return mConnectFailures;
+    }
+
+    /**
+     * @return count of links lost without being disconnected
+     */
+    public int getLinkDrops() {
+        return mLinkDrops;
+    }
+
+    /**
+     * @return count of links made ready again after a drop
+     */
+    public int getReconnects() {
+        return mReconnects;
+    }
+
+    /**
+     * @return recent rssi readings, oldest first
+     */
+    public int[] getRssiSamples() {
+        return mRssiSamples.clone();
+    }
+
+    /**
+     * @return latest rssi, 0 if never read
+     */
+    public int getRssi() {
+        return mRssiSamples.length == 0 ? 0 : mRssiSamples[mRssiSamples.length - 1];
+    }
+
+    /**
+     * @return average of recent rssi readings, 0 if never read
+     */
+    public float getRssiAverage() {
+        if (mRssiSamples.length == 0) {
+            return 0;
+        }
+        long sum = 0;
+        for (int rssi : mRssiSamples) {
+            sum += rssi;
+        }
+        return (float) sum / mRssiSamples.length;
+    }
+
+    /**
+     * @return trend of recent rssi readings in dBm per minute, negative when signal gets weaker
+     */
+    public float getRssiSlope() {
+        return mRssiSlope;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s sent %d B received %d B chunks %d retried %d dropped %d"
+                                        + " requests %d retries %d timeouts %d latency avg %d p90 %d %s"
+                                        + " connects %d failures %d drops %d reconnects %d rssi %d avg %.1f trend %.1f/min",
+                             mMac, mBytesSent, mBytesReceived, mChunksWritten, mChunksRetried, mFramesDropped,
+                             mRequests, mRequestRetries, mRequestTimeouts, getLatencyAverage(), getLatencyPercentile(90), Arrays.toString(mLatencyCounts),
+                             mConnects, mConnectFailures, mLinkDrops, mReconnects, getRssi(), getRssiAverage(), mRssiSlope);
+    }
+}
@@ -0,0 +1,203 @@
+package com.liruya.tuner168blemanager;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counters of every device behind {@link BleMetrics}, updated from ble callbacks and writer threads.
+ */
+class BleMetricsRecorder {
+    /**
+     * count of rssi readings kept for the trend
+     */
+    private static final int RSSI_SAMPLES = 32;
+
+    private final Map<String, Counters> mCounters;
+
+    private static class Counters {
+        private long mBytesSent;
+        private long mBytesReceived;
+        private long mChunksWritten;
+        private long mChunksRetried;
+        private long mFramesDropped;
+        private long mRequests;
+        private long mRequestRetries;
+        private long mRequestTimeouts;
+        private final long[] mLatencyCounts = new long[BleMetrics.LATENCY_BOUNDS.length + 1];
+        private long mLatencySum;
+        private int mConnects;
+        private int mConnectFailures;
+        private int mLinkDrops;
+        private int mReconnects;
+
+        /**
+         * link dropped and not ready again yet
+         */
+        private boolean mDropped;
+
+        /**
+         * ring of rssi readings and their times
+         */
+        private final int[] mRssis = new int[RSSI_SAMPLES];
+        private final long[] mRssiTimes = new long[RSSI_SAMPLES];
+        private int mRssiCount;
+        private int mRssiIndex;
+    }
+
+    /**
+     * counters of a device never seen, never written
+     */
+    private static final Counters EMPTY = new Counters();
+
+    BleMetricsRecorder() {
+        mCounters = new HashMap<>();
+    }
+
+    synchronized void onChunkWritten(@NonNull String mac, int length) {
+        Counters counters = getCounters(mac);
+        counters.mChunksWritten++;
+        counters.mBytesSent += length;
+    }
+
+    synchronized void onChunkRejected(@NonNull String mac) {
+        getCounters(mac).mChunksRetried++;
+    }
+
+    synchronized void onFrameDropped(@NonNull String mac) {
+        getCounters(mac).mFramesDropped++;
+    }
+
+    synchronized void onReceived(@NonNull String mac, int length) {
+        getCounters(mac).mBytesReceived += length;
+    }
+
+    /**
+     * @param latency round trip of the last attempt in milliseconds
+     */
+    synchronized void onResponse(@NonNull String mac, long latency) {
+        Counters counters = getCounters(mac);
+        counters.mRequests++;
+        counters.mLatencySum += latency;
+        int bucket = 0;
+        while (bucket < BleMetrics.LATENCY_BOUNDS.length && latency > BleMetrics.LATENCY_BOUNDS[bucket]) {
+            bucket++;
+        }
+        counters.mLatencyCounts[bucket]++;
+    }
+
+    synchronized void onRequestRetry(@NonNull String mac) {
+        getCounters(mac).mRequestRetries++;
+    }
+
+    synchronized void onRequestTimeout(@NonNull String mac) {
+        getCounters(mac).mRequestTimeouts++;
+    }
+
+    synchronized void onReady(@NonNull String mac) {
+        Counters counters = getCounters(mac);
+        counters.mConnects++;
+        if (counters.mDropped) {
+            counters.mDropped = false;
+            counters.mReconnects++;
+        }
+    }
+
+    synchronized void onConnectFailed(@NonNull String mac) {
+        getCounters(mac).mConnectFailures++;
+    }
+
+    /**
+     * link lost while not disconnecting on purpose
+     */
+    synchronized void onLinkDropped(@NonNull String mac) {
+        Counters counters = getCounters(mac);
+        counters.mLinkDrops++;
+        counters.mDropped = true;
+    }
+
+    synchronized void onRssi(@NonNull String mac, int rssi) {
+        Counters counters = getCounters(mac);
+        counters.mRssis[counters.mRssiIndex] = rssi;
+        counters.mRssiTimes[counters.mRssiIndex] = System.currentTimeMillis();
+        counters.mRssiIndex = (counters.mRssiIndex + 1) % RSSI_SAMPLES;
+        if (counters.mRssiCount < RSSI_SAMPLES) {
+            counters.mRssiCount++;
+        }
+    }
+
+    synchronized void reset(@NonNull String mac) {
+        mCounters.remove(mac);
+    }
+
+    synchronized List<String> getMacs() {
+        return new ArrayList<>(mCounters.keySet());
+    }
+
+    /**
+     * @return counters of device, all zero if nothing was recorded, an unknown device is not added
+     */
+    synchronized BleMetrics snapshot(@NonNull String mac) {
+        Counters counters = mCounters.get(mac);
+        if (counters == null) {
+            counters = EMPTY;
+        }
+        int count = counters.mRssiCount;
+        int start = (counters.mRssiIndex - count + RSSI_SAMPLES) % RSSI_SAMPLES;
+        int[] rssis = new int[count];
+        long[] times = new long[count];
+        for (int i = 0; i < count; i++) {
+            rssis[i] = counters.mRssis[(start + i) % RSSI_SAMPLES];
+            times[i] = counters.mRssiTimes[(start + i) % RSSI_SAMPLES];
+        }
+        return new BleMetrics(mac, System.currentTimeMillis(), counters.mBytesSent, counters.mBytesReceived,
+                              counters.mChunksWritten, counters.mChunksRetried, counters.mFramesDropped,
+                              counters.mRequests, counters.mRequestRetries, counters.mRequestTimeouts,
+                              counters.mLatencyCounts.clone(), counters.mLatencySum,
+                              counters.mConnects, counters.mConnectFailures, counters.mLinkDrops, counters.mReconnects,
+                              rssis, getSlope(rssis, times));
+    }
+
+    private Counters getCounters(String mac) {
+        Counters counters = mCounters.get(mac);
+        if (counters == null) {
+            counters = new Counters();
+            mCounters.put(mac, counters);
+        }
+        return counters;
+    }
+
+    /**
+     * least squares slope of readings
+     *
+     * @return dBm per minute, 0 if readings span no time
+     */
+    static float getSlope(int[] rssis, long[] times) {
+        int n = rssis.length;
+        if (n < 2) {
+            return 0;
+        }
+        double meanTime = 0;
+        double meanRssi = 0;
+        for (int i = 0; i < n; i++) {
+            meanTime += times[i] - times[0];
+            meanRssi += rssis[i];
+        }
+        meanTime /= n;
+        meanRssi /= n;
+        double cov = 0;
+        double var = 0;
+        for (int i = 0; i < n; i++) {
+            double dt = times[i] - times[0] - meanTime;
+            cov += dt * (rssis[i] - meanRssi);
+            var += dt * dt;
+        }
+        if (var == 0) {
+            return 0;
+        }
+        return (float) (cov / var * 60000);
+    }
+}
@@ -0,0 +1,314 @@
+package com.liruya.tuner168blemanager;
+
+import android.bluetooth.BluetoothGatt;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the connection priority of every link from its traffic.
+ * Bulk transfers and streaming frames raise a link to high priority,
+ * a link without traffic drops to balanced after the idle delay and to low power after the low power delay.
+ * Write throughput is measured separately for every priority, so the gain of high priority can be checked.
+ */
+class BlePriorityPolicy {
+    private static final String TAG = "BlePriorityPolicy";
+
+    private static final int IDLE_DELAY = 2000;
+    private static final int LOW_POWER_DELAY = 30000;
+
+    /**
+     * two writes further apart belong to different bursts, the gap is not counted for throughput
+     */
+    private static final int BURST_GAP = 100;
+
+    /**
+     * BluetoothGatt.CONNECTION_PRIORITY_XXX are 0 - 2
+     */
+    private static final int PRIORITY_COUNT = 3;
+
+    private static final int PRIORITY_UNKNOWN = -1;
+
+    interface Requester {
+        /**
+         * @param priority BluetoothGatt.CONNECTION_PRIORITY_XXX
+         * @return true:request accepted
+         */
+        boolean requestPriority(String mac, int priority);
+    }
+
+    /**
+     * time source of idle and throughput measurement
+     */
+    interface Clock {
+        long now();
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long now() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private final Requester mRequester;
+    private final Clock mClock;
+    private final int mIdleDelay;
+    private final int mLowPowerDelay;
+    private final Map<String, Link> mLinks;
+    private final ScheduledExecutorService mScheduler;
+
+    private static class Link {
+        private final String mMac;
+        private int mPriority = PRIORITY_UNKNOWN;
+        private int mTransfers;
+        private long mLastActive;
+        private ScheduledFuture<?> mFuture;
+
+        private long mLastWrite;
+        private final long[] mBytes = new long[PRIORITY_COUNT];
+        private final long[] mBusyTime = new long[PRIORITY_COUNT];
+
+        private Link(String mac) {
+            mMac = mac;
+        }
+
+        private long getThroughput(int priority) {
+            if (mBusyTime[priority] == 0) {
+                return -1;
+            }
+            return mBytes[priority] * 1000 / mBusyTime[priority];
+        }
+    }
+
+    BlePriorityPolicy(@NonNull Requester requester) {
+        this(requester, SYSTEM_CLOCK, IDLE_DELAY, LOW_POWER_DELAY);
+    }
+
+    /**
+     * @param clock time source
+     * @param idleDelay time without traffic before a high priority link drops to balanced
+     * @param lowPowerDelay time without traffic before a balanced link drops to low power
+     */
+    BlePriorityPolicy(@NonNull Requester requester, @NonNull Clock clock, int idleDelay, int lowPowerDelay) {
+        mRequester = requester;
+        mClock = clock;
+        mIdleDelay = idleDelay;
+        mLowPowerDelay = lowPowerDelay;
+        mLinks = new HashMap<>();
+        mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * a bulk transfer starts, link keeps high priority until every transfer ended
+     */
+    synchronized void beginTransfer(@NonNull String mac) {
+        Link link = getLink(mac);
+        link.mTransfers++;
+        touch(link);
+        request(link, BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+    }
+
+    synchronized void endTransfer(@NonNull String mac) {
+        Link link = mLinks.get(mac);
+        if (link == null || link.mTransfers == 0) {
+            return;
+        }
+        link.mTransfers--;
+        touch(link);
+        schedule(link, mIdleDelay);
+    }
+
+    /**
+     * a streaming frame was sent, link stays high priority while frames keep coming
+     */
+    synchronized void onStreaming(@NonNull String mac) {
+        Link link = getLink(mac);
+        touch(link);
+        request(link, BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        schedule(link, mIdleDelay);
+    }
+
+    /**
+     * a single frame was sent, a low power link goes back to balanced
+     */
+    synchronized void onTraffic(@NonNull String mac) {
+        Link link = getLink(mac);
+        touch(link);
+        if (link.mPriority == BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER) {
+            request(link, BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+        }
+        schedule(link, mIdleDelay);
+    }
+
+    /**
+     * a new link starts balanced, transfers still open raise it again
+     */
+    synchronized void onReady(@NonNull String mac) {
+        Link link = getLink(mac);
+        link.mPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        link.mLastWrite = 0;
+        touch(link);
+        if (link.mTransfers > 0) {
+            request(link, BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        }
+        schedule(link, mIdleDelay);
+    }
+
+    synchronized void onLinkLost(@NonNull String mac) {
+        Link link = mLinks.get(mac);
+        if (link == null) {
+            return;
+        }
+        cancel(link);
+        link.mPriority = PRIORITY_UNKNOWN;
+    }
+
+    /**
+     * forget open transfers of a device disconnected on purpose, throughput is kept
+     */
+    synchronized void reset(@NonNull String mac) {
+        Link link = mLinks.get(mac);
+        if (link == null) {
+            return;
+        }
+        cancel(link);
+        link.mTransfers = 0;
+        link.mPriority = PRIORITY_UNKNOWN;
+    }
+
+    /**
+     * a chunk was accepted by the ble stack
+     *
+     * @param length chunk length
+     */
+    synchronized void onChunkWritten(@NonNull String mac, int length) {
+        Link link = getLink(mac);
+        long now = mClock.now();
+        long gap = now - link.mLastWrite;
+        if (link.mPriority != PRIORITY_UNKNOWN && link.mLastWrite > 0 && gap <= BURST_GAP) {
+            link.mBytes[link.mPriority] += length;
+            link.mBusyTime[link.mPriority] += gap;
+        }
+        link.mLastWrite = now;
+    }
+
+    /**
+     * @return BluetoothGatt.CONNECTION_PRIORITY_XXX, -1 if link is not ready
+     */
+    synchronized int getPriority(@NonNull String mac) {
+        Link link = mLinks.get(mac);
+        return link == null ? PRIORITY_UNKNOWN : link.mPriority;
+    }
+
+    /**
+     * @param priority BluetoothGatt.CONNECTION_PRIORITY_XXX
+     * @return bytes per second written in bursts at this priority, -1 if nothing measured
+     */
+    synchronized long getThroughput(@NonNull String mac, int priority) {
+        Link link = mLinks.get(mac);
+        if (link == null || priority < 0 || priority >= PRIORITY_COUNT) {
+            return -1;
+        }
+        return link.getThroughput(priority);
+    }
+
+    /**
+     * run the idle check of a link now instead of waiting for the scheduled one
+     */
+    synchronized void checkIdle(@NonNull String mac) {
+        Link link = mLinks.get(mac);
+        if (link == null) {
+            return;
+        }
+        cancel(link);
+        checkIdle(link);
+    }
+
+    private Link getLink(String mac) {
+        Link link = mLinks.get(mac);
+        if (link == null) {
+            link = new Link(mac);
+            mLinks.put(mac, link);
+        }
+        return link;
+    }
+
+    private void touch(Link link) {
+        link.mLastActive = mClock.now();
+    }
+
+    /**
+     * request priority of a ready link, priority is kept if the stack refuses
+     */
+    private void request(Link link, int priority) {
+        if (link.mPriority == PRIORITY_UNKNOWN || link.mPriority == priority) {
+            return;
+        }
+        if (!mRequester.requestPriority(link.mMac, priority)) {
+            Log.e(TAG, "request: refused " + link.mMac + " " + priority);
+            return;
+        }
+        Log.e(TAG, "request: " + link.mMac + " " + link.mPriority + " -> " + priority
+                   + ", throughput " + link.getThroughput(link.mPriority) + " -> " + link.getThroughput(priority) + " B/s");
+        link.mPriority = priority;
+    }
+
+    /**
+     * check idle after delay, a check already pending is kept since it reschedules itself
+     */
+    private void schedule(final Link link, long delay) {
+        if (link.mFuture != null) {
+            return;
+        }
+        link.mFuture = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                checkIdle(link);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void checkIdle(Link link) {
+        link.mFuture = null;
+        if (link.mPriority == PRIORITY_UNKNOWN || link.mTransfers > 0 || mLinks.get(link.mMac) != link) {
+            return;
+        }
+        long idle = mClock.now() - link.mLastActive;
+        if (link.mPriority == BluetoothGatt.CONNECTION_PRIORITY_HIGH) {
+            if (idle < mIdleDelay) {
+                schedule(link, mIdleDelay - idle);
+                return;
+            }
+            request(link, BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+            schedule(link, mLowPowerDelay);
+        } else if (link.mPriority == BluetoothGatt.CONNECTION_PRIORITY_BALANCED) {
+            if (idle < mLowPowerDelay) {
+                schedule(link, mLowPowerDelay - idle);
+                return;
+            }
+            request(link, BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER);
+        }
+    }
+
+    private void cancel(Link link) {
+        if (link.mFuture != null) {
+            link.mFuture.cancel(false);
+            link.mFuture = null;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.liruya.tuner168blemanager;
+
+import android.support.annotation.NonNull;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Receive reassembly buffer of one device.
+ * Bytes are kept in a primitive ring, when it overflows the oldest bytes are dropped.
+ * Not thread safe, callers synchronize on the buffer.
+ */
+public class BleReceiveBuffer {
+    /**
+     * default capacity, enough for the longest pro mode frame
+     */
+    public static final int DEFAULT_CAPACITY = 512;
+
+    private final byte[] mBuffer;
+    private int mHead;
+    private int mSize;
+    private long mLastReceiveTime;
+    private boolean mIdle;
+    private final List<Byte> mListView;
+
+    public BleReceiveBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public BleReceiveBuffer(int capacity) {
+        mBuffer = new byte[capacity];
+        mListView = new ListView();
+    }
+
+    /**
+     * append bytes at the tail
+     *
+     * @param bytes data
+     * @param offset start position in bytes
+     * @param length count of bytes to append
+     */
+    public void append(@NonNull byte[] bytes, int offset, int length) {
+        int capacity = mBuffer.length;
+        if (length >= capacity) {
+            offset += length - capacity;
+            length = capacity;
+            mHead = 0;
+            mSize = 0;
+        }
+        int overflow = mSize + length - capacity;
+        if (overflow > 0) {
+            discard(overflow);
+        }
+        int tail = (mHead + mSize) % capacity;
+        int first = Math.min(length, capacity - tail);
+        System.arraycopy(bytes, offset, mBuffer, tail, first);
+        System.arraycopy(bytes, offset + first, mBuffer, 0, length - first);
+        mSize += length;
+    }
+
+    public void append(@NonNull byte[] bytes) {
+        append(bytes, 0, bytes.length);
+    }
+
+    /**
+     * drop bytes from the head
+     *
+     * @param count count of bytes to drop
+     */
+    public void discard(int count) {
+        if (count >= mSize) {
+            clear();
+            return;
+        }
+        mHead = (mHead + count) % mBuffer.length;
+        mSize -= count;
+    }
+
+    public void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * @param index position from the head
+     * @return byte at index
+     */
+    public byte get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index: " + index + " size: " + mSize);
+        }
+        return mBuffer[(mHead + index) % mBuffer.length];
+    }
+
+    /**
+     * copy bytes from the head without removing them
+     *
+     * @param dst destination array
+     * @param offset start position in dst
+     * @param length count of bytes to copy
+     */
+    public void copyTo(@NonNull byte[] dst, int offset, int length) {
+        if (length > mSize) {
+            throw new IndexOutOfBoundsException("length: " + length + " size: " + mSize);
+        }
+        int first = Math.min(length, mBuffer.length - mHead);
+        System.arraycopy(mBuffer, mHead, dst, offset, first);
+        System.arraycopy(mBuffer, 0, dst, offset + first, length - first);
+    }
+
+    /**
+     * move bytes in place so that they start at index 0 of {@link #array()}
+     */
+    public void compact() {
+        if (mHead == 0) {
+            return;
+        }
+        int capacity = mBuffer.length;
+        reverse(0, mHead);
+        reverse(mHead, capacity);
+        reverse(0, capacity);
+        mHead = 0;
+    }
+
+    /**
+     * @return backing array, holds the data from index 0 after {@link #compact()}
+     */
+    public byte[] array() {
+        return mBuffer;
+    }
+
+    private void reverse(int from, int to) {
+        for (int i = from, j = to - 1; i < j; i++, j--) {
+            byte b = mBuffer[i];
+            mBuffer[i] = mBuffer[j];
+            mBuffer[j] = b;
+        }
+    }
+
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[mSize];
+        copyTo(bytes, 0, mSize);
+        return bytes;
+    }
+
+    public long getLastReceiveTime() {
+        return mLastReceiveTime;
+    }
+
+    public void setLastReceiveTime(long lastReceiveTime) {
+        mLastReceiveTime = lastReceiveTime;
+    }
+
+    /**
+     * @return true if nothing more arrived within the idle gap, a frame may end at the tail
+     */
+    public boolean isIdle() {
+        return mIdle;
+    }
+
+    public void setIdle(boolean idle) {
+        mIdle = idle;
+    }
+
+    /**
+     * @return read only list backed by this buffer, Byte.valueOf is cached so reading it does not allocate
+     */
+    public List<Byte> asList() {
+        return mListView;
+    }
+
+    private class ListView extends AbstractList<Byte> implements RandomAccess {
+        @Override
+        public Byte get(int index) {
+            return BleReceiveBuffer.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.liruya.tuner168blemanager;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects lost devices again with jittered exponential backoff.
+ * The n-th attempt waits a random time between half and all of min(BASE_DELAY * 2^n, MAX_DELAY),
+ * so many lights dropped at once do not reconnect in lockstep.
+ */
+class BleReconnector {
+    private static final String TAG = "BleReconnector";
+
+    private static final int BASE_DELAY = 250;
+    private static final int MAX_DELAY = 30000;
+
+    interface Connector {
+        /**
+         * @return true:connect started
+         */
+        boolean connect(String mac);
+    }
+
+    private final Connector mConnector;
+    private final Map<String, Integer> mAttempts;
+    private final Map<String, ScheduledFuture<?>> mFutures;
+    private final ScheduledExecutorService mScheduler;
+    private final Random mRandom;
+
+    BleReconnector(@NonNull Connector connector) {
+        mConnector = connector;
+        mAttempts = new HashMap<>();
+        mFutures = new HashMap<>();
+        mRandom = new Random();
+        mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param mac device mac address
+     * @param enable true:reconnect when link is lost false:cancel pending reconnect
+     */
+    synchronized void setEnabled(@NonNull String mac, boolean enable) {
+        if (enable) {
+            if (!mAttempts.containsKey(mac)) {
+                mAttempts.put(mac, 0);
+            }
+        } else {
+            mAttempts.remove(mac);
+            cancel(mac);
+        }
+    }
+
+    synchronized boolean isEnabled(@NonNull String mac) {
+        return mAttempts.containsKey(mac);
+    }
+
+    /**
+     * @return count of attempts since device was last ready, -1 if not enabled
+     */
+    synchronized int getAttempts(@NonNull String mac) {
+        Integer attempts = mAttempts.get(mac);
+        return attempts == null ? -1 : attempts;
+    }
+
+    /**
+     * link lost or connect failed, schedule next attempt
+     */
+    synchronized void onLinkLost(@NonNull final String mac) {
+        Integer attempts = mAttempts.get(mac);
+        if (attempts == null) {
+            return;
+        }
+        cancel(mac);
+        long delay = getDelay(attempts);
+        mAttempts.put(mac, attempts + 1);
+        Log.e(TAG, "onLinkLost: " + mac + " retry " + (attempts + 1) + " in " + delay + "ms");
+        mFutures.put(mac, mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BleReconnector.this) {
+                    mFutures.remove(mac);
+                    if (!mAttempts.containsKey(mac)) {
+                        return;
+                    }
+                }
+                if (!mConnector.connect(mac)) {
+                    onLinkLost(mac);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * device is ready again, next loss starts from the base delay
+     */
+    synchronized void onReady(@NonNull String mac) {
+        if (mAttempts.containsKey(mac)) {
+            mAttempts.put(mac, 0);
+        }
+        cancel(mac);
+    }
+
+    /**
+     * @param attempt count of attempts made before
+     * @return delay in milliseconds before next attempt
+     */
+    long getDelay(int attempt) {
+        long max = Math.min(MAX_DELAY, (long) BASE_DELAY << Math.min(attempt, 16));
+        long half = max / 2;
+        synchronized (mRandom) {
+            return half + (long) (mRandom.nextDouble() * (max - half));
+        }
+    }
+
+    private void cancel(String mac) {
+        ScheduledFuture<?> future = mFutures.remove(mac);
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+}
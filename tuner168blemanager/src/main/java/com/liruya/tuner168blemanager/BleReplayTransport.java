@@ -0,0 +1,359 @@
+package com.liruya.tuner168blemanager;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothProfile;
+import android.support.annotation.NonNull;
+
+import com.ble.ble.BleCallBack;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transport playing a recorded {@link BleTrace} back, for profiling and regression tests of the receive path without the light.
+ * Connecting a device of the trace brings the link up at once, notifications recorded for it are
+ * reported through {@link BleCallBack#onCharacteristicChanged(String, byte[])} from the moment notification is enabled,
+ * at recorded speed or faster. Every callback runs on one thread in trace order, so a replay is deterministic.
+ * Writes are accepted and compared with the chunks recorded for the device.
+ * Does not use android apis, so it runs on the JVM.
+ */
+public class BleReplayTransport implements BleTransport {
+    private static final String TAG = "BleReplayTransport";
+
+    private final BleTrace mTrace;
+    private final Map<String, Replay> mReplays;
+    private final ScheduledExecutorService mScheduler;
+    private volatile BleCallBack mCallback;
+    private volatile float mSpeed = 1;
+
+    private static class Replay {
+        private final List<BleTrace.Record> mNotifies = new ArrayList<>();
+        private final List<BleTrace.Record> mWrites = new ArrayList<>();
+        private boolean mConnected;
+
+        /**
+         * increased on every connect, tells tasks of an old link apart
+         */
+        private int mLinkId;
+        private int mNotified;
+        private int mWritten;
+        private int mMismatches;
+        private boolean mDone;
+    }
+
+    public BleReplayTransport(@NonNull BleTrace trace) {
+        mTrace = trace;
+        mReplays = new HashMap<>();
+        for (BleTrace.Record record : trace.getRecords()) {
+            Replay replay = mReplays.get(record.getMac());
+            if (replay == null) {
+                replay = new Replay();
+                mReplays.put(record.getMac(), replay);
+            }
+            if (record.getType() == BleTrace.TYPE_NOTIFY) {
+                replay.mNotifies.add(record);
+            } else if (record.getType() == BleTrace.TYPE_WRITE) {
+                replay.mWrites.add(record);
+            }
+        }
+        mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public BleTrace getTrace() {
+        return mTrace;
+    }
+
+    /**
+     * @param speed 1:recorded timing 10:ten times faster 0:as fast as possible, takes effect on next connect
+     */
+    public void setSpeed(float speed) {
+        mSpeed = speed;
+    }
+
+    /**
+     * @param mac device mac address
+     * @return count of notifications played back on current link
+     */
+    public int getNotifiedCount(@NonNull String mac) {
+        synchronized (mReplays) {
+            Replay replay = mReplays.get(mac);
+            return replay == null ? 0 : replay.mNotified;
+        }
+    }
+
+    /**
+     * @param mac device mac address
+     * @return count of writes differing from the recorded chunk at the same position, or beyond the recording
+     */
+    public int getWriteMismatches(@NonNull String mac) {
+        synchronized (mReplays) {
+            Replay replay = mReplays.get(mac);
+            return replay == null ? 0 : replay.mMismatches;
+        }
+    }
+
+    /**
+     * block until every notification of device has been played back
+     *
+     * @param mac device mac address
+     * @param timeout max time to wait in milliseconds
+     * @return true:done false:timeout
+     */
+    public boolean awaitDone(@NonNull String mac, long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        synchronized (mReplays) {
+            Replay replay = mReplays.get(mac);
+            if (replay == null) {
+                return true;
+            }
+            while (!replay.mDone) {
+                long remain = end - System.currentTimeMillis();
+                if (remain <= 0) {
+                    return false;
+                }
+                mReplays.wait(remain);
+            }
+            return true;
+        }
+    }
+
+    public void shutdown() {
+        mScheduler.shutdownNow();
+    }
+
+    @Override
+    public void setCallback(BleCallBack callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public boolean connect(@NonNull final String mac, boolean autoConnect) {
+        final int linkId;
+        synchronized (mReplays) {
+            Replay replay = mReplays.get(mac);
+            if (replay == null || replay.mConnected) {
+                return false;
+            }
+            replay.mConnected = true;
+            replay.mLinkId++;
+            replay.mNotified = 0;
+            replay.mWritten = 0;
+            replay.mMismatches = 0;
+            replay.mDone = false;
+            linkId = replay.mLinkId;
+        }
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                BleCallBack callback = mCallback;
+                if (callback != null && isLink(mac, linkId)) {
+                    callback.onConnected(mac);
+                    callback.onServicesDiscovered(mac);
+                }
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void setAutoConnect(@NonNull String mac, boolean autoConnect) {
+
+    }
+
+    @Override
+    public void disconnect(@NonNull final String mac) {
+        synchronized (mReplays) {
+            Replay replay = mReplays.get(mac);
+            if (replay == null || !replay.mConnected) {
+                return;
+            }
+            replay.mConnected = false;
+            replay.mDone = true;
+            mReplays.notifyAll();
+        }
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                BleCallBack callback = mCallback;
+                if (callback != null) {
+                    callback.onDisconnected(mac);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void disconnectAll() {
+        List<String> macs;
+        synchronized (mReplays) {
+            macs = new ArrayList<>(mReplays.keySet());
+        }
+        for (String mac : macs) {
+            disconnect(mac);
+        }
+    }
+
+    @Override
+    public void refresh(@NonNull String mac) {
+
+    }
+
+    @Override
+    public int getConnectionState(@NonNull String mac) {
+        synchronized (mReplays) {
+            Replay replay = mReplays.get(mac);
+            return replay != null && replay.mConnected ? BluetoothProfile.STATE_CONNECTED : BluetoothProfile.STATE_DISCONNECTED;
+        }
+    }
+
+    /**
+     * reports descriptor written and starts playing notifications back
+     */
+    @Override
+    public boolean enableNotification(@NonNull final String mac) {
+        final int linkId;
+        synchronized (mReplays) {
+            Replay replay = mReplays.get(mac);
+            if (replay == null || !replay.mConnected) {
+                return false;
+            }
+            linkId = replay.mLinkId;
+        }
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                BleCallBack callback = mCallback;
+                if (callback != null && isLink(mac, linkId)) {
+                    callback.onDescriptorWrite(mac, null, BluetoothGatt.GATT_SUCCESS);
+                }
+                playNext(mac, linkId, 0, System.nanoTime());
+            }
+        });
+        return true;
+    }
+
+    /**
+     * mtu is not recorded, link keeps default chunk length
+     */
+    @Override
+    public boolean requestMtu(@NonNull String mac, int mtu) {
+        return false;
+    }
+
+    @Override
+    public boolean requestConnectionPriority(@NonNull String mac, int priority) {
+        return getConnectionState(mac) == BluetoothProfile.STATE_CONNECTED;
+    }
+
+    @Override
+    public boolean write(@NonNull final String mac, @NonNull byte[] bytes) {
+        synchronized (mReplays) {
+            Replay replay = mReplays.get(mac);
+            if (replay == null || !replay.mConnected) {
+                return false;
+            }
+            if (replay.mWritten >= replay.mWrites.size()
+                || !Arrays.equals(bytes, replay.mWrites.get(replay.mWritten).getData())) {
+                replay.mMismatches++;
+            }
+            replay.mWritten++;
+        }
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                BleCallBack callback = mCallback;
+                if (callback != null) {
+                    callback.onCharacteristicWrite(mac, null, BluetoothGatt.GATT_SUCCESS);
+                }
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void readReg(@NonNull String mac, int reg) {
+
+    }
+
+    @Override
+    public void setReg(@NonNull String mac, int reg, int value) {
+
+    }
+
+    @Override
+    public void setSlaverName(@NonNull String mac, @NonNull String name) {
+
+    }
+
+    @Override
+    public void startReadRssi(@NonNull String mac, int interval) {
+
+    }
+
+    @Override
+    public void stopReadRssi(@NonNull String mac) {
+
+    }
+
+    private boolean isLink(String mac, int linkId) {
+        synchronized (mReplays) {
+            Replay replay = mReplays.get(mac);
+            return replay != null && replay.mConnected && replay.mLinkId == linkId;
+        }
+    }
+
+    /**
+     * play notification at index and schedule the next one at its recorded offset from the first
+     *
+     * @param start nano time the first notification was played
+     */
+    private void playNext(final String mac, final int linkId, final int index, final long start) {
+        BleTrace.Record record;
+        BleTrace.Record next;
+        long offset;
+        synchronized (mReplays) {
+            Replay replay = mReplays.get(mac);
+            if (replay.mLinkId != linkId || !replay.mConnected) {
+                return;
+            }
+            if (index >= replay.mNotifies.size()) {
+                replay.mDone = true;
+                mReplays.notifyAll();
+                return;
+            }
+            record = replay.mNotifies.get(index);
+            next = index + 1 < replay.mNotifies.size() ? replay.mNotifies.get(index + 1) : null;
+            offset = next == null ? 0 : next.getTime() - replay.mNotifies.get(0).getTime();
+            replay.mNotified++;
+        }
+        BleCallBack callback = mCallback;
+        if (callback != null) {
+            callback.onCharacteristicChanged(mac, record.getData().clone());
+        }
+        long delay = 0;
+        float speed = mSpeed;
+        if (next != null && speed > 0) {
+            delay = (long) (offset * 1000000L / speed) - (System.nanoTime() - start);
+        }
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                playNext(mac, linkId, index + 1, start);
+            }
+        }, Math.max(0, delay), TimeUnit.NANOSECONDS);
+    }
+}
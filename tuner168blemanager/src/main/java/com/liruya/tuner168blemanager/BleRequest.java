@@ -0,0 +1,162 @@
+package com.liruya.tuner168blemanager;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * A frame sent to a device together with the rule to recognize its reply.
+ * Several requests of one device may be outstanding, a reply completes the oldest matching one.
+ */
+public class BleRequest {
+    public static final int ERROR_TIMEOUT = 1;
+    public static final int ERROR_SEND_FAILED = 2;
+    public static final int ERROR_DISCONNECTED = 3;
+    public static final int ERROR_CANCELED = 4;
+
+    private final BleRequestTracker mTracker;
+    private final String mMac;
+    private final byte[] mFrame;
+    private final BleResponseMatcher mMatcher;
+    private final int mTimeout;
+    private final BleRequestCallback mCallback;
+    private int mRetries;
+    private int mAttempts;
+    private long mSendTime;
+    private boolean mDone;
+    private byte[] mResponse;
+    private int mError;
+    ScheduledFuture<?> mTimeoutFuture;
+
+    BleRequest(BleRequestTracker tracker, String mac, byte[] frame, BleResponseMatcher matcher, int timeout, int retries, BleRequestCallback callback) {
+        mTracker = tracker;
+        mMac = mac;
+        mFrame = frame;
+        mMatcher = matcher;
+        mTimeout = timeout;
+        mRetries = retries;
+        mCallback = callback;
+    }
+
+    public String getMac() {
+        return mMac;
+    }
+
+    public byte[] getFrame() {
+        return mFrame;
+    }
+
+    /**
+     * @return count of times the frame has been sent
+     */
+    public synchronized int getAttempts() {
+        return mAttempts;
+    }
+
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * @return matched reply, null if not completed or failed
+     */
+    public synchronized byte[] getResponse() {
+        return mResponse;
+    }
+
+    /**
+     * @return error code if failed, 0 otherwise
+     */
+    public synchronized int getError() {
+        return mError;
+    }
+
+    /**
+     * block until the request completes, do not call on main thread
+     *
+     * @param timeout max time to wait in milliseconds
+     * @return matched reply, null if failed or still pending after timeout
+     */
+    public synchronized byte[] await(long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        while (!mDone) {
+            long remain = end - System.currentTimeMillis();
+            if (remain <= 0) {
+                break;
+            }
+            wait(remain);
+        }
+        return mResponse;
+    }
+
+    /**
+     * stop waiting for reply, callback gets {@link #ERROR_CANCELED}
+     */
+    public void cancel() {
+        mTracker.fail(this, ERROR_CANCELED);
+    }
+
+    BleResponseMatcher getMatcher() {
+        return mMatcher;
+    }
+
+    int getTimeout() {
+        return mTimeout;
+    }
+
+    synchronized long getSendTime() {
+        return mSendTime;
+    }
+
+    /**
+     * @return true:a retry is left and has been taken
+     */
+    synchronized boolean takeRetry() {
+        if (mDone || mRetries <= 0) {
+            return false;
+        }
+        mRetries--;
+        return true;
+    }
+
+    synchronized void onSent() {
+        mAttempts++;
+        mSendTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @return false:request has already completed
+     */
+    boolean complete(@NonNull byte[] response) {
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+            mDone = true;
+            mResponse = response;
+            notifyAll();
+        }
+        if (mCallback != null) {
+            mCallback.onResponse(mMac, response);
+        }
+        return true;
+    }
+
+    /**
+     * @return false:request has already completed
+     */
+    boolean fail(int error) {
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+            mDone = true;
+            mError = error;
+            notifyAll();
+        }
+        if (mCallback != null) {
+            mCallback.onFailure(mMac, error);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,20 @@
+package com.liruya.tuner168blemanager;
+
+public abstract class BleRequestCallback {
+    /**
+     * @param mac device mac address
+     * @param response copy of the matched reply
+     */
+    public void onResponse(String mac, byte[] response) {
+
+    }
+
+    /**
+     * @param mac device mac address
+     * @param error {@link BleRequest#ERROR_TIMEOUT}, {@link BleRequest#ERROR_SEND_FAILED},
+     *              {@link BleRequest#ERROR_DISCONNECTED} or {@link BleRequest#ERROR_CANCELED}
+     */
+    public void onFailure(String mac, int error) {
+
+    }
+}
@@ -0,0 +1,202 @@
+package com.liruya.tuner168blemanager;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outstanding requests of every device, matches replies and drives timeouts and retries.
+ */
+class BleRequestTracker {
+    private static final String TAG = "BleRequestTracker";
+
+    interface FrameSender {
+        /**
+         * @return true:frame queued to be sent
+         */
+        boolean send(String mac, byte[] frame);
+    }
+
+    private final FrameSender mSender;
+    private final BleMetricsRecorder mMetrics;
+    private final Map<String, List<BleRequest>> mPending;
+    private final ScheduledExecutorService mScheduler;
+
+    BleRequestTracker(@NonNull FrameSender sender, @NonNull BleMetricsRecorder metrics) {
+        mSender = sender;
+        mMetrics = metrics;
+        mPending = new HashMap<>();
+        mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    BleRequest submit(@NonNull String mac, @NonNull byte[] frame, @NonNull BleResponseMatcher matcher, int timeout, int retries, BleRequestCallback callback) {
+        BleRequest request = new BleRequest(this, mac, frame, matcher, timeout, retries, callback);
+        synchronized (mPending) {
+            List<BleRequest> list = mPending.get(mac);
+            if (list == null) {
+                list = new ArrayList<>();
+                mPending.put(mac, list);
+            }
+            list.add(request);
+        }
+        send(request);
+        return request;
+    }
+
+    /**
+     * complete the oldest outstanding request of device matching the data
+     *
+     * @return true:data consumed as a reply
+     */
+    boolean onReceived(@NonNull String mac, byte[] bytes, int offset, int length) {
+        BleRequest matched = null;
+        synchronized (mPending) {
+            List<BleRequest> list = mPending.get(mac);
+            if (list == null) {
+                return false;
+            }
+            Iterator<BleRequest> it = list.iterator();
+            while (it.hasNext()) {
+                BleRequest request = it.next();
+                if (request.getMatcher().matches(bytes, offset, length)) {
+                    it.remove();
+                    matched = request;
+                    break;
+                }
+            }
+        }
+        if (matched == null) {
+            return false;
+        }
+        cancelTimeout(matched);
+        mMetrics.onResponse(mac, System.currentTimeMillis() - matched.getSendTime());
+        byte[] response = new byte[length];
+        System.arraycopy(bytes, offset, response, 0, length);
+        matched.complete(response);
+        return true;
+    }
+
+    /**
+     * fail every outstanding request of device
+     */
+    void failAll(@NonNull String mac, int error) {
+        List<BleRequest> list;
+        synchronized (mPending) {
+            list = mPending.remove(mac);
+        }
+        if (list == null) {
+            return;
+        }
+        for (BleRequest request : list) {
+            cancelTimeout(request);
+            request.fail(error);
+        }
+    }
+
+    /**
+     * frame of an outstanding request could not be written, retry it or fail at once instead of waiting for timeout
+     */
+    void onSendFailed(@NonNull String mac, @NonNull byte[] frame) {
+        BleRequest failed = null;
+        synchronized (mPending) {
+            List<BleRequest> list = mPending.get(mac);
+            if (list != null) {
+                for (BleRequest request : list) {
+                    if (request.getFrame() == frame) {
+                        failed = request;
+                        break;
+                    }
+                }
+            }
+        }
+        if (failed == null) {
+            return;
+        }
+        cancelTimeout(failed);
+        if (failed.takeRetry()) {
+            Log.e(TAG, "onSendFailed: retry " + mac);
+            mMetrics.onRequestRetry(mac);
+            send(failed);
+        } else {
+            fail(failed, BleRequest.ERROR_SEND_FAILED);
+        }
+    }
+
+    void fail(@NonNull BleRequest request, int error) {
+        remove(request);
+        cancelTimeout(request);
+        request.fail(error);
+    }
+
+    int getPendingCount(@NonNull String mac) {
+        synchronized (mPending) {
+            List<BleRequest> list = mPending.get(mac);
+            return list == null ? 0 : list.size();
+        }
+    }
+
+    private void send(final BleRequest request) {
+        if (request.isDone()) {
+            return;
+        }
+        if (!mSender.send(request.getMac(), request.getFrame())) {
+            Log.e(TAG, "send: failed " + request.getMac());
+            fail(request, BleRequest.ERROR_SEND_FAILED);
+            return;
+        }
+        request.onSent();
+        synchronized (request) {
+            request.mTimeoutFuture = mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    onTimeout(request);
+                }
+            }, request.getTimeout(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void onTimeout(BleRequest request) {
+        if (request.takeRetry()) {
+            Log.e(TAG, "onTimeout: retry " + request.getMac());
+            mMetrics.onRequestRetry(request.getMac());
+            send(request);
+        } else {
+            mMetrics.onRequestTimeout(request.getMac());
+            fail(request, BleRequest.ERROR_TIMEOUT);
+        }
+    }
+
+    private void remove(BleRequest request) {
+        synchronized (mPending) {
+            List<BleRequest> list = mPending.get(request.getMac());
+            if (list != null) {
+                list.remove(request);
+            }
+        }
+    }
+
+    private void cancelTimeout(BleRequest request) {
+        synchronized (request) {
+            if (request.mTimeoutFuture != null) {
+                request.mTimeoutFuture.cancel(false);
+                request.mTimeoutFuture = null;
+            }
+        }
+    }
+}
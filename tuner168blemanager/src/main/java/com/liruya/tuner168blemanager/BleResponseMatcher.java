@@ -0,0 +1,14 @@
+package com.liruya.tuner168blemanager;
+
+/**
+ * Decides whether received data is the reply of a request.
+ */
+public interface BleResponseMatcher {
+    /**
+     * @param bytes array holding received data
+     * @param offset start position of data
+     * @param length length of data
+     * @return true:data is the complete reply of the request
+     */
+    boolean matches(byte[] bytes, int offset, int length);
+}
@@ -1,7 +1,17 @@
 package com.liruya.tuner168blemanager;
 
+import java.util.List;
+
 public interface BleScanListener {
     void onScanTimeout();
 
     void onDeviceScanned ( String mac, String name, int rssi, byte[] bytes );
+
+    /**
+     * latest result of every device seen since last report, called instead of
+     * {@link #onDeviceScanned(String, String, int, byte[])} when {@link BleScanner#setReportDelay(int)} is set
+     *
+     * @param results in order first seen
+     */
+    void onDevicesScanned ( List<BleScanResult> results );
 }
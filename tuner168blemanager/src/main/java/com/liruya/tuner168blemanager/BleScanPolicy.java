@@ -0,0 +1,216 @@
+package com.liruya.tuner168blemanager;
+
+import android.support.annotation.NonNull;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Scan mode schedule of {@link BleScanner#setScanPolicy(BleScanPolicy)} for long running scans.
+ * A scan starts in low latency mode, decays to balanced once no new device has been found for the balanced delay
+ * and to low power after the low power delay, a new device bursts it back to low latency.
+ * A device reported gone by {@link #forget(String)} bursts it again when it comes back.
+ * Keeps discovery stats of the current scan.
+ */
+public class BleScanPolicy {
+    /**
+     * same values as ScanSettings.SCAN_MODE_XXX
+     */
+    public static final int MODE_LOW_POWER = 0;
+    public static final int MODE_BALANCED = 1;
+    public static final int MODE_LOW_LATENCY = 2;
+
+    public static final long DEFAULT_BALANCED_DELAY = 10000;
+    public static final long DEFAULT_LOW_POWER_DELAY = 60000;
+
+    private final long mBalancedDelay;
+    private final long mLowPowerDelay;
+    private final Set<String> mSeen;
+    private final Set<String> mGone;
+
+    private boolean mStarted;
+    private int mMode;
+    private long mStartTime;
+    private long mModeTime;
+
+    /**
+     * time last new device was found, or scan started
+     */
+    private long mLastNew;
+
+    private final long[] mModeDurations = new long[MODE_LOW_LATENCY + 1];
+    private int mBursts;
+    private long mLatencySum;
+    private long mLatencyMax;
+
+    public BleScanPolicy() {
+        this(DEFAULT_BALANCED_DELAY, DEFAULT_LOW_POWER_DELAY);
+    }
+
+    /**
+     * @param balancedDelay milliseconds without new device before balanced mode
+     * @param lowPowerDelay milliseconds without new device before low power mode, not less than balancedDelay
+     */
+    public BleScanPolicy(long balancedDelay, long lowPowerDelay) {
+        mBalancedDelay = balancedDelay;
+        mLowPowerDelay = Math.max(balancedDelay, lowPowerDelay);
+        mSeen = new HashSet<>();
+        mGone = new HashSet<>();
+        mMode = MODE_LOW_LATENCY;
+    }
+
+    /**
+     * scan started, forgets devices and stats of last scan
+     */
+    synchronized void start(long now) {
+        mStarted = true;
+        mSeen.clear();
+        mGone.clear();
+        mMode = MODE_LOW_LATENCY;
+        mStartTime = now;
+        mModeTime = now;
+        mLastNew = now;
+        for (int i = 0; i < mModeDurations.length; i++) {
+            mModeDurations[i] = 0;
+        }
+        mBursts = 0;
+        mLatencySum = 0;
+        mLatencyMax = 0;
+    }
+
+    synchronized void stop(long now) {
+        if (mStarted) {
+            mModeDurations[mMode] += now - mModeTime;
+            mModeTime = now;
+            mStarted = false;
+        }
+    }
+
+    /**
+     * device left range, its next result counts as new again and bursts the scan.
+     * discovery stats still count its first result only
+     */
+    public synchronized void forget(@NonNull String mac) {
+        if (mStarted && mSeen.contains(mac)) {
+            mGone.add(mac);
+        }
+    }
+
+    /**
+     * @return true if device is new to this scan, or back after {@link #forget(String)}
+     */
+    synchronized boolean onResult(@NonNull String mac, long now) {
+        if (!mStarted) {
+            return false;
+        }
+        if (!mGone.remove(mac)) {
+            if (!mSeen.add(mac)) {
+                return false;
+            }
+            long latency = now - mStartTime;
+            mLatencySum += latency;
+            mLatencyMax = Math.max(mLatencyMax, latency);
+        }
+        mLastNew = now;
+        if (mMode != MODE_LOW_LATENCY) {
+            mBursts++;
+            setMode(MODE_LOW_LATENCY, now);
+        }
+        return true;
+    }
+
+    /**
+     * @return mode to scan in now
+     */
+    synchronized int update(long now) {
+        if (!mStarted) {
+            return mMode;
+        }
+        long quiet = now - mLastNew;
+        int mode = quiet >= mLowPowerDelay ? MODE_LOW_POWER : quiet >= mBalancedDelay ? MODE_BALANCED : MODE_LOW_LATENCY;
+        // a burst is only ended by the delays, mode never rises here
+        if (mode < mMode) {
+            setMode(mode, now);
+        }
+        return mMode;
+    }
+
+    /**
+     * @return milliseconds until mode decays next, -1 if already low power
+     */
+    synchronized long getNextChange(long now) {
+        long quiet = now - mLastNew;
+        if (mMode == MODE_LOW_LATENCY) {
+            return Math.max(0, mBalancedDelay - quiet);
+        }
+        if (mMode == MODE_BALANCED) {
+            return Math.max(0, mLowPowerDelay - quiet);
+        }
+        return -1;
+    }
+
+    public long getBalancedDelay() {
+        return mBalancedDelay;
+    }
+
+    public long getLowPowerDelay() {
+        return mLowPowerDelay;
+    }
+
+    public synchronized int getMode() {
+        return mMode;
+    }
+
+    /**
+     * @return count of devices found by current or last scan
+     */
+    public synchronized int getDiscoveredCount() {
+        return mSeen.size();
+    }
+
+    /**
+     * @return average milliseconds from scan start to first result of a device, -1 if none
+     */
+    public synchronized long getAverageDiscoveryLatency() {
+        return mSeen.isEmpty() ? -1 : mLatencySum / mSeen.size();
+    }
+
+    /**
+     * @return milliseconds from scan start to first result of the device found last
+     */
+    public synchronized long getMaxDiscoveryLatency() {
+        return mLatencyMax;
+    }
+
+    /**
+     * @return milliseconds scanned in mode, MODE_XXX
+     */
+    public synchronized long getModeDuration(int mode) {
+        long duration = mModeDurations[mode];
+        if (mStarted && mode == mMode) {
+            duration += System.currentTimeMillis() - mModeTime;
+        }
+        return duration;
+    }
+
+    /**
+     * @return count of times a new or returning device raised the mode back to low latency
+     */
+    public synchronized int getBursts() {
+        return mBursts;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "mode %d discovered %d latency avg %d max %d ms bursts %d low latency %d balanced %d low power %d ms",
+                             mMode, mSeen.size(), getAverageDiscoveryLatency(), mLatencyMax, mBursts,
+                             getModeDuration(MODE_LOW_LATENCY), getModeDuration(MODE_BALANCED), getModeDuration(MODE_LOW_POWER));
+    }
+
+    private void setMode(int mode, long now) {
+        mModeDurations[mMode] += now - mModeTime;
+        mModeTime = now;
+        mMode = mode;
+    }
+}
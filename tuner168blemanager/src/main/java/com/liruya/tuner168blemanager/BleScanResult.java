@@ -0,0 +1,37 @@
+package com.liruya.tuner168blemanager;
+
+/**
+ * Latest advertisement of one device within a scan report, see {@link BleScanner#setReportDelay(int)}.
+ */
+public class BleScanResult {
+    private final String mMac;
+    private final String mName;
+    private final int mRssi;
+    private final byte[] mBytes;
+
+    BleScanResult(String mac, String name, int rssi, byte[] bytes) {
+        mMac = mac;
+        mName = name;
+        mRssi = rssi;
+        mBytes = bytes;
+    }
+
+    public String getMac() {
+        return mMac;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getRssi() {
+        return mRssi;
+    }
+
+    /**
+     * @return manufacturer id in little endian followed by manufacturer data, null if not advertised
+     */
+    public byte[] getBytes() {
+        return mBytes;
+    }
+}
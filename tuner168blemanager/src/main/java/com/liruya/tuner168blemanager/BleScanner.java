@@ -10,14 +10,17 @@ import android.bluetooth.le.ScanSettings;
 import android.os.Build;
 import android.os.Handler;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
-import android.util.SparseArray;
 
-import com.ble.ble.LeScanRecord;
 import com.ble.ble.constants.BleUUIDS;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 public class BleScanner {
@@ -25,6 +28,11 @@ public class BleScanner {
 
     private final UUID[] TARGET_UUIDS = new UUID[] {BleUUIDS.PRIMARY_SERVICE};
 
+    /**
+     * android blocks apps starting scans more than 5 times in 30 seconds, mode changes restart no faster than this
+     */
+    private static final int MIN_RESTART_INTERVAL = 6000;
+
     /**
      * BluetoothLeScanner callback (Android Version >= 5.0)
      */
@@ -35,8 +43,46 @@ public class BleScanner {
      */
     private BluetoothAdapter.LeScanCallback mLeScanCallback;
 
+    /**
+     * 0: scan until stopped
+     */
     private int mScanPeriod = 8000;
 
+    /**
+     * null: always scan in low latency mode
+     */
+    private BleScanPolicy mPolicy;
+
+    /**
+     * mode scanner was last started in
+     */
+    private int mMode;
+    private long mRestartTime;
+
+    /**
+     * null: every device advertising the primary service, otherwise only these macs
+     */
+    private Set<String> mDeviceFilter;
+    private Runnable mPolicyRunnable;
+
+    /**
+     * 0: every advertisement reported at once, otherwise latest result of every device reported in batches
+     */
+    private int mReportDelay;
+
+    /**
+     * batching done by controller, results come in {@link ScanCallback#onBatchScanResults(List)}
+     */
+    private boolean mOffloaded;
+
+    /**
+     * latest result of every device since last report, in order first seen.
+     * LeScanCallback (Android Version < 5.0) fills it on a binder thread, reports run on mHandler, guarded by itself
+     */
+    private final LinkedHashMap<String, BleScanResult> mReports = new LinkedHashMap<>();
+
+    private Runnable mReportRunnable;
+
     private boolean mScanning;
 
     private Handler mHandler;
@@ -55,21 +101,16 @@ public class BleScanner {
             mScanCallback = new ScanCallback() {
                 @Override
                 public void onScanResult(int callbackType, ScanResult result) {
-                    if (result != null) {
-                        BluetoothDevice device = result.getDevice();
-                        if (device != null) {
-                            onScan(device.getAddress(),
-                                   device.getName(),
-                                   result.getRssi(),
-                                   result.getScanRecord()
-                                         .getBytes());
-                        }
-                    }
+                    onScan(result);
                 }
 
                 @Override
                 public void onBatchScanResults(List<ScanResult> results) {
                     Log.e(TAG, "onBatchScanResults: " + results.size());
+                    for (ScanResult result : results) {
+                        onScan(result);
+                    }
+                    report();
                 }
 
                 @Override
@@ -99,63 +140,147 @@ public class BleScanner {
                 }
             }
         };
+        mReportRunnable = new Runnable() {
+            @Override
+            public void run() {
+                report();
+                mHandler.postDelayed(this, mReportDelay);
+            }
+        };
+        mPolicyRunnable = new Runnable() {
+            @Override
+            public void run() {
+                applyPolicy();
+            }
+        };
     }
 
     public int getScanPeriod() {
         return mScanPeriod;
     }
 
+    /**
+     * @param scanPeriod milliseconds until {@link BleScanListener#onScanTimeout()}, 0 to scan until stopped
+     */
     public void setScanPeriod(int scanPeriod) {
-        mScanPeriod = scanPeriod;
+        mScanPeriod = Math.max(0, scanPeriod);
+    }
+
+    public BleScanPolicy getScanPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * decay scan mode while no new device is found, for long running scans. takes effect on next scan
+     *
+     * @param policy null to always scan in low latency mode
+     */
+    public void setScanPolicy(BleScanPolicy policy) {
+        mPolicy = policy;
+    }
+
+    public int getReportDelay() {
+        return mReportDelay;
+    }
+
+    /**
+     * report scan results in batches, the controller batches them if supported, otherwise they are batched here.
+     * takes effect on next scan
+     *
+     * @param reportDelay milliseconds between reports to {@link BleScanListener#onDevicesScanned(List)},
+     *                    0 to report every advertisement to {@link BleScanListener#onDeviceScanned(String, String, int, byte[])}
+     */
+    public void setReportDelay(int reportDelay) {
+        mReportDelay = Math.max(0, reportDelay);
+    }
+
+    /**
+     * scan only devices with these macs, filtered by the controller where supported. takes effect on next scan
+     *
+     * @param macs null to scan every device advertising the primary service
+     */
+    public void setDeviceFilter(Collection<String> macs) {
+        mDeviceFilter = macs == null ? null : new HashSet<>(macs);
     }
 
     public void setBleScanListener(BleScanListener listener) {
         mListener = listener;
     }
 
+    private void onScan(ScanResult result) {
+        if (result != null) {
+            BluetoothDevice device = result.getDevice();
+            if (device != null) {
+                onScan(device.getAddress(),
+                       device.getName(),
+                       result.getRssi(),
+                       result.getScanRecord()
+                             .getBytes());
+            }
+        }
+    }
+
     private void onScan(String mac, String name, int rssi, byte[] scanRecord) {
-        LeScanRecord record = LeScanRecord.parseFromBytes(scanRecord);
-        if (record == null)
-        {
+        // malformed records are dropped as the stack parser did, not reported without manufacturer data
+        if (!BleAdvertisement.isValid(scanRecord) || (mDeviceFilter != null && !mDeviceFilter.contains(mac))) {
             return;
         }
-        SparseArray<byte[]> bytes = record.getManufacturerSpecificData();
-        Log.e(TAG, "onLeScan: Mac: " + mac + " rssi - " + rssi + "  \t" + record.toString() + "\r\n" + bytes.size());
-        byte[] rawData = null;
-        if (bytes != null && bytes.size() > 0) {
-            int id = bytes.keyAt(0);
-            byte[] mfr = bytes.get(id);
-            rawData = new byte[2 + mfr.length];
-            rawData[0] = (byte) (id & 0xFF);
-            rawData[1] = (byte) ((id >> 8) & 0xFF);
-            System.arraycopy(mfr, 0, rawData, 2, mfr.length);
+        if (mPolicy != null && mPolicy.onResult(mac, System.currentTimeMillis())) {
+            applyPolicy();
         }
-        if (mListener != null) {
+        // called for every advertisement, only the manufacturer data is copied out
+        byte[] rawData = BleAdvertisement.getManufacturerData(scanRecord);
+        if (mReportDelay > 0) {
+            // newer advertisement replaces the one not reported yet
+            BleScanResult result = new BleScanResult(mac, name, rssi, rawData);
+            synchronized (mReports) {
+                mReports.put(mac, result);
+            }
+        } else if (mListener != null) {
             mListener.onDeviceScanned(mac, name, rssi, rawData);
         }
     }
 
+    private void report() {
+        List<BleScanResult> results;
+        synchronized (mReports) {
+            if (mReports.isEmpty()) {
+                return;
+            }
+            results = new ArrayList<>(mReports.values());
+            mReports.clear();
+        }
+        if (mListener != null) {
+            mListener.onDevicesScanned(results);
+        }
+    }
+
     public void startScan() {
         if (mScanning) {
             return;
         }
         mScanning = true;
+        synchronized (mReports) {
+            mReports.clear();
+        }
+        mOffloaded = false;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            List<ScanFilter> filters = new ArrayList<>();
-            ScanFilter filter = new ScanFilter.Builder().setServiceUuid(new ParcelUuid(BleUUIDS.PRIMARY_SERVICE))
-                                                        .build();
-            filters.add(filter);
-            ScanSettings scanSettings = new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-                                                                  .build();
-            BluetoothLeScanner scanner = BluetoothAdapter.getDefaultAdapter().getBluetoothLeScanner();
-            if (scanner != null) {
-                scanner.startScan(filters, scanSettings, mScanCallback);
-            }
+            mOffloaded = mReportDelay > 0 && BluetoothAdapter.getDefaultAdapter().isOffloadedScanBatchingSupported();
+            startLeScan(BleScanPolicy.MODE_LOW_LATENCY);
         } else {
             BluetoothAdapter.getDefaultAdapter()
                             .startLeScan(TARGET_UUIDS, mLeScanCallback);
         }
-        mHandler.postDelayed(mScanRunnable, mScanPeriod);
+        if (mReportDelay > 0 && !mOffloaded) {
+            mHandler.postDelayed(mReportRunnable, mReportDelay);
+        }
+        if (mPolicy != null) {
+            mPolicy.start(System.currentTimeMillis());
+            applyPolicy();
+        }
+        if (mScanPeriod > 0) {
+            mHandler.postDelayed(mScanRunnable, mScanPeriod);
+        }
     }
 
     public void stopScan()
@@ -163,15 +288,82 @@ public class BleScanner {
         if (mScanning) {
             mScanning = false;
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                BluetoothLeScanner scanner = BluetoothAdapter.getDefaultAdapter().getBluetoothLeScanner();
-                if (scanner != null) {
-                    scanner.stopScan(mScanCallback);
-                }
+                stopLeScan();
             } else {
                 BluetoothAdapter.getDefaultAdapter()
                                 .stopLeScan(mLeScanCallback);
             }
             mHandler.removeCallbacks(mScanRunnable);
+            mHandler.removeCallbacks(mReportRunnable);
+            mHandler.removeCallbacks(mPolicyRunnable);
+            if (mPolicy != null) {
+                mPolicy.stop(System.currentTimeMillis());
+                Log.e(TAG, "stopScan: " + mPolicy);
+            }
+            report();
+            mOffloaded = false;
+        }
+    }
+
+    private void startLeScan(int mode) {
+        List<ScanFilter> filters = new ArrayList<>();
+        if (mDeviceFilter != null) {
+            for (String mac : mDeviceFilter) {
+                if (BluetoothAdapter.checkBluetoothAddress(mac)) {
+                    filters.add(new ScanFilter.Builder().setDeviceAddress(mac)
+                                                        .build());
+                }
+            }
+        } else {
+            ScanFilter filter = new ScanFilter.Builder().setServiceUuid(new ParcelUuid(BleUUIDS.PRIMARY_SERVICE))
+                                                        .build();
+            filters.add(filter);
+        }
+        ScanSettings.Builder builder = new ScanSettings.Builder().setScanMode(mode);
+        if (mOffloaded) {
+            builder.setReportDelay(mReportDelay);
+        }
+        ScanSettings scanSettings = builder.build();
+        BluetoothLeScanner scanner = BluetoothAdapter.getDefaultAdapter().getBluetoothLeScanner();
+        if (scanner != null) {
+            scanner.startScan(filters, scanSettings, mScanCallback);
+        }
+        mMode = mode;
+        mRestartTime = SystemClock.elapsedRealtime();
+    }
+
+    private void stopLeScan() {
+        BluetoothLeScanner scanner = BluetoothAdapter.getDefaultAdapter().getBluetoothLeScanner();
+        if (scanner != null) {
+            if (mOffloaded) {
+                scanner.flushPendingScanResults(mScanCallback);
+            }
+            scanner.stopScan(mScanCallback);
+        }
+    }
+
+    /**
+     * restart scanner if policy changed mode, and schedule next check
+     */
+    private void applyPolicy() {
+        if (!mScanning || mPolicy == null) {
+            return;
+        }
+        mHandler.removeCallbacks(mPolicyRunnable);
+        long now = System.currentTimeMillis();
+        int mode = mPolicy.update(now);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && mode != mMode) {
+            long wait = MIN_RESTART_INTERVAL - (SystemClock.elapsedRealtime() - mRestartTime);
+            if (wait > 0) {
+                mHandler.postDelayed(mPolicyRunnable, wait);
+                return;
+            }
+            stopLeScan();
+            startLeScan(mode);
+        }
+        long next = mPolicy.getNextChange(now);
+        if (next >= 0) {
+            mHandler.postDelayed(mPolicyRunnable, next);
         }
     }
 
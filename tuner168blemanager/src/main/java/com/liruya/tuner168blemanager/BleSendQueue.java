@@ -0,0 +1,465 @@
+package com.liruya.tuner168blemanager;
+
+import android.bluetooth.BluetoothGatt;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ordered write queue of every connected device.
+ * Frames of one device are written by one worker at a time, so chunks of two frames never interleave.
+ * Workers come from a bounded pool shared by all devices.
+ * Frames offered with a coalesce key replace the queued frame of the same key,
+ * so streaming commands never pile up behind a slow link.
+ * Chunks are paced by write completion reported through {@link #onChunkWritten(String, int)},
+ * links that never report it fall back to a fixed interval.
+ */
+class BleSendQueue {
+    private static final String TAG = "BleSendQueue";
+
+    /**
+     * max count of frames waiting to be sent to one device
+     */
+    private static final int QUEUE_CAPACITY = 32;
+
+    /**
+     * max count of devices written at the same time
+     */
+    private static final int WRITER_COUNT = 4;
+
+    /**
+     * interval between two chunks when link does not report write completion,
+     * also the max wait before retrying a chunk rejected by the ble stack
+     */
+    private static final int CHUNK_INTERVAL = 8;
+
+    /**
+     * time to wait for write completion is this times the average completion time of the link
+     */
+    private static final int WRITE_BUDGET_FACTOR = 4;
+    private static final int WRITE_BUDGET_MIN = 16;
+    private static final int WRITE_BUDGET_MAX = 500;
+
+    /**
+     * write status while waiting for completion and after link is gone
+     */
+    private static final int WRITE_PENDING = -1;
+    private static final int WRITE_ABORTED = -2;
+
+    interface ChunkWriter {
+        /**
+         * write one chunk to device
+         *
+         * @param mac device mac address
+         * @param chunk data no longer than max chunk length
+         * @return true:accepted by ble stack false:busy or failure
+         */
+        boolean writeChunk(String mac, byte[] chunk);
+
+        /**
+         * a chunk of frame was rejected or failed, rest of the frame is not sent.
+         * called on the writer thread
+         *
+         * @param mac device mac address
+         * @param frame the frame offered
+         */
+        void onFrameFailed(String mac, byte[] frame);
+    }
+
+    private final ChunkWriter mWriter;
+
+    /**
+     * chunk length of devices without negotiated mtu
+     */
+    private final int mChunkLength;
+    private final int mFrameInterval;
+    private final Map<String, DeviceQueue> mQueues;
+    private final ExecutorService mExecutor;
+
+    BleSendQueue(@NonNull ChunkWriter writer, int chunkLength, int frameInterval) {
+        mWriter = writer;
+        mChunkLength = chunkLength;
+        mFrameInterval = frameInterval;
+        mQueues = new HashMap<>();
+        mExecutor = Executors.newFixedThreadPool(WRITER_COUNT, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r, TAG + "-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * put a frame at the tail of device queue
+     *
+     * @param mac device mac address
+     * @param frame data
+     * @return true:queued false:queue is full, caller should retry later
+     */
+    boolean offer(@NonNull String mac, @NonNull byte[] frame) {
+        DeviceQueue queue = getQueue(mac);
+        synchronized (queue) {
+            if (queue.mFrames.size() >= QUEUE_CAPACITY) {
+                Log.e(TAG, "offer: queue full " + mac);
+                return false;
+            }
+            queue.mFrames.offer(frame);
+            if (!queue.mRunning) {
+                queue.mRunning = true;
+                mExecutor.execute(queue);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * put a frame at the tail of device queue, a queued frame with same key not being sent yet is dropped
+     *
+     * @param mac device mac address
+     * @param frame data
+     * @param key coalesce key, e.g. command byte
+     * @return true:queued false:queue is full
+     */
+    boolean offerLatest(@NonNull String mac, @NonNull byte[] frame, int key) {
+        DeviceQueue queue = getQueue(mac);
+        synchronized (queue) {
+            byte[] old = queue.mLatest.put(key, frame);
+            if (old != null && queue.mFrames.removeFirstOccurrence(old)) {
+                queue.mCoalescedCount++;
+            } else if (queue.mFrames.size() >= QUEUE_CAPACITY) {
+                queue.mLatest.remove(key);
+                Log.e(TAG, "offerLatest: queue full " + mac);
+                return false;
+            }
+            queue.mFrames.offer(frame);
+            if (!queue.mRunning) {
+                queue.mRunning = true;
+                mExecutor.execute(queue);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * link is gone, drop all frames not sent yet and fall back to default chunk length
+     *
+     * @param mac device mac address
+     */
+    void clear(@NonNull String mac) {
+        DeviceQueue queue;
+        synchronized (mQueues) {
+            queue = mQueues.get(mac);
+        }
+        if (queue != null) {
+            synchronized (queue) {
+                queue.mFrames.clear();
+                queue.mLatest.clear();
+                queue.mChunkLength = mChunkLength;
+                queue.mWriting = false;
+                queue.mWriteStatus = WRITE_ABORTED;
+                queue.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * ble stack finished a characteristic write, fed by onCharacteristicWrite only
+     *
+     * @param mac device mac address
+     * @param status BluetoothGatt.GATT_XXX
+     */
+    void onChunkWritten(@NonNull String mac, int status) {
+        DeviceQueue queue;
+        synchronized (mQueues) {
+            queue = mQueues.get(mac);
+        }
+        if (queue != null) {
+            synchronized (queue) {
+                queue.mWriting = false;
+                queue.mWriteStatus = status;
+                queue.mCompletionReported = true;
+                queue.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @param mac device mac address
+     * @return count of frames waiting to be sent
+     */
+    int getPendingCount(@NonNull String mac) {
+        DeviceQueue queue;
+        synchronized (mQueues) {
+            queue = mQueues.get(mac);
+        }
+        if (queue == null) {
+            return 0;
+        }
+        synchronized (queue) {
+            return queue.mFrames.size();
+        }
+    }
+
+    /**
+     * @param mac device mac address
+     * @param chunkLength max length of one write, takes effect from next frame
+     */
+    void setChunkLength(@NonNull String mac, int chunkLength) {
+        DeviceQueue queue = getQueue(mac);
+        synchronized (queue) {
+            queue.mChunkLength = chunkLength;
+        }
+    }
+
+    /**
+     * @param mac device mac address
+     * @return max length of one write to device
+     */
+    int getChunkLength(@NonNull String mac) {
+        DeviceQueue queue;
+        synchronized (mQueues) {
+            queue = mQueues.get(mac);
+        }
+        if (queue == null) {
+            return mChunkLength;
+        }
+        synchronized (queue) {
+            return queue.mChunkLength;
+        }
+    }
+
+    /**
+     * @param mac device mac address
+     * @return count of frames dropped because a newer frame of same key was offered
+     */
+    int getCoalescedCount(@NonNull String mac) {
+        DeviceQueue queue;
+        synchronized (mQueues) {
+            queue = mQueues.get(mac);
+        }
+        if (queue == null) {
+            return 0;
+        }
+        synchronized (queue) {
+            return queue.mCoalescedCount;
+        }
+    }
+
+    /**
+     * @param mac device mac address
+     * @return count of frames not sent completely
+     */
+    int getFailedCount(@NonNull String mac) {
+        DeviceQueue queue;
+        synchronized (mQueues) {
+            queue = mQueues.get(mac);
+        }
+        if (queue == null) {
+            return 0;
+        }
+        synchronized (queue) {
+            return queue.mFailedCount;
+        }
+    }
+
+    boolean isFull(@NonNull String mac) {
+        return getPendingCount(mac) >= QUEUE_CAPACITY;
+    }
+
+    private DeviceQueue getQueue(String mac) {
+        synchronized (mQueues) {
+            DeviceQueue queue = mQueues.get(mac);
+            if (queue == null) {
+                queue = new DeviceQueue(mac);
+                mQueues.put(mac, queue);
+            }
+            return queue;
+        }
+    }
+
+    /**
+     * write all chunks of a frame
+     *
+     * @return true:whole frame written false:a chunk was rejected or failed
+     */
+    private boolean writeFrame(DeviceQueue queue, byte[] frame, int chunkLength) {
+        if (frame.length <= chunkLength) {
+            return writeChunk(queue, frame);
+        }
+        int idx = 0;
+        while (idx < frame.length) {
+            int size = Math.min(frame.length - idx, chunkLength);
+            byte[] chunk = new byte[size];
+            System.arraycopy(frame, idx, chunk, 0, size);
+            idx += size;
+            if (!writeChunk(queue, chunk)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * write one chunk and wait until the ble stack reports it written.
+     * a chunk rejected while the stack is busy is retried as soon as the pending operation completes
+     *
+     * @return true:chunk written false:rejected or failed within the write budget of the link
+     */
+    private boolean writeChunk(DeviceQueue queue, byte[] chunk) {
+        long budget;
+        synchronized (queue) {
+            budget = queue.getWriteBudget();
+        }
+        long deadline = System.currentTimeMillis() + budget;
+        try {
+            while (true) {
+                synchronized (queue) {
+                    queue.mWriting = true;
+                    queue.mWriteStatus = WRITE_PENDING;
+                }
+                if (mWriter.writeChunk(queue.mMac, chunk)) {
+                    break;
+                }
+                synchronized (queue) {
+                    queue.mWriting = false;
+                    long remain = deadline - System.currentTimeMillis();
+                    if (remain <= 0) {
+                        return false;
+                    }
+                    queue.wait(Math.min(remain, CHUNK_INTERVAL));
+                }
+            }
+            long start = System.currentTimeMillis();
+            synchronized (queue) {
+                long end = start + (queue.mCompletionReported ? budget : CHUNK_INTERVAL);
+                long remain = end - start;
+                while (queue.mWriting && remain > 0) {
+                    queue.wait(remain);
+                    remain = end - System.currentTimeMillis();
+                }
+                if (queue.mWriting) {
+                    // no completion from this link, pace by interval from now on
+                    queue.mWriting = false;
+                    queue.mCompletionReported = false;
+                    return true;
+                }
+                if (queue.mWriteStatus != BluetoothGatt.GATT_SUCCESS) {
+                    return false;
+                }
+                queue.onWriteTime(System.currentTimeMillis() - start);
+                return true;
+            }
+        }
+        catch (InterruptedException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private class DeviceQueue implements Runnable {
+        private final String mMac;
+        private final ArrayDeque<byte[]> mFrames;
+
+        /**
+         * queued frame of every coalesce key
+         */
+        private final Map<Integer, byte[]> mLatest;
+        private boolean mRunning;
+        private int mCoalescedCount;
+        private int mChunkLength;
+        private int mFailedCount;
+
+        /**
+         * a written chunk is waiting for completion
+         */
+        private boolean mWriting;
+        private int mWriteStatus;
+        private boolean mCompletionReported = true;
+
+        /**
+         * average completion time of a write in milliseconds
+         */
+        private long mWriteTime = CHUNK_INTERVAL;
+
+        private DeviceQueue(String mac) {
+            mMac = mac;
+            mChunkLength = BleSendQueue.this.mChunkLength;
+            mFrames = new ArrayDeque<>();
+            mLatest = new HashMap<>();
+        }
+
+        private long getWriteBudget() {
+            return Math.max(WRITE_BUDGET_MIN, Math.min(WRITE_BUDGET_MAX, mWriteTime * WRITE_BUDGET_FACTOR));
+        }
+
+        private void onWriteTime(long time) {
+            mWriteTime = (mWriteTime * 7 + time) / 8;
+        }
+
+        @Override
+        public void run() {
+            boolean drained = false;
+            try {
+                while (true) {
+                    byte[] frame;
+                    int chunkLength;
+                    synchronized (this) {
+                        frame = mFrames.poll();
+                        if (frame == null) {
+                            mRunning = false;
+                            drained = true;
+                            return;
+                        }
+                        if (!mLatest.isEmpty()) {
+                            mLatest.values().remove(frame);
+                        }
+                        chunkLength = mChunkLength;
+                    }
+                    if (!writeFrame(this, frame, chunkLength)) {
+                        Log.e(TAG, "writeFrame: failed " + mMac);
+                        synchronized (this) {
+                            mFailedCount++;
+                        }
+                        mWriter.onFrameFailed(mMac, frame);
+                    }
+                    if (frame.length > chunkLength) {
+                        sleep(mFrameInterval);
+                    }
+                }
+            }
+            finally {
+                if (!drained) {
+                    // writer threw, the frame in hand is lost but the rest of the queue must keep draining
+                    synchronized (this) {
+                        mWriting = false;
+                        if (mFrames.isEmpty()) {
+                            mRunning = false;
+                        } else {
+                            mExecutor.execute(this);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.liruya.tuner168blemanager;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Build;
+import android.support.annotation.NonNull;
+
+import com.ble.ble.BleCallBack;
+import com.ble.ble.BleService;
+import com.ble.ble.constants.BleUUIDS;
+import com.ble.ble.util.GattUtil;
+
+/**
+ * Transport backed by {@link BleService} of the vendor library.
+ */
+class BleServiceTransport implements BleTransport {
+    private final BleService mService;
+    private BleCallBack mCallback;
+
+    BleServiceTransport(@NonNull BleService.LocalBinder binder, @NonNull BleCallBack callback) {
+        mCallback = callback;
+        mService = binder.getService(callback);
+        mService.setDecode(true);
+        mService.setConnectTimeout(4000);
+        //必须调用初始化方法
+        mService.initialize();
+    }
+
+    @Override
+    public synchronized void setCallback(BleCallBack callback) {
+        if (mCallback == callback) {
+            return;
+        }
+        if (mCallback != null) {
+            mService.removeBleCallBack(mCallback);
+        }
+        mCallback = callback;
+        if (callback != null) {
+            mService.addBleCallBack(callback);
+        }
+    }
+
+    @Override
+    public boolean connect(@NonNull String mac, boolean autoConnect) {
+        return mService.connect(mac, autoConnect);
+    }
+
+    @Override
+    public void setAutoConnect(@NonNull String mac, boolean autoConnect) {
+        mService.setAutoConnect(mac, autoConnect);
+    }
+
+    @Override
+    public void disconnect(@NonNull String mac) {
+        mService.disconnect(mac);
+    }
+
+    @Override
+    public void disconnectAll() {
+        mService.disconnectAll();
+    }
+
+    @Override
+    public void refresh(@NonNull String mac) {
+        mService.refresh(mac);
+    }
+
+    @Override
+    public int getConnectionState(@NonNull String mac) {
+        return mService.getConnectionState(mac);
+    }
+
+    @Override
+    public boolean enableNotification(@NonNull String mac) {
+        BluetoothGatt gatt = mService.getBluetoothGatt(mac);
+        BluetoothGattCharacteristic characteristic = GattUtil.getGattCharacteristic(gatt, BleUUIDS.PRIMARY_SERVICE, BleUUIDS.CHARACTERS[1]);
+        return mService.setCharacteristicNotification(gatt, characteristic, true);
+    }
+
+    @Override
+    public boolean requestMtu(@NonNull String mac, int mtu) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        return mService.requestMtu(mac, mtu);
+    }
+
+    @Override
+    public boolean requestConnectionPriority(@NonNull String mac, int priority) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        BluetoothGatt gatt = mService.getBluetoothGatt(mac);
+        return gatt != null && gatt.requestConnectionPriority(priority);
+    }
+
+    @Override
+    public boolean write(@NonNull String mac, @NonNull byte[] bytes) {
+        return mService.send(mac, bytes, true);
+    }
+
+    @Override
+    public void readReg(@NonNull String mac, int reg) {
+        mService.readReg(mac, reg);
+    }
+
+    @Override
+    public void setReg(@NonNull String mac, int reg, int value) {
+        mService.setReg(mac, reg, value);
+    }
+
+    @Override
+    public void setSlaverName(@NonNull String mac, @NonNull String name) {
+        mService.setSlaverName(mac, name);
+    }
+
+    @Override
+    public void startReadRssi(@NonNull String mac, int interval) {
+        mService.startReadRssi(mac, interval);
+    }
+
+    @Override
+    public void stopReadRssi(@NonNull String mac) {
+        mService.stopReadRssi(mac);
+    }
+}
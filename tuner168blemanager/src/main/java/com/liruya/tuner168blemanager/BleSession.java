@@ -0,0 +1,83 @@
+package com.liruya.tuner168blemanager;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Login data of a device read on an earlier link, lets a reconnect skip the password and mfr reads.
+ * Cached by {@link BleManager} per mac address and dropped after {@link #SESSION_TIMEOUT} without a link,
+ * a session never expires while its link is up.
+ */
+public class BleSession {
+    /**
+     * max time a session stays valid since the link went down
+     */
+    public static final long SESSION_TIMEOUT = 10 * 60 * 1000;
+
+    private final String mMac;
+    private boolean mHasPassword;
+    private int mPassword;
+    private String mMfr;
+    private long mActiveTime;
+    private boolean mLinked;
+
+    BleSession(@NonNull String mac) {
+        mMac = mac;
+        mActiveTime = System.currentTimeMillis();
+    }
+
+    public String getMac() {
+        return mMac;
+    }
+
+    public synchronized boolean hasPassword() {
+        return mHasPassword;
+    }
+
+    public synchronized int getPassword() {
+        return mPassword;
+    }
+
+    /**
+     * @return manufacturer data as read by {@link BleManager#readMfr(String)}, null if not read
+     */
+    public synchronized String getMfr() {
+        return mMfr;
+    }
+
+    /**
+     * @return true:password and mfr are both known, login handshake may be skipped
+     */
+    public synchronized boolean isVerified() {
+        return mHasPassword && mMfr != null;
+    }
+
+    synchronized void setPassword(int password) {
+        mHasPassword = true;
+        mPassword = password;
+        mActiveTime = System.currentTimeMillis();
+    }
+
+    synchronized void setMfr(String mfr) {
+        mMfr = mfr;
+        mActiveTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @param linked true:link is ready false:link is down, a failed connect does not renew the session
+     * @param now current time in milliseconds
+     */
+    synchronized void setLinked(boolean linked, long now) {
+        if (mLinked || linked) {
+            mActiveTime = now;
+        }
+        mLinked = linked;
+    }
+
+    synchronized boolean isExpired() {
+        return isExpired(System.currentTimeMillis());
+    }
+
+    synchronized boolean isExpired(long now) {
+        return !mLinked && now - mActiveTime > SESSION_TIMEOUT;
+    }
+}
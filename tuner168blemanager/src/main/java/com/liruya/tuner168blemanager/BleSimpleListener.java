@@ -60,6 +60,13 @@ public abstract class BleSimpleListener extends BleListener {
         }
     }
 
+    @Override
+    protected void onFrameReceived(String mac, byte[] bytes, int offset, int length) {
+        if (TextUtils.equals(mAddress, mac)) {
+            onFrameReceived(bytes, offset, length);
+        }
+    }
+
     @Override
     protected void onReadMfr(String mac, String s) {
         if (TextUtils.equals(mAddress, mac)) {
@@ -88,6 +95,8 @@ public abstract class BleSimpleListener extends BleListener {
 
     public void onDataReceived(List<Byte> bytes) {}
 
+    public void onFrameReceived(byte[] bytes, int offset, int length) {}
+
     public void onReadMfr(String s) {}
 
     public void onReadPassword(int password) {}
@@ -0,0 +1,95 @@
+package com.liruya.tuner168blemanager;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Peripheral attached to a {@link BleSimulatedTransport}.
+ * All methods are called on the transport thread.
+ */
+public abstract class BleSimulatedDevice {
+    private BleSimulatedTransport mTransport;
+    private String mMac;
+    private String mName;
+    private byte[] mMfr = new byte[0];
+    private int mPassword;
+    private int mRssi = -60;
+
+    /**
+     * called for every packet written by the phone, packets of a long frame arrive one by one
+     *
+     * @param bytes packet
+     */
+    protected abstract void onWrite(@NonNull byte[] bytes);
+
+    protected void onConnected() {
+
+    }
+
+    protected void onDisconnected() {
+
+    }
+
+    /**
+     * send data to the phone, split into packets of the link mtu
+     *
+     * @param bytes data
+     */
+    protected final void sendNotification(@NonNull byte[] bytes) {
+        if (mTransport != null) {
+            mTransport.notifyData(mMac, bytes);
+        }
+    }
+
+    /**
+     * drop the link from device side, e.g. reset
+     */
+    protected final void disconnect() {
+        if (mTransport != null) {
+            mTransport.onDeviceDisconnect(mMac);
+        }
+    }
+
+    void attach(BleSimulatedTransport transport, String mac) {
+        mTransport = transport;
+        mMac = mac;
+    }
+
+    public String getMac() {
+        return mMac;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public void setName(String name) {
+        mName = name;
+    }
+
+    /**
+     * @return manufacturer specific data read by {@link BleManager#readMfr(String)}
+     */
+    public byte[] getMfr() {
+        return mMfr;
+    }
+
+    public void setMfr(@NonNull byte[] mfr) {
+        mMfr = mfr;
+    }
+
+    public int getPassword() {
+        return mPassword;
+    }
+
+    public void setPassword(int password) {
+        mPassword = password;
+    }
+
+    public int getRssi() {
+        return mRssi;
+    }
+
+    public void setRssi(int rssi) {
+        mRssi = rssi;
+    }
+}
@@ -0,0 +1,624 @@
+package com.liruya.tuner168blemanager;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothProfile;
+import android.support.annotation.NonNull;
+
+import com.ble.ble.BleCallBack;
+import com.ble.ble.constants.BleRegConstants;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory transport for load tests and reproducing field issues without hardware.
+ * Every packet is delayed by latency plus a random jitter and may be lost,
+ * packets longer than mtu - 3 are rejected like on a real link.
+ * Writes of a link may be spaced by the connection interval of its priority, see {@link #setConnectionInterval(int, int)}.
+ * Packets of one direction keep their order, a link dropped by device goes down after its last packet.
+ * Does not use android apis, so it runs on the JVM.
+ */
+public class BleSimulatedTransport implements BleTransport {
+    private static final String TAG = "BleSimulatedTransport";
+
+    public static final int DEFAULT_MTU = 23;
+
+    /**
+     * att header length, payload of a packet is mtu - 3
+     */
+    private static final int ATT_HEADER_LENGTH = 3;
+
+    private static final int CONNECT_TIMEOUT = 4000;
+
+    private final Map<String, BleSimulatedDevice> mDevices;
+    private final Map<String, Integer> mStates;
+    private final Set<String> mAutoConnects;
+    private final Map<String, ScheduledFuture<?>> mRssiFutures;
+    private final ScheduledExecutorService mScheduler;
+    private final Random mRandom;
+    private volatile BleCallBack mCallback;
+
+    private volatile int mLatency;
+    private volatile int mJitter;
+    private volatile int mMtu = DEFAULT_MTU;
+    private volatile float mLossRate;
+    private final Map<String, Integer> mLinkMtus = new HashMap<>();
+    private final int[] mIntervals = new int[3];
+    private final Map<String, Integer> mLinkPriorities = new HashMap<>();
+
+    private final ArrayDeque<Runnable> mUplink = new ArrayDeque<>();
+    private final ArrayDeque<Runnable> mDownlink = new ArrayDeque<>();
+    private long mUplinkTime;
+    private long mDownlinkTime;
+
+    private final AtomicLong mWrittenPackets = new AtomicLong();
+    private final AtomicLong mWrittenBytes = new AtomicLong();
+    private final AtomicLong mNotifiedPackets = new AtomicLong();
+    private final AtomicLong mNotifiedBytes = new AtomicLong();
+    private final AtomicLong mLostPackets = new AtomicLong();
+
+    public BleSimulatedTransport() {
+        this(System.nanoTime());
+    }
+
+    /**
+     * @param seed seed of loss and jitter, same seed reproduces same run
+     */
+    public BleSimulatedTransport(long seed) {
+        mDevices = new HashMap<>();
+        mStates = new HashMap<>();
+        mAutoConnects = new HashSet<>();
+        mRssiFutures = new HashMap<>();
+        mRandom = new Random(seed);
+        mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param mac device mac address
+     * @param device simulated peripheral answering at mac
+     */
+    public void addDevice(@NonNull String mac, @NonNull BleSimulatedDevice device) {
+        device.attach(this, mac);
+        synchronized (mDevices) {
+            mDevices.put(mac, device);
+        }
+    }
+
+    public void removeDevice(@NonNull String mac) {
+        setAutoConnect(mac, false);
+        disconnect(mac);
+        synchronized (mDevices) {
+            mDevices.remove(mac);
+        }
+    }
+
+    /**
+     * @param latency one way delay of every packet in milliseconds
+     */
+    public void setLatency(int latency) {
+        mLatency = latency;
+    }
+
+    /**
+     * @param jitter max random delay added to latency in milliseconds
+     */
+    public void setJitter(int jitter) {
+        mJitter = jitter;
+    }
+
+    /**
+     * links start at {@link #DEFAULT_MTU}, {@link #requestMtu(String, int)} raises it up to this value.
+     * a device limited to {@link #DEFAULT_MTU} refuses the exchange
+     *
+     * @param mtu max att mtu supported by devices
+     */
+    public void setMtu(int mtu) {
+        mMtu = mtu;
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * writes to a link of this priority are at least interval apart, 0 by default so only latency applies
+     *
+     * @param priority BluetoothGatt.CONNECTION_PRIORITY_XXX
+     * @param interval connection interval in milliseconds
+     */
+    public void setConnectionInterval(int priority, int interval) {
+        synchronized (mIntervals) {
+            mIntervals[priority] = interval;
+        }
+    }
+
+    /**
+     * @param lossRate probability 0 - 1 that a packet of either direction is lost
+     */
+    public void setLossRate(float lossRate) {
+        mLossRate = lossRate;
+    }
+
+    public long getWrittenPackets() {
+        return mWrittenPackets.get();
+    }
+
+    public long getWrittenBytes() {
+        return mWrittenBytes.get();
+    }
+
+    public long getNotifiedPackets() {
+        return mNotifiedPackets.get();
+    }
+
+    public long getNotifiedBytes() {
+        return mNotifiedBytes.get();
+    }
+
+    public long getLostPackets() {
+        return mLostPackets.get();
+    }
+
+    public void shutdown() {
+        mScheduler.shutdownNow();
+    }
+
+    @Override
+    public void setCallback(BleCallBack callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public boolean connect(@NonNull final String mac, boolean autoConnect) {
+        setAutoConnect(mac, autoConnect);
+        synchronized (mStates) {
+            int state = getState(mac);
+            if (state == BluetoothProfile.STATE_CONNECTED || state == BluetoothProfile.STATE_CONNECTING) {
+                return true;
+            }
+            mStates.put(mac, BluetoothProfile.STATE_CONNECTING);
+        }
+        final BleSimulatedDevice device = getDevice(mac);
+        if (device == null) {
+            mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!setState(mac, BluetoothProfile.STATE_CONNECTING, BluetoothProfile.STATE_DISCONNECTED)) {
+                        return;
+                    }
+                    BleCallBack callback = mCallback;
+                    if (callback != null) {
+                        callback.onConnectTimeout(mac);
+                    }
+                }
+            }, CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+            return true;
+        }
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!setState(mac, BluetoothProfile.STATE_CONNECTING, BluetoothProfile.STATE_CONNECTED)) {
+                    return;
+                }
+                device.onConnected();
+                BleCallBack callback = mCallback;
+                if (callback != null) {
+                    callback.onConnected(mac);
+                    callback.onServicesDiscovered(mac);
+                }
+            }
+        }, 2 * mLatency, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    @Override
+    public void setAutoConnect(@NonNull String mac, boolean autoConnect) {
+        synchronized (mAutoConnects) {
+            if (autoConnect) {
+                mAutoConnects.add(mac);
+            } else {
+                mAutoConnects.remove(mac);
+            }
+        }
+    }
+
+    @Override
+    public void disconnect(@NonNull final String mac) {
+        stopReadRssi(mac);
+        synchronized (mStates) {
+            if (getState(mac) == BluetoothProfile.STATE_DISCONNECTED) {
+                return;
+            }
+            mStates.put(mac, BluetoothProfile.STATE_DISCONNECTED);
+        }
+        synchronized (mLinkMtus) {
+            mLinkMtus.remove(mac);
+        }
+        synchronized (mLinkPriorities) {
+            mLinkPriorities.remove(mac);
+        }
+        final BleSimulatedDevice device = getDevice(mac);
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (device != null) {
+                    device.onDisconnected();
+                }
+                BleCallBack callback = mCallback;
+                if (callback != null) {
+                    callback.onDisconnected(mac);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void disconnectAll() {
+        String[] macs;
+        synchronized (mStates) {
+            macs = mStates.keySet().toArray(new String[0]);
+        }
+        for (String mac : macs) {
+            disconnect(mac);
+        }
+    }
+
+    @Override
+    public void refresh(@NonNull String mac) {
+
+    }
+
+    @Override
+    public int getConnectionState(@NonNull String mac) {
+        synchronized (mStates) {
+            return getState(mac);
+        }
+    }
+
+    @Override
+    public boolean enableNotification(@NonNull final String mac) {
+        if (getConnectionState(mac) != BluetoothProfile.STATE_CONNECTED) {
+            return false;
+        }
+        post(false, new Runnable() {
+            @Override
+            public void run() {
+                BleCallBack callback = mCallback;
+                if (callback != null && getConnectionState(mac) == BluetoothProfile.STATE_CONNECTED) {
+                    callback.onDescriptorWrite(mac, null, BluetoothGatt.GATT_SUCCESS);
+                }
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean requestMtu(@NonNull final String mac, final int mtu) {
+        if (getConnectionState(mac) != BluetoothProfile.STATE_CONNECTED) {
+            return false;
+        }
+        post(false, new Runnable() {
+            @Override
+            public void run() {
+                int max = mMtu;
+                int status = max > DEFAULT_MTU ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED;
+                int result = Math.max(DEFAULT_MTU, Math.min(mtu, max));
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    synchronized (mLinkMtus) {
+                        mLinkMtus.put(mac, result);
+                    }
+                }
+                BleCallBack callback = mCallback;
+                if (callback != null && getConnectionState(mac) == BluetoothProfile.STATE_CONNECTED) {
+                    callback.onMtuChanged(mac, getLinkMtu(mac), status);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @param mac device mac address
+     * @return att mtu of the link, {@link #DEFAULT_MTU} until exchanged
+     */
+    public int getLinkMtu(@NonNull String mac) {
+        synchronized (mLinkMtus) {
+            Integer mtu = mLinkMtus.get(mac);
+            return mtu == null ? DEFAULT_MTU : mtu;
+        }
+    }
+
+    @Override
+    public boolean requestConnectionPriority(@NonNull String mac, int priority) {
+        if (getConnectionState(mac) != BluetoothProfile.STATE_CONNECTED) {
+            return false;
+        }
+        synchronized (mLinkPriorities) {
+            mLinkPriorities.put(mac, priority);
+        }
+        return true;
+    }
+
+    /**
+     * @param mac device mac address
+     * @return BluetoothGatt.CONNECTION_PRIORITY_XXX of the link, balanced until requested
+     */
+    public int getLinkPriority(@NonNull String mac) {
+        synchronized (mLinkPriorities) {
+            Integer priority = mLinkPriorities.get(mac);
+            return priority == null ? BluetoothGatt.CONNECTION_PRIORITY_BALANCED : priority;
+        }
+    }
+
+    @Override
+    public boolean write(@NonNull final String mac, @NonNull byte[] bytes) {
+        if (bytes.length > getLinkMtu(mac) - ATT_HEADER_LENGTH || getConnectionState(mac) != BluetoothProfile.STATE_CONNECTED) {
+            return false;
+        }
+        final BleSimulatedDevice device = getDevice(mac);
+        if (device == null) {
+            return false;
+        }
+        mWrittenPackets.incrementAndGet();
+        mWrittenBytes.addAndGet(bytes.length);
+        final boolean lost = isLost();
+        final byte[] packet = bytes.clone();
+        int interval;
+        synchronized (mIntervals) {
+            interval = mIntervals[getLinkPriority(mac)];
+        }
+        post(true, interval, new Runnable() {
+            @Override
+            public void run() {
+                if (getConnectionState(mac) != BluetoothProfile.STATE_CONNECTED) {
+                    return;
+                }
+                if (!lost) {
+                    device.onWrite(packet);
+                }
+                // write without response completes once sent, even if lost on air
+                BleCallBack callback = mCallback;
+                if (callback != null) {
+                    callback.onCharacteristicWrite(mac, null, BluetoothGatt.GATT_SUCCESS);
+                }
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void readReg(@NonNull final String mac, final int reg) {
+        final BleSimulatedDevice device = getDevice(mac);
+        if (device == null || getConnectionState(mac) != BluetoothProfile.STATE_CONNECTED) {
+            return;
+        }
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                byte[] value;
+                if (reg == BleRegConstants.REG_ADV_MFR_SPC) {
+                    value = device.getMfr();
+                } else if (reg == BleRegConstants.REG_PASSWORD) {
+                    int psw = device.getPassword();
+                    value = new byte[]{(byte) (psw >> 24), (byte) (psw >> 16), (byte) (psw >> 8), (byte) psw};
+                } else {
+                    return;
+                }
+                BleCallBack callback = mCallback;
+                if (callback != null) {
+                    callback.onRegRead(mac, toHex(value), reg, 0);
+                }
+            }
+        }, 2 * mLatency, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void setReg(@NonNull String mac, int reg, int value) {
+        BleSimulatedDevice device = getDevice(mac);
+        if (device != null && reg == BleRegConstants.REG_PASSWORD) {
+            device.setPassword(value);
+        }
+    }
+
+    @Override
+    public void setSlaverName(@NonNull String mac, @NonNull String name) {
+        BleSimulatedDevice device = getDevice(mac);
+        if (device != null) {
+            device.setName(name);
+        }
+    }
+
+    @Override
+    public void startReadRssi(@NonNull final String mac, int interval) {
+        stopReadRssi(mac);
+        final BleSimulatedDevice device = getDevice(mac);
+        if (device == null) {
+            return;
+        }
+        ScheduledFuture<?> future = mScheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                BleCallBack callback = mCallback;
+                if (callback != null && getConnectionState(mac) == BluetoothProfile.STATE_CONNECTED) {
+                    callback.onReadRemoteRssi(mac, device.getRssi(), 0);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        synchronized (mRssiFutures) {
+            mRssiFutures.put(mac, future);
+        }
+    }
+
+    @Override
+    public void stopReadRssi(@NonNull String mac) {
+        ScheduledFuture<?> future;
+        synchronized (mRssiFutures) {
+            future = mRssiFutures.remove(mac);
+        }
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * split data of device into packets and deliver them to the phone
+     */
+    void notifyData(@NonNull final String mac, @NonNull byte[] bytes) {
+        int size = getLinkMtu(mac) - ATT_HEADER_LENGTH;
+        for (int idx = 0; idx < bytes.length; idx += size) {
+            final byte[] packet = new byte[Math.min(size, bytes.length - idx)];
+            System.arraycopy(bytes, idx, packet, 0, packet.length);
+            mNotifiedPackets.incrementAndGet();
+            mNotifiedBytes.addAndGet(packet.length);
+            if (isLost()) {
+                continue;
+            }
+            post(false, new Runnable() {
+                @Override
+                public void run() {
+                    BleCallBack callback = mCallback;
+                    if (callback != null && getConnectionState(mac) == BluetoothProfile.STATE_CONNECTED) {
+                        callback.onCharacteristicChanged(mac, packet);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * link dropped by device, reconnect later if auto connect is set
+     */
+    void onDeviceDisconnect(@NonNull final String mac) {
+        post(false, new Runnable() {
+            @Override
+            public void run() {
+                disconnect(mac);
+                boolean auto;
+                synchronized (mAutoConnects) {
+                    auto = mAutoConnects.contains(mac);
+                }
+                if (auto) {
+                    mScheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            connect(mac, true);
+                        }
+                    }, 2 * mLatency, TimeUnit.MILLISECONDS);
+                }
+            }
+        });
+    }
+
+    /**
+     * run task after link delay, tasks of one direction run in the order posted
+     * even when their delays are rounded differently
+     */
+    private void post(boolean uplink, @NonNull Runnable task) {
+        post(uplink, 0, task);
+    }
+
+    /**
+     * @param spacing min time after previous packet of same direction
+     */
+    private void post(boolean uplink, long spacing, @NonNull Runnable task) {
+        final ArrayDeque<Runnable> queue = uplink ? mUplink : mDownlink;
+        synchronized (queue) {
+            queue.offer(task);
+        }
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Runnable head;
+                synchronized (queue) {
+                    head = queue.poll();
+                }
+                if (head != null) {
+                    head.run();
+                }
+            }
+        }, nextDelay(uplink, spacing), TimeUnit.MILLISECONDS);
+    }
+
+    private BleSimulatedDevice getDevice(String mac) {
+        synchronized (mDevices) {
+            return mDevices.get(mac);
+        }
+    }
+
+    private int getState(String mac) {
+        Integer state = mStates.get(mac);
+        return state == null ? BluetoothProfile.STATE_DISCONNECTED : state;
+    }
+
+    private boolean setState(String mac, int expect, int update) {
+        synchronized (mStates) {
+            if (getState(mac) != expect) {
+                return false;
+            }
+            mStates.put(mac, update);
+            return true;
+        }
+    }
+
+    private boolean isLost() {
+        float lossRate = mLossRate;
+        if (lossRate <= 0) {
+            return false;
+        }
+        boolean lost;
+        synchronized (mRandom) {
+            lost = mRandom.nextFloat() < lossRate;
+        }
+        if (lost) {
+            mLostPackets.incrementAndGet();
+        }
+        return lost;
+    }
+
+    /**
+     * @param uplink true:phone to device false:device to phone
+     * @param spacing min time after previous packet of same direction
+     * @return delay of next packet, never earlier than previous packet of same direction
+     */
+    private synchronized long nextDelay(boolean uplink, long spacing) {
+        long now = System.currentTimeMillis();
+        long delay = mLatency;
+        if (mJitter > 0) {
+            synchronized (mRandom) {
+                delay += mRandom.nextInt(mJitter + 1);
+            }
+        }
+        long time = Math.max(now + delay, (uplink ? mUplinkTime : mDownlinkTime) + spacing);
+        if (uplink) {
+            mUplinkTime = time;
+        } else {
+            mDownlinkTime = time;
+        }
+        return time - now;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02X", b & 0xFF));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,179 @@
+package com.liruya.tuner168blemanager;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Link traffic captured by {@link BleManager#startTrace(java.io.OutputStream)}, replayed by {@link BleReplayTransport}.
+ * Binary layout, numbers are unsigned varints unless noted:
+ * <pre>
+ * header: "BLET", version byte, start time as 8 byte big endian epoch milliseconds
+ * record: type byte, milliseconds since previous record, mac id, data length, data
+ * </pre>
+ * A {@link #TYPE_MAC} record carries the mac in ascii and defines the next id, starting at 0.
+ */
+public class BleTrace {
+    static final byte[] MAGIC = {'B', 'L', 'E', 'T'};
+    static final int VERSION = 1;
+    static final Charset ASCII = Charset.forName("US-ASCII");
+
+    public static final int TYPE_MAC = 0;
+    public static final int TYPE_WRITE = 1;
+    public static final int TYPE_NOTIFY = 2;
+    public static final int TYPE_READY = 3;
+    public static final int TYPE_DISCONNECTED = 4;
+
+    public static class Record {
+        private final int mType;
+        private final long mTime;
+        private final String mMac;
+        private final byte[] mData;
+
+        Record(int type, long time, String mac, byte[] data) {
+            mType = type;
+            mTime = time;
+            mMac = mac;
+            mData = data;
+        }
+
+        /**
+         * @return TYPE_XXX
+         */
+        public int getType() {
+            return mType;
+        }
+
+        /**
+         * @return milliseconds since trace started
+         */
+        public long getTime() {
+            return mTime;
+        }
+
+        public String getMac() {
+            return mMac;
+        }
+
+        /**
+         * @return chunk written or notification received, empty for link events
+         */
+        public byte[] getData() {
+            return mData;
+        }
+    }
+
+    private final long mStartTime;
+    private final List<Record> mRecords;
+
+    private BleTrace(long startTime, List<Record> records) {
+        mStartTime = startTime;
+        mRecords = Collections.unmodifiableList(records);
+    }
+
+    /**
+     * @return epoch milliseconds the recording started
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * @return records in recorded order, mac definitions are resolved and not included
+     */
+    public List<Record> getRecords() {
+        return mRecords;
+    }
+
+    /**
+     * @return records of one device
+     */
+    public List<Record> getRecords(@NonNull String mac) {
+        List<Record> list = new ArrayList<>();
+        for (Record record : mRecords) {
+            if (record.mMac.equals(mac)) {
+                list.add(record);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * @return milliseconds from start to last record
+     */
+    public long getDuration() {
+        return mRecords.isEmpty() ? 0 : mRecords.get(mRecords.size() - 1).mTime;
+    }
+
+    /**
+     * read a whole trace, a record cut off at the end of a trace not stopped cleanly is ignored
+     *
+     * @param in trace stream, not closed
+     * @throws IOException not a trace or read failure
+     */
+    public static BleTrace read(@NonNull InputStream in) throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(in));
+        byte[] magic = new byte[MAGIC.length];
+        dis.readFully(magic);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                throw new IOException("not a ble trace");
+            }
+        }
+        int version = dis.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported trace version " + version);
+        }
+        long startTime = dis.readLong();
+        List<String> macs = new ArrayList<>();
+        List<Record> records = new ArrayList<>();
+        long time = 0;
+        while (true) {
+            int type = dis.read();
+            if (type < 0) {
+                break;
+            }
+            try {
+                time += readVarint(dis);
+                int id = (int) readVarint(dis);
+                byte[] data = new byte[(int) readVarint(dis)];
+                dis.readFully(data);
+                if (type == TYPE_MAC) {
+                    macs.add(new String(data, ASCII));
+                } else if (id < macs.size()) {
+                    records.add(new Record(type, time, macs.get(id), data));
+                } else {
+                    throw new IOException("undefined mac id " + id);
+                }
+            }
+            catch (EOFException e) {
+                break;
+            }
+        }
+        return new BleTrace(startTime, records);
+    }
+
+    static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+            if (shift > 63) {
+                throw new IOException("varint too long");
+            }
+        }
+    }
+}
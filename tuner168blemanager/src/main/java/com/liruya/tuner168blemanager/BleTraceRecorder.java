@@ -0,0 +1,95 @@
+package com.liruya.tuner168blemanager;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes link traffic to a stream in the {@link BleTrace} layout.
+ * Called from ble callbacks and writer threads, records keep the order they are written in.
+ * Recording stops at the first write error, the trace written so far stays readable.
+ */
+class BleTraceRecorder {
+    private static final String TAG = "BleTraceRecorder";
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final DataOutputStream mOut;
+    private final Map<String, Integer> mMacIds;
+    private final long mStartTime;
+    private long mLastTime;
+    private boolean mClosed;
+
+    BleTraceRecorder(@NonNull OutputStream out) throws IOException {
+        mOut = new DataOutputStream(new BufferedOutputStream(out));
+        mMacIds = new HashMap<>();
+        mStartTime = System.currentTimeMillis();
+        mLastTime = mStartTime;
+        mOut.write(BleTrace.MAGIC);
+        mOut.writeByte(BleTrace.VERSION);
+        mOut.writeLong(mStartTime);
+    }
+
+    void record(int type, @NonNull String mac) {
+        record(type, mac, EMPTY, 0, 0);
+    }
+
+    synchronized void record(int type, @NonNull String mac, @NonNull byte[] bytes, int offset, int length) {
+        if (mClosed) {
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            Integer id = mMacIds.get(mac);
+            if (id == null) {
+                id = mMacIds.size();
+                mMacIds.put(mac, id);
+                byte[] ascii = mac.getBytes(BleTrace.ASCII);
+                writeRecord(BleTrace.TYPE_MAC, now, id, ascii, 0, ascii.length);
+            }
+            writeRecord(type, now, id, bytes, offset, length);
+        }
+        catch (IOException e) {
+            Log.e(TAG, "record: stopped", e);
+            close();
+        }
+    }
+
+    synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            mOut.close();
+        }
+        catch (IOException e) {
+            Log.e(TAG, "close: ", e);
+        }
+    }
+
+    private void writeRecord(int type, long now, int id, byte[] bytes, int offset, int length) throws IOException {
+        // clock may step back, deltas are unsigned
+        long delta = Math.max(0, now - mLastTime);
+        mLastTime = Math.max(mLastTime, now);
+        mOut.writeByte(type);
+        writeVarint(delta);
+        writeVarint(id);
+        writeVarint(length);
+        mOut.write(bytes, offset, length);
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            mOut.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        mOut.writeByte((int) value);
+    }
+}
@@ -0,0 +1,84 @@
+package com.liruya.tuner168blemanager;
+
+import android.support.annotation.NonNull;
+
+import com.ble.ble.BleCallBack;
+
+/**
+ * Link layer under {@link BleManager}.
+ * The default transport is backed by {@link com.ble.ble.BleService},
+ * {@link BleSimulatedTransport} runs on the JVM without hardware.
+ * Events are reported through the {@link BleCallBack} given to {@link #setCallback(BleCallBack)}.
+ */
+public interface BleTransport {
+    /**
+     * @param callback receives link events, null to detach
+     */
+    void setCallback(BleCallBack callback);
+
+    /**
+     * @param mac device mac address
+     * @param autoConnect reconnect automatically after link lost
+     * @return true:connect started false:failure
+     */
+    boolean connect(@NonNull String mac, boolean autoConnect);
+
+    void setAutoConnect(@NonNull String mac, boolean autoConnect);
+
+    void disconnect(@NonNull String mac);
+
+    void disconnectAll();
+
+    void refresh(@NonNull String mac);
+
+    /**
+     * @param mac device mac address
+     * @return one of BluetoothProfile.STATE_XXX
+     */
+    int getConnectionState(@NonNull String mac);
+
+    /**
+     * enable notification of the data characteristic
+     *
+     * @param mac device mac address
+     * @return true:request accepted
+     */
+    boolean enableNotification(@NonNull String mac);
+
+    /**
+     * exchange att mtu, result is reported by BleCallBack.onMtuChanged
+     *
+     * @param mac device mac address
+     * @param mtu requested mtu
+     * @return true:request started false:not supported
+     */
+    boolean requestMtu(@NonNull String mac, int mtu);
+
+    /**
+     * change connection interval of the link, no result is reported
+     *
+     * @param mac device mac address
+     * @param priority BluetoothGatt.CONNECTION_PRIORITY_XXX
+     * @return true:request sent false:not supported or no link
+     */
+    boolean requestConnectionPriority(@NonNull String mac, int priority);
+
+    /**
+     * write one packet to the data characteristic
+     *
+     * @param mac device mac address
+     * @param bytes packet, no longer than the link allows
+     * @return true:accepted false:busy or failure
+     */
+    boolean write(@NonNull String mac, @NonNull byte[] bytes);
+
+    void readReg(@NonNull String mac, int reg);
+
+    void setReg(@NonNull String mac, int reg, int value);
+
+    void setSlaverName(@NonNull String mac, @NonNull String name);
+
+    void startReadRssi(@NonNull String mac, int interval);
+
+    void stopReadRssi(@NonNull String mac);
+}
@@ -0,0 +1,33 @@
+package com.liruya.tuner168blemanager;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * Read only List view over a range of a byte array, can be pointed at a new range without allocation.
+ */
+class ByteArrayView extends AbstractList<Byte> implements RandomAccess {
+    private byte[] mBytes;
+    private int mOffset;
+    private int mLength;
+
+    ByteArrayView reset(byte[] bytes, int offset, int length) {
+        mBytes = bytes;
+        mOffset = offset;
+        mLength = length;
+        return this;
+    }
+
+    @Override
+    public Byte get(int index) {
+        if (index < 0 || index >= mLength) {
+            throw new IndexOutOfBoundsException("index: " + index + " size: " + mLength);
+        }
+        return mBytes[mOffset + index];
+    }
+
+    @Override
+    public int size() {
+        return mLength;
+    }
+}
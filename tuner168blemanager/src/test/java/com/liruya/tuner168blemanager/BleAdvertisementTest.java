@@ -0,0 +1,55 @@
+package com.liruya.tuner168blemanager;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class BleAdvertisementTest {
+    /**
+     * flags, manufacturer data with devid "0111" in place of id, 128 bit service uuid, name, padding
+     */
+    private static final byte[] RECORD = {
+        0x02, 0x01, 0x06,
+        0x07, (byte) 0xFF, '0', '1', '1', '1', 0x12, 0x34,
+        0x11, 0x07, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+        0x06, 0x09, 'L', 'i', 'g', 'h', 't',
+        0x00, 0x00, 0x00, 0x00
+    };
+
+    @Test
+    public void find_walksStructures() {
+        int offset = BleAdvertisement.find(RECORD, BleAdvertisement.TYPE_MANUFACTURER_DATA);
+        assertEquals(5, offset);
+        assertEquals(6, BleAdvertisement.getLength(RECORD, offset));
+        assertArrayEquals(new byte[] {'0', '1', '1', '1', 0x12, 0x34}, BleAdvertisement.getManufacturerData(RECORD));
+        assertEquals(0x0111, BleAdvertisement.getDevid(RECORD));
+        assertEquals(31, BleAdvertisement.find(RECORD, BleAdvertisement.TYPE_COMPLETE_LOCAL_NAME));
+        assertEquals(-1, BleAdvertisement.find(RECORD, 0x16));
+
+        // length running past the end
+        byte[] cut = Arrays.copyOf(RECORD, 8);
+        assertNull(BleAdvertisement.getManufacturerData(cut));
+        assertEquals(0, BleAdvertisement.getDevid(cut));
+        assertNull(BleAdvertisement.getManufacturerData(null));
+        assertNull(BleAdvertisement.getManufacturerData(new byte[] {0x02, 0x01, 0x06, 0x02, (byte) 0xFF, 0x01}));
+
+        assertEquals(0x0012, BleAdvertisement.parseDevid(new byte[] {'1', '2', 'x', '3'}, 0, 4));
+        assertEquals(0, BleAdvertisement.parseDevid(new byte[] {0x5D, 0x00}, 0, 2));
+    }
+
+    @Test
+    public void isValid_rejectsTruncatedStructures() {
+        assertTrue(BleAdvertisement.isValid(RECORD));
+        assertTrue(BleAdvertisement.isValid(Arrays.copyOf(RECORD, 36)));
+        // padding ends the record
+        assertTrue(BleAdvertisement.isValid(new byte[] {0x02, 0x01, 0x06, 0x00, 0x05}));
+        assertTrue(BleAdvertisement.isValid(new byte[0]));
+
+        assertFalse(BleAdvertisement.isValid(null));
+        assertFalse(BleAdvertisement.isValid(Arrays.copyOf(RECORD, 8)));
+        assertFalse(BleAdvertisement.isValid(Arrays.copyOf(RECORD, 35)));
+        assertFalse(BleAdvertisement.isValid(new byte[] {0x02, 0x01, 0x06, 0x03}));
+    }
+}
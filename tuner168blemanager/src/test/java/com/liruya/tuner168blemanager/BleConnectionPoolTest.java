@@ -0,0 +1,111 @@
+package com.liruya.tuner168blemanager;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BleConnectionPoolTest {
+    private static final String[] MACS = new String[]{"00:11:22:33:44:01", "00:11:22:33:44:02", "00:11:22:33:44:03"};
+    private static final int TIMEOUT = 1000;
+
+    private BleSimulatedTransport mTransport;
+    private BleConnectionPool mPool;
+
+    @Before
+    public void setUp() {
+        mTransport = new BleSimulatedTransport(1);
+        for (String mac : MACS) {
+            mTransport.addDevice(mac, new BleSimulatedDevice() {
+                @Override
+                protected void onWrite(@NonNull byte[] bytes) {
+
+                }
+            });
+        }
+        BleManager.getInstance().setTransport(mTransport);
+        mPool = new BleConnectionPool(BleManager.getInstance(), 2);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mPool.release();
+        for (String mac : MACS) {
+            BleManager.getInstance().disconnectDevice(mac);
+            BleManager.getInstance().awaitConnectionState(mac, BleConnection.STATE_DISCONNECTED, TIMEOUT);
+        }
+        BleManager.getInstance().setTransport(null);
+        mTransport.shutdown();
+    }
+
+    private void awaitReady(String mac) throws InterruptedException {
+        assertTrue(BleManager.getInstance().awaitConnectionState(mac, BleConnection.STATE_READY, TIMEOUT));
+    }
+
+    @Test
+    public void connect_evictsLeastRecentlyUsedIdleLink() throws InterruptedException {
+        mPool.connect(MACS[0]);
+        mPool.connect(MACS[1]);
+        awaitReady(MACS[0]);
+        awaitReady(MACS[1]);
+
+        // first link is used again, second one is evicted
+        mPool.acquire(MACS[0]);
+        mPool.release(MACS[0]);
+        mPool.connect(MACS[2]);
+        // evicted at once, the third device connects once the link is down
+        assertEquals(1, mPool.getEvictedCount());
+        assertFalse(mPool.isLive(MACS[2]) && mPool.isLive(MACS[1]));
+        awaitReady(MACS[2]);
+        assertEquals(BleConnection.STATE_DISCONNECTED, BleManager.getInstance().getConnection(MACS[1]).getState());
+        assertTrue(mPool.isLive(MACS[0]));
+        assertEquals(2, mPool.getLiveCount());
+    }
+
+    @Test
+    public void acquire_keepsLinkAndJumpsQueue() throws InterruptedException {
+        mPool.acquire(MACS[0]);
+        mPool.acquire(MACS[1]);
+        awaitReady(MACS[0]);
+        awaitReady(MACS[1]);
+        mPool.connect(MACS[2], BleConnectionPool.PRIORITY_LOW);
+        assertTrue(mPool.isQueued(MACS[2]));
+        assertEquals(0, mPool.getEvictedCount());
+
+        mPool.release(MACS[1]);
+        awaitReady(MACS[2]);
+        assertTrue(BleManager.getInstance().isDataValid(MACS[0]));
+        assertFalse(mPool.isLive(MACS[1]));
+    }
+
+    @Test
+    public void connectNotStarted_isRetried() throws InterruptedException {
+        // no transport, connect can not be started
+        BleManager.getInstance().setTransport(null);
+        mPool.connect(MACS[0]);
+        assertFalse(mPool.isLive(MACS[0]));
+        assertTrue(mPool.isQueued(MACS[0]));
+
+        BleManager.getInstance().setTransport(mTransport);
+        awaitReady(MACS[0]);
+        assertTrue(mPool.isLive(MACS[0]));
+        assertEquals(0, mPool.getFailedCount());
+    }
+
+    @Test
+    public void connectNotStarted_isDroppedAfterRetries() throws InterruptedException {
+        BleManager.getInstance().setTransport(null);
+        mPool.connect(MACS[0]);
+        long end = System.currentTimeMillis() + 2 * TIMEOUT;
+        while (mPool.isQueued(MACS[0]) && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertFalse(mPool.isQueued(MACS[0]));
+        assertFalse(mPool.isLive(MACS[0]));
+        assertEquals(1, mPool.getFailedCount());
+        BleManager.getInstance().setTransport(mTransport);
+    }
+}
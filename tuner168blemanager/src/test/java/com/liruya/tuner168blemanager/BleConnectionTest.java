@@ -0,0 +1,40 @@
+package com.liruya.tuner168blemanager;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BleConnectionTest {
+    private static final String MAC = "00:11:22:33:44:55";
+
+    @Test
+    public void awaitState_wakesOnTransition() throws InterruptedException {
+        final BleConnection connection = new BleConnection(MAC);
+        connection.setState(BleConnection.STATE_CONNECTING);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                connection.setState(BleConnection.STATE_CONNECTED);
+                connection.setState(BleConnection.STATE_SERVICES_DISCOVERED);
+                connection.compareAndSetState(BleConnection.STATE_SERVICES_DISCOVERED, BleConnection.STATE_NOTIFICATION_ENABLED);
+                connection.compareAndSetState(BleConnection.STATE_NOTIFICATION_ENABLED, BleConnection.STATE_READY);
+            }
+        }).start();
+        assertTrue(connection.awaitState(BleConnection.STATE_READY, 1000));
+        assertTrue(connection.isReady());
+    }
+
+    @Test
+    public void awaitState_timesOut() throws InterruptedException {
+        BleConnection connection = new BleConnection(MAC);
+        assertFalse(connection.awaitState(BleConnection.STATE_READY, 20));
+        assertTrue(connection.awaitState(BleConnection.STATE_DISCONNECTED, 0));
+    }
+
+    @Test
+    public void compareAndSetState_ignoresStaleEvent() {
+        BleConnection connection = new BleConnection(MAC);
+        assertFalse(connection.compareAndSetState(BleConnection.STATE_NOTIFICATION_ENABLED, BleConnection.STATE_READY));
+        assertEquals(BleConnection.STATE_DISCONNECTED, connection.getState());
+    }
+}
@@ -0,0 +1,58 @@
+package com.liruya.tuner168blemanager;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BleFrameParserTest {
+    /**
+     * frame: 0x68 len [data], a frame ending at the tail may go on until the buffer is idle
+     */
+    private static class ExtendableDelimiter implements BleFrameDelimiter {
+        @Override
+        public int match(@NonNull BleReceiveBuffer buffer) {
+            if (buffer.get(0) != 0x68) {
+                return INVALID;
+            }
+            if (buffer.size() < 2 || buffer.size() < buffer.get(1)) {
+                return NEED_MORE;
+            }
+            int len = buffer.get(1);
+            return buffer.size() > len || buffer.isIdle() ? len : NEED_MORE;
+        }
+    }
+
+    private final List<Integer> mFrames = new ArrayList<>();
+
+    private final BleFrameParser.OnFrameListener mListener = new BleFrameParser.OnFrameListener() {
+        @Override
+        public void onFrame(byte[] frame, int offset, int length) {
+            mFrames.add(length);
+        }
+    };
+
+    @Test
+    public void flush_releasesFrameHeldAtTail() {
+        BleFrameParser parser = new BleFrameParser(new ExtendableDelimiter());
+        parser.feed(new byte[]{0x68, 3, 0}, mListener);
+        assertTrue(mFrames.isEmpty());
+        assertTrue(parser.hasPending());
+
+        parser.flush(mListener);
+        assertEquals("[3]", mFrames.toString());
+        assertFalse(parser.hasPending());
+
+        // more data releases it without waiting
+        parser.feed(new byte[]{0x68, 2, 0x68, 2}, mListener);
+        assertEquals("[3, 2]", mFrames.toString());
+        assertTrue(parser.hasPending());
+        // flush does not change the matching of later data
+        parser.feed(new byte[]{0x68}, mListener);
+        assertEquals("[3, 2, 2]", mFrames.toString());
+    }
+}
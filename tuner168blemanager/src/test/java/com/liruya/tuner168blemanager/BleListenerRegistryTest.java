@@ -0,0 +1,126 @@
+package com.liruya.tuner168blemanager;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BleListenerRegistryTest {
+    private static final String MAC = "00:11:22:33:44:55";
+
+    private static class RecordListener extends BleListener {
+        private final List<Integer> mRssis = new ArrayList<>();
+        private final CountDownLatch mDone;
+        private final CountDownLatch mRelease;
+
+        private RecordListener(int count, CountDownLatch release) {
+            mDone = new CountDownLatch(count);
+            mRelease = release;
+        }
+
+        @Override
+        protected void onReadRssi(String mac, int rssi) {
+            try {
+                mRelease.await(1, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            mRssis.add(rssi);
+            mDone.countDown();
+        }
+    }
+
+    private static void dispatchRssi(BleListenerRegistry registry, final int rssi) {
+        registry.dispatch(new BleListenerRegistry.Event() {
+            @Override
+            public void deliver(BleListener listener) {
+                listener.onReadRssi(MAC, rssi);
+            }
+        });
+    }
+
+    @Test
+    public void slowListener_doesNotBlockOthers() throws InterruptedException {
+        BleListenerRegistry registry = new BleListenerRegistry();
+        CountDownLatch release = new CountDownLatch(1);
+        RecordListener slow = new RecordListener(10, release);
+        RecordListener fast = new RecordListener(10, new CountDownLatch(0));
+        registry.add(slow, false);
+        registry.add(fast, false);
+        for (int i = 0; i < 10; i++) {
+            dispatchRssi(registry, i);
+        }
+        assertTrue(fast.mDone.await(1, TimeUnit.SECONDS));
+        assertEquals(0, slow.mRssis.size());
+
+        release.countDown();
+        assertTrue(slow.mDone.await(1, TimeUnit.SECONDS));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, slow.mRssis.get(i).intValue());
+            assertEquals(i, fast.mRssis.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void remove_dropsPendingEvents() throws InterruptedException {
+        BleListenerRegistry registry = new BleListenerRegistry();
+        CountDownLatch release = new CountDownLatch(1);
+        RecordListener listener = new RecordListener(2, release);
+        registry.add(listener, false);
+        registry.add(listener, false);
+        dispatchRssi(registry, 1);
+        dispatchRssi(registry, 2);
+        registry.remove(listener);
+        assertTrue(registry.isEmpty());
+        release.countDown();
+        assertFalse(listener.mDone.await(100, TimeUnit.MILLISECONDS));
+        assertTrue(listener.mRssis.size() <= 1);
+    }
+
+    @Test
+    public void slowListener_dropsOldestEvents() throws InterruptedException {
+        BleListenerRegistry registry = new BleListenerRegistry();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> rssis = new ArrayList<>();
+        final int total = BleListenerRegistry.QUEUE_CAPACITY + 11;
+        final CountDownLatch done = new CountDownLatch(1);
+        registry.add(new BleListener() {
+            @Override
+            protected void onReadRssi(String mac, int rssi) {
+                started.countDown();
+                try {
+                    release.await(1, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                synchronized (rssis) {
+                    rssis.add(rssi);
+                }
+                if (rssi == total - 1) {
+                    done.countDown();
+                }
+            }
+        }, false);
+        dispatchRssi(registry, 0);
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        for (int i = 1; i < total; i++) {
+            dispatchRssi(registry, i);
+        }
+        release.countDown();
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        synchronized (rssis) {
+            // event in delivery plus the newest QUEUE_CAPACITY events
+            assertEquals(BleListenerRegistry.QUEUE_CAPACITY + 1, rssis.size());
+            assertEquals(0, rssis.get(0).intValue());
+            assertEquals(total - BleListenerRegistry.QUEUE_CAPACITY, rssis.get(1).intValue());
+            assertEquals(total - 1, rssis.get(rssis.size() - 1).intValue());
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.liruya.tuner168blemanager;
+
+import android.bluetooth.BluetoothGatt;
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BleManagerTest {
+    private static final String MAC = "00:11:22:33:44:55";
+    private static final int TIMEOUT = 1000;
+
+    private BleSimulatedTransport mTransport;
+    private Device mDevice;
+
+    private static class Device extends BleSimulatedDevice {
+        @Override
+        protected void onWrite(@NonNull byte[] bytes) {
+
+        }
+
+        private void drop() {
+            disconnect();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mTransport = new BleSimulatedTransport(1);
+        mDevice = new Device();
+        mTransport.addDevice(MAC, mDevice);
+        BleManager.getInstance().setTransport(mTransport);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        BleManager.getInstance().disconnectDevice(MAC);
+        BleManager.getInstance().awaitConnectionState(MAC, BleConnection.STATE_DISCONNECTED, TIMEOUT);
+        BleManager.getInstance().setTransport(null);
+        mTransport.shutdown();
+    }
+
+    @Test
+    public void connect_readyOnDescriptorWrite() throws InterruptedException {
+        mTransport.setLatency(5);
+        mTransport.setMtu(247);
+        assertTrue(BleManager.getInstance().connectDevice(MAC));
+        assertTrue(BleManager.getInstance().awaitConnectionState(MAC, BleConnection.STATE_READY, TIMEOUT));
+        assertTrue(BleManager.getInstance().isDataValid(MAC));
+        assertEquals(247 - 6, BleManager.getInstance().getChunkLength(MAC));
+        long timeToReady = BleManager.getInstance().getConnection(MAC).getTimeToReady();
+        assertTrue(timeToReady >= 0 && timeToReady < 300);
+    }
+
+    @Test
+    public void linkLost_reconnectsWithBackoff() throws InterruptedException {
+        BleManager manager = BleManager.getInstance();
+        manager.resetMetrics(MAC);
+        assertTrue(manager.connectDevice(MAC));
+        assertTrue(manager.awaitConnectionState(MAC, BleConnection.STATE_READY, TIMEOUT));
+        manager.setAutoReconnect(MAC, true);
+        assertEquals(0, manager.getReconnectAttempts(MAC));
+
+        mDevice.drop();
+        assertTrue(manager.awaitConnectionState(MAC, BleConnection.STATE_DISCONNECTED, TIMEOUT));
+        assertTrue(manager.awaitConnectionState(MAC, BleConnection.STATE_READY, TIMEOUT));
+        assertEquals(0, manager.getReconnectAttempts(MAC));
+
+        manager.disconnectDevice(MAC);
+        assertEquals(-1, manager.getReconnectAttempts(MAC));
+        BleMetrics metrics = manager.getMetrics(MAC);
+        assertEquals(1, metrics.getLinkDrops());
+        assertEquals(1, metrics.getReconnects());
+    }
+
+    @Test
+    public void bulkTransfer_raisesLinkPriority() throws InterruptedException {
+        BleManager manager = BleManager.getInstance();
+        mTransport.setConnectionInterval(BluetoothGatt.CONNECTION_PRIORITY_HIGH, 2);
+        mTransport.setConnectionInterval(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, 10);
+        assertTrue(manager.connectDevice(MAC));
+        assertTrue(manager.awaitConnectionState(MAC, BleConnection.STATE_READY, TIMEOUT));
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, manager.getConnectionPriority(MAC));
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, mTransport.getLinkPriority(MAC));
+
+        sendAndDrain(manager);
+        manager.beginBulkTransfer(MAC);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_HIGH, manager.getConnectionPriority(MAC));
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_HIGH, mTransport.getLinkPriority(MAC));
+        sendAndDrain(manager);
+        manager.endBulkTransfer(MAC);
+
+        // throughput depends on scheduling of the test host, only check it is measured per priority
+        assertTrue(manager.getThroughput(MAC, BluetoothGatt.CONNECTION_PRIORITY_BALANCED) > 0);
+        assertTrue(manager.getThroughput(MAC, BluetoothGatt.CONNECTION_PRIORITY_HIGH) > 0);
+    }
+
+    private void sendAndDrain(BleManager manager) throws InterruptedException {
+        // single chunk frames, so only the link paces them
+        for (int i = 0; i < 30; i++) {
+            assertTrue(manager.sendBytes(MAC, new byte[16]));
+        }
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (manager.getPendingSendCount(MAC) > 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+    }
+
+    @Test
+    public void reconnectDelay_growsWithJitter() {
+        BleReconnector reconnector = new BleReconnector(new BleReconnector.Connector() {
+            @Override
+            public boolean connect(String mac) {
+                return true;
+            }
+        });
+        for (int i = 0; i < 100; i++) {
+            long delay = reconnector.getDelay(0);
+            assertTrue(delay >= 125 && delay <= 250);
+            delay = reconnector.getDelay(3);
+            assertTrue(delay >= 1000 && delay <= 2000);
+            delay = reconnector.getDelay(40);
+            assertTrue(delay >= 15000 && delay <= 30000);
+        }
+    }
+}
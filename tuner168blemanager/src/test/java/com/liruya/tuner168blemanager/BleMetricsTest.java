@@ -0,0 +1,71 @@
+package com.liruya.tuner168blemanager;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BleMetricsTest {
+    private static final String MAC = "00:11:22:33:44:55";
+
+    @Test
+    public void latency_fillsHistogram() {
+        BleMetricsRecorder recorder = new BleMetricsRecorder();
+        for (int i = 0; i < 8; i++) {
+            recorder.onResponse(MAC, 20);
+        }
+        recorder.onResponse(MAC, 150);
+        recorder.onResponse(MAC, 5000);
+        recorder.onRequestTimeout(MAC);
+        recorder.onChunkWritten(MAC, 20);
+        recorder.onChunkWritten(MAC, 20);
+        recorder.onChunkRejected(MAC);
+
+        BleMetrics metrics = recorder.snapshot(MAC);
+        assertEquals(10, metrics.getRequests());
+        assertEquals(1, metrics.getRequestTimeouts());
+        long[] counts = metrics.getLatencyCounts();
+        assertEquals(BleMetrics.LATENCY_BOUNDS.length + 1, counts.length);
+        assertEquals(8, counts[0]);
+        assertEquals(1, counts[3]);
+        assertEquals(1, counts[counts.length - 1]);
+        assertEquals(25, metrics.getLatencyPercentile(50));
+        assertEquals(200, metrics.getLatencyPercentile(90));
+        assertEquals(Integer.MAX_VALUE, metrics.getLatencyPercentile(100));
+        assertEquals((8 * 20 + 150 + 5000) / 10, metrics.getLatencyAverage());
+        assertEquals(40, metrics.getBytesSent());
+        assertEquals(0.5f, metrics.getRetryRate(), 0.001f);
+    }
+
+    @Test
+    public void rssi_slopeFollowsTrend() {
+        int[] rssis = {-50, -52, -54, -56};
+        long[] times = {0, 15000, 30000, 45000};
+        assertEquals(-8, BleMetricsRecorder.getSlope(rssis, times), 0.001f);
+        assertEquals(0, BleMetricsRecorder.getSlope(new int[]{-50}, new long[]{0}), 0);
+
+        BleMetricsRecorder recorder = new BleMetricsRecorder();
+        for (int i = 0; i < 40; i++) {
+            recorder.onRssi(MAC, -i);
+        }
+        BleMetrics metrics = recorder.snapshot(MAC);
+        int[] samples = metrics.getRssiSamples();
+        assertEquals(32, samples.length);
+        assertEquals(-8, samples[0]);
+        assertEquals(-39, metrics.getRssi());
+    }
+
+    @Test
+    public void snapshot_unknownDeviceIsNotAdded() {
+        BleMetricsRecorder recorder = new BleMetricsRecorder();
+        BleMetrics metrics = recorder.snapshot(MAC);
+        assertEquals(MAC, metrics.getMac());
+        assertEquals(0, metrics.getRequests());
+        assertEquals(0, metrics.getBytesSent());
+        assertEquals(0, metrics.getRssiSamples().length);
+        assertTrue(recorder.getMacs().isEmpty());
+
+        recorder.onChunkWritten(MAC, 20);
+        assertEquals(1, recorder.getMacs().size());
+        assertEquals(20, recorder.snapshot(MAC).getBytesSent());
+    }
+}
@@ -0,0 +1,124 @@
+package com.liruya.tuner168blemanager;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BlePriorityPolicyTest {
+    private static final String MAC = "00:11:22:33:44:55";
+
+    /**
+     * long enough that the scheduled checks never run during a test, checks are run by hand
+     */
+    private static final int IDLE_DELAY = 60 * 1000;
+    private static final int LOW_POWER_DELAY = 5 * 60 * 1000;
+
+    private static class Requester implements BlePriorityPolicy.Requester {
+        private final List<Integer> mRequests = new ArrayList<>();
+
+        @Override
+        public synchronized boolean requestPriority(String mac, int priority) {
+            mRequests.add(priority);
+            return true;
+        }
+
+        private synchronized List<Integer> getRequests() {
+            return new ArrayList<>(mRequests);
+        }
+    }
+
+    private static class ManualClock implements BlePriorityPolicy.Clock {
+        private long mNow = 1000;
+
+        @Override
+        public synchronized long now() {
+            return mNow;
+        }
+
+        private synchronized void advance(long millis) {
+            mNow += millis;
+        }
+    }
+
+    @Test
+    public void transfer_raisesThenDecaysWhenIdle() {
+        Requester requester = new Requester();
+        ManualClock clock = new ManualClock();
+        BlePriorityPolicy policy = new BlePriorityPolicy(requester, clock, IDLE_DELAY, LOW_POWER_DELAY);
+        policy.beginTransfer(MAC);
+        assertEquals(0, requester.getRequests().size());
+
+        policy.onReady(MAC);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_HIGH, policy.getPriority(MAC));
+        clock.advance(2 * IDLE_DELAY);
+        policy.checkIdle(MAC);
+        // open transfer keeps high priority however long it takes
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_HIGH, policy.getPriority(MAC));
+
+        policy.endTransfer(MAC);
+        clock.advance(IDLE_DELAY / 2);
+        policy.checkIdle(MAC);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_HIGH, policy.getPriority(MAC));
+        clock.advance(IDLE_DELAY / 2);
+        policy.checkIdle(MAC);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, policy.getPriority(MAC));
+        clock.advance(LOW_POWER_DELAY);
+        policy.checkIdle(MAC);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER, policy.getPriority(MAC));
+
+        policy.onTraffic(MAC);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, policy.getPriority(MAC));
+        policy.onStreaming(MAC);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_HIGH, policy.getPriority(MAC));
+
+        policy.onLinkLost(MAC);
+        assertEquals(-1, policy.getPriority(MAC));
+        List<Integer> requests = requester.getRequests();
+        assertEquals(5, requests.size());
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_HIGH, requests.get(0).intValue());
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER, requests.get(2).intValue());
+    }
+
+    @Test
+    public void streaming_keepsHighWhileFramesCome() {
+        Requester requester = new Requester();
+        ManualClock clock = new ManualClock();
+        BlePriorityPolicy policy = new BlePriorityPolicy(requester, clock, IDLE_DELAY, LOW_POWER_DELAY);
+        policy.onReady(MAC);
+        for (int i = 0; i < 10; i++) {
+            policy.onStreaming(MAC);
+            clock.advance(IDLE_DELAY / 3);
+            policy.checkIdle(MAC);
+            assertEquals(BluetoothGatt.CONNECTION_PRIORITY_HIGH, policy.getPriority(MAC));
+        }
+        clock.advance(IDLE_DELAY);
+        policy.checkIdle(MAC);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, policy.getPriority(MAC));
+        assertEquals(2, requester.getRequests().size());
+    }
+
+    @Test
+    public void chunkWritten_measuresThroughputPerPriority() {
+        Requester requester = new Requester();
+        ManualClock clock = new ManualClock();
+        BlePriorityPolicy policy = new BlePriorityPolicy(requester, clock, IDLE_DELAY, LOW_POWER_DELAY);
+        policy.onReady(MAC);
+        for (int i = 0; i < 11; i++) {
+            policy.onChunkWritten(MAC, 20);
+            clock.advance(10);
+        }
+        // 200 bytes in 10 gaps of 10ms
+        assertEquals(2000, policy.getThroughput(MAC, BluetoothGatt.CONNECTION_PRIORITY_BALANCED));
+        assertEquals(-1, policy.getThroughput(MAC, BluetoothGatt.CONNECTION_PRIORITY_HIGH));
+
+        // a pause between bursts is not counted
+        clock.advance(1000);
+        policy.onChunkWritten(MAC, 20);
+        assertEquals(2000, policy.getThroughput(MAC, BluetoothGatt.CONNECTION_PRIORITY_BALANCED));
+    }
+}
@@ -0,0 +1,75 @@
+package com.liruya.tuner168blemanager;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BleScanPolicyTest {
+    private static final long BALANCED_DELAY = 1000;
+    private static final long LOW_POWER_DELAY = 5000;
+
+    @Test
+    public void update_decaysWhileQuietAndBurstsOnNewDevice() {
+        BleScanPolicy policy = new BleScanPolicy(BALANCED_DELAY, LOW_POWER_DELAY);
+        policy.start(0);
+        assertEquals(BleScanPolicy.MODE_LOW_LATENCY, policy.update(0));
+        assertEquals(BALANCED_DELAY, policy.getNextChange(0));
+
+        assertTrue(policy.onResult("A", 400));
+        assertFalse(policy.onResult("A", 800));
+        assertEquals(BleScanPolicy.MODE_LOW_LATENCY, policy.update(1399));
+        assertEquals(BleScanPolicy.MODE_BALANCED, policy.update(1400));
+        assertEquals(LOW_POWER_DELAY - BALANCED_DELAY, policy.getNextChange(1400));
+        assertEquals(BleScanPolicy.MODE_LOW_POWER, policy.update(5400));
+        assertEquals(-1, policy.getNextChange(5400));
+
+        // new device raises mode at once, then decays again
+        assertTrue(policy.onResult("B", 8000));
+        assertEquals(BleScanPolicy.MODE_LOW_LATENCY, policy.getMode());
+        assertEquals(BleScanPolicy.MODE_BALANCED, policy.update(9000));
+        policy.stop(10000);
+
+        assertEquals(1, policy.getBursts());
+        assertEquals(2, policy.getDiscoveredCount());
+        assertEquals((400 + 8000) / 2, policy.getAverageDiscoveryLatency());
+        assertEquals(8000, policy.getMaxDiscoveryLatency());
+        assertEquals(1400 + 1000, policy.getModeDuration(BleScanPolicy.MODE_LOW_LATENCY));
+        assertEquals(4000 + 1000, policy.getModeDuration(BleScanPolicy.MODE_BALANCED));
+        assertEquals(2600, policy.getModeDuration(BleScanPolicy.MODE_LOW_POWER));
+    }
+
+    @Test
+    public void start_forgetsLastScan() {
+        BleScanPolicy policy = new BleScanPolicy(BALANCED_DELAY, LOW_POWER_DELAY);
+        assertFalse(policy.onResult("A", 0));
+        policy.start(0);
+        assertTrue(policy.onResult("A", 100));
+        assertEquals(BleScanPolicy.MODE_LOW_POWER, policy.update(LOW_POWER_DELAY + 100));
+        policy.stop(LOW_POWER_DELAY + 100);
+
+        policy.start(10000);
+        assertEquals(BleScanPolicy.MODE_LOW_LATENCY, policy.getMode());
+        assertEquals(0, policy.getDiscoveredCount());
+        assertEquals(-1, policy.getAverageDiscoveryLatency());
+        assertTrue(policy.onResult("A", 10050));
+        assertEquals(50, policy.getMaxDiscoveryLatency());
+    }
+
+    @Test
+    public void forget_returningDeviceBurstsAgain() {
+        BleScanPolicy policy = new BleScanPolicy(BALANCED_DELAY, LOW_POWER_DELAY);
+        policy.start(0);
+        policy.forget("A");
+        assertTrue(policy.onResult("A", 100));
+        assertEquals(BleScanPolicy.MODE_LOW_POWER, policy.update(LOW_POWER_DELAY + 100));
+        assertFalse(policy.onResult("A", 6000));
+
+        policy.forget("A");
+        assertTrue(policy.onResult("A", 7000));
+        assertEquals(BleScanPolicy.MODE_LOW_LATENCY, policy.getMode());
+        assertFalse(policy.onResult("A", 7100));
+        assertEquals(1, policy.getBursts());
+        assertEquals(1, policy.getDiscoveredCount());
+        assertEquals(100, policy.getMaxDiscoveryLatency());
+    }
+}
@@ -0,0 +1,219 @@
+package com.liruya.tuner168blemanager;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class BleSendQueueTest {
+    private static final String MAC = "00:11:22:33:44:55";
+    private static final int KEY = 0x04;
+
+    /**
+     * holds the first frame until released, records every frame written
+     */
+    private static class BlockingWriter implements BleSendQueue.ChunkWriter {
+        private final CountDownLatch mRelease = new CountDownLatch(1);
+        private final CountDownLatch mStarted = new CountDownLatch(1);
+        private final List<byte[]> mWritten = new ArrayList<>();
+
+        @Override
+        public boolean writeChunk(String mac, byte[] chunk) {
+            mStarted.countDown();
+            try {
+                mRelease.await(1, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                return false;
+            }
+            synchronized (mWritten) {
+                mWritten.add(chunk);
+            }
+            return true;
+        }
+
+        @Override
+        public void onFrameFailed(String mac, byte[] frame) {
+
+        }
+
+        private List<byte[]> awaitWritten(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 1000;
+            while (System.currentTimeMillis() < end) {
+                synchronized (mWritten) {
+                    if (mWritten.size() >= count) {
+                        return new ArrayList<>(mWritten);
+                    }
+                }
+                Thread.sleep(5);
+            }
+            synchronized (mWritten) {
+                return new ArrayList<>(mWritten);
+            }
+        }
+    }
+
+    @Test
+    public void offerLatest_keepsNewestFrameOnly() throws InterruptedException {
+        BlockingWriter writer = new BlockingWriter();
+        BleSendQueue queue = new BleSendQueue(writer, 20, 0);
+        byte[] first = new byte[]{0x00};
+        assertTrue(queue.offer(MAC, first));
+        assertTrue(writer.mStarted.await(1, TimeUnit.SECONDS));
+
+        byte[] last = null;
+        for (int i = 1; i <= 50; i++) {
+            last = new byte[]{(byte) i};
+            assertTrue(queue.offerLatest(MAC, last, KEY));
+        }
+        assertEquals(1, queue.getPendingCount(MAC));
+        assertEquals(49, queue.getCoalescedCount(MAC));
+
+        writer.mRelease.countDown();
+        List<byte[]> written = writer.awaitWritten(2);
+        assertEquals(2, written.size());
+        assertSame(first, written.get(0));
+        assertSame(last, written.get(1));
+    }
+
+    @Test
+    public void offerLatest_keepsOrderWithOtherFrames() throws InterruptedException {
+        BlockingWriter writer = new BlockingWriter();
+        BleSendQueue queue = new BleSendQueue(writer, 20, 0);
+        assertTrue(queue.offer(MAC, new byte[]{0x00}));
+        assertTrue(writer.mStarted.await(1, TimeUnit.SECONDS));
+
+        byte[] preview1 = new byte[]{0x01};
+        byte[] stop = new byte[]{0x02};
+        byte[] preview2 = new byte[]{0x03};
+        queue.offerLatest(MAC, preview1, KEY);
+        queue.offer(MAC, stop);
+        queue.offerLatest(MAC, preview2, KEY);
+
+        writer.mRelease.countDown();
+        List<byte[]> written = writer.awaitWritten(3);
+        assertEquals(3, written.size());
+        assertSame(stop, written.get(1));
+        assertSame(preview2, written.get(2));
+    }
+
+    @Test
+    public void writeCompletion_pacesChunks() throws InterruptedException {
+        final List<byte[]> written = new ArrayList<>();
+        final BleSendQueue[] holder = new BleSendQueue[1];
+        final CountDownLatch done = new CountDownLatch(3);
+        BleSendQueue queue = new BleSendQueue(new BleSendQueue.ChunkWriter() {
+            private final AtomicBoolean mBusy = new AtomicBoolean();
+
+            @Override
+            public boolean writeChunk(String mac, byte[] chunk) {
+                if (!mBusy.compareAndSet(false, true)) {
+                    return false;
+                }
+                written.add(chunk);
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mBusy.set(false);
+                        holder[0].onChunkWritten(MAC, 0);
+                        done.countDown();
+                    }
+                }).start();
+                return true;
+            }
+
+            @Override
+            public void onFrameFailed(String mac, byte[] frame) {
+                fail("frame failed");
+            }
+        }, 4, 0);
+        holder[0] = queue;
+        byte[] frame = new byte[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9};
+        assertTrue(queue.offer(MAC, frame));
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals(3, written.size());
+        assertEquals(2, written.get(2).length);
+        assertEquals(8, written.get(2)[0]);
+        assertEquals(0, queue.getFailedCount(MAC));
+    }
+
+    @Test
+    public void rejectedChunk_reportsFailure() throws InterruptedException {
+        final CountDownLatch failed = new CountDownLatch(1);
+        final byte[][] failedFrame = new byte[1][];
+        BleSendQueue queue = new BleSendQueue(new BleSendQueue.ChunkWriter() {
+            @Override
+            public boolean writeChunk(String mac, byte[] chunk) {
+                return false;
+            }
+
+            @Override
+            public void onFrameFailed(String mac, byte[] frame) {
+                failedFrame[0] = frame;
+                failed.countDown();
+            }
+        }, 20, 0);
+        byte[] frame = new byte[]{0x68, 0x05, 0x6D};
+        assertTrue(queue.offer(MAC, frame));
+        assertTrue(failed.await(1, TimeUnit.SECONDS));
+        assertSame(frame, failedFrame[0]);
+        assertEquals(1, queue.getFailedCount(MAC));
+    }
+
+    @Test
+    public void throwingWriter_keepsQueueDraining() throws InterruptedException {
+        final CountDownLatch written = new CountDownLatch(1);
+        final List<byte[]> frames = new ArrayList<>();
+        BleSendQueue queue = new BleSendQueue(new BleSendQueue.ChunkWriter() {
+            private boolean mThrown;
+
+            @Override
+            public boolean writeChunk(String mac, byte[] chunk) {
+                if (!mThrown) {
+                    mThrown = true;
+                    throw new IllegalStateException("gatt gone");
+                }
+                synchronized (frames) {
+                    frames.add(chunk);
+                }
+                written.countDown();
+                return true;
+            }
+
+            @Override
+            public void onFrameFailed(String mac, byte[] frame) {
+
+            }
+        }, 20, 0);
+        byte[] second = new byte[]{0x68, 0x06, 0x6E};
+        assertTrue(queue.offer(MAC, new byte[]{0x68, 0x05, 0x6D}));
+        assertTrue(queue.offer(MAC, second));
+        assertTrue(written.await(1, TimeUnit.SECONDS));
+        synchronized (frames) {
+            assertEquals(1, frames.size());
+            assertArrayEquals(second, frames.get(0));
+        }
+
+        // queue is idle again, a new frame is written
+        byte[] third = new byte[]{0x68, 0x07, 0x6F};
+        assertTrue(queue.offer(MAC, third));
+        long end = System.currentTimeMillis() + 1000;
+        while (System.currentTimeMillis() < end) {
+            synchronized (frames) {
+                if (frames.size() == 2) {
+                    break;
+                }
+            }
+            Thread.sleep(5);
+        }
+        synchronized (frames) {
+            assertEquals(2, frames.size());
+            assertArrayEquals(third, frames.get(1));
+        }
+    }
+}
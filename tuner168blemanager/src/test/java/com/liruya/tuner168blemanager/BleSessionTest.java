@@ -0,0 +1,39 @@
+package com.liruya.tuner168blemanager;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BleSessionTest {
+    private static final String MAC = "00:11:22:33:44:55";
+    private static final long TIMEOUT = BleSession.SESSION_TIMEOUT;
+
+    @Test
+    public void dropAfterLongLink_keepsSession() {
+        BleSession session = new BleSession(MAC);
+        long t0 = System.currentTimeMillis();
+        session.setLinked(true, t0);
+        session.setPassword(0x12345678);
+        session.setMfr("0001");
+
+        // link stays up three times longer than the timeout
+        long drop = t0 + 3 * TIMEOUT;
+        assertFalse(session.isExpired(drop));
+        session.setLinked(false, drop);
+        assertFalse(session.isExpired(drop + TIMEOUT / 2));
+        assertTrue(session.isVerified());
+        assertTrue(session.isExpired(drop + TIMEOUT + 1));
+    }
+
+    @Test
+    public void failedConnect_doesNotRenewSession() {
+        BleSession session = new BleSession(MAC);
+        long t0 = System.currentTimeMillis();
+        session.setLinked(true, t0);
+        session.setLinked(false, t0);
+
+        // connect attempt that never got ready reports disconnected again
+        session.setLinked(false, t0 + TIMEOUT / 2);
+        assertTrue(session.isExpired(t0 + TIMEOUT + 1));
+    }
+}
@@ -0,0 +1,167 @@
+package com.liruya.tuner168blemanager;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BleTraceTest {
+    private static final String MAC = "00:11:22:33:44:55";
+    private static final int TIMEOUT = 1000;
+    private static final int FRAME_LENGTH = 4;
+    private static final int FRAMES = 20;
+
+    private BleReplayTransport mReplay;
+
+    /**
+     * answers every frame with its bytes inverted, split in two notifications
+     */
+    private static class Echo extends BleSimulatedDevice {
+        @Override
+        protected void onWrite(@NonNull byte[] bytes) {
+            byte[] reply = new byte[bytes.length];
+            for (int i = 0; i < bytes.length; i++) {
+                reply[i] = (byte) ~bytes[i];
+            }
+            sendNotification(Arrays.copyOfRange(reply, 0, 2));
+            sendNotification(Arrays.copyOfRange(reply, 2, reply.length));
+        }
+    }
+
+    private static class FixedDelimiter implements BleFrameDelimiter {
+        @Override
+        public int match(@NonNull BleReceiveBuffer buffer) {
+            return buffer.size() >= FRAME_LENGTH ? FRAME_LENGTH : NEED_MORE;
+        }
+    }
+
+    private static class Collector extends BleListener {
+        private final List<byte[]> mFrames = new ArrayList<>();
+
+        @Override
+        protected void onFrameReceived(String mac, byte[] bytes, int offset, int length) {
+            synchronized (mFrames) {
+                mFrames.add(Arrays.copyOfRange(bytes, offset, offset + length));
+                mFrames.notifyAll();
+            }
+        }
+
+        private List<byte[]> await(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + TIMEOUT;
+            synchronized (mFrames) {
+                while (mFrames.size() < count && System.currentTimeMillis() < end) {
+                    mFrames.wait(10);
+                }
+                return new ArrayList<>(mFrames);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        BleManager manager = BleManager.getInstance();
+        manager.stopTrace();
+        manager.removeAllBleListeners();
+        manager.removeFrameDelimiter(MAC);
+        manager.disconnectDevice(MAC);
+        manager.awaitConnectionState(MAC, BleConnection.STATE_DISCONNECTED, TIMEOUT);
+        manager.setTransport(null);
+        if (mReplay != null) {
+            mReplay.shutdown();
+        }
+    }
+
+    @Test
+    public void recordedSession_replaysThroughReceivePath() throws Exception {
+        BleManager manager = BleManager.getInstance();
+        BleSimulatedTransport simulated = new BleSimulatedTransport(1);
+        simulated.setLatency(2);
+        simulated.addDevice(MAC, new Echo());
+        manager.setTransport(simulated);
+        manager.setFrameDelimiter(MAC, new FixedDelimiter());
+        Collector live = new Collector();
+        manager.addBleListener(live);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        manager.startTrace(out);
+        assertTrue(manager.connectDevice(MAC));
+        assertTrue(manager.awaitConnectionState(MAC, BleConnection.STATE_READY, TIMEOUT));
+        for (int i = 0; i < FRAMES; i++) {
+            assertTrue(manager.sendBytes(MAC, new byte[]{(byte) i, 1, 2, 3}));
+        }
+        List<byte[]> liveFrames = live.await(FRAMES);
+        assertEquals(FRAMES, liveFrames.size());
+        for (int i = 0; i < FRAMES; i++) {
+            assertEquals((byte) ~i, liveFrames.get(i)[0]);
+        }
+        manager.stopTrace();
+        manager.removeBleListener(live);
+        manager.disconnectDevice(MAC);
+        assertTrue(manager.awaitConnectionState(MAC, BleConnection.STATE_DISCONNECTED, TIMEOUT));
+        simulated.shutdown();
+
+        BleTrace trace = BleTrace.read(new ByteArrayInputStream(out.toByteArray()));
+        int writes = 0;
+        int notifies = 0;
+        for (BleTrace.Record record : trace.getRecords()) {
+            assertEquals(MAC, record.getMac());
+            if (record.getType() == BleTrace.TYPE_WRITE) {
+                writes++;
+            } else if (record.getType() == BleTrace.TYPE_NOTIFY) {
+                notifies++;
+            }
+        }
+        assertEquals(FRAMES, writes);
+        assertEquals(2 * FRAMES, notifies);
+        assertEquals(BleTrace.TYPE_READY, trace.getRecords().get(0).getType());
+
+        BleReplayTransport replay = new BleReplayTransport(trace);
+        replay.setSpeed(0);
+        mReplay = replay;
+        manager.setTransport(replay);
+        Collector replayed = new Collector();
+        manager.addBleListener(replayed);
+        assertTrue(manager.connectDevice(MAC));
+        assertTrue(replay.awaitDone(MAC, TIMEOUT));
+        assertEquals(2 * FRAMES, replay.getNotifiedCount(MAC));
+        List<byte[]> replayedFrames = replayed.await(FRAMES);
+        assertEquals(FRAMES, replayedFrames.size());
+        for (int i = 0; i < FRAMES; i++) {
+            assertArrayEquals(liveFrames.get(i), replayedFrames.get(i));
+        }
+
+        assertTrue(manager.sendBytes(MAC, new byte[]{0, 1, 2, 3}));
+        assertTrue(manager.sendBytes(MAC, new byte[]{9, 9, 9, 9}));
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (replay.getWriteMismatches(MAC) == 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, replay.getWriteMismatches(MAC));
+    }
+
+    @Test
+    public void truncatedTrace_keepsCompleteRecords() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BleTraceRecorder recorder = new BleTraceRecorder(out);
+        recorder.record(BleTrace.TYPE_NOTIFY, MAC, new byte[]{1, 2, 3}, 0, 3);
+        recorder.record(BleTrace.TYPE_NOTIFY, "AA:BB:CC:DD:EE:FF", new byte[300], 0, 300);
+        recorder.close();
+        byte[] bytes = out.toByteArray();
+
+        BleTrace trace = BleTrace.read(new ByteArrayInputStream(bytes));
+        assertEquals(2, trace.getRecords().size());
+        assertEquals(300, trace.getRecords("AA:BB:CC:DD:EE:FF").get(0).getData().length);
+
+        trace = BleTrace.read(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 10)));
+        assertEquals(1, trace.getRecords().size());
+        assertArrayEquals(new byte[]{1, 2, 3}, trace.getRecords().get(0).getData());
+    }
+}